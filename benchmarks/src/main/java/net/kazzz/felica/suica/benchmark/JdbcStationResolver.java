@@ -0,0 +1,132 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica.suica.benchmark;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import net.kazzz.felica.suica.StationResolver;
+
+/**
+ * StationCode.dbをJDBC経由で参照するStationResolverを提供します
+ *
+ * <pre>DBUtilと同じSQL、同じバインド方法(駅は10進数、停留所は16進数の文字列)で検索するため、
+ * 端末上のSQLite検索に近い条件をJVM上で計測できます</pre>
+ *
+ * @author Kazzz
+ * @date 2011/03/23
+ * @since Java 1.6
+ *
+ */
+
+public class JdbcStationResolver implements StationResolver, Closeable {
+    //DBUtilと同じ検索条件
+    private static final String SQL_STATION =
+        "select CompanyName, LineName, StationName from StationCode"
+        + " where AreaCode = ? and LineCode = ? and StationCode = ? order by _id limit 1";
+    private static final String SQL_BUSSTOP =
+        "select CompanyName, StationName from IruCaStationCode"
+        + " where LineCode = ? and StationCode = ? order by _id limit 1";
+
+    private final Connection connection;
+    private final PreparedStatement stationStatement;
+    private final PreparedStatement busStopStatement;
+
+    /**
+     * コンストラクタ
+     * @param dataBase StationCode.dbをセット
+     * @throws IOException データベースを開けない場合
+     */
+    public JdbcStationResolver(File dataBase) throws IOException {
+        if ( !dataBase.isFile() ) {
+            throw new IOException("database not found : " + dataBase);
+        }
+        try {
+            Class.forName("org.sqlite.JDBC");
+            this.connection = DriverManager.getConnection("jdbc:sqlite:" + dataBase.getPath());
+            this.stationStatement = this.connection.prepareStatement(SQL_STATION);
+            this.busStopStatement = this.connection.prepareStatement(SQL_BUSSTOP);
+        } catch (ClassNotFoundException e) {
+            throw new IOException("SQLite JDBC driver not found", e);
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+    /* (non-Javadoc)
+     * @see net.kazzz.felica.suica.StationResolver#getStation(int, int, int)
+     */
+    @Override
+    public synchronized String[] getStation(int areaCode, int lineCode, int stationCode)
+            throws IOException {
+        try {
+            this.stationStatement.setString(1, Integer.toString(areaCode & 0xff));
+            this.stationStatement.setString(2, Integer.toString(lineCode & 0xff));
+            this.stationStatement.setString(3, Integer.toString(stationCode & 0xff));
+            return query(this.stationStatement, 3);
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+    /* (non-Javadoc)
+     * @see net.kazzz.felica.suica.StationResolver#getBusStop(int, int)
+     */
+    @Override
+    public synchronized String[] getBusStop(int lineCode, int stationCode) throws IOException {
+        try {
+            this.busStopStatement.setString(1, Integer.toHexString(lineCode & 0xffff));
+            this.busStopStatement.setString(2, Integer.toHexString(stationCode & 0xffff));
+            return query(this.busStopStatement, 2);
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+    /**
+     * パラメタをバインド済みのステートメントを実行します
+     * @param statement ステートメントをセット
+     * @param columns 取得するカラム数をセット
+     * @return String[] 名称が戻ります 見つからない場合はnullが戻ります
+     * @throws SQLException
+     */
+    private static String[] query(PreparedStatement statement, int columns) throws SQLException {
+        ResultSet rs = statement.executeQuery();
+        try {
+            if ( !rs.next() ) return null;
+            String[] result = new String[columns];
+            for ( int i = 0; i < columns; i++ ) {
+                String s = rs.getString(i + 1);
+                result[i] = s != null ? s : "";
+            }
+            return result;
+        } finally {
+            rs.close();
+        }
+    }
+    /* (non-Javadoc)
+     * @see java.io.Closeable#close()
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            this.stationStatement.close();
+            this.busStopStatement.close();
+            this.connection.close();
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica.suica.benchmark;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import net.kazzz.felica.BlockReader;
+import net.kazzz.felica.sim.SimulatedSuica;
+import net.kazzz.felica.suica.HistoryRenderer;
+import net.kazzz.felica.suica.StationResolver;
+import net.kazzz.felica.suica.Suica;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * タッチから表示までの読み込み、デコード、描画のベンチマークを提供します
+ *
+ * <pre>使用履歴20件を持つSimulatedSuicaをBlockReaderで読み込み、ブロック毎にSuica.Historyにデコードして
+ * HistoryRendererで描画します。1操作が1回のタッチです
+ * コマンド毎の遅延(latencyMicros)、ステータスエラーの発生率(errorRate)、
+ * カードが1コマンドで返せるブロック数(cardMaxBlocks)を変えて、バッチサイズの効果と縮小、再試行の挙動を計測します
+ * 発行したコマンド数、読めたブロック数の合計は補助カウンタ(commands、blocks)に出力します (blocks/commandsがバッチの効率)</pre>
+ *
+ * @author Kazzz
+ * @date 2011/04/01
+ * @since Java 1.6
+ *
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScanPipelineBenchmark {
+    //2のべき乗 (添字をマスクで巡回させる)
+    private static final int CARDS = 16;
+
+    /**
+     * 発行したコマンド数、読めたブロック数を集計します
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Counters {
+        public long commands;
+        public long blocks;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            this.commands = 0;
+            this.blocks = 0;
+        }
+    }
+
+    @Param({"1", "4", "8", "15"})
+    public int batchSize;
+
+    @Param({"0", "2000"})
+    public long latencyMicros;
+
+    @Param({"0", "0.05"})
+    public double errorRate;
+
+    @Param({"15"})
+    public int cardMaxBlocks;
+
+    @Param({StationResolvers.INDEX})
+    public String resolver;
+
+    private StationResolver stationResolver;
+    private SimulatedSuica[] cards;
+    private HistoryRenderer renderer;
+    private final StringBuilder out = new StringBuilder(4096);
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        this.stationResolver = StationResolvers.open(this.resolver);
+        this.renderer = new HistoryRenderer(HistoryRenderer.Template.TEXT, this.stationResolver);
+        this.cards = new SimulatedSuica[CARDS];
+        for ( int i = 0; i < CARDS; i++ ) {
+            byte[][] blocks = HistoryCorpus.create(StationResolvers.openDictionary()
+                    , HistoryCorpus.Kind.MIXED, SimulatedSuica.MAX_HISTORY, 20110401L + i);
+            byte[] idm = { 0x01, 0x01, 0x12, 0x0c, 0x25, 0x0d, 0x00, (byte) i };
+            SimulatedSuica card = new SimulatedSuica(idm, Arrays.asList(blocks));
+            card.setMaxReadBlocks(this.cardMaxBlocks);
+            card.setLatencyMicros(this.latencyMicros);
+            card.setErrorRate(this.errorRate);
+            card.setSeed(i);
+            this.cards[i] = card;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        StationResolvers.close(this.stationResolver);
+    }
+
+    /**
+     * 読み込み、デコード、描画を1ブロックずつ続けて行います
+     */
+    @Benchmark
+    public StringBuilder scanDecodeRender(Counters counters) throws IOException {
+        final SimulatedSuica card = this.cards[this.next++ & (CARDS - 1)];
+        this.out.setLength(0);
+        this.scan(card, counters, new BlockReader.BlockListener() {
+            @Override
+            public boolean onBlock(int addr, byte[] data) {
+                try {
+                    renderer.render(addr, new Suica.History(data, stationResolver), out);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+                return true;
+            }
+        });
+        return this.out;
+    }
+
+    /**
+     * 読み込みだけを行います (デコード、描画の費用を除いた基準)
+     */
+    @Benchmark
+    public void scanOnly(Counters counters, final Blackhole bh) throws IOException {
+        SimulatedSuica card = this.cards[this.next++ & (CARDS - 1)];
+        this.scan(card, counters, new BlockReader.BlockListener() {
+            @Override
+            public boolean onBlock(int addr, byte[] data) {
+                bh.consume(data);
+                return true;
+            }
+        });
+    }
+
+    private void scan(SimulatedSuica card, Counters counters, BlockReader.BlockListener listener)
+            throws IOException {
+        BlockReader reader = new BlockReader(card, card.getIDm());
+        reader.setBatchSize(this.batchSize);
+        int before = card.getCommandCount();
+        card.connect();
+        try {
+            counters.blocks += reader.readBlocks(SimulatedSuica.SERVICE_HISTORY
+                    , 0, SimulatedSuica.MAX_HISTORY, listener);
+        } finally {
+            card.close();
+        }
+        counters.commands += card.getCommandCount() - before;
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica.suica.benchmark;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import net.kazzz.felica.suica.StationDictionary;
+import net.kazzz.felica.suica.StationResolver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * StationResolverの実装毎の駅名、停留所検索のベンチマークを提供します
+ *
+ * <pre>キーは辞書に収録されているものから無作為に選ぶため、missの検索以外は必ずヒットします</pre>
+ *
+ * @author Kazzz
+ * @date 2011/03/23
+ * @since Java 1.6
+ *
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StationLookupBenchmark {
+    //2のべき乗 (添字をマスクで巡回させる)
+    private static final int KEY_COUNT = 1024;
+
+    @Param({StationResolvers.DICTIONARY, StationResolvers.INDEX, StationResolvers.SQLITE})
+    public String resolver;
+
+    private StationResolver stationResolver;
+    private int[] stationKeys;
+    private int[] busStopKeys;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        this.stationResolver = StationResolvers.open(this.resolver);
+        StationDictionary dictionary = StationResolvers.openDictionary();
+        Random random = new Random(20110124L);
+        this.stationKeys = new int[KEY_COUNT];
+        this.busStopKeys = new int[KEY_COUNT];
+        for ( int i = 0; i < KEY_COUNT; i++ ) {
+            this.stationKeys[i] =
+                dictionary.getStationKey(random.nextInt(dictionary.getStationCount()));
+            this.busStopKeys[i] =
+                dictionary.getBusStopKey(random.nextInt(dictionary.getBusStopCount()));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        StationResolvers.close(this.stationResolver);
+    }
+
+    private int nextIndex() {
+        return this.next++ & (KEY_COUNT - 1);
+    }
+
+    @Benchmark
+    public String[] station() throws IOException {
+        int key = this.stationKeys[this.nextIndex()];
+        return this.stationResolver.getStation(key >> 16, key >> 8, key);
+    }
+
+    @Benchmark
+    public String[] busStop() throws IOException {
+        int key = this.busStopKeys[this.nextIndex()];
+        return this.stationResolver.getBusStop(key >>> 16, key);
+    }
+
+    @Benchmark
+    public String[] stationMiss() throws IOException {
+        //地区コード0xffは収録されていない
+        int key = this.stationKeys[this.nextIndex()];
+        return this.stationResolver.getStation(0xff, key >> 8, key);
+    }
+}
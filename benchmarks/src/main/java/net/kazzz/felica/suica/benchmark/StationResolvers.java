@@ -0,0 +1,92 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica.suica.benchmark;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+import net.kazzz.felica.suica.StationCodeIndex;
+import net.kazzz.felica.suica.StationDictionary;
+import net.kazzz.felica.suica.StationResolver;
+
+/**
+ * ベンチマークで使用するStationResolverを生成するユーティリティクラスを提供します
+ *
+ * <pre>駅コードはシステムプロパティ stationcode.db、stationcode.dic で指定したファイルから読み込みます
+ * (既定は benchmarks/ から見た ../assets/StationCode.db、../assets/StationCode.dic)</pre>
+ *
+ * @author Kazzz
+ * @date 2011/03/23
+ * @since Java 1.6
+ *
+ */
+
+public final class StationResolvers {
+    /** SQLite(JDBC)で検索する */
+    public static final String SQLITE = "sqlite";
+    /** メモリ上のインデックスで検索する */
+    public static final String INDEX = "index";
+    /** メモリマップした辞書で検索する */
+    public static final String DICTIONARY = "dictionary";
+
+    private StationResolvers() {}
+
+    /**
+     * StationCode.dbのファイルを取得します
+     * @return File StationCode.dbが戻ります
+     */
+    public static File getDataBaseFile() {
+        return new File(System.getProperty("stationcode.db", "../assets/StationCode.db"));
+    }
+    /**
+     * StationCode.dicのファイルを取得します
+     * @return File StationCode.dicが戻ります
+     */
+    public static File getDictionaryFile() {
+        return new File(System.getProperty("stationcode.dic", "../assets/StationCode.dic"));
+    }
+    /**
+     * 駅コード辞書を開きます
+     * @return StationDictionary 駅コード辞書が戻ります
+     * @throws IOException
+     */
+    public static StationDictionary openDictionary() throws IOException {
+        return StationDictionary.open(getDictionaryFile());
+    }
+    /**
+     * StationResolverを生成します
+     * @param type SQLITE、INDEX、DICTIONARYのいずれかをセット
+     * @return StationResolver 生成したStationResolverが戻ります
+     * @throws IOException 駅コードを読み込めない場合
+     */
+    public static StationResolver open(String type) throws IOException {
+        if ( SQLITE.equals(type) ) {
+            return new JdbcStationResolver(getDataBaseFile());
+        } else if ( INDEX.equals(type) ) {
+            return new StationCodeIndex(openDictionary());
+        } else if ( DICTIONARY.equals(type) ) {
+            return openDictionary();
+        }
+        throw new IllegalArgumentException("unknown resolver : " + type);
+    }
+    /**
+     * StationResolverが資源を保持している場合は解放します
+     * @param resolver 解放するStationResolverをセット
+     * @throws IOException
+     */
+    public static void close(StationResolver resolver) throws IOException {
+        if ( resolver instanceof Closeable ) {
+            ((Closeable) resolver).close();
+        }
+    }
+}
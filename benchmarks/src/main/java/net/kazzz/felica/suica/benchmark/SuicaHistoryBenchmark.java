@@ -0,0 +1,161 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica.suica.benchmark;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import net.kazzz.felica.suica.HistoryRenderer;
+import net.kazzz.felica.suica.HistoryView;
+import net.kazzz.felica.suica.StationResolver;
+import net.kazzz.felica.suica.Suica;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Suica.Historyのデコード処理のベンチマークを提供します
+ *
+ * <pre>合成した使用履歴(HistoryCorpus)を順に取り出して1件ずつ処理し、1操作あたりのスループットを計測します
+ * 割り当て量は -prof gc で計測します (gc.alloc.rate.norm が1操作あたりのバイト数)</pre>
+ *
+ * @author Kazzz
+ * @date 2011/03/23
+ * @since Java 1.6
+ *
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SuicaHistoryBenchmark {
+    //2のべき乗 (添字をマスクで巡回させる)
+    private static final int CORPUS_SIZE = 1024;
+
+    @Param({"MIXED", "RAIL", "BUS", "SALES", "CHARGE"})
+    public String kind;
+
+    @Param({StationResolvers.DICTIONARY, StationResolvers.INDEX, StationResolvers.SQLITE})
+    public String resolver;
+
+    private StationResolver stationResolver;
+    private byte[][] blocks;
+    private Suica.History[] histories;
+    private final HistoryView view = new HistoryView();
+    private final StringBuilder out = new StringBuilder(1024);
+    private HistoryRenderer textRenderer;
+    private HistoryRenderer csvRenderer;
+    private HistoryRenderer jsonRenderer;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        this.stationResolver = StationResolvers.open(this.resolver);
+        this.blocks = HistoryCorpus.create(StationResolvers.openDictionary()
+                , HistoryCorpus.Kind.valueOf(this.kind), CORPUS_SIZE, 20110124L);
+        this.textRenderer = new HistoryRenderer(HistoryRenderer.Template.TEXT, this.stationResolver);
+        this.csvRenderer = new HistoryRenderer(HistoryRenderer.Template.CSV, this.stationResolver);
+        this.jsonRenderer = new HistoryRenderer(HistoryRenderer.Template.JSON, this.stationResolver);
+        this.histories = new Suica.History[CORPUS_SIZE];
+        for ( int i = 0; i < CORPUS_SIZE; i++ ) {
+            this.histories[i] = new Suica.History(this.blocks[i], this.stationResolver);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        StationResolvers.close(this.stationResolver);
+    }
+
+    private int nextIndex() {
+        return this.next++ & (CORPUS_SIZE - 1);
+    }
+
+    @Benchmark
+    public String historyToString() {
+        return this.histories[this.nextIndex()].toString();
+    }
+
+    @Benchmark
+    public StringBuilder renderText() throws IOException {
+        return this.render(this.textRenderer);
+    }
+
+    @Benchmark
+    public StringBuilder renderCsv() throws IOException {
+        return this.render(this.csvRenderer);
+    }
+
+    @Benchmark
+    public StringBuilder renderJson() throws IOException {
+        return this.render(this.jsonRenderer);
+    }
+
+    private StringBuilder render(HistoryRenderer renderer) throws IOException {
+        int i = this.nextIndex();
+        this.out.setLength(0);
+        renderer.render(i, this.view.bind(this.blocks[i], 0), this.out);
+        return this.out;
+    }
+
+    @Benchmark
+    public Date processDate() {
+        return this.histories[this.nextIndex()].getProccessDate();
+    }
+
+    @Benchmark
+    public void consoleAndProcessType(Blackhole bh) {
+        Suica.History history = this.histories[this.nextIndex()];
+        bh.consume(history.getConsoleType());
+        bh.consume(history.getProcessType());
+    }
+
+    @Benchmark
+    public void stations(Blackhole bh) {
+        Suica.History history = this.histories[this.nextIndex()];
+        bh.consume(history.getEntranceStation());
+        bh.consume(history.getExitStation());
+    }
+
+    @Benchmark
+    public Suica.History newHistory() {
+        return new Suica.History(this.blocks[this.nextIndex()], this.stationResolver);
+    }
+
+    @Benchmark
+    public void decodeView(Blackhole bh) {
+        HistoryView v = this.view.bind(this.blocks[this.nextIndex()], 0);
+        bh.consume(v.getConsoleTypeCode());
+        bh.consume(v.getProcessTypeCode());
+        bh.consume(v.getDate());
+        bh.consume(v.getTime());
+        bh.consume(v.getBalance());
+        bh.consume(v.getEntranceKey());
+        bh.consume(v.getExitKey());
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica.suica.benchmark;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import net.kazzz.felica.suica.HistoryStore;
+import net.kazzz.felica.suica.HistoryView;
+import net.kazzz.felica.suica.StationDictionary;
+import net.kazzz.felica.suica.analytics.FleetAnalyzer;
+import net.kazzz.felica.suica.analytics.TripAnalyzer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 使用履歴の運賃、利用区間の集計のベンチマークを提供します
+ *
+ * <pre>カード毎に合成した使用履歴(HistoryCorpus)を、ブロックのまま、又はHistoryStoreに格納して集計します
+ * 1操作が全てのカードの集計です。1秒あたりの使用履歴の件数はスコアにcards×recordsPerCardを掛けた値です
+ * threadsを変えてFleetAnalyzerの並列化の効果を計測します</pre>
+ *
+ * @author Kazzz
+ * @date 2011/04/06
+ * @since Java 1.6
+ *
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TripAnalyticsBenchmark {
+    @Param({"1", "4"})
+    public int threads;
+
+    @Param({"2000"})
+    public int cards;
+
+    @Param({"500"})
+    public int recordsPerCard;
+
+    private List<byte[]> blocks;
+    private List<HistoryStore> stores;
+    private FleetAnalyzer analyzer;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        StationDictionary dictionary = StationResolvers.openDictionary();
+        this.blocks = new ArrayList<byte[]>(this.cards);
+        this.stores = new ArrayList<HistoryStore>(this.cards);
+        for ( int c = 0; c < this.cards; c++ ) {
+            byte[][] history = HistoryCorpus.create(dictionary
+                    , HistoryCorpus.Kind.MIXED, this.recordsPerCard, 20110406L + c);
+            byte[] packed = new byte[history.length * HistoryView.BLOCK_SIZE];
+            HistoryStore store = new HistoryStore();
+            for ( int i = 0; i < history.length; i++ ) {
+                System.arraycopy(history[i], 0, packed, i * HistoryView.BLOCK_SIZE
+                        , HistoryView.BLOCK_SIZE);
+                store.append(new HistoryView(history[i], 0));
+            }
+            this.blocks.add(packed);
+            this.stores.add(store);
+        }
+        this.analyzer = new FleetAnalyzer(this.threads);
+    }
+
+    @Benchmark
+    public TripAnalyzer analyzeBlocks() throws Exception {
+        return this.analyzer.analyze(this.blocks);
+    }
+
+    @Benchmark
+    public TripAnalyzer analyzeStores() throws Exception {
+        return this.analyzer.analyzeStores(this.stores);
+    }
+}
@@ -0,0 +1,313 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import net.kazzz.felica.metrics.FeliCaMetrics;
+import net.kazzz.felica.metrics.MeteredTransport;
+import net.kazzz.felica.sim.SimulatedCard;
+import net.kazzz.felica.sim.SimulatedFeliCaLite;
+import net.kazzz.felica.sim.SimulatedSuica;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * BlockReaderの一括読み込み、縮小、読み直しと、MeteredTransportの再試行の集計を
+ * エミュレータ(SimulatedSuica、SimulatedFeliCaLite)で検証します
+ *
+ * <pre>readBlocksはBatchFeliCaTag#readBlocks、readGroupsはFeliCaLiteSnapshot#readの実体です</pre>
+ *
+ * @author Kazzz
+ * @date 2011/04/10
+ * @since Android API Level 10
+ *
+ */
+
+public class BlockReaderTest {
+    private static final byte[] IDM = {
+        (byte) 0x01, (byte) 0x01, (byte) 0x12, (byte) 0x10
+        , (byte) 0x8d, (byte) 0x0f, (byte) 0x3a, (byte) 0x4b };
+    private static final String READ = "READ_WO_ENCRYPTION";
+
+    /** FeliCa Liteの平文で読み込める全てのブロック (FeliCaLiteSnapshot.FULLと同じ並び) */
+    private static final int[] LITE_FULL = {
+        0x00, 0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08, 0x09, 0x0a, 0x0b, 0x0c, 0x0d
+        , SimulatedFeliCaLite.REG, SimulatedFeliCaLite.ID, SimulatedFeliCaLite.D_ID
+        , SimulatedFeliCaLite.SER_C, SimulatedFeliCaLite.SYS_C, SimulatedFeliCaLite.CKV
+        , SimulatedFeliCaLite.MC };
+    /** FeliCa Liteの1コマンドで読み込めるブロック数 */
+    private static final int LITE_GROUP = 4;
+
+    private FeliCaMetrics metrics;
+    private List<byte[]> history;
+    private SimulatedSuica suica;
+    private SimulatedFeliCaLite lite;
+    private BlockReader reader;
+
+    @Before
+    public void setUp() {
+        this.metrics = new FeliCaMetrics();
+        this.history = new ArrayList<byte[]>();
+        for ( int i = 0; i < SimulatedSuica.MAX_HISTORY; i++ ) {
+            this.history.add(block(i));
+        }
+        this.suica = new SimulatedSuica(IDM, this.history);
+        this.lite = new SimulatedFeliCaLite(IDM);
+        for ( int i = 0; i <= SimulatedFeliCaLite.REG; i++ ) {
+            this.lite.setBlock(i, block(0x40 + i));
+        }
+    }
+
+    @Test
+    public void halvesBatchOnStatusError() throws IOException {
+        this.suica.setMaxReadBlocks(4);
+        Recorder r = this.readBlocks(8, 30);
+
+        //8→4に縮小して20件、終端(20～)で4→2→1と縮小して止まる
+        assertEquals(SimulatedSuica.MAX_HISTORY, r.addrs.size());
+        this.assertHistory(r);
+        assertEquals(1 + 5 + 3, this.suica.getCommandCount());
+        assertEquals(4, this.statusErrors());
+        //最後のエラーの後はコマンドを発行しないので再試行は1つ少ない
+        assertEquals(3, this.retries());
+    }
+
+    @Test
+    public void fallsBackToSingleBlocks() throws IOException {
+        this.suica.setMaxReadBlocks(1);
+        Recorder r = this.readBlocks(8, SimulatedSuica.MAX_HISTORY);
+
+        //8→4→2→1と縮小し、以降は1ブロックずつ読む
+        assertEquals(SimulatedSuica.MAX_HISTORY, r.addrs.size());
+        this.assertHistory(r);
+        assertEquals(3 + SimulatedSuica.MAX_HISTORY, this.suica.getCommandCount());
+        assertEquals(3, this.statusErrors());
+        assertEquals(3, this.retries());
+    }
+
+    @Test
+    public void stopsAtEndOfHistory() throws IOException {
+        Recorder r = this.readBlocks(8, SimulatedSuica.MAX_HISTORY + 10);
+
+        assertEquals(SimulatedSuica.MAX_HISTORY, r.addrs.size());
+        this.assertHistory(r);
+        //0～、8～を読み、16～23は終端を含むので4件に縮小、20～で4→2→1と縮小して止まる
+        assertEquals(2 + 2 + 3, this.suica.getCommandCount());
+        assertEquals(4, this.statusErrors());
+        assertEquals(3, this.retries());
+        //範囲外のブロック番号で止まったので終端まで読めている
+        assertEquals(BlockReader.STATUS_BLOCK_NUMBER, this.reader.getLastStatus() & 0xff);
+        assertTrue(BlockReader.isEndOfService(this.reader.getLastStatus()));
+    }
+
+    @Test
+    public void reportsErrorBeforeEnd() throws IOException {
+        this.suica.setErrorRate(1.0);
+        Recorder r = this.readBlocks(8, SimulatedSuica.MAX_HISTORY);
+
+        //メモリエラーで止まった場合は終端とみなさない (呼び出し側は結果を記録しない)
+        assertTrue(r.addrs.isEmpty());
+        assertEquals(SimulatedCard.STATUS_MEMORY, this.reader.getLastStatus() & 0xff);
+        assertFalse(BlockReader.isEndOfService(this.reader.getLastStatus()));
+    }
+
+    @Test
+    public void reportsEndAfterMaxBlocks() throws IOException {
+        Recorder r = this.readBlocks(8, 10);
+
+        assertEquals(10, r.addrs.size());
+        assertEquals(0, this.reader.getLastStatus());
+        assertTrue(BlockReader.isEndOfService(this.reader.getLastStatus()));
+    }
+
+    @Test
+    public void countsRetriesOfInjectedErrors() throws IOException {
+        this.suica.setErrorRate(0.3);
+        this.suica.setSeed(3);
+        Recorder r = this.readBlocks(8, SimulatedSuica.MAX_HISTORY);
+
+        assertTrue(this.suica.getErrorCount() > 0);
+        this.assertHistory(r);
+        assertEquals(this.suica.getErrorCount(), this.statusErrors());
+        //読み切れなかった場合は1ブロックの読み込みのエラーで止まっている
+        int last = r.addrs.size() < SimulatedSuica.MAX_HISTORY ? 1 : 0;
+        assertEquals(this.suica.getErrorCount() - last, this.retries());
+    }
+
+    @Test
+    public void recordsInjectedFailure() {
+        this.suica.setFailureRate(1.0);
+        try {
+            this.readBlocks(8, SimulatedSuica.MAX_HISTORY);
+            fail("IOException expected");
+        } catch (IOException e) {
+            assertEquals(1, this.suica.getFailureCount());
+            assertEquals(1, this.metric(READ).getFailures());
+            assertEquals(0, this.retries());
+        }
+    }
+
+    @Test
+    public void readsAllGroups() throws IOException {
+        Map<Integer, byte[]> blocks = this.readGroups(LITE_FULL);
+
+        assertEquals(LITE_FULL.length, blocks.size());
+        this.assertLite(blocks);
+        assertEquals(6, this.lite.getCommandCount());
+        assertEquals(0, this.retries());
+    }
+
+    @Test
+    public void rereadsFailedGroup() throws IOException {
+        //0x87は存在しないブロック 2つ目のまとまりだけがエラーになる
+        int[] addrs = { 0x00, 0x01, 0x02, 0x03, 0x04, 0x05, 0x87, 0x06, SimulatedFeliCaLite.MC };
+        Map<Integer, byte[]> blocks = this.readGroups(addrs);
+
+        assertEquals(addrs.length - 1, blocks.size());
+        assertFalse(blocks.containsKey(0x87));
+        this.assertLite(blocks);
+        //まとまり3つ + 読み直し4つ
+        assertEquals(3 + 4, this.lite.getCommandCount());
+        assertEquals(2, this.statusErrors());
+        assertEquals(2, this.retries());
+    }
+
+    @Test
+    public void rereadsGroupsOverCardLimit() throws IOException {
+        this.lite.setMaxReadBlocks(2);
+        Map<Integer, byte[]> blocks = this.readGroups(LITE_FULL);
+
+        //4ブロックのまとまり5つがエラーとなり、1ブロックずつ全て読み直せる (最後のMCは1ブロックのみ)
+        assertEquals(LITE_FULL.length, blocks.size());
+        this.assertLite(blocks);
+        assertEquals(5 + 5 * LITE_GROUP + 1, this.lite.getCommandCount());
+        assertEquals(5, this.statusErrors());
+        assertEquals(5, this.retries());
+    }
+
+    @Test
+    public void rereadsGroupsWithInjectedErrors() throws IOException {
+        this.lite.setErrorRate(0.25);
+        this.lite.setSeed(11);
+        Map<Integer, byte[]> blocks = this.readGroups(LITE_FULL);
+
+        assertTrue(this.lite.getErrorCount() > 0);
+        this.assertLite(blocks);
+        //読み直しでもエラーとなったブロックだけが欠ける
+        assertTrue(LITE_FULL.length - blocks.size() <= this.lite.getErrorCount());
+        assertEquals(this.lite.getErrorCount(), this.statusErrors());
+    }
+
+    @Test
+    public void skipsBlocksFailingEveryRead() throws IOException {
+        this.lite.setErrorRate(1.0);
+        Map<Integer, byte[]> blocks = this.readGroups(LITE_FULL);
+
+        assertTrue(blocks.isEmpty());
+        assertEquals(6 + LITE_FULL.length, this.lite.getCommandCount());
+        //最初のコマンド以外は全て直前のエラーの再試行
+        assertEquals(6 + LITE_FULL.length - 1, this.retries());
+    }
+
+    /**
+     * 読み込んだブロックを順に記録するリスナ
+     */
+    private static final class Recorder implements BlockReader.BlockListener {
+        final List<Integer> addrs = new ArrayList<Integer>();
+        final List<byte[]> data = new ArrayList<byte[]>();
+
+        @Override
+        public boolean onBlock(int addr, byte[] block) {
+            this.addrs.add(addr);
+            this.data.add(block);
+            return true;
+        }
+    }
+
+    private Recorder readBlocks(int batchSize, int maxBlocks) throws IOException {
+        MeteredTransport transport = new MeteredTransport(this.suica, this.metrics);
+        BlockReader reader = new BlockReader(transport, IDM);
+        reader.setBatchSize(batchSize);
+        this.reader = reader;
+        Recorder r = new Recorder();
+        transport.connect();
+        try {
+            int read = reader.readBlocks(SimulatedSuica.SERVICE_HISTORY, 0, maxBlocks, r);
+            assertEquals(r.addrs.size(), read);
+        } finally {
+            transport.close();
+        }
+        return r;
+    }
+    private Map<Integer, byte[]> readGroups(int[] addrs) throws IOException {
+        MeteredTransport transport = new MeteredTransport(this.lite, this.metrics);
+        final Map<Integer, byte[]> result = new TreeMap<Integer, byte[]>();
+        transport.connect();
+        try {
+            int read = new BlockReader(transport, IDM).readGroups(SimulatedFeliCaLite.SERVICE_READONLY
+                    , addrs, LITE_GROUP, new BlockReader.BlockListener() {
+                @Override
+                public boolean onBlock(int addr, byte[] data) {
+                    assertTrue("duplicate " + addr, result.put(addr, data) == null);
+                    return true;
+                }
+            });
+            assertEquals(result.size(), read);
+        } finally {
+            transport.close();
+        }
+        return result;
+    }
+    private void assertHistory(Recorder r) {
+        for ( int i = 0; i < r.addrs.size(); i++ ) {
+            assertEquals(i, r.addrs.get(i).intValue());
+            assertArrayEquals(this.history.get(i), r.data.get(i));
+        }
+    }
+    private void assertLite(Map<Integer, byte[]> blocks) {
+        for ( Map.Entry<Integer, byte[]> e : blocks.entrySet() ) {
+            assertArrayEquals("block " + e.getKey(), this.lite.getBlock(e.getKey()), e.getValue());
+        }
+    }
+    private FeliCaMetrics.Metric metric(String name) {
+        for ( FeliCaMetrics.Metric m : this.metrics.snapshot() ) {
+            if ( m.getName().equals(name) ) return m;
+        }
+        fail(name + " is not recorded");
+        return null;
+    }
+    private long statusErrors() {
+        return this.metric(READ).getStatusErrors();
+    }
+    private long retries() {
+        return this.metric(READ).getRetries();
+    }
+    private static byte[] block(int seed) {
+        byte[] b = new byte[SimulatedCard.BLOCK_SIZE];
+        for ( int i = 0; i < b.length; i++ ) {
+            b[i] = (byte) (seed * 31 + i);
+        }
+        return b;
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica.suica;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * HistoryLedgerの追記、開き直した際の読み込み、中断された末尾の切り詰めを検証します
+ *
+ * @author Kazzz
+ * @date 2011/04/10
+ * @since Android API Level 4
+ *
+ */
+
+public class HistoryLedgerTest {
+    private static final byte[] IDM = {
+        (byte) 0x01, (byte) 0x01, (byte) 0x12, (byte) 0x10
+        , (byte) 0x8d, (byte) 0x0f, (byte) 0x3a, (byte) 0x4b };
+    private static final long VERSION = 20110401L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File dir;
+    //古い順
+    private List<HistoryLedger.Entry> entries;
+
+    @Before
+    public void setUp() {
+        this.dir = new File(this.folder.getRoot(), "ledger");
+        this.entries = new ArrayList<HistoryLedger.Entry>();
+        List<byte[]> blocks = HistoryStoreTest.corpus(10);
+        for ( int i = 0; i < blocks.size(); i++ ) {
+            //modified UTF-8で1～3バイトになる文字を混ぜる
+            this.entries.add(new HistoryLedger.Entry(blocks.get(i)
+                    , "履歴 " + i + " é\u0000", i % 2 == 0 ? VERSION : -1));
+        }
+    }
+
+    @Test
+    public void reopenReturnsSameEntries() throws IOException {
+        HistoryLedger ledger = HistoryLedger.open(this.dir, IDM);
+        assertEquals(0, ledger.size());
+        assertFalse(ledger.getFile().exists());
+        assertEquals(10, ledger.append(newer(0, 10)));
+
+        HistoryLedger reopened = HistoryLedger.open(this.dir, IDM);
+        assertEquals("010112108D0F3A4B" + HistoryLedger.EXTENSION, reopened.getFile().getName());
+        assertArrayEquals(IDM, reopened.getIDm());
+        this.assertEntries(reopened, 10);
+        assertEquals(3, reopened.getEntries(3).size());
+        assertArrayEquals(this.entries.get(9).getBlock(), reopened.getEntries(3).get(0).getBlock());
+    }
+
+    @Test
+    public void appendSkipsRecordedEntries() throws IOException {
+        HistoryLedger ledger = HistoryLedger.open(this.dir, IDM);
+        assertEquals(6, ledger.append(newer(0, 6)));
+        long length = ledger.getFile().length();
+        //カードには記録済みの使用履歴も残っている
+        assertEquals(4, ledger.append(newer(2, 10)));
+        assertEquals(0, ledger.append(newer(0, 10)));
+        assertTrue(ledger.getFile().length() > length);
+        assertTrue(ledger.contains(this.entries.get(9).getBlock(), 0));
+
+        this.assertEntries(HistoryLedger.open(this.dir, IDM), 10);
+    }
+
+    @Test
+    public void reopenThenAppend() throws IOException {
+        HistoryLedger.open(this.dir, IDM).append(newer(0, 4));
+        HistoryLedger ledger = HistoryLedger.open(this.dir, IDM);
+        assertEquals(6, ledger.append(newer(0, 10)));
+        this.assertEntries(ledger, 10);
+
+        this.assertEntries(HistoryLedger.open(this.dir, IDM), 10);
+    }
+
+    @Test
+    public void truncatedTailIsDropped() throws IOException {
+        HistoryLedger ledger = HistoryLedger.open(this.dir, IDM);
+        ledger.append(newer(0, 4));
+        long length = ledger.getFile().length();
+        ledger.append(newer(4, 5));
+        //5件目の書き込みの途中で中断された
+        chop(ledger.getFile(), ledger.getFile().length() - 3);
+
+        HistoryLedger reopened = HistoryLedger.open(this.dir, IDM);
+        this.assertEntries(reopened, 4);
+        assertEquals(length, reopened.getFile().length());
+
+        //切り詰めた後の追記は続きから書き込まれる
+        assertEquals(6, reopened.append(newer(0, 10)));
+        this.assertEntries(HistoryLedger.open(this.dir, IDM), 10);
+    }
+
+    @Test
+    public void corruptTailIsDropped() throws IOException {
+        HistoryLedger ledger = HistoryLedger.open(this.dir, IDM);
+        ledger.append(newer(0, 4));
+        long length = ledger.getFile().length();
+        //テキストがmodified UTF-8として不正な末尾
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(ledger.getFile(), true));
+        try {
+            out.write(this.entries.get(4).getBlock());
+            out.writeLong(VERSION);
+            out.writeShort(2);
+            out.write(new byte[] { (byte) 0xff, (byte) 0xff });
+        } finally {
+            out.close();
+        }
+
+        HistoryLedger reopened = HistoryLedger.open(this.dir, IDM);
+        this.assertEntries(reopened, 4);
+        assertEquals(length, reopened.getFile().length());
+
+        assertEquals(6, reopened.append(newer(0, 10)));
+        this.assertEntries(HistoryLedger.open(this.dir, IDM), 10);
+    }
+
+    @Test
+    public void updateReplacesText() throws IOException {
+        HistoryLedger ledger = HistoryLedger.open(this.dir, IDM);
+        ledger.append(newer(0, 10));
+        HistoryLedger.Entry e = this.entries.get(3);
+        HistoryLedger.Entry rendered = new HistoryLedger.Entry(e.getBlock(), "作り直し", VERSION + 1);
+        assertEquals(1, ledger.update(Arrays.asList(rendered, this.entries.get(5))));
+        this.entries.set(3, rendered);
+
+        this.assertEntries(HistoryLedger.open(this.dir, IDM), 10);
+        assertFalse(new File(ledger.getFile().getPath() + ".tmp").exists());
+    }
+
+    /**
+     * 台帳の内容が作成したエントリの先頭から指定の件数と一致することを検査します
+     * @param ledger 台帳をセット
+     * @param count 件数をセット
+     */
+    private void assertEntries(HistoryLedger ledger, int count) {
+        assertEquals(count, ledger.size());
+        List<HistoryLedger.Entry> actual = ledger.getEntries();
+        for ( int i = 0; i < count; i++ ) {
+            //台帳のエントリは新しいものから順に戻る
+            HistoryLedger.Entry expected = this.entries.get(count - 1 - i);
+            HistoryLedger.Entry e = actual.get(i);
+            assertArrayEquals(expected.getBlock(), e.getBlock());
+            assertEquals(expected.getText(), e.getText());
+            assertEquals(expected.getVersion(), e.getVersion());
+            assertEquals(expected.getKey(), e.getKey());
+        }
+    }
+
+    /**
+     * カードから読み込んだ順(新しいものから)のエントリを取得します
+     * @param from 最も古いエントリの序数をセット
+     * @param to 最も新しいエントリの序数+1をセット
+     * @return List&lt;HistoryLedger.Entry&gt; エントリが戻ります
+     */
+    private List<HistoryLedger.Entry> newer(int from, int to) {
+        List<HistoryLedger.Entry> result = new ArrayList<HistoryLedger.Entry>();
+        for ( int i = to - 1; i >= from; i-- ) {
+            result.add(this.entries.get(i));
+        }
+        return result;
+    }
+
+    /**
+     * ファイルを指定の長さに切り詰めます
+     * @param file ファイルをセット
+     * @param length 長さをセット
+     * @throws IOException
+     */
+    private static void chop(File file, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+}
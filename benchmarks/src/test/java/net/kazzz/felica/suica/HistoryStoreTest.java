@@ -0,0 +1,283 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica.suica;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * HistoryStoreの列毎の符号化(ZigZag符号化した差分の可変長整数)と、ファイルへの書き出し、
+ * 読み込み、セグメント毎の日付の範囲による読み飛ばしを検証します
+ *
+ * @author Kazzz
+ * @date 2011/04/10
+ * @since Android API Level 4
+ *
+ */
+
+public class HistoryStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void roundTripKeepsEveryColumn() throws IOException {
+        List<byte[]> blocks = corpus(50);
+        HistoryStore store = build(blocks, 8);
+        assertEquals(7, store.getSegmentCount());
+        assertVisits(blocks, store);
+
+        File file = this.folder.newFile("history" + HistoryStore.EXTENSION);
+        store.save(file);
+        HistoryStore loaded = HistoryStore.load(file);
+
+        assertEquals(store.size(), loaded.size());
+        assertEquals(store.getSegmentCount(), loaded.getSegmentCount());
+        assertEquals(store.getEncodedSize(), loaded.getEncodedSize());
+        assertVisits(blocks, loaded);
+    }
+
+    @Test
+    public void keepsMinAndMaxDatePerSegment() throws IOException {
+        //1セグメント4件、1日1件
+        HistoryStore store = build(corpus(12), 4);
+
+        File file = this.folder.newFile("history" + HistoryStore.EXTENSION);
+        store.save(file);
+        HistoryStore loaded = HistoryStore.load(file);
+        for ( HistoryStore h : new HistoryStore[] { store, loaded } ) {
+            assertEquals(3, h.segments.size());
+            for ( int i = 0; i < 3; i++ ) {
+                HistoryStore.Segment s = h.segments.get(i);
+                assertEquals(dateOf(i * 4), s.minDate);
+                assertEquals(dateOf(i * 4 + 3), s.maxDate);
+            }
+        }
+    }
+
+    @Test
+    public void scanSkipsSegmentsOutsideRange() {
+        HistoryStore store = build(corpus(12), 4);
+
+        //2番目のセグメントの最初と最後の日付は両端を含む
+        assertEquals(4, store.scan(dateOf(4), dateOf(7), new Collector()));
+        //セグメントをまたぐ範囲
+        Collector c = new Collector();
+        assertEquals(3, store.scan(dateOf(3), dateOf(5), c));
+        assertEquals(dateOf(3), c.dates.get(0).intValue());
+        assertEquals(dateOf(5), c.dates.get(2).intValue());
+        //範囲外は0件
+        assertEquals(0, store.scan(dateOf(12), dateOf(20), new Collector()));
+        assertEquals(0, store.scan(20110101, dateOf(0) - 1, new Collector()));
+        //ビジタがfalseを戻した所で止まる
+        assertEquals(1, store.scan(dateOf(0), dateOf(11), new HistoryStore.Visitor() {
+            public boolean onRecord(HistoryStore.Cursor cursor) {
+                return false;
+            }
+        }));
+    }
+
+    @Test
+    public void appendAfterLoadContinuesDeltas() throws IOException {
+        List<byte[]> blocks = corpus(30);
+        //最後のセグメントが途中の状態で書き出す
+        HistoryStore store = build(blocks.subList(0, 18), 8);
+        File file = this.folder.newFile("history" + HistoryStore.EXTENSION);
+        store.save(file);
+
+        HistoryStore loaded = HistoryStore.load(file);
+        for ( byte[] b : blocks.subList(18, blocks.size()) ) {
+            loaded.append(new HistoryView(b, 0));
+        }
+        assertEquals(blocks.size(), loaded.size());
+        assertEquals(4, loaded.getSegmentCount());
+        assertVisits(blocks, loaded);
+        assertEquals(build(blocks, 8).getEncodedSize(), loaded.getEncodedSize());
+
+        loaded.save(file);
+        assertVisits(blocks, HistoryStore.load(file));
+    }
+
+    @Test
+    public void loadRejectsOtherFiles() throws IOException {
+        File file = this.folder.newFile("other" + HistoryStore.EXTENSION);
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        try {
+            out.writeInt(0x12345678);
+            out.writeInt(1);
+        } finally {
+            out.close();
+        }
+        try {
+            HistoryStore.load(file);
+            fail("IOException expected");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().startsWith("not a history store"));
+        }
+    }
+
+    /**
+     * ストアの全件がブロックと同じ値でデコードされることを検査します
+     * @param blocks 追加したブロックを古い順にセット
+     * @param store 検査するストアをセット
+     */
+    private static void assertVisits(final List<byte[]> blocks, HistoryStore store) {
+        final int[] index = { 0 };
+        int visited = store.scan(0, Integer.MAX_VALUE, new HistoryStore.Visitor() {
+            public boolean onRecord(HistoryStore.Cursor cursor) {
+                int i = index[0]++;
+                HistoryView v = new HistoryView(blocks.get(i), 0);
+                String at = "record " + i;
+                assertEquals(at, v.getDate(), cursor.getDate());
+                assertEquals(at, v.getTime(), cursor.getTime());
+                assertEquals(at, v.getConsoleTypeCode(), cursor.getConsoleTypeCode());
+                assertEquals(at, v.getProcessTypeCode(), cursor.getProcessTypeCode());
+                assertEquals(at, v.getEntranceKey(), cursor.getEntranceKey());
+                assertEquals(at, v.getExitKey(), cursor.getExitKey());
+                assertEquals(at, v.getBalance(), cursor.getBalance());
+                assertEquals(at, v.getSequence(), cursor.getSequence());
+                assertEquals(at, v.isByBus(), cursor.isByBus());
+                assertEquals(at, v.isProductSales(), cursor.isProductSales());
+                assertEquals(at, v.isCharge(), cursor.isCharge());
+                //支払額はセグメントの境界をまたいでも直前の残高から求める
+                int spend = i == 0 ? 0 : Math.max(0
+                        , new HistoryView(blocks.get(i - 1), 0).getBalance() - v.getBalance());
+                assertEquals(at, spend, cursor.getSpend());
+                return true;
+            }
+        });
+        assertEquals(blocks.size(), visited);
+        assertEquals(blocks.size(), index[0]);
+    }
+
+    /**
+     * ブロックを古い順に追加したストアを作成します
+     * @param blocks ブロックをセット
+     * @param segmentSize 1セグメントの件数をセット
+     * @return HistoryStore ストアが戻ります
+     */
+    private static HistoryStore build(List<byte[]> blocks, int segmentSize) {
+        HistoryStore store = new HistoryStore(segmentSize);
+        for ( byte[] b : blocks ) {
+            store.append(new HistoryView(b, 0));
+        }
+        return store;
+    }
+
+    /**
+     * 鉄道、チャージ、バス、物販を順に繰り返す、1日1件の使用履歴を古い順に作成します
+     * <pre>残高は増減するので、差分には負の値も含まれます</pre>
+     * @param count 件数をセット
+     * @return List&lt;byte[]&gt; ブロックが戻ります
+     */
+    static List<byte[]> corpus(int count) {
+        List<byte[]> blocks = new ArrayList<byte[]>(count);
+        int balance = 5000;
+        for ( int i = 0; i < count; i++ ) {
+            int kind = i % 4;
+            balance += kind == 1 ? 3000 : -(130 + i * 10);
+            blocks.add(block(kind, i, balance));
+        }
+        return blocks;
+    }
+
+    /**
+     * 使用履歴のブロックを1件作成します
+     * @param kind 0:鉄道 1:チャージ 2:バス 3:物販をセット
+     * @param n 序数(連番、2011/01/01からの日数、1か月は28日とします)をセット
+     * @param balance 残高をセット
+     * @return byte[] 16バイトのブロックが戻ります
+     */
+    static byte[] block(int kind, int n, int balance) {
+        byte[] data = new byte[HistoryView.BLOCK_SIZE];
+        int date = rawDateOf(n);
+        data[4] = (byte) (date >> 8);
+        data[5] = (byte) date;
+        data[10] = (byte) balance;          //リトルエンディアン
+        data[11] = (byte) (balance >> 8);
+        data[12] = (byte) (n >> 16);
+        data[13] = (byte) (n >> 8);
+        data[14] = (byte) n;
+        switch (kind) {
+        case 0:
+        case 1:
+            data[0] = (byte) (kind == 0 ? 0x16 : 0x08);   //改札機 / 券売機
+            data[1] = (byte) (kind == 0 ? 0x01 : 0x02);   //運賃支払 / チャージ
+            data[6] = (byte) 0x01;
+            data[7] = (byte) (n & 0x7f);
+            data[8] = (byte) 0x02;
+            data[9] = (byte) (0x7f - (n & 0x7f));
+            data[15] = (byte) (n % 3);
+            break;
+        case 2:
+            data[0] = (byte) 0x05;   //車載端末
+            data[1] = (byte) 0x0f;   //バス
+            data[6] = (byte) 0x12;
+            data[7] = (byte) 0x34;
+            data[8] = (byte) 0x00;
+            data[9] = (byte) n;
+            break;
+        default: {
+            int time = ((n % 24) << 11) | ((n % 60) << 5);
+            data[0] = (byte) 0xc7;   //物販端末
+            data[1] = (byte) 0x46;   //物販
+            data[6] = (byte) (time >> 8);
+            data[7] = (byte) time;
+            break;
+        }
+        }
+        return data;
+    }
+
+    /**
+     * 序数の日付をカードの形式で取得します
+     * @param n 2011/01/01からの日数(0～、1か月は28日とします)をセット
+     * @return int 7ビットの年、4ビットの月、5ビットの日が戻ります
+     */
+    static int rawDateOf(int n) {
+        int month = 1 + n / 28;
+        int day = 1 + n % 28;
+        return (11 << 9) | (month << 5) | day;
+    }
+
+    /**
+     * 序数の日付をyyyyMMddで取得します
+     * @param n 2011/01/01からの日数(0～、1か月は28日とします)をセット
+     * @return int 日付が戻ります
+     */
+    private static int dateOf(int n) {
+        return 20110000 + (1 + n / 28) * 100 + (1 + n % 28);
+    }
+
+    /**
+     * 読み込んだ使用履歴の日付を集めるビジタを提供します
+     */
+    private static final class Collector implements HistoryStore.Visitor {
+        final List<Integer> dates = new ArrayList<Integer>();
+
+        public boolean onRecord(HistoryStore.Cursor cursor) {
+            this.dates.add(cursor.getDate());
+            return true;
+        }
+    }
+}
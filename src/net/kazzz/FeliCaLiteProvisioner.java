@@ -0,0 +1,235 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz;
+
+import java.io.File;
+import java.io.IOException;
+
+import net.kazzz.felica.CardSession;
+import net.kazzz.felica.NfcCommandExecutor;
+import net.kazzz.felica.lite.ProvisioningJob;
+import net.kazzz.felica.lite.ProvisioningTemplate;
+import android.app.Activity;
+import android.app.PendingIntent;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.nfc.NfcAdapter;
+import android.nfc.tech.NfcF;
+import android.os.Bundle;
+import android.util.Log;
+import android.view.View;
+import android.view.View.OnClickListener;
+import android.view.WindowManager;
+import android.widget.Button;
+import android.widget.EditText;
+import android.widget.TextView;
+import android.widget.Toast;
+
+/**
+ * FeliCa Liteをテンプレートに従って一括で書き込む画面を提供します
+ *
+ * <pre>開始すると、かざされたタグに順にテンプレートを書き込みます
+ * 結果はジョブログ(provisioning.log)に追記され、停止、再起動後も同じジョブとして再開できます</pre>
+ *
+ * @author Kazzz
+ * @date 2011/03/29
+ * @since Android API Level 10
+ *
+ */
+
+public class FeliCaLiteProvisioner extends Activity implements OnClickListener {
+    private String TAG = "FeliCaLiteProvisioner";
+
+    // ジョブログのファイル名
+    private static final String JOB_LOG = "provisioning.log";
+    // 最初の連番
+    private static final long FIRST_SERIAL = 1;
+    // テンプレートの規定値
+    private static final String DEFAULT_TEMPLATE = "0={IDM}\n1=SN{SERIAL:8}\n";
+
+    private NfcAdapter adapter;
+    private PendingIntent pendingIntent;
+    private String[][] techLists;
+    private IntentFilter[] filters;
+
+    private ProvisioningJob job;
+
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+
+        //IMEを自動起動しない
+        this.getWindow().setSoftInputMode(
+                WindowManager.LayoutParams.SOFT_INPUT_STATE_ALWAYS_HIDDEN);
+
+        setContentView(R.layout.provisioning);
+
+        //一括書きこみ中は、かざされたタグを全てこの画面で受け取る
+        this.adapter = NfcAdapter.getDefaultAdapter(this);
+        this.techLists = new String[][] { new String[] { NfcF.class.getName() } };
+        this.pendingIntent = PendingIntent.getActivity(this, 0,
+                new Intent(this, getClass()).addFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP), 0);
+        this.filters = new IntentFilter[] {
+                new IntentFilter(NfcAdapter.ACTION_TECH_DISCOVERED) };
+
+        EditText editTemplate = (EditText) findViewById(R.id.edit_template);
+        editTemplate.setText(DEFAULT_TEMPLATE);
+
+        Button btnProvision = (Button) findViewById(R.id.btn_provision);
+        btnProvision.setOnClickListener(this);
+    }
+
+    /* (non-Javadoc)
+     * @see android.view.View.OnClickListener#onClick(android.view.View)
+     */
+    public void onClick(View v) {
+        final Button btnProvision = (Button) findViewById(R.id.btn_provision);
+        final EditText editTemplate = (EditText) findViewById(R.id.edit_template);
+        if ( this.job != null ) {
+            //停止 (ジョブログは残るので、次回開始時に再開する)
+            this.job = null;
+            btnProvision.setText(R.string.provision_start_label);
+            editTemplate.setEnabled(true);
+            return;
+        }
+        final ProvisioningJob newJob;
+        try {
+            ProvisioningTemplate template =
+                ProvisioningTemplate.parse(editTemplate.getText().toString());
+            newJob = new ProvisioningJob(template
+                    , new File(this.getFilesDir(), JOB_LOG), FIRST_SERIAL);
+        } catch (IllegalArgumentException e) {
+            Toast.makeText(this, "テンプレートが不正です : " + e.getMessage()
+                    , Toast.LENGTH_LONG).show();
+            return;
+        }
+        //ジョブログの読み込みはファイルの入出力なので、UIスレッドではなくエグゼキュータで行う
+        //(書き込みと同じエグゼキュータなので、読み込み終えるまで最初のタグは書き込まれない)
+        btnProvision.setEnabled(false);
+        editTemplate.setEnabled(false);
+        NfcCommandExecutor.getInstance().submit(null
+                , new NfcCommandExecutor.Command<Void, ProvisioningJob>() {
+                    @Override
+                    public ProvisioningJob execute(
+                            NfcCommandExecutor.Request<Void, ProvisioningJob> request)
+                            throws IOException {
+                        newJob.resume();
+                        return newJob;
+                    }
+                }
+                , new NfcCommandExecutor.Callback<Void, ProvisioningJob>() {
+                    /* (non-Javadoc)
+                     * @see net.kazzz.felica.NfcCommandExecutor.Callback#onResult(java.lang.Object)
+                     */
+                    @Override
+                    public void onResult(ProvisioningJob result) {
+                        job = result;
+                        btnProvision.setEnabled(true);
+                        btnProvision.setText(R.string.provision_stop_label);
+                        showStatus();
+                    }
+                    /* (non-Javadoc)
+                     * @see net.kazzz.felica.NfcCommandExecutor.Callback#onError(java.lang.Exception)
+                     */
+                    @Override
+                    public void onError(Exception e) {
+                        Log.e(TAG, "onClick", e);
+                        btnProvision.setEnabled(true);
+                        editTemplate.setEnabled(true);
+                        Toast.makeText(FeliCaLiteProvisioner.this
+                                , "ジョブログを読み込めません : " + e.getMessage()
+                                , Toast.LENGTH_LONG).show();
+                    }
+                });
+    }
+
+    /* (non-Javadoc)
+     * @see android.app.Activity#onNewIntent(android.content.Intent)
+     */
+    @Override
+    protected void onNewIntent(Intent intent) {
+        final ProvisioningJob job = this.job;
+        if ( job == null
+                || !NfcAdapter.ACTION_TECH_DISCOVERED.equals(intent.getAction()) ) {
+            return;
+        }
+        //タッチ毎に新しいセッションとし、書き込みはエグゼキュータで直列に行う
+        final CardSession session =
+            new CardSession(intent.getParcelableExtra("android.nfc.extra.TAG"));
+        NfcCommandExecutor.getInstance().submit(null
+                , new NfcCommandExecutor.Command<Void, ProvisioningJob.Outcome>() {
+                    @Override
+                    public ProvisioningJob.Outcome execute(
+                            NfcCommandExecutor.Request<Void, ProvisioningJob.Outcome> request)
+                            throws Exception {
+                        return job.provision(session);
+                    }
+                }
+                , new NfcCommandExecutor.Callback<Void, ProvisioningJob.Outcome>() {
+                    /* (non-Javadoc)
+                     * @see net.kazzz.felica.NfcCommandExecutor.Callback#onResult(java.lang.Object)
+                     */
+                    @Override
+                    public void onResult(ProvisioningJob.Outcome result) {
+                        TextView tv = (TextView) findViewById(R.id.result_tv);
+                        tv.append(result.getStatus() + " " + result.getIDm()
+                                + (result.getSerial() >= 0 ? " #" + result.getSerial() : "")
+                                + " " + result.getElapsedMillis() + "ms"
+                                + (result.getSkippedBlocks().length > 0
+                                        ? " skip " + result.getSkippedBlocks().length : "")
+                                + (result.getMessage().length() > 0 ? " " + result.getMessage() : "")
+                                + "\n");
+                        showStatus();
+                    }
+                    /* (non-Javadoc)
+                     * @see net.kazzz.felica.NfcCommandExecutor.Callback#onError(java.lang.Exception)
+                     */
+                    @Override
+                    public void onError(Exception e) {
+                        Log.e(TAG, "onNewIntent", e);
+                        Toast.makeText(FeliCaLiteProvisioner.this
+                                , "書きこみ失敗 : " + e.getMessage(), Toast.LENGTH_LONG).show();
+                    }
+                });
+    }
+
+    /**
+     * ジョブの進捗を表示します
+     */
+    private void showStatus() {
+        ProvisioningJob job = this.job;
+        if ( job == null ) return;
+        TextView tv = (TextView) findViewById(R.id.txt_status);
+        tv.setText(String.format("書きこみ %d件 (再開前 %d件) 失敗 %d件  %.1f件/分  次の連番 %d"
+                , job.getWrittenCount(), job.getResumedCount(), job.getFailedCount()
+                , job.getTagsPerMinute(), job.getNextSerial()));
+    }
+
+    /* (non-Javadoc)
+     * @see android.app.Activity#onPause()
+     */
+    @Override
+    protected void onPause() {
+        super.onPause();
+        this.adapter.disableForegroundDispatch(this);
+    }
+
+    /* (non-Javadoc)
+     * @see android.app.Activity#onResume()
+     */
+    @Override
+    protected void onResume() {
+        super.onResume();
+        this.adapter.enableForegroundDispatch(this
+                , this.pendingIntent, this.filters, this.techLists);
+    }
+}
@@ -11,22 +11,22 @@
  */
 package net.kazzz;
 
-import java.nio.charset.Charset;
 
+import net.kazzz.felica.CardSession;
 import net.kazzz.felica.FeliCaException;
-import net.kazzz.felica.FeliCaLiteTag;
-import net.kazzz.felica.command.ReadResponse;
-import net.kazzz.felica.command.WriteResponse;
+import net.kazzz.felica.FeliCaLiteBlockWriter;
+import net.kazzz.felica.FeliCaLiteSnapshot;
+import net.kazzz.felica.FeliCaLiteSnapshotCache;
+import net.kazzz.felica.NfcCommandExecutor;
+import net.kazzz.felica.lib.FeliCaLib;
 import net.kazzz.felica.lib.FeliCaLib.IDm;
 import net.kazzz.felica.lib.FeliCaLib.MemoryConfigurationBlock;
-import net.kazzz.felica.lib.FeliCaLib.PMm;
 import android.app.Activity;
 import android.app.ProgressDialog;
 import android.content.Context;
 import android.content.Intent;
-import android.os.AsyncTask;
+import android.nfc.Tag;
 import android.os.Bundle;
-import android.os.Parcelable;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -75,7 +75,13 @@ public class FeliCaLiteWriter extends Activity implements OnClickListener {
         byte[] data;
     }
     
-    private Parcelable nfcTag;
+    private CardSession session;
+    // 起動時の読み込み、書き込みのリクエスト (onDestroyで両方とも取り消す)
+    private NfcCommandExecutor.Handle<?, ?> reading;
+    private NfcCommandExecutor.Handle<?, ?> writing;
+    private final ViewHolder[] holders = new ViewHolder[FeliCaLiteBlockWriter.S_PAD_BLOCKS];
+    private ArrayAdapter<ViewHolder> adapter;
+    private volatile MemoryConfigurationBlock memoryConfig;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -95,46 +101,27 @@ public class FeliCaLiteWriter extends Activity implements OnClickListener {
         final EditText editWrite = (EditText) findViewById(R.id.edit_write);
         editWrite.setEnabled(false);
 
+        //一括書きこみ画面の起動
+        Button btnBulk = (Button) findViewById(R.id.btn_bulk);
+        btnBulk.setOnClickListener(new OnClickListener() {
+            public void onClick(View v) {
+                startActivity(new Intent(FeliCaLiteWriter.this, FeliCaLiteProvisioner.class));
+            }
+        });
+
         final ListView listMemBlock = (ListView) findViewById(R.id.list_memblock);
 
         Intent intent = getIntent();
-        this.nfcTag = intent.getParcelableExtra("nfcTag");
+        this.session = intent.getParcelableExtra(CardSession.EXTRA_SESSION);
         
 
-        //データ読み込み
-        ViewHolder[] holders = new ViewHolder[14];
-        FeliCaLiteTag ft = new FeliCaLiteTag(this.nfcTag);
-        try {
-            IDm idm = ft.pollingAndGetIDm();
-            if ( idm == null ) {
-                throw new FeliCaException("FeliCa Lite デバイスからIDmを取得できませんでした");
-            }
-            //MemoryConfig 読み込み
-            MemoryConfigurationBlock mb = ft.getMemoryConfigBlock(); 
-            
-            //スクラッチパッドのブロックを全て読み込んで配列に保存
-            for ( byte i = 0; i < 14; i++) {
-                ViewHolder holder = new ViewHolder();
-                holder.blockName = blockNums[i];
-                holder.isWritable = mb.isWritable(i);
-                holder.accessMode = mb.isWritable(i) ? "(R/W)" : "(RO)";
-                
-                //メモリブロックの内容を取得
-                ReadResponse rr = ft.readWithoutEncryption(i);
-                if ( rr != null && rr.getStatusFlag1() == 0) {
-                    holder.data = rr.getBlockData();
-                }
-                holders[i] = holder;
-            }
-        } catch (FeliCaException e) {
-            e.printStackTrace();
-            Log.e(TAG, e.toString());
-        }
+        //データはエグゼキュータで読み込み、読み込めた時点で表示する
+        final ViewHolder[] holders = this.holders;
         final LayoutInflater layoutInflater = 
             (LayoutInflater) this.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
         
         //ArrayAdapter構成 (ビューの編集をオーバライド
-        ArrayAdapter<ViewHolder> adapter = 
+        final ArrayAdapter<ViewHolder> adapter = 
             new ArrayAdapter<ViewHolder>(this, android.R.layout.simple_list_item_1, holders) {
 
                 /* (non-Javadoc)
@@ -156,9 +143,8 @@ public class FeliCaLiteWriter extends Activity implements OnClickListener {
                         StringBuilder sb = new StringBuilder();
                         sb.append(holder.blockName).append(" ").append(holder.accessMode).append("\n");
                         if ( holder.data != null && holder.data.length > 0 ) {
-                            //UTF-8でエンコード
-                            Charset utfEncoding = Charset.forName("UTF-8");
-                            sb.append("データ : ").append(new String(holder.data, utfEncoding).trim());
+                            //UTF-8でデコード (1文字がブロックをまたがないよう書き込んでいる)
+                            sb.append("データ : ").append(FeliCaLiteBlockWriter.decode(holder.data));
                         }
                         ((TextView)convertView).setText(sb.toString());
                     }
@@ -169,6 +155,28 @@ public class FeliCaLiteWriter extends Activity implements OnClickListener {
         
         
         listMemBlock.setAdapter(adapter);
+        this.adapter = adapter;
+
+        //データ読み込み (読み込み画面でのポーリング結果を再利用する)
+        this.reading = NfcCommandExecutor.getInstance().submit(null
+                , new NfcCommandExecutor.Command<Void, ViewHolder[]>() {
+                    @Override
+                    public ViewHolder[] execute(NfcCommandExecutor.Request<Void, ViewHolder[]> request)
+                            throws Exception {
+                        return readBlocks();
+                    }
+                }
+                , new NfcCommandExecutor.Callback<Void, ViewHolder[]>() {
+                    @Override
+                    public void onResult(ViewHolder[] result) {
+                        System.arraycopy(result, 0, holders, 0, holders.length);
+                        adapter.notifyDataSetChanged();
+                    }
+                    @Override
+                    public void onError(Exception e) {
+                        Log.e(TAG, e.toString());
+                    }
+                });
 
         // 行が選択され際にデータをEditTextに転送
         listMemBlock.setOnItemClickListener(new AdapterView.OnItemClickListener() {
@@ -180,11 +188,11 @@ public class FeliCaLiteWriter extends Activity implements OnClickListener {
                 
                 if ( o != null && o instanceof ViewHolder ) {
                     ViewHolder holder = (ViewHolder)o;
+                    //空のブロックにも書きこめるよう、アドレスは常に保持する
+                    editWrite.setTag(position);
                     if ( holder.data != null && holder.data.length > 0 ) {
-                        //UTF-8でエンコード
-                        Charset utfEncoding = Charset.forName("UTF-8");
-                        editWrite.setText( new String(holder.data, utfEncoding).trim() );
-                        editWrite.setTag(position);
+                        //UTF-8でデコード
+                        editWrite.setText( FeliCaLiteBlockWriter.decode(holder.data) );
                     }
 
                     //書きこみ可能な場合、ビューを有効にするわさ
@@ -200,97 +208,149 @@ public class FeliCaLiteWriter extends Activity implements OnClickListener {
     }
 
     public void onClick(final View v) {
+        final EditText editWrite = (EditText) findViewById(R.id.edit_write);
+        final CharSequence c = editWrite.getText();
+        final int addr = ((Integer)editWrite.getTag()) & 0xff;
+
+        //エンコード、書き込み範囲の検査はカードと通信する前に済ませる
+        //(長いデータは選択したブロックから後続のブロックにまたがって書き込む)
+        final byte[][] blocks = FeliCaLiteBlockWriter.encode(c);
         try {
-            final int id = v.getId();
-            final ProgressDialog dialog = new ProgressDialog(this);
-            dialog.setProgressStyle(ProgressDialog.STYLE_SPINNER);
-            dialog.setIndeterminate(true);
+            FeliCaLiteBlockWriter.validate(this.memoryConfig, addr, blocks);
+        } catch (FeliCaException e) {
+            Toast.makeText(this, "書きこめません : " + e.getMessage(), Toast.LENGTH_LONG).show();
+            return;
+        }
 
-            
-            final EditText editWrite = (EditText) findViewById(R.id.edit_write);
-            final CharSequence c = editWrite.getText();
+        final ProgressDialog dialog = new ProgressDialog(this);
+        dialog.setProgressStyle(ProgressDialog.STYLE_SPINNER);
+        dialog.setIndeterminate(true);
+        dialog.setMessage("書き込み処理を実行中です...");
 
-            AsyncTask<Void, Void, WriteResponse> task = new AsyncTask<Void, Void, WriteResponse>() {
-                @Override
-                protected void onPreExecute() {
-                    switch (id) {
-                    case R.id.btn_write:
-                        dialog.setMessage("書き込み処理を実行中です...");
-                        break;
+        dialog.show();
+        //書き込みは連打されても重複をまとめない (内容が異なる可能性がある)
+        this.writing = NfcCommandExecutor.getInstance().submit(null
+                , new NfcCommandExecutor.Command<Void, FeliCaLiteBlockWriter.Result>() {
+                    @Override
+                    public FeliCaLiteBlockWriter.Result execute(
+                            NfcCommandExecutor.Request<Void, FeliCaLiteBlockWriter.Result> request)
+                            throws Exception {
+                        return writeData(addr, blocks);
                     }
-                    dialog.show();
                 }
-                @Override
-                protected WriteResponse doInBackground(Void... arg0) {
-                    switch (id) {
-                    case R.id.btn_write:
-                        byte addr = (byte) (((Integer)editWrite.getTag()) & 0xff);
-                        try {
-                            return writeData(addr, c);
-                        } catch (Exception e) {
-                            e.printStackTrace();
-                        } 
-                    default:
-                        break;
+                , new NfcCommandExecutor.Callback<Void, FeliCaLiteBlockWriter.Result>() {
+                    /* (non-Javadoc)
+                     * @see net.kazzz.felica.NfcCommandExecutor.Callback#onResult(java.lang.Object)
+                     */
+                    @Override
+                    public void onResult(FeliCaLiteBlockWriter.Result result) {
+                        dialog.dismiss();
+                        //読み戻したブロックだけを一覧に反映する (画面を起動し直して全て読み直さない)
+                        for ( int i = 0; i < result.getBlockCount(); i++ ) {
+                            ViewHolder holder = FeliCaLiteWriter.this.holders[result.getAddress(i)];
+                            if ( holder != null ) holder.data = result.getBlock(i);
+                        }
+                        FeliCaLiteWriter.this.adapter.notifyDataSetChanged();
+                        Toast.makeText(v.getContext()
+                                , "書きこみ成功 : " + c.toString() + " (" + result.getWrittenCount()
+                                + "/" + result.getBlockCount() + "ブロック)" , Toast.LENGTH_LONG).show();
                     }
-                    return null;
-                }
-
-                /* (non-Javadoc)
-                 * @see android.os.AsyncTask#onPostExecute(java.lang.Object)
-                 */
-                @Override
-                protected void onPostExecute(WriteResponse result) {
-                    dialog.dismiss();
-                    if ( result != null && result.getStatusFlag1() == 0) {
-                        //tv_tag.setText(readData());
+                    /* (non-Javadoc)
+                     * @see net.kazzz.felica.NfcCommandExecutor.Callback#onError(java.lang.Exception)
+                     */
+                    @Override
+                    public void onError(Exception e) {
+                        dialog.dismiss();
+                        Log.e(TAG, "onClick", e);
                         Toast.makeText(v.getContext()
-                                , "書きこみ成功 : " + c.toString() , Toast.LENGTH_LONG).show();
-                        
-                        //終了して自身を起動 (リフレッシュ)
-                        finish();
-                        Intent intent = new Intent(FeliCaLiteWriter.this, FeliCaLiteWriter.class);
-                        intent.putExtra("nfcTag", FeliCaLiteWriter.this.nfcTag);
-                        startActivity(intent);
+                                , "書きこみ失敗 : " + e.getMessage() , Toast.LENGTH_LONG).show();
                     }
-                }
-                
-            };
-            
-            task.execute();
+                    /* (non-Javadoc)
+                     * @see net.kazzz.felica.NfcCommandExecutor.Callback#onCancelled()
+                     */
+                    @Override
+                    public void onCancelled() {
+                        dialog.dismiss();
+                    }
+                });
+    }
+    /* (non-Javadoc)
+     * @see android.app.Activity#onDestroy()
+     */
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        //破棄された画面に結果を返さないよう、処理中のリクエストを取り消す
+        if ( this.reading != null ) {
+            this.reading.cancel();
+        }
+        if ( this.writing != null ) {
+            this.writing.cancel();
+        }
+    }
+    /**
+     * スクラッチパッドのブロックを全て読み込みます
+     * <pre>S_PAD0～13とMCをまとめて読み込むので、RFの往復は4回で済みます</pre>
+     * @return ViewHolder[] 読み込んだブロックの内容が戻ります
+     * @throws FeliCaException
+     */
+    private ViewHolder[] readBlocks() throws FeliCaException {
+        ViewHolder[] holders = new ViewHolder[FeliCaLiteBlockWriter.S_PAD_BLOCKS];
+        try {
+            IDm idm = this.session.getIDm(FeliCaLib.SYSTEMCODE_FELICA_LITE);
+            if ( idm == null ) {
+                throw new FeliCaException("FeliCa Lite デバイスからIDmを取得できませんでした");
+            }
+            FeliCaLiteSnapshot snapshot = FeliCaLiteSnapshot.read(
+                    (Tag) this.session.getNfcTag(), idm, FeliCaLiteSnapshot.SCRATCH_PAD);
+            //MemoryConfig
+            MemoryConfigurationBlock mb = snapshot.getMemoryConfigBlock();
+            if ( mb == null ) {
+                throw new FeliCaException("MemoryConfigurationBlock を読み込めませんでした");
+            }
+            this.memoryConfig = mb;
+            //書き込み時に内容が変わらないブロックを省くため、スナップショットを保持する
+            FeliCaLiteSnapshotCache.getInstance().put(snapshot);
             
-        } catch (Exception e) {
+            //スクラッチパッドのブロックを配列に保存
+            for ( int i = 0; i < holders.length; i++) {
+                ViewHolder holder = new ViewHolder();
+                holder.blockName = blockNums[i];
+                holder.isWritable = mb.isWritable(i);
+                holder.accessMode = holder.isWritable ? "(R/W)" : "(RO)";
+                holder.data = snapshot.getBlock(FeliCaLiteSnapshot.S_PAD0 + i);
+                holders[i] = holder;
+            }
+            return holders;
+        } catch (FeliCaException e) {
             e.printStackTrace();
+            Log.e(TAG, e.toString());
+            this.session.invalidate();
+            throw e;
         }
     }
     /**
      * FeliCa データを書き込みます
-     * @param addr 書きこむデータブロックのアドレス(ブロックナンバー)をセット
-     * @param data 書きこむデータを文字列でセット
-     * @return WriteResponse 書き込んだ結果が戻ります
-     * @throws Exception
+     * @param addr 書きこむ先頭のデータブロックのアドレス(ブロックナンバー)をセット
+     * @param blocks FeliCaLiteBlockWriter#encodeで作成したブロックをセット
+     * @return FeliCaLiteBlockWriter.Result 書き込んで読み戻した結果が戻ります
+     * @throws FeliCaException
      */
-    private WriteResponse writeData(byte addr, CharSequence data) throws Exception {
+    private FeliCaLiteBlockWriter.Result writeData(int addr, byte[][] blocks) throws FeliCaException {
         try {
-            FeliCaLiteTag f = new FeliCaLiteTag(this.nfcTag);
-            IDm idm = f.pollingAndGetIDm();
-            Log.d(TAG, idm.toString());
-            
-            PMm pmm = f.getPMm();
-            Log.d(TAG, pmm.toString());
-            
-            //データをエンコード
-            Charset utfEncoding = Charset.forName("UTF-8");
-            byte[] textBytes = data.toString().getBytes(utfEncoding);
-
-            WriteResponse result = f.writeWithoutEncryption(addr, textBytes);
-            
-            return result;
+            IDm idm = this.session.getIDm(FeliCaLib.SYSTEMCODE_FELICA_LITE);
+            if ( idm == null ) {
+                throw new FeliCaException("FeliCa Lite デバイスからIDmを取得できませんでした");
+            }
+            FeliCaLiteBlockWriter writer =
+                new FeliCaLiteBlockWriter((Tag) this.session.getNfcTag(), idm);
+            return writer.writeDelta(this.memoryConfig, addr, blocks);
         } catch (FeliCaException e) {
             e.printStackTrace();
             Log.e(TAG, "writeData", e);
+            //カードの状態が変わった可能性があるので次回はポーリングし直す
+            this.session.invalidate();
             throw e;
         }
-
-   }
+    }
 }
@@ -11,15 +11,40 @@
  */
 package net.kazzz;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import net.kazzz.felica.BatchFeliCaTag;
+import net.kazzz.felica.BlockReader;
+import net.kazzz.felica.CardSession;
 import net.kazzz.felica.FeliCaException;
 import net.kazzz.felica.FeliCaLiteTag;
 import net.kazzz.felica.FeliCaTag;
+import net.kazzz.felica.NfcCommandExecutor;
 import net.kazzz.felica.command.ReadResponse;
 import net.kazzz.felica.lib.FeliCaLib;
-import net.kazzz.felica.lib.FeliCaLib.IDm;
 import net.kazzz.felica.lib.FeliCaLib.MemoryConfigurationBlock;
 import net.kazzz.felica.lib.FeliCaLib.ServiceCode;
 import net.kazzz.felica.lib.FeliCaLib.SystemCode;
+import net.kazzz.felica.metrics.FeliCaMetrics;
+import net.kazzz.felica.metrics.MeteredStationResolver;
+import net.kazzz.felica.metrics.TapTrace;
+import net.kazzz.felica.suica.DBUtil;
+import net.kazzz.felica.suica.HistoryLedger;
+import net.kazzz.felica.suica.HistoryRenderer;
+import net.kazzz.felica.suica.HistoryStore;
+import net.kazzz.felica.suica.StationResolver;
 import net.kazzz.felica.suica.Suica;
 import android.app.Activity;
 import android.app.PendingIntent;
@@ -29,15 +54,15 @@ import android.content.IntentFilter;
 import android.content.IntentFilter.MalformedMimeTypeException;
 import android.nfc.NfcAdapter;
 import android.nfc.tech.NfcF;
-import android.os.AsyncTask;
+import android.os.Build;
 import android.os.Bundle;
-import android.os.Parcelable;
 import android.util.Log;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.view.WindowManager;
 import android.widget.Button;
 import android.widget.TextView;
+import android.widget.Toast;
 
 /**
  * FeliCa又はFeliCa Lite PICCのデータを読みこむリーダークラスのサンプル実装を提供します
@@ -50,14 +75,31 @@ import android.widget.TextView;
 
 public class NFCFeliCaReader extends Activity implements OnClickListener {
     private String TAG = "NFCFelicaTagReader";
+
+    // 読み込む使用履歴の最大ブロック数 (ブロック番号は1バイト)
+    private static final int MAX_HISTORY_BLOCKS = 256;
+    // 表示する使用履歴の件数 (カードに残る使用履歴の件数)
+    private static final int MAX_HISTORY_DISPLAY = 20;
+    // 計測結果のファイル名
+    private static final String METRICS_FILE = "metrics.txt";
+    // トレースのファイル名
+    private static final String TRACE_FILE = "trace.json";
+    // 使用履歴の台帳を置くディレクトリ名
+    private static final String LEDGER_DIR = "ledger";
+    // 計測結果、トレースをファイルに書き出すスレッド (UIスレッドでファイルの入出力を行わない)
+    private static final ExecutorService dumper = createDumper();
     
     private NfcAdapter adapter;
     private PendingIntent pendingIntent;
     private String[][] techLists;
     private IntentFilter[] filters;
 
-    private Parcelable nfcTag;
+    private CardSession session;
+    private HistoryLedger ledger;
     private boolean iSFeliCaLite;
+    private NfcCommandExecutor.Handle<?, ?> request;
+    // タッチを受けてから読み込み結果を表示するまでの間はtrue
+    private boolean tapPending;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -96,131 +138,360 @@ public class NFCFeliCaReader extends Activity implements OnClickListener {
      * @throws FeliCaException
      */
     private boolean iSFeliCaLite() throws FeliCaException {
-        FeliCaTag f = new FeliCaTag(this.nfcTag);
-        //polling は IDm、PMmを取得するのに必要
-        IDm idm = f.pollingAndGetIDm(FeliCaLib.SYSTEMCODE_FELICA_LITE);
-        return idm != null;
+        //ポーリング結果はセッションに保持され、読み込み時に再利用される
+        return this.session.isFeliCaLite();
     }
     
     public void onClick(final View v) {
-        try {
-            final int id = v.getId();
-            
-            final ProgressDialog dialog = new ProgressDialog(this);
-            dialog.setProgressStyle(ProgressDialog.STYLE_SPINNER);
-            dialog.setIndeterminate(true);
+        final long clicked = TapTrace.now();
+        final int id = v.getId();
+        if ( id == R.id.btn_write ) {
+            //書き込み画面の起動はNFCの入出力を伴わないので、UIスレッドで行う
+            Intent intent = new Intent(this, FeliCaLiteWriter.class);
+            intent.putExtra(CardSession.EXTRA_SESSION, this.session);
+            startActivity(intent);
+            return;
+        }
+        //読み込み中の連打は無視する (2つ目のコールバックが表示を消して同じ使用履歴を重ねて追加するため)
+        if ( this.request != null && this.request.isPending() ) {
+            return;
+        }
+
+        final ProgressDialog dialog = new ProgressDialog(this);
+        dialog.setProgressStyle(ProgressDialog.STYLE_SPINNER);
+        dialog.setIndeterminate(true);
+        switch (id) {
+        case R.id.btn_read:
+            dialog.setMessage("読み込み処理を実行中です...");
+            break;
+        case R.id.btn_hitory:
+            dialog.setMessage("使用履歴を読み込み中です...");
+            break;
+        }
 
-            AsyncTask<Void, Void, String> task = new AsyncTask<Void, Void, String>() {
+        NfcCommandExecutor.Command<String, String> command =
+            new NfcCommandExecutor.Command<String, String>() {
                 @Override
-                protected void onPreExecute() {
+                public String execute(final NfcCommandExecutor.Request<String, String> request)
+                        throws Exception {
                     switch (id) {
                     case R.id.btn_read:
-                        dialog.setMessage("読み込み処理を実行中です...");
-                        break;
-                    case R.id.btn_write:
-                        dialog.setMessage("書き込み画面に移動中です...");
-                        break;
+                        return readData();
                     case R.id.btn_hitory:
-                        dialog.setMessage("使用履歴を読み込み中です...");
-                        break;
+                        //1件デコードする毎に画面に送る (取り消されたら読み込みを中断する)
+                        readHistoryData(new HistoryLedger.EntryListener() {
+                            @Override
+                            public void onEntry(int index, HistoryLedger.Entry entry) {
+                                request.checkActive();
+                                request.publishProgress(formatHistory(index, entry.getText()));
+                            }
+                        });
+                        return "";
+                    default:
+                        return "";
                     }
-                    dialog.show();
                 }
+            };
+
+        NfcCommandExecutor.Callback<String, String> callback =
+            new NfcCommandExecutor.Callback<String, String>() {
+                private boolean streaming;
 
+                /* (non-Javadoc)
+                 * @see net.kazzz.felica.NfcCommandExecutor.Callback#onProgress(java.lang.Object)
+                 */
                 @Override
-                protected String doInBackground(Void... arg0) {
-                    switch (id) {
-                    case R.id.btn_read:
-                        try {
-                            return readData();
-                        } catch (Exception e) {
-                            e.printStackTrace();
-                        }
-                        break;
-                    case R.id.btn_write:
-                        try {
-                            Intent intent = 
-                                new Intent(NFCFeliCaReader.this, FeliCaLiteWriter.class);
-                            intent.putExtra("nfcTag", NFCFeliCaReader.this.nfcTag);
-                            startActivity(intent);
-                            return "";
-                        } catch (Exception e) {
-                            e.printStackTrace();
-                        }
-                        break;
-                    case R.id.btn_hitory:
-                        try {
-                            return readHistoryData();
-                        } catch (Exception e) {
-                            e.printStackTrace();
-                        }
-                        break;
-                    default:
-                        break;
+                public void onProgress(String value) {
+                    long started = TapTrace.now();
+                    TextView tv_tag = (TextView) findViewById(R.id.result_tv);
+                    if ( !this.streaming ) {
+                        //最初の1件が届いたら結果の表示に切り替える
+                        this.streaming = true;
+                        dialog.dismiss();
+                        tv_tag.setText("");
                     }
-                    return "";
+                    tv_tag.append(value);
+                    TapTrace.getInstance().span(TapTrace.DISPLAY, started);
                 }
 
                 /* (non-Javadoc)
-                 * @see android.os.AsyncTask#onPostExecute(java.lang.Object)
+                 * @see net.kazzz.felica.NfcCommandExecutor.Callback#onResult(java.lang.Object)
                  */
                 @Override
-                protected void onPostExecute(String result) {
+                public void onResult(String result) {
+                    long started = TapTrace.now();
                     dialog.dismiss();
                     TextView tv_tag = (TextView) findViewById(R.id.result_tv);
                     if (result != null && result.length() > 0) tv_tag.setText(result);
+                    TapTrace.getInstance().span(TapTrace.DISPLAY, started);
+                    endTap();
+                }
+
+                /* (non-Javadoc)
+                 * @see net.kazzz.felica.NfcCommandExecutor.Callback#onError(java.lang.Exception)
+                 */
+                @Override
+                public void onError(Exception e) {
+                    dialog.dismiss();
+                    Log.e(TAG, "onClick", e);
+                    if ( e instanceof FeliCaException ) {
+                        Toast.makeText(NFCFeliCaReader.this, e.getMessage(), Toast.LENGTH_LONG).show();
+                    }
+                    endTap();
+                }
+
+                /* (non-Javadoc)
+                 * @see net.kazzz.felica.NfcCommandExecutor.Callback#onCancelled()
+                 */
+                @Override
+                public void onCancelled() {
+                    dialog.dismiss();
                 }
-                
             };
-            
-            task.execute();
-        } catch (Exception e) {
-            e.printStackTrace();
+
+        dialog.show();
+        //同じセッションに対する同じ操作は1回の読み込みにまとめる
+        this.request = NfcCommandExecutor.getInstance().submit(
+                Arrays.asList(this.session, id), command, callback);
+        TapTrace.getInstance().span(TapTrace.CLICK, clicked);
+    }
+    /**
+     * タッチを受けてからの読み込みが終わった場合、タッチ全体のスパンを記録し、内訳をログに出力します
+     * <pre>ボタンによる読み直しはタッチに含めません</pre>
+     */
+    private void endTap() {
+        if ( !this.tapPending ) return;
+        this.tapPending = false;
+        TapTrace trace = TapTrace.getInstance();
+        trace.endTap();
+        if ( Log.isLoggable(TAG, Log.DEBUG) ) {
+            StringBuilder sb = new StringBuilder();
+            try {
+                trace.dumpTap(trace.getCurrentTap(), sb);
+            } catch (IOException e) {
+                //StringBuilderへの書き出しでは発生しない
+                throw new IllegalStateException(e);
+            }
+            Log.d(TAG, sb.toString());
         }
     }
     /**
      * FeliCa 使用履歴を読み込みます
+     * <pre>読み込んだ使用履歴はIDm毎の台帳に蓄積します。カードからは台帳に記録済みの使用履歴が
+     * 現れるまでを読み込み、それより新しいものだけをデコード、駅名解決します。
+     * 記録済みの使用履歴は台帳のテキストをそのまま使用します</pre>
+     * <pre>台帳に記録済みの使用履歴、又はサービスの終端に届く前にエラーで読み込みを打ち切った場合は、
+     * 読み込めなかった古い使用履歴を失わないよう台帳に記録せず、FeliCaExceptionをスローします</pre>
+     * <pre>コード表、駅コード辞書を差し替えた後は、表示する記録済みの使用履歴のうち版の異なるものだけを
+     * 台帳のブロックから作り直し、台帳のテキストを置き換えます</pre>
+     * <pre>台帳は増え続けるため、表示するのは新しいものからカードに残る件数(MAX_HISTORY_DISPLAY)までです
+     * カードからの読み込みはブロック番号の上限(MAX_HISTORY_BLOCKS)までです</pre>
      *
-     * @return
+     * @param listener 使用履歴を1件得る毎に通知を受けるリスナをセット
+     * @return String 表示する使用履歴を文字列にしたものが戻ります
      */
-    protected String readHistoryData() throws Exception {
+    protected String readHistoryData(HistoryLedger.EntryListener listener) throws Exception {
 
         try {
-            FeliCaTag f = new FeliCaTag(this.nfcTag);
-
-            //polling は IDm、PMmを取得するのに必要
-            f.polling(FeliCaLib.SYSTEMCODE_PASMO);
-
-            //read
+            //ポーリング済みのIDm、PMmを使用する
+            BatchFeliCaTag f = this.session.getBatchFeliCaTag(FeliCaLib.SYSTEMCODE_PASMO);
+            if ( f == null ) {
+                throw new FeliCaException("Suica(PASMO) のシステムが応答しませんでした");
+            }
+            final FeliCaMetrics metrics = FeliCaMetrics.getInstance();
+            final TapTrace trace = TapTrace.getInstance();
+            long started = System.nanoTime();
+            final HistoryLedger ledger = this.getLedger(f.getIDm().getBytes());
+            //作成するテキストの版 (作成中に差し替えられた場合は、次回に作り直される)
+            final long version = DBUtil.getCodeTableVersion();
+            final List<HistoryLedger.Entry> stored = ledger.getEntries(MAX_HISTORY_DISPLAY);
+            metrics.recordStage("ledger.open", System.nanoTime() - started);
+
+            //read (複数ブロックをまとめて読み込み、台帳にない新しいブロックだけをデコードする)
             ServiceCode sc = new ServiceCode(FeliCaLib.SERVICE_SUICA_HISTORY);
-            byte addr = 0;
-            ReadResponse result = f.readWithoutEncryption(sc, addr);
-
-            StringBuilder sb = new StringBuilder();
-            while ( result != null && result.getStatusFlag1() == 0  ) {
-                sb.append("履歴 No.  " + (addr + 1) + "\n");
-                sb.append("---------\n");
-                sb.append("\n");
-                Suica.History s = new Suica.History(result.getBlockData(), this);
-                sb.append(s.toString());
-                sb.append("---------------------------------------\n");
-                sb.append("\n");
-
-                addr++;
-                //Log.d(TAG, "addr = " + addr);
-                result = f.readWithoutEncryption(sc, addr);
+            final StringBuilder sb = new StringBuilder();
+            final HistoryLedger.EntryListener l = listener;
+            final StationResolver resolver =
+                new MeteredStationResolver(DBUtil.getStationResolver(this));
+            final HistoryRenderer renderer =
+                new HistoryRenderer(HistoryRenderer.Template.TEXT, resolver);
+            final List<HistoryLedger.Entry> newer = new ArrayList<HistoryLedger.Entry>();
+            final boolean[] reachedLedger = new boolean[1];
+            f.readBlocks(sc, 0, MAX_HISTORY_BLOCKS, new BlockReader.BlockListener() {
+                @Override
+                public boolean onBlock(int addr, byte[] data) {
+                    //記録済みの使用履歴より古いものは台帳にあるので、読み込みを打ち切る
+                    if ( ledger.contains(data, 0) ) {
+                        reachedLedger[0] = true;
+                        return false;
+                    }
+                    long t0 = System.nanoTime();
+                    Suica.History s = new Suica.History(data, resolver);
+                    long t1 = System.nanoTime();
+                    metrics.recordStage("history.decode", t1 - t0);
+                    trace.span(TapTrace.DECODE, t0, addr);
+                    StringBuilder text = new StringBuilder(256);
+                    try {
+                        renderer.render(addr, s, text);
+                    } catch (IOException e) {
+                        //StringBuilderへの書き出しでは発生しない
+                        throw new IllegalStateException(e);
+                    }
+                    metrics.recordStage("history.render", System.nanoTime() - t1);
+                    trace.span(TapTrace.RENDER, t1, addr);
+                    HistoryLedger.Entry entry =
+                        new HistoryLedger.Entry(data, text.toString(), version);
+                    newer.add(entry);
+                    publishHistory(sb, newer.size() - 1, entry, l);
+                    return true;
+                }
+            });
+            if ( !reachedLedger[0] && !BlockReader.isEndOfService(f.getLastStatus()) ) {
+                //途中のブロックのエラーで打ち切った場合、台帳に追記すると読めなかった古い使用履歴が
+                //次回以降も読まれなくなるので、台帳には記録しない
+                Log.w(TAG, "history sync incomplete new=" + newer.size()
+                        + " status=" + Integer.toHexString(f.getLastStatus()));
+                throw new FeliCaException("使用履歴を最後まで読み込めませんでした。もう一度タッチしてください");
             }
-
-            String str = sb.toString();
-            Log.d(TAG, str);
-            return str;
+            long t0 = System.nanoTime();
+            int appended = ledger.append(newer);
+            metrics.recordStage("ledger.append", System.nanoTime() - t0);
+            t0 = System.nanoTime();
+            this.updateStore(ledger, newer, appended);
+            metrics.recordStage("store.update", System.nanoTime() - t0);
+            int index = newer.size();
+            List<HistoryLedger.Entry> rendered = new ArrayList<HistoryLedger.Entry>();
+            for ( HistoryLedger.Entry entry : stored ) {
+                if ( index >= MAX_HISTORY_DISPLAY ) break;
+                if ( entry.getVersion() != version ) {
+                    //差し替える前の表、辞書で作成したテキストはブロックから作り直す
+                    entry = this.rerender(renderer, entry, version);
+                    rendered.add(entry);
+                }
+                publishHistory(sb, index++, entry, l);
+            }
+            if ( !rendered.isEmpty() ) {
+                t0 = System.nanoTime();
+                ledger.update(rendered);
+                metrics.recordStage("ledger.update", System.nanoTime() - t0);
+            }
+            metrics.recordStage("history.total", System.nanoTime() - started);
+            Log.d(TAG, "history new=" + newer.size() + " shown=" + index + " stored=" + ledger.size());
+            return sb.toString();
         } catch (FeliCaException e) {
             e.printStackTrace();
             Log.e(TAG, "readHistoryData", e);
+            //カードの状態が変わった可能性があるので次回はポーリングし直す
+            this.session.invalidate();
             throw e;
         }
     }
-
+    /**
+     * 記録済みの使用履歴のテキストを台帳のブロックから作り直します
+     * @param renderer レンダラをセット
+     * @param entry 記録済みの使用履歴をセット
+     * @param version 作成するテキストの版をセット
+     * @return HistoryLedger.Entry テキストを作り直した使用履歴が戻ります
+     */
+    private HistoryLedger.Entry rerender(HistoryRenderer renderer, HistoryLedger.Entry entry
+            , long version) {
+        long started = System.nanoTime();
+        StringBuilder text = new StringBuilder(256);
+        try {
+            renderer.render(0, entry.getView(), text);
+        } catch (IOException e) {
+            //StringBuilderへの書き出しでは発生しない
+            throw new IllegalStateException(e);
+        }
+        FeliCaMetrics.getInstance().recordStage("history.rerender", System.nanoTime() - started);
+        return new HistoryLedger.Entry(entry.getBlock(), text.toString(), version);
+    }
+    /**
+     * IDmの使用履歴の台帳を取得します
+     * <pre>同じカードを続けて読み込む場合は、開いたままの台帳を使用します</pre>
+     * @param idm IDmのバイト列をセット
+     * @return HistoryLedger 台帳が戻ります
+     * @throws IOException
+     */
+    private HistoryLedger getLedger(byte[] idm) throws IOException {
+        HistoryLedger l = this.ledger;
+        if ( l == null || !Arrays.equals(l.getIDm(), idm) ) {
+            l = HistoryLedger.open(new File(this.getFilesDir(), LEDGER_DIR), idm);
+            this.ledger = l;
+        }
+        return l;
+    }
+    /**
+     * 台帳と同じディレクトリに置く、集計用の列指向ストアを更新します
+     * <pre>ストアが無い場合、台帳と件数が合わない場合は台帳から作り直します</pre>
+     * @param ledger 台帳をセット
+     * @param newer 今回読み込んだ使用履歴を新しいものから順にセット
+     * @param appended 台帳に追記した件数をセット
+     * @throws IOException
+     */
+    private void updateStore(HistoryLedger ledger, List<HistoryLedger.Entry> newer, int appended)
+            throws IOException {
+        String path = ledger.getFile().getPath();
+        File file = new File(path.substring(0, path.length() - HistoryLedger.EXTENSION.length())
+                + HistoryStore.EXTENSION);
+        if ( appended == 0 && file.exists() ) return;
+        HistoryStore store = null;
+        if ( file.exists() && appended == newer.size() ) {
+            try {
+                store = HistoryStore.load(file);
+            } catch (IOException e) {
+                Log.w(TAG, "rebuild " + file, e);
+            }
+        }
+        if ( store != null && store.size() + appended == ledger.size() ) {
+            for ( int i = newer.size() - 1; i >= 0; i-- ) {
+                store.append(newer.get(i).getView());
+            }
+        } else {
+            store = HistoryStore.of(ledger);
+        }
+        store.save(file);
+    }
+    /**
+     * 使用履歴1件分をリスナに通知するか、表示用の文字列として追加します
+     * @param sb 出力先をセット
+     * @param index 使用履歴の序数(0～)をセット
+     * @param entry 使用履歴をセット
+     * @param listener リスナをセット (nullの場合はsbに追加します)
+     */
+    private void publishHistory(StringBuilder sb, int index, HistoryLedger.Entry entry
+            , HistoryLedger.EntryListener listener) {
+        if ( listener != null ) {
+            listener.onEntry(index, entry);
+        } else {
+            appendHistory(sb, index, entry.getText());
+        }
+    }
+    /**
+     * 使用履歴1件分を表示用の文字列にします
+     * @param index 使用履歴の序数(0～)をセット
+     * @param text 使用履歴のテキストをセット
+     * @return String 表示用の文字列が戻ります
+     */
+    private String formatHistory(int index, String text) {
+        StringBuilder sb = new StringBuilder(320);
+        appendHistory(sb, index, text);
+        return sb.toString();
+    }
+    /**
+     * 使用履歴1件分を表示用の文字列として追加します
+     * @param sb 出力先をセット
+     * @param index 使用履歴の序数(0～)をセット
+     * @param text 使用履歴のテキストをセット
+     */
+    private static void appendHistory(StringBuilder sb, int index, String text) {
+        sb.append("履歴 No.  ").append(index + 1).append('\n');
+        sb.append("---------\n");
+        sb.append("\n");
+        sb.append(text);
+        sb.append("---------------------------------------\n");
+        sb.append("\n");
+    }
 
     /**
      * FeliCa データを読み込みます
@@ -237,20 +508,38 @@ public class NFCFeliCaReader extends Activity implements OnClickListener {
                 sb.append("\n----------------------------------------");
                 sb.append("\n");
                 // FeliCa Lite 読み込み
-                FeliCaLiteTag ft = new FeliCaLiteTag(this.nfcTag);
-                ft.polling();
+                FeliCaLiteTag ft = this.session.getFeliCaLiteTag();
                 sb.append("  " + ft.toString());
                 sb.append("\n----------------------------------------");
                 sb.append("\n");
                 
-                //0ブロック目読み込み
+                //0ブロック目読み込み (felicalibを経由するため、送信したバイト数は分からない)
+                long started = System.nanoTime();
                 ReadResponse rr = ft.readWithoutEncryption((byte)0);
+                FeliCaMetrics.getInstance().recordCommand("READ_WO_ENCRYPTION"
+                        , System.nanoTime() - started, 0, rr.getBytes().length
+                        , rr.getStatusFlag1() != 0);
                 sb.append("  " + rr.toString());
                 sb.append("\n----------------------------------------");
                 sb.append("\n");
                 
-                //MemoryConfig 読み込み
-                MemoryConfigurationBlock mb = ft.getMemoryConfigBlock(); 
+                //MemoryConfig 読み込み (応答がなかった場合は失敗として1回だけ記録する)
+                started = System.nanoTime();
+                MemoryConfigurationBlock mb;
+                try {
+                    mb = ft.getMemoryConfigBlock();
+                } catch (FeliCaException e) {
+                    FeliCaMetrics.getInstance().recordFailure("READ_WO_ENCRYPTION"
+                            , System.nanoTime() - started);
+                    throw e;
+                }
+                if ( mb == null ) {
+                    FeliCaMetrics.getInstance().recordFailure("READ_WO_ENCRYPTION"
+                            , System.nanoTime() - started);
+                    throw new FeliCaException("FeliCa Lite のメモリコンフィグレーションブロックを取得できませんでした");
+                }
+                FeliCaMetrics.getInstance().recordCommand("READ_WO_ENCRYPTION"
+                        , System.nanoTime() - started, 0, 0, false);
                 sb.append("  " + mb.toString());
                 sb.append("\n----------------------------------------");
                 sb.append("\n");
@@ -261,9 +550,8 @@ public class NFCFeliCaReader extends Activity implements OnClickListener {
             }
             
             // FeliCa 
-            FeliCaTag ft = new FeliCaTag(this.nfcTag);
-            IDm idm = ft.pollingAndGetIDm(FeliCaLib.SYSTEMCODE_ANY);
-            if ( idm != null ) {
+            FeliCaTag ft = this.session.getFeliCaTag(FeliCaLib.SYSTEMCODE_ANY);
+            if ( ft != null ) {
                 sb.append("\n");
                 sb.append("FeliCa デバイスです");
                 sb.append("\n-----------------------------------------");
@@ -275,7 +563,7 @@ public class NFCFeliCaReader extends Activity implements OnClickListener {
                 sb.append("  システムコード一覧");
                 sb.append("\n  -----------------------------------------");
                 sb.append("\n");
-                SystemCode[] scs = ft.getSystemCodeList();
+                SystemCode[] scs = this.session.getSystemCodeList();
                 for ( SystemCode sc : scs ) {
                     sb.append("  ").append(sc.toString()).append("\n");
                 }
@@ -285,7 +573,7 @@ public class NFCFeliCaReader extends Activity implements OnClickListener {
                 sb.append("  サービスコード一覧");
                 sb.append("\n-  ----------------------------------------");
                 sb.append("\n");
-                ServiceCode[] svs = ft.getServiceCodeList();
+                ServiceCode[] svs = this.session.getServiceCodeList();
                 for ( ServiceCode sc : svs ) {
                     sb.append("  ").append(sc.toString()).append("\n");
                 }
@@ -294,9 +582,14 @@ public class NFCFeliCaReader extends Activity implements OnClickListener {
             }
             
         } catch (Exception e) {
+            if ( e instanceof FeliCaException ) {
+                //読み込めた所までに続けて、失敗した理由を表示する
+                sb.append("  ").append(e.getMessage()).append("\n");
+            }
             String result = sb.toString();
             Log.d(TAG, result);
             e.printStackTrace();
+            this.session.invalidate();
             return result;
         }
         String result = sb.toString();
@@ -311,14 +604,14 @@ public class NFCFeliCaReader extends Activity implements OnClickListener {
     protected void onNewIntent(Intent intent) {
         TextView tv_tag = (TextView) findViewById(R.id.result_tv);
 
-        Button btnRead = (Button) findViewById(R.id.btn_read);
+        final Button btnRead = (Button) findViewById(R.id.btn_read);
         btnRead.setOnClickListener(this);
 
-        Button btnHistory = (Button) findViewById(R.id.btn_hitory);
+        final Button btnHistory = (Button) findViewById(R.id.btn_hitory);
         btnHistory.setOnClickListener(this);
         btnHistory.setEnabled(false);
 
-        Button btnWrite = (Button) findViewById(R.id.btn_write);
+        final Button btnWrite = (Button) findViewById(R.id.btn_write);
         btnWrite.setOnClickListener(this);
         btnWrite.setEnabled(false);
 
@@ -329,8 +622,18 @@ public class NFCFeliCaReader extends Activity implements OnClickListener {
         String action = intent.getAction();
         //if (NfcAdapter.ACTION_TAG_DISCOVERED.equals(action)) {
         if (NfcAdapter.ACTION_TECH_DISCOVERED.equals(action)) {
-            // android.nfc.extra.TAG 退避
-            this.nfcTag = intent.getParcelableExtra("android.nfc.extra.TAG");
+            //ここからタッチのトレースを開始し、読み込み結果の表示で終了する
+            TapTrace.getInstance().beginTap();
+            long received = TapTrace.now();
+            this.tapPending = true;
+            //前のカードに対する処理が残っていれば取り消す
+            if ( this.request != null ) {
+                this.request.cancel();
+                this.request = null;
+            }
+            // android.nfc.extra.TAG 退避 (タッチ毎に新しいセッションとする)
+            this.session = new CardSession(intent.getParcelableExtra("android.nfc.extra.TAG"));
+            this.iSFeliCaLite = false;
 
             try {
                 FeliCaLib.IDm idm = 
@@ -340,19 +643,39 @@ public class NFCFeliCaReader extends Activity implements OnClickListener {
                     throw new FeliCaException("Felica IDm を取得できませんでした");
                 }
                 
-                this.iSFeliCaLite = this.iSFeliCaLite();
-                  
-                btnHistory.setEnabled(!this.iSFeliCaLite);
-                btnWrite.setEnabled(this.iSFeliCaLite);
-                
-                //String data = readData();
-                //tv_tag.setText(data);
-                
-                btnRead.performClick();
+                //ポーリングもNFCの入出力なので、エグゼキュータで実行する
+                this.request = NfcCommandExecutor.getInstance().submit(null
+                        , new NfcCommandExecutor.Command<Void, Boolean>() {
+                            @Override
+                            public Boolean execute(NfcCommandExecutor.Request<Void, Boolean> request)
+                                    throws Exception {
+                                long started = TapTrace.now();
+                                try {
+                                    return iSFeliCaLite();
+                                } finally {
+                                    TapTrace.getInstance().span(TapTrace.PROBE, started);
+                                }
+                            }
+                        }
+                        , new NfcCommandExecutor.Callback<Void, Boolean>() {
+                            @Override
+                            public void onResult(Boolean result) {
+                                NFCFeliCaReader.this.iSFeliCaLite = result;
+                                btnHistory.setEnabled(!result);
+                                btnWrite.setEnabled(result);
+                                btnRead.performClick();
+                            }
+                            @Override
+                            public void onError(Exception e) {
+                                Log.e(TAG, "onNewIntent", e);
+                                endTap();
+                            }
+                        });
             } catch (Exception e) {
                 e.printStackTrace();
                 Log.e(TAG, e.toString());
             }
+            TapTrace.getInstance().span(TapTrace.INTENT, received);
         }
         btnHistory.setEnabled(!this.iSFeliCaLite);
         btnWrite.setEnabled(this.iSFeliCaLite);
@@ -365,6 +688,73 @@ public class NFCFeliCaReader extends Activity implements OnClickListener {
     protected void onPause() {
         super.onPause();
         this.adapter.disableForegroundDispatch(this);
+        final File dir = this.getFilesDir();
+        dumper.execute(new Runnable() {
+            @Override
+            public void run() {
+                dumpMetrics(dir);
+                dumpTrace(dir);
+            }
+        });
+    }
+
+    /**
+     * 計測結果を書き出すスレッドを生成します
+     * @return ExecutorService 生成したエグゼキュータが戻ります
+     */
+    private static ExecutorService createDumper() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS
+                , new LinkedBlockingQueue<Runnable>()
+                , new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "MetricsDumper");
+                        t.setDaemon(true);
+                        t.setPriority(Thread.MIN_PRIORITY);
+                        return t;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * タッチのトレースをファイル(trace.json)に書き出します
+     * <pre>adb pullで取得し、chrome://tracing等で表示します。書き出しはバックグラウンドのスレッドで行います</pre>
+     * @param dir 書き出すディレクトリをセット
+     */
+    private void dumpTrace(File dir) {
+        File file = new File(dir, TRACE_FILE);
+        try {
+            Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+            try {
+                TapTrace.getInstance().export(out);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "dumpTrace", e);
+        }
+    }
+
+    /**
+     * コマンド、各段階の計測結果を機種名と共にファイル(metrics.txt)に書き出します
+     * <pre>adb pullで取得し、機種毎に比較します。書き出しはバックグラウンドのスレッドで行います</pre>
+     * @param dir 書き出すディレクトリをセット
+     */
+    private void dumpMetrics(File dir) {
+        File file = new File(dir, METRICS_FILE);
+        try {
+            Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+            try {
+                out.write(Build.MANUFACTURER + " " + Build.MODEL + "\n");
+                FeliCaMetrics.getInstance().dump(out);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "dumpMetrics", e);
+        }
     }
 
     /* (non-Javadoc)
@@ -375,5 +765,19 @@ public class NFCFeliCaReader extends Activity implements OnClickListener {
         super.onResume();
         this.adapter.enableForegroundDispatch(this
                 , this.pendingIntent, this.filters, this.techLists);
+        //コード表パッケージが置かれていれば、バックグラウンドで差し替える
+        DBUtil.reloadCodeTables(this);
+    }
+
+    /* (non-Javadoc)
+     * @see android.app.Activity#onDestroy()
+     */
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        //破棄された画面に結果を返さないよう、処理中のリクエストを取り消す
+        if ( this.request != null ) {
+            this.request.cancel();
+        }
     }
 }
@@ -0,0 +1,183 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.kazzz.felica.lib.FeliCaLib.IDm;
+import net.kazzz.felica.lib.FeliCaLib.PMm;
+import net.kazzz.felica.lib.FeliCaLib.ServiceCode;
+import net.kazzz.felica.metrics.MeteredTransport;
+import android.nfc.Tag;
+import android.os.Parcelable;
+
+/**
+ * 複数ブロックを一度のコマンドで読み込む機能を追加したFeliCaTagを提供します
+ *
+ * <pre>Read Without Encryptionはブロックリストに複数のブロックを指定できるため、
+ * 1ブロックずつ読み込むよりもRFの往復回数を減らすことができます</pre>
+ * <pre>readBlocksはNfcFに一度だけ接続し、BlockReaderで全てのコマンドを同じ接続で発行します</pre>
+ *
+ * @author Kazzz
+ * @date 2011/03/15
+ * @since Android API Level 10
+ *
+ */
+
+public class BatchFeliCaTag extends FeliCaTag {
+    /** 1コマンドで読み込めるブロック数の上限 (応答長254バイトに収まる数) */
+    public static final int MAX_BLOCKS_PER_COMMAND = BlockReader.MAX_BLOCKS_PER_COMMAND;
+    /** 規定のバッチサイズ */
+    public static final int DEFAULT_BATCH_SIZE = BlockReader.DEFAULT_BATCH_SIZE;
+
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private int lastStatus;
+
+    /**
+     * コンストラクタ
+     * @param nfcTag NFCTagへの参照をセット
+     */
+    public BatchFeliCaTag(Parcelable nfcTag) {
+        super(nfcTag);
+    }
+    /**
+     * コンストラクタ
+     * <pre>ポーリング済みのIDm、PMmを使用するため、改めてポーリングする必要はありません</pre>
+     * @param nfcTag NFCTagへの参照をセット
+     * @param idm ポーリングで取得したIDmをセット
+     * @param pmm ポーリングで取得したPMmをセット
+     */
+    public BatchFeliCaTag(Tag nfcTag, IDm idm, PMm pmm) {
+        super(nfcTag, idm, pmm);
+    }
+    /**
+     * 1コマンドで読み込むブロック数を取得します
+     * @return int バッチサイズが戻ります
+     */
+    public int getBatchSize() {
+        return this.batchSize;
+    }
+    /**
+     * 1コマンドで読み込むブロック数をセットします
+     * <pre>カードが1コマンドで扱えるブロック数を超える値をセットした場合でも、
+     * エラー時にはバッチサイズを縮めて読み直します</pre>
+     * @param batchSize 1～MAX_BLOCKS_PER_COMMANDの範囲でセット
+     */
+    public void setBatchSize(int batchSize) {
+        if ( batchSize < 1 || batchSize > MAX_BLOCKS_PER_COMMAND ) {
+            throw new IllegalArgumentException("batchSize must be 1-"
+                    + MAX_BLOCKS_PER_COMMAND + " : " + batchSize);
+        }
+        this.batchSize = batchSize;
+    }
+    /**
+     * 直前のreadBlocksが読み込みを終えた際の応答のステータスフラグを取得します
+     * <pre>BlockReader#isEndOfServiceで、サービスの終端まで読み込めたか否かを検査できます</pre>
+     * @return int ステータスフラグが戻ります (BlockReader#getLastStatusを参照)
+     */
+    public int getLastStatus() {
+        return this.lastStatus;
+    }
+    /**
+     * 連続する複数のブロックを一度のコマンドで読み込みます
+     * <pre>フレームの組み立て、解析はBlockReaderで行います</pre>
+     * @param sc サービスコードをセット
+     * @param addr 先頭のブロックのアドレス(ブロックナンバー)をセット
+     * @param count 読み込むブロック数をセット
+     * @return byte[] ブロックのデータ(16バイト×読み込めたブロック数)が戻ります
+     *                 カードがエラーを返した場合はnullが戻ります
+     * @throws FeliCaException
+     */
+    public byte[] readWithoutEncryption(ServiceCode sc, int addr, int count)
+            throws FeliCaException {
+        if ( this.nfcTag == null ) {
+            throw new FeliCaException("tagService is null. no read execution");
+        }
+        FeliCaTransport transport = new MeteredTransport(new NfcFTransport(this.nfcTag));
+        try {
+            transport.connect();
+            try {
+                return new BlockReader(transport, this.idm.getBytes())
+                    .readWithoutEncryption(serviceCode(sc), addr, count);
+            } finally {
+                transport.close();
+            }
+        } catch (IOException e) {
+            throw new FeliCaException(e);
+        }
+    }
+    /**
+     * 先頭のブロックからエラーとなるまで(最大maxBlocks個まで)のブロックを読み込みます
+     * <pre>バッチサイズ単位で読み込み、エラーとなった場合はバッチサイズを半分にして読み直します
+     * 1ブロックの読み込みでもエラーとなった場合、そこが終端であると判断します</pre>
+     * @param sc サービスコードをセット
+     * @param addr 先頭のブロックのアドレス(ブロックナンバー)をセット
+     * @param maxBlocks 読み込む最大のブロック数をセット
+     * @return List&lt;byte[]&gt; 読み込めたブロックのデータ(16バイト)がアドレス順に戻ります
+     * @throws FeliCaException
+     */
+    public List<byte[]> readBlocks(ServiceCode sc, int addr, int maxBlocks)
+            throws FeliCaException {
+        final List<byte[]> blocks = new ArrayList<byte[]>();
+        this.readBlocks(sc, addr, maxBlocks, new BlockReader.BlockListener() {
+            @Override
+            public boolean onBlock(int addr, byte[] data) {
+                blocks.add(data);
+                return true;
+            }
+        });
+        return blocks;
+    }
+    /**
+     * 先頭のブロックからエラーとなるまで(最大maxBlocks個まで)のブロックを読み込み、
+     * 読み込んだ順にリスナに通知します
+     * <pre>コマンドの応答を受け取る度に通知するため、全てのブロックを読み終える前に処理を開始できます</pre>
+     * @param sc サービスコードをセット
+     * @param addr 先頭のブロックのアドレス(ブロックナンバー)をセット
+     * @param maxBlocks 読み込む最大のブロック数をセット
+     * @param listener ブロックを受け取るリスナをセット
+     * @return int 読み込んだブロック数が戻ります
+     * @throws FeliCaException
+     */
+    public int readBlocks(ServiceCode sc, int addr, int maxBlocks, BlockReader.BlockListener listener)
+            throws FeliCaException {
+        if ( this.nfcTag == null ) {
+            throw new FeliCaException("tagService is null. no read execution");
+        }
+        FeliCaTransport transport = new MeteredTransport(new NfcFTransport(this.nfcTag));
+        BlockReader reader = new BlockReader(transport, this.idm.getBytes());
+        reader.setBatchSize(this.batchSize);
+        try {
+            transport.connect();
+            try {
+                return reader.readBlocks(serviceCode(sc), addr, maxBlocks, listener);
+            } finally {
+                this.lastStatus = reader.getLastStatus();
+                transport.close();
+            }
+        } catch (IOException e) {
+            throw new FeliCaException(e);
+        }
+    }
+    /**
+     * サービスコードを数値にします
+     * @param sc サービスコードをセット
+     * @return int サービスコードが戻ります
+     */
+    private static int serviceCode(ServiceCode sc) {
+        byte[] bytes = sc.getBytes();
+        //バイト列はリトルエンディアン
+        return (bytes[0] & 0xff) | (bytes[1] & 0xff) << 8;
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * ブロックをRead Without Encryptionで複数ブロックずつ読み込む機能を提供します
+ *
+ * <pre>BatchFeliCaTag#readBlocksの実体です。コマンド、応答のフレームを自前で組み立て、解析するため、
+ * FeliCaTransportさえあればAndroid、felicalibに依存せずに動作します
+ * (net.kazzz.felica.simのエミュレータと組み合わせて端末なしで検証、計測できます)</pre>
+ * <pre>transportは呼び出し側で接続、切断します。readBlocksの間は同じ接続でコマンドを発行し続けます</pre>
+ * <pre>Read Without Encryptionのフレームの組み立て(command)、解析(parse)はこのクラスだけが持ち、
+ * BatchFeliCaTag、FeliCaLiteSnapshotもこれを使用します</pre>
+ *
+ * @author Kazzz
+ * @date 2011/04/01
+ * @since Android API Level 10
+ *
+ */
+
+public class BlockReader {
+    /** 1コマンドで読み込めるブロック数の上限 (応答長254バイトに収まる数) */
+    public static final int MAX_BLOCKS_PER_COMMAND = 15;
+    /** 規定のバッチサイズ */
+    public static final int DEFAULT_BATCH_SIZE = 8;
+    /** ステータスフラグ2 : ブロック番号が範囲外 (サービスの終端を越えた) */
+    public static final int STATUS_BLOCK_NUMBER = 0xA8;
+
+    // コマンドコード
+    private static final byte COMMAND_READ_WO_ENCRYPTION = (byte) 0x06;
+    private static final byte RESPONSE_READ_WO_ENCRYPTION = (byte) 0x07;
+    // ブロックのサイズ(バイト)
+    private static final int BLOCK_SIZE = 16;
+
+    /**
+     * 読み込んだブロックを1ブロック毎に受け取るリスナを提供します
+     *
+     * @date 2011/04/01
+     * @since Android API Level 10
+     *
+     */
+    public interface BlockListener {
+        /**
+         * ブロックを読み込んだ際に呼ばれます
+         * @param addr ブロックのアドレス(ブロックナンバー)が渡されます
+         * @param data ブロックのデータ(16バイト)が渡されます
+         * @return boolean 読み込みを続ける場合はtrueを戻します
+         */
+        boolean onBlock(int addr, byte[] data);
+    }
+
+    private final FeliCaTransport transport;
+    private final byte[] idm;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private int lastStatus;
+
+    /**
+     * コンストラクタ
+     * @param transport カードへの経路をセット
+     * @param idm ポーリングで取得したIDm(8バイト)をセット
+     */
+    public BlockReader(FeliCaTransport transport, byte[] idm) {
+        if ( idm == null || idm.length != 8 ) {
+            throw new IllegalArgumentException("idm must be 8 bytes");
+        }
+        this.transport = transport;
+        this.idm = idm.clone();
+    }
+    /**
+     * 1コマンドで読み込むブロック数を取得します
+     * @return int バッチサイズが戻ります
+     */
+    public int getBatchSize() {
+        return this.batchSize;
+    }
+    /**
+     * 1コマンドで読み込むブロック数をセットします
+     * @param batchSize 1～MAX_BLOCKS_PER_COMMANDの範囲でセット
+     */
+    public void setBatchSize(int batchSize) {
+        if ( batchSize < 1 || batchSize > MAX_BLOCKS_PER_COMMAND ) {
+            throw new IllegalArgumentException("batchSize must be 1-"
+                    + MAX_BLOCKS_PER_COMMAND + " : " + batchSize);
+        }
+        this.batchSize = batchSize;
+    }
+    /**
+     * 連続する複数のブロックを一度のコマンドで読み込みます
+     * @param serviceCode サービスコードをセット
+     * @param addr 先頭のブロックのアドレス(ブロックナンバー)をセット
+     * @param count 読み込むブロック数をセット
+     * @return byte[] ブロックのデータ(16バイト×読み込めたブロック数)が戻ります
+     *                 カードがエラーを返した場合はnullが戻ります
+     * @throws IOException カードが応答しない場合
+     */
+    public byte[] readWithoutEncryption(int serviceCode, int addr, int count) throws IOException {
+        return this.transceive(command(this.idm, serviceCode, null, addr, count));
+    }
+    /**
+     * 連続しない複数のブロックを一度のコマンドで読み込みます
+     * @param serviceCode サービスコードをセット
+     * @param addrs ブロックのアドレス(ブロックナンバー)をセット
+     * @param offset 読み込む先頭のaddrs上の位置をセット
+     * @param count 読み込むブロック数をセット
+     * @return byte[] ブロックのデータ(16バイト×読み込めたブロック数)が戻ります
+     *                 カードがエラーを返した場合はnullが戻ります
+     * @throws IOException カードが応答しない場合
+     */
+    public byte[] readWithoutEncryption(int serviceCode, int[] addrs, int offset, int count)
+            throws IOException {
+        return this.transceive(command(this.idm, serviceCode, addrs, offset, count));
+    }
+    /**
+     * コマンドを送信し、応答のステータスフラグを保持してブロックのデータを取り出します
+     * @param command コマンドのフレームをセット
+     * @return byte[] ブロックのデータが戻ります エラーの応答の場合はnullが戻ります
+     * @throws IOException カードが応答しない場合
+     */
+    private byte[] transceive(byte[] command) throws IOException {
+        byte[] r = this.transport.transceive(command);
+        this.lastStatus = status(r);
+        return parse(r);
+    }
+    /**
+     * 直前のRead Without Encryptionの応答のステータスフラグを取得します
+     * <pre>readBlocksの後に呼び出すと、読み込みを終えた理由を検査できます(isEndOfServiceを参照)</pre>
+     * @return int ステータスフラグ1を上位、ステータスフラグ2を下位のバイトにした値が戻ります
+     *              正常終了の場合は0、応答を解析できない場合は-1が戻ります
+     */
+    public int getLastStatus() {
+        return this.lastStatus;
+    }
+    /**
+     * ステータスフラグが、サービスの終端まで読み込んだことを示すか否かを検査します
+     * @param status getLastStatusで取得したステータスフラグをセット
+     * @return boolean 正常終了、又は範囲外のブロック番号の場合trueが戻ります
+     *                  その他のエラー(メモリエラー等)で打ち切った場合はfalseが戻ります
+     */
+    public static boolean isEndOfService(int status) {
+        return status == 0 || (status > 0 && (status & 0xff) == STATUS_BLOCK_NUMBER);
+    }
+    /**
+     * Read Without Encryptionのコマンドのフレームを組み立てます
+     * @param idm IDm(8バイト)をセット
+     * @param serviceCode サービスコードをセット
+     * @param addrs ブロックのアドレス(ブロックナンバー)をセット (nullの場合はoffsetから連続するブロック)
+     * @param offset 先頭のaddrs上の位置、addrsがnullの場合は先頭のブロックのアドレスをセット
+     * @param count ブロック数をセット
+     * @return byte[] 先頭のデータ長を含むフレームが戻ります
+     */
+    static byte[] command(byte[] idm, int serviceCode, int[] addrs, int offset, int count) {
+        byte[] command = new byte[14 + count * 2];
+        command[0] = (byte) command.length;
+        command[1] = COMMAND_READ_WO_ENCRYPTION;
+        System.arraycopy(idm, 0, command, 2, 8);
+        command[10] = (byte) 0x01;                       // サービス数
+        command[11] = (byte) (serviceCode & 0xff);       // サービスコード (リトルエンディアン)
+        command[12] = (byte) (serviceCode >> 8);
+        command[13] = (byte) count;                      // ブロック数
+        for ( int i = 0; i < count; i++ ) {
+            int addr = addrs != null ? addrs[offset + i] : offset + i;
+            command[14 + i * 2] = (byte) 0x80;                   // ブロックリスト (2バイトエレメント)
+            command[15 + i * 2] = (byte) (addr & 0xff);          // ブロック番号
+        }
+        return command;
+    }
+    /**
+     * Read Without Encryptionの応答のフレームからブロックのデータを取り出します
+     * @param r 先頭のデータ長を含む応答をセット
+     * @return byte[] ブロックのデータ(16バイト×ブロック数)が戻ります
+     *                 エラーの応答、Read Without Encryptionの応答でない場合はnullが戻ります
+     */
+    static byte[] parse(byte[] r) {
+        //エラーの応答はステータスフラグまで(12バイト)で、ブロック数、ブロックデータを含まない
+        if ( r == null || r.length < 13 || r[1] != RESPONSE_READ_WO_ENCRYPTION || r[10] != 0 ) {
+            return null;
+        }
+        int n = Math.min(r[12] & 0xff, (r.length - 13) / BLOCK_SIZE);
+        return Arrays.copyOfRange(r, 13, 13 + n * BLOCK_SIZE);
+    }
+    /**
+     * 応答のステータスフラグを取り出します
+     * @param r 先頭のデータ長を含む応答をセット
+     * @return int ステータスフラグ1を上位、ステータスフラグ2を下位のバイトにした値が戻ります
+     *              Read Without Encryptionの応答でない場合は-1が戻ります
+     */
+    static int status(byte[] r) {
+        if ( r == null || r.length < 12 || r[1] != RESPONSE_READ_WO_ENCRYPTION ) {
+            return -1;
+        }
+        return (r[10] & 0xff) << 8 | (r[11] & 0xff);
+    }
+    /**
+     * 先頭のブロックからエラーとなるまで(最大maxBlocks個まで)のブロックを読み込み、
+     * 読み込んだ順にリスナに通知します
+     * <pre>バッチサイズ単位で読み込み、エラーとなった場合はバッチサイズを半分にして読み直します
+     * 1ブロックの読み込みでもエラーとなった場合、そこが終端であると判断します
+     * 本当に終端だったか(範囲外のブロック番号か)は、戻った後にgetLastStatusで検査できます</pre>
+     * @param serviceCode サービスコードをセット
+     * @param addr 先頭のブロックのアドレス(ブロックナンバー)をセット
+     * @param maxBlocks 読み込む最大のブロック数をセット
+     * @param listener ブロックを受け取るリスナをセット
+     * @return int 読み込んだブロック数が戻ります
+     * @throws IOException カードが応答しない場合
+     */
+    public int readBlocks(int serviceCode, int addr, int maxBlocks, BlockListener listener)
+            throws IOException {
+        int read = 0;
+        int size = this.batchSize;
+        while ( read < maxBlocks ) {
+            int count = Math.min(size, maxBlocks - read);
+            byte[] blockData = this.readWithoutEncryption(serviceCode, addr + read, count);
+            if ( blockData == null ) {
+                if ( count == 1 ) break;
+                //範囲内に存在しないブロックを含むか、カードの上限を超えている
+                size = Math.max(1, count / 2);
+                continue;
+            }
+            int n = blockData.length / BLOCK_SIZE;
+            for ( int i = 0; i < n; i++ ) {
+                byte[] data = Arrays.copyOfRange(blockData, i * BLOCK_SIZE, (i + 1) * BLOCK_SIZE);
+                read++;
+                if ( !listener.onBlock(addr + read - 1, data) ) {
+                    return read;
+                }
+            }
+            if ( n < count ) break;
+        }
+        return read;
+    }
+    /**
+     * 連続しないブロックをgroupSize個ずつまとめて読み込み、読み込んだ順にリスナに通知します
+     * <pre>エラーとなったまとまりは1ブロックずつ読み直し、それでも読めないブロックは通知しません
+     * (FeliCaLiteSnapshot#readの実体です)</pre>
+     * @param serviceCode サービスコードをセット
+     * @param addrs 読み込むブロックのアドレス(ブロックナンバー)をセット
+     * @param groupSize 1コマンドで読み込むブロック数(1～MAX_BLOCKS_PER_COMMAND)をセット
+     * @param listener ブロックを受け取るリスナをセット
+     * @return int 読み込んだブロック数が戻ります
+     * @throws IOException カードが応答しない場合
+     */
+    public int readGroups(int serviceCode, int[] addrs, int groupSize, BlockListener listener)
+            throws IOException {
+        if ( groupSize < 1 || groupSize > MAX_BLOCKS_PER_COMMAND ) {
+            throw new IllegalArgumentException("groupSize must be 1-"
+                    + MAX_BLOCKS_PER_COMMAND + " : " + groupSize);
+        }
+        int read = 0;
+        for ( int i = 0; i < addrs.length; i += groupSize ) {
+            int count = Math.min(groupSize, addrs.length - i);
+            byte[] blockData = this.readWithoutEncryption(serviceCode, addrs, i, count);
+            if ( blockData != null && blockData.length >= count * BLOCK_SIZE ) {
+                for ( int j = 0; j < count; j++ ) {
+                    read++;
+                    if ( !listener.onBlock(addrs[i + j]
+                            , Arrays.copyOfRange(blockData, j * BLOCK_SIZE, (j + 1) * BLOCK_SIZE)) ) {
+                        return read;
+                    }
+                }
+                continue;
+            }
+            //読めないブロックを含むので1ブロックずつ読み直す
+            for ( int j = 0; j < count; j++ ) {
+                byte[] block = this.readWithoutEncryption(serviceCode, addrs, i + j, 1);
+                if ( block == null || block.length < BLOCK_SIZE ) continue;
+                read++;
+                if ( !listener.onBlock(addrs[i + j], Arrays.copyOf(block, BLOCK_SIZE)) ) {
+                    return read;
+                }
+            }
+        }
+        return read;
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import net.kazzz.felica.lib.FeliCaLib;
+import net.kazzz.felica.lib.FeliCaLib.IDm;
+import net.kazzz.felica.lib.FeliCaLib.PMm;
+import net.kazzz.felica.lib.FeliCaLib.ServiceCode;
+import net.kazzz.felica.lib.FeliCaLib.SystemCode;
+import net.kazzz.felica.metrics.FeliCaMetrics;
+import net.kazzz.felica.metrics.TapTrace;
+import android.nfc.Tag;
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * 1回のタッチで検出したカードとの通信を保持するセッションを提供します
+ *
+ * <pre>システムコード毎のポーリング結果(IDm、PMm)、カードの構成(CardTopology)を保持し、
+ * 2回目以降はポーリングせずに結果を設定済みのFeliCaTag、FeliCaLiteTagを生成します
+ * ポーリングし直すのはinvalidateでキャッシュを破棄した後だけです</pre>
+ * <pre>カードの構成はCardTopologyCacheでIDm毎にも保持されるので、同じカードを再度タッチした場合は
+ * システムコード、サービスコードを列挙し直しません</pre>
+ * <pre>Parcelableなので、インテントでActivity間を受け渡せます(ポーリング結果も引き継がれます)
+ * 各メソッドはスレッドセーフです</pre>
+ *
+ * @author Kazzz
+ * @date 2011/03/25
+ * @since Android API Level 10
+ *
+ */
+
+public class CardSession implements Parcelable {
+    /** インテントでセッションを受け渡す際のキー */
+    public static final String EXTRA_SESSION = "net.kazzz.felica.CardSession";
+
+    public static final Parcelable.Creator<CardSession> CREATOR =
+        new Parcelable.Creator<CardSession>() {
+            public CardSession createFromParcel(Parcel in) {
+                return new CardSession(in);
+            }
+            public CardSession[] newArray(int size) {
+                return new CardSession[size];
+            }
+        };
+
+    /**
+     * 1つのシステムコードに対するポーリング結果を保持します
+     * <pre>カードが応答しなかった場合は、IDm、PMmがnullの結果を保持します</pre>
+     */
+    private static class Polling {
+        final IDm idm;
+        final PMm pmm;
+        Polling(IDm idm, PMm pmm) {
+            this.idm = idm;
+            this.pmm = pmm;
+        }
+    }
+
+    private final Tag nfcTag;
+    private final Map<Integer, Polling> pollings = new HashMap<Integer, Polling>();
+    private CardTopology topology;
+
+    /**
+     * コンストラクタ
+     * @param nfcTag インテントから取得したNFCTagへの参照をセット
+     */
+    public CardSession(Parcelable nfcTag) {
+        this.nfcTag = (Tag) nfcTag;
+    }
+    /**
+     * コンストラクタ
+     * @param in パーセルをセット
+     */
+    protected CardSession(Parcel in) {
+        ClassLoader cl = this.getClass().getClassLoader();
+        this.nfcTag = (Tag) in.readParcelable(cl);
+        int n = in.readInt();
+        for ( int i = 0; i < n; i++ ) {
+            int systemCode = in.readInt();
+            IDm idm = in.readParcelable(cl);
+            PMm pmm = in.readParcelable(cl);
+            this.pollings.put(systemCode, new Polling(idm, pmm));
+        }
+    }
+    /**
+     * NFCTagへの参照を取得します
+     * @return Parcelable NFCTagへの参照が戻ります
+     */
+    public Parcelable getNfcTag() {
+        return this.nfcTag;
+    }
+    /**
+     * システムコードを指定してポーリングした結果を取得します
+     * <pre>キャッシュがない場合だけポーリングします</pre>
+     * @param systemCode システムコードをセット
+     * @return Polling ポーリング結果が戻ります
+     * @throws FeliCaException
+     */
+    private synchronized Polling polling(int systemCode) throws FeliCaException {
+        Polling result = this.pollings.get(systemCode);
+        if ( result == null ) {
+            //polling は IDm、PMmを取得するのに必要
+            FeliCaTag f = new FeliCaTag(this.nfcTag);
+            long started = System.nanoTime();
+            IDm idm;
+            try {
+                idm = f.pollingAndGetIDm(systemCode);
+            } catch (FeliCaException e) {
+                FeliCaMetrics.getInstance().recordFailure("POLLING", System.nanoTime() - started);
+                TapTrace.getInstance().span(TapTrace.COMMAND, started, 0x00);
+                throw e;
+            }
+            TapTrace.getInstance().span(TapTrace.COMMAND, started, 0x00);
+            //felicalibを経由するため、送受信したバイト数は分からない
+            FeliCaMetrics.getInstance().recordCommand("POLLING"
+                    , System.nanoTime() - started, 0, 0, idm == null);
+            result = new Polling(idm, idm != null ? f.getPMm() : null);
+            this.pollings.put(systemCode, result);
+        }
+        return result;
+    }
+    /**
+     * システムコードを指定してIDmを取得します
+     * @param systemCode システムコードをセット
+     * @return IDm カードが応答しなかった場合はnullが戻ります
+     * @throws FeliCaException
+     */
+    public IDm getIDm(int systemCode) throws FeliCaException {
+        return this.polling(systemCode).idm;
+    }
+    /**
+     * システムコードを指定してPMmを取得します
+     * @param systemCode システムコードをセット
+     * @return PMm カードが応答しなかった場合はnullが戻ります
+     * @throws FeliCaException
+     */
+    public PMm getPMm(int systemCode) throws FeliCaException {
+        return this.polling(systemCode).pmm;
+    }
+    /**
+     * FeliCa Liteデバイスか否かを検査します
+     * @return boolean FeliCa Liteの場合trueが戻ります
+     * @throws FeliCaException
+     */
+    public boolean isFeliCaLite() throws FeliCaException {
+        return this.getIDm(FeliCaLib.SYSTEMCODE_FELICA_LITE) != null;
+    }
+    /**
+     * ポーリング済みのFeliCaTagを取得します
+     * @param systemCode システムコードをセット
+     * @return FeliCaTag カードが応答しなかった場合はnullが戻ります
+     * @throws FeliCaException
+     */
+    public FeliCaTag getFeliCaTag(int systemCode) throws FeliCaException {
+        Polling p = this.polling(systemCode);
+        return p.idm != null ? new FeliCaTag(this.nfcTag, p.idm, p.pmm) : null;
+    }
+    /**
+     * ポーリング済みのBatchFeliCaTagを取得します
+     * @param systemCode システムコードをセット
+     * @return BatchFeliCaTag カードが応答しなかった場合はnullが戻ります
+     * @throws FeliCaException
+     */
+    public BatchFeliCaTag getBatchFeliCaTag(int systemCode) throws FeliCaException {
+        Polling p = this.polling(systemCode);
+        return p.idm != null ? new BatchFeliCaTag(this.nfcTag, p.idm, p.pmm) : null;
+    }
+    /**
+     * ポーリング済みのFeliCaLiteTagを取得します
+     * @return FeliCaLiteTag FeliCa Liteでない場合はnullが戻ります
+     * @throws FeliCaException
+     */
+    public FeliCaLiteTag getFeliCaLiteTag() throws FeliCaException {
+        Polling p = this.polling(FeliCaLib.SYSTEMCODE_FELICA_LITE);
+        return p.idm != null ? new FeliCaLiteTag(this.nfcTag, p.idm, p.pmm) : null;
+    }
+    /**
+     * カードの構成(システムコード、サービスコードの一覧)を取得します
+     * <pre>CardTopologyCacheに保持されていない場合だけカードから読み込みます</pre>
+     * @return CardTopology カードの構成が戻ります カードが応答しなかった場合は空の構成が戻ります
+     * @throws FeliCaException
+     */
+    public synchronized CardTopology getTopology() throws FeliCaException {
+        if ( this.topology == null ) {
+            IDm idm = this.getIDm(FeliCaLib.SYSTEMCODE_ANY);
+            if ( idm == null ) {
+                return new CardTopology(new byte[0], new SystemCode[0], new ServiceCode[0]);
+            }
+            CardTopologyCache cache = CardTopologyCache.getInstance();
+            CardTopology t = cache.get(idm);
+            if ( t == null ) {
+                t = CardTopology.read(this.nfcTag, idm);
+                cache.put(t);
+            }
+            this.topology = t;
+        }
+        return this.topology;
+    }
+    /**
+     * システムコードの一覧を取得します
+     * @return SystemCode[] システムコードの一覧が戻ります カードが応答しなかった場合は空の配列が戻ります
+     * @throws FeliCaException
+     */
+    public SystemCode[] getSystemCodeList() throws FeliCaException {
+        return this.getTopology().getSystemCodeList();
+    }
+    /**
+     * サービスコードの一覧を取得します
+     * @return ServiceCode[] サービスコードの一覧が戻ります カードが応答しなかった場合は空の配列が戻ります
+     * @throws FeliCaException
+     */
+    public ServiceCode[] getServiceCodeList() throws FeliCaException {
+        return this.getTopology().getServiceCodeList();
+    }
+    /**
+     * 保持しているポーリング結果、一覧を全て破棄します
+     * <pre>コマンドがエラーとなった場合等、カードの状態が変わった可能性がある場合に呼び出します
+     * CardTopologyCacheに保持している、このカードの構成も破棄します</pre>
+     */
+    public synchronized void invalidate() {
+        Polling p = this.pollings.get(FeliCaLib.SYSTEMCODE_ANY);
+        if ( p != null && p.idm != null ) {
+            CardTopologyCache.getInstance().remove(p.idm);
+        }
+        this.pollings.clear();
+        this.topology = null;
+    }
+    /* (non-Javadoc)
+     * @see android.os.Parcelable#describeContents()
+     */
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+    /* (non-Javadoc)
+     * @see android.os.Parcelable#writeToParcel(android.os.Parcel, int)
+     */
+    @Override
+    public synchronized void writeToParcel(Parcel dest, int flags) {
+        //一覧はパーセルに含めず、必要になった時点で取得し直す
+        dest.writeParcelable(this.nfcTag, flags);
+        dest.writeInt(this.pollings.size());
+        for ( Map.Entry<Integer, Polling> e : this.pollings.entrySet() ) {
+            dest.writeInt(e.getKey());
+            dest.writeParcelable(e.getValue().idm, flags);
+            dest.writeParcelable(e.getValue().pmm, flags);
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.kazzz.felica.lib.FeliCaLib;
+import net.kazzz.felica.lib.FeliCaLib.CommandPacket;
+import net.kazzz.felica.lib.FeliCaLib.IDm;
+import net.kazzz.felica.lib.FeliCaLib.ServiceCode;
+import net.kazzz.felica.lib.FeliCaLib.SystemCode;
+import net.kazzz.felica.metrics.MeteredTransport;
+import android.nfc.Tag;
+
+/**
+ * カードのシステムコード、サービスコードの構成を保持するクラスを提供します
+ *
+ * <pre>readで一覧を読み込みます。FeliCaLib.executeはコマンド毎にNfcFの接続、切断を繰り返しますが、
+ * readは一度接続したままRequest System Code、Search Service Codeを続けて発行し、応答の解析は最後にまとめて行います
+ * (FeliCaは半二重のため、一度に発行できるコマンドは1つです)</pre>
+ * <pre>インスタンスは不変です。CardTopologyCacheでIDm毎に保持されます</pre>
+ *
+ * @author Kazzz
+ * @date 2011/03/26
+ * @since Android API Level 10
+ *
+ */
+
+public final class CardTopology {
+    //Search Service Codeで探索するインデックスの上限
+    private static final int MAX_SEARCH_INDEX = 0xffff;
+
+    private final byte[] idm;
+    private final SystemCode[] systemCodes;
+    private final ServiceCode[] serviceCodes;
+
+    /**
+     * コンストラクタ
+     * @param idm IDmのバイト列をセット
+     * @param systemCodes システムコードの一覧をセット
+     * @param serviceCodes サービスコードの一覧をセット
+     */
+    public CardTopology(byte[] idm, SystemCode[] systemCodes, ServiceCode[] serviceCodes) {
+        this.idm = idm.clone();
+        this.systemCodes = systemCodes.clone();
+        this.serviceCodes = serviceCodes.clone();
+    }
+    /**
+     * IDmのバイト列を取得します
+     * @return byte[] IDmのバイト列が戻ります
+     */
+    public byte[] getIDm() {
+        return this.idm.clone();
+    }
+    /**
+     * システムコードの一覧を取得します
+     * @return SystemCode[] システムコードの一覧が戻ります
+     */
+    public SystemCode[] getSystemCodeList() {
+        return this.systemCodes.clone();
+    }
+    /**
+     * サービスコードの一覧を取得します
+     * @return ServiceCode[] サービスコードの一覧が戻ります
+     */
+    public ServiceCode[] getServiceCodeList() {
+        return this.serviceCodes.clone();
+    }
+    /**
+     * カードからシステムコード、サービスコードの一覧を読み込みます
+     * <pre>NfcFには一度だけ接続し、全てのコマンドを同じ接続で発行します</pre>
+     * @param nfcTag NFCTagへの参照をセット
+     * @param idm ポーリングで取得したIDmをセット
+     * @return CardTopology 読み込んだ構成が戻ります
+     * @throws FeliCaException
+     */
+    public static CardTopology read(Tag nfcTag, IDm idm) throws FeliCaException {
+        return read(new MeteredTransport(new NfcFTransport(nfcTag)), idm);
+    }
+    /**
+     * カードからシステムコード、サービスコードの一覧を読み込みます
+     * @param transport カードへの経路をセット
+     * @param idm ポーリングで取得したIDmをセット
+     * @return CardTopology 読み込んだ構成が戻ります
+     * @throws FeliCaException
+     */
+    public static CardTopology read(FeliCaTransport transport, IDm idm) throws FeliCaException {
+        byte[] systemResponse;
+        List<byte[]> searchResponses = new ArrayList<byte[]>();
+        try {
+            transport.connect();
+            try {
+                systemResponse = transport.transceive(new CommandPacket(
+                        FeliCaLib.COMMAND_REQUEST_SYSTEMCODE, idm, new byte[0]).getBytes());
+                //応答を待って次を発行するだけで、解析はしない
+                for ( int index = 1; index <= MAX_SEARCH_INDEX; index++ ) {
+                    byte[] r = transport.transceive(new CommandPacket(
+                            FeliCaLib.COMMAND_SEARCH_SERVICECODE, idm
+                            , (byte) (index & 0xff), (byte) (index >> 8)).getBytes());
+                    searchResponses.add(r);
+                    if ( isEndOfSearch(r) ) break;
+                }
+            } finally {
+                transport.close();
+            }
+        } catch (IOException e) {
+            throw new FeliCaException(e);
+        }
+        return new CardTopology(idm.getBytes()
+                , parseSystemCodes(systemResponse), parseServiceCodes(searchResponses));
+    }
+    /**
+     * Search Service Codeの応答が探索の終端か否かを検査します
+     * @param response 応答をセット
+     * @return boolean 終端(エラー、又は0xffff)の場合trueが戻ります
+     */
+    private static boolean isEndOfSearch(byte[] response) {
+        if ( response == null || response.length < 12
+                || response[1] != FeliCaLib.RESPONSE_SEARCH_SERVICECODE ) {
+            return true;
+        }
+        return response.length == 12 && response[10] == (byte) 0xff && response[11] == (byte) 0xff;
+    }
+    /**
+     * Request System Codeの応答を解析します
+     * @param response 応答をセット
+     * @return SystemCode[] システムコードの一覧が戻ります
+     * @throws FeliCaException 応答が不正な場合
+     */
+    private static SystemCode[] parseSystemCodes(byte[] response) throws FeliCaException {
+        if ( response == null || response.length < 11
+                || response[1] != FeliCaLib.RESPONSE_REQUEST_SYSTEMCODE ) {
+            throw new FeliCaException("ResponseCode is not 0x0d");
+        }
+        int count = response[10] & 0xff;
+        SystemCode[] result = new SystemCode[Math.min(count, (response.length - 11) / 2)];
+        for ( int i = 0; i < result.length; i++ ) {
+            result[i] = new SystemCode(Arrays.copyOfRange(response, 11 + i * 2, 13 + i * 2));
+        }
+        return result;
+    }
+    /**
+     * Search Service Codeの応答を解析します
+     * <pre>FeliCaTag#getServiceCodeListと同様に、エリアコード(4バイトの応答)は一覧に含めません</pre>
+     * @param responses 応答をセット
+     * @return ServiceCode[] サービスコードの一覧が戻ります
+     */
+    private static ServiceCode[] parseServiceCodes(List<byte[]> responses) {
+        List<ServiceCode> result = new ArrayList<ServiceCode>();
+        for ( byte[] r : responses ) {
+            if ( isEndOfSearch(r) ) break;
+            if ( r.length == 12 ) {
+                result.add(new ServiceCode(Arrays.copyOfRange(r, 10, 12)));
+            }
+        }
+        return result.toArray(new ServiceCode[result.size()]);
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica;
+
+/**
+ * カードの構成(CardTopology)をIDm毎に保持するキャッシュを提供します
+ *
+ * <pre>同じカードが繰り返しタッチされる場合、システムコード、サービスコードの列挙を省略できます</pre>
+ *
+ * @author Kazzz
+ * @date 2011/03/26
+ * @since Android API Level 10
+ *
+ */
+
+public class CardTopologyCache extends IDmCache<CardTopology> {
+    private static final CardTopologyCache instance =
+        new CardTopologyCache(DEFAULT_CAPACITY, DEFAULT_TTL);
+
+    /**
+     * コンストラクタ
+     * @param capacity 保持する件数の上限をセット
+     * @param ttl 有効期間(ミリ秒)をセット
+     */
+    public CardTopologyCache(int capacity, long ttl) {
+        super(capacity, ttl);
+    }
+    /**
+     * プロセスで共有されるキャッシュを取得します
+     * @return CardTopologyCache キャッシュが戻ります
+     */
+    public static CardTopologyCache getInstance() {
+        return instance;
+    }
+    /**
+     * 構成を保持します
+     * @param topology 構成をセット
+     */
+    public void put(CardTopology topology) {
+        this.put(topology.getIDm(), topology);
+    }
+}
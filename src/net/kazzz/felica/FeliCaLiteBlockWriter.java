@@ -0,0 +1,405 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.kazzz.felica.command.WriteResponse;
+import net.kazzz.felica.lib.FeliCaLib;
+import net.kazzz.felica.lib.FeliCaLib.CommandPacket;
+import net.kazzz.felica.lib.FeliCaLib.CommandResponse;
+import net.kazzz.felica.lib.FeliCaLib.IDm;
+import net.kazzz.felica.lib.FeliCaLib.MemoryConfigurationBlock;
+import net.kazzz.felica.metrics.MeteredTransport;
+import android.nfc.Tag;
+
+/**
+ * FeliCa Liteのスクラッチパッド(S_PAD0～13)に複数ブロックを書き込み、読み戻して検証する機能を提供します
+ *
+ * <pre>書き込むデータはencodeで事前に16バイト単位のブロックに変換しておきます
+ * 文字列は1文字が2つのブロックにまたがらないよう分割するので、ブロック毎にdecodeできます
+ * writeはカードに一度だけ接続し、1ブロックずつ書き込んだ後(FeliCa Liteの書き込みは1コマンド1ブロック)、
+ * 書き込んだブロックだけを最大4ブロックずつ読み戻して内容を比較します
+ * 書き込むブロックは連続していなくても構いません(書き込めないブロックを飛ばす場合等)</pre>
+ * <pre>writeDeltaはFeliCaLiteSnapshotCacheに保持したスナップショットと比較し、内容が異なるブロックだけを書き込みます
+ * 書き込みはFeliCaで最も遅い操作であり、タグの書き換え回数も減らせます</pre>
+ *
+ * @author Kazzz
+ * @date 2011/03/28
+ * @since Android API Level 10
+ *
+ */
+
+public class FeliCaLiteBlockWriter {
+    /** ブロックのサイズ(バイト) */
+    public static final int BLOCK_SIZE = 16;
+    /** スクラッチパッドのブロック数 (S_PAD0～13) */
+    public static final int S_PAD_BLOCKS = 14;
+    /** 1コマンドで読み込めるブロック数の上限 (FeliCa Lite) */
+    public static final int MAX_BLOCKS_PER_READ = 4;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    // サービスコード (リトルエンディアン)
+    private static final byte[] SERVICE_READWRITE = { (byte) 0x09, (byte) 0x00 };
+
+    /**
+     * 書き込み、検証の結果を提供します
+     */
+    public static class Result {
+        private final int[] addrs;
+        private final byte[][] blocks;
+        private final int writtenCount;
+
+        Result(int[] addrs, byte[][] blocks, int writtenCount) {
+            this.addrs = addrs;
+            this.blocks = blocks;
+            this.writtenCount = writtenCount;
+        }
+        /**
+         * 書き込んだブロックのアドレス(ブロックナンバー)を取得します
+         * @param index 先頭からの位置(0～)をセット
+         * @return int アドレスが戻ります
+         */
+        public int getAddress(int index) {
+            return this.addrs[index];
+        }
+        /**
+         * 書き込んだブロック数を取得します
+         * @return int ブロック数が戻ります
+         */
+        public int getBlockCount() {
+            return this.blocks.length;
+        }
+        /**
+         * 実際に書き込みコマンドを発行したブロック数を取得します
+         * <pre>writeDeltaで内容が変わらなかったブロックは含みません</pre>
+         * @return int ブロック数が戻ります
+         */
+        public int getWrittenCount() {
+            return this.writtenCount;
+        }
+        /**
+         * 読み戻したブロックのデータを取得します
+         * @param index 先頭からの位置(0～)をセット
+         * @return byte[] ブロックのデータ(16バイト)が戻ります
+         */
+        public byte[] getBlock(int index) {
+            return this.blocks[index].clone();
+        }
+    }
+
+    private final FeliCaTransport transport;
+    private final IDm idm;
+
+    /**
+     * コンストラクタ
+     * @param nfcTag NFCTagへの参照をセット
+     * @param idm ポーリングで取得したIDmをセット
+     * @throws FeliCaException タグがNFC-Fでない場合
+     */
+    public FeliCaLiteBlockWriter(Tag nfcTag, IDm idm) throws FeliCaException {
+        this(new MeteredTransport(new NfcFTransport(nfcTag)), idm);
+    }
+    /**
+     * コンストラクタ
+     * @param transport カードへの経路をセット
+     * @param idm ポーリングで取得したIDmをセット
+     */
+    public FeliCaLiteBlockWriter(FeliCaTransport transport, IDm idm) {
+        this.transport = transport;
+        this.idm = idm;
+    }
+    /**
+     * 文字列をUTF-8でエンコードし、ブロックに分割します
+     * <pre>1文字(サロゲートペアを含む)のバイト列はブロックをまたがないよう次のブロックに送り、
+     * ブロックの余りは0x00で埋めます。空の文字列は0x00のブロック1つになります</pre>
+     * @param text 文字列をセット
+     * @return byte[][] 16バイト単位のブロックが戻ります
+     */
+    public static byte[][] encode(CharSequence text) {
+        String s = text.toString();
+        List<byte[]> blocks = new ArrayList<byte[]>();
+        byte[] block = new byte[BLOCK_SIZE];
+        int used = 0;
+        for ( int i = 0; i < s.length(); ) {
+            int n = Character.charCount(s.codePointAt(i));
+            byte[] ch = s.substring(i, i + n).getBytes(UTF8);
+            if ( used + ch.length > BLOCK_SIZE ) {
+                blocks.add(block);
+                block = new byte[BLOCK_SIZE];
+                used = 0;
+            }
+            System.arraycopy(ch, 0, block, used, ch.length);
+            used += ch.length;
+            i += n;
+        }
+        blocks.add(block);
+        return blocks.toArray(new byte[blocks.size()][]);
+    }
+    /**
+     * encodeで作成したブロックを文字列にデコードします
+     * <pre>末尾の0x00(埋めた余り)は取り除きます</pre>
+     * @param block ブロックのデータをセット
+     * @return String デコードした文字列が戻ります
+     */
+    public static String decode(byte[] block) {
+        int end = block.length;
+        while ( end > 0 && block[end - 1] == 0 ) end--;
+        return new String(block, 0, end, UTF8);
+    }
+    /**
+     * データをブロックに分割します
+     * <pre>最後のブロックの余りは0x00で埋めます。空のデータは0x00のブロック1つになります</pre>
+     * @param payload データをセット
+     * @return byte[][] 16バイト単位のブロックが戻ります
+     */
+    public static byte[][] encode(byte[] payload) {
+        int count = Math.max(1, (payload.length + BLOCK_SIZE - 1) / BLOCK_SIZE);
+        byte[][] blocks = new byte[count][];
+        for ( int i = 0; i < count; i++ ) {
+            int from = i * BLOCK_SIZE;
+            //copyOfRangeは範囲外を0x00で埋める
+            blocks[i] = Arrays.copyOfRange(payload, Math.min(from, payload.length), from + BLOCK_SIZE);
+        }
+        return blocks;
+    }
+    /**
+     * 連続するブロックを書き込めるか検査します
+     * @param mb メモリコンフィギュレーションブロックをセット (nullの場合、書き込み可否は検査しません)
+     * @param addr 先頭のブロックのアドレス(ブロックナンバー)をセット
+     * @param blocks 書き込むブロックをセット
+     * @throws FeliCaException スクラッチパッドに収まらない場合、読み込み専用のブロックを含む場合
+     */
+    public static void validate(MemoryConfigurationBlock mb, int addr, byte[][] blocks)
+            throws FeliCaException {
+        validate(mb, sequence(addr, blocks.length), blocks);
+    }
+    /**
+     * ブロックを書き込めるか検査します
+     * @param mb メモリコンフィギュレーションブロックをセット (nullの場合、書き込み可否は検査しません)
+     * @param addrs 書き込むブロックのアドレス(ブロックナンバー)をセット
+     * @param blocks 書き込むブロックをセット (addrsと同じ順)
+     * @throws FeliCaException スクラッチパッドに収まらない場合、読み込み専用のブロックを含む場合
+     */
+    public static void validate(MemoryConfigurationBlock mb, int[] addrs, byte[][] blocks)
+            throws FeliCaException {
+        if ( blocks.length == 0 ) {
+            throw new FeliCaException("no block to write");
+        }
+        if ( addrs.length != blocks.length ) {
+            throw new FeliCaException(addrs.length + " addresses for " + blocks.length + " blocks");
+        }
+        for ( int i = 0; i < blocks.length; i++ ) {
+            if ( addrs[i] < 0 || addrs[i] >= S_PAD_BLOCKS ) {
+                throw new FeliCaException("S_PAD" + addrs[i] + " exceeds scratch pad");
+            }
+            if ( blocks[i].length != BLOCK_SIZE ) {
+                throw new FeliCaException("block " + i + " is not " + BLOCK_SIZE + " bytes");
+            }
+            if ( mb != null && !mb.isWritable(addrs[i]) ) {
+                throw new FeliCaException("S_PAD" + addrs[i] + " is read only");
+            }
+        }
+    }
+    /**
+     * 連続するブロックを書き込み、読み戻して検証します
+     * @param mb メモリコンフィギュレーションブロックをセット (nullの場合、書き込み可否は検査しません)
+     * @param addr 先頭のブロックのアドレス(ブロックナンバー)をセット
+     * @param blocks encodeで作成したブロックをセット
+     * @return Result 読み戻した結果が戻ります
+     * @throws FeliCaException 書き込みがエラーとなった場合、読み戻した内容が一致しない場合
+     */
+    public Result write(MemoryConfigurationBlock mb, int addr, byte[][] blocks)
+            throws FeliCaException {
+        return this.write(mb, sequence(addr, blocks.length), blocks);
+    }
+    /**
+     * ブロックを書き込み、読み戻して検証します
+     * @param mb メモリコンフィギュレーションブロックをセット (nullの場合、書き込み可否は検査しません)
+     * @param addrs 書き込むブロックのアドレス(ブロックナンバー)をセット
+     * @param blocks 書き込むブロックをセット (addrsと同じ順)
+     * @return Result 読み戻した結果が戻ります
+     * @throws FeliCaException 書き込みがエラーとなった場合、読み戻した内容が一致しない場合
+     */
+    public Result write(MemoryConfigurationBlock mb, int[] addrs, byte[][] blocks)
+            throws FeliCaException {
+        validate(mb, addrs, blocks);
+        byte[][] readBack;
+        try {
+            this.transport.connect();
+            try {
+                for ( int i = 0; i < blocks.length; i++ ) {
+                    this.writeBlock(this.transport, addrs[i], blocks[i]);
+                }
+                readBack = this.readAll(this.transport, addrs);
+            } finally {
+                this.transport.close();
+            }
+        } catch (IOException e) {
+            throw new FeliCaException(e);
+        }
+        return this.verified(addrs, blocks, readBack, blocks.length);
+    }
+    /**
+     * 連続するブロックのうち、内容が異なるブロックだけを書き込み、読み戻して検証します
+     * @param mb メモリコンフィギュレーションブロックをセット (nullの場合、書き込み可否は検査しません)
+     * @param addr 先頭のブロックのアドレス(ブロックナンバー)をセット
+     * @param blocks encodeで作成したブロックをセット
+     * @return Result 読み戻した結果が戻ります
+     * @throws FeliCaException 書き込みがエラーとなった場合、読み戻した内容が一致しない場合
+     * @see #writeDelta(MemoryConfigurationBlock, int[], byte[][])
+     */
+    public Result writeDelta(MemoryConfigurationBlock mb, int addr, byte[][] blocks)
+            throws FeliCaException {
+        return this.writeDelta(mb, sequence(addr, blocks.length), blocks);
+    }
+    /**
+     * 内容が異なるブロックだけを書き込み、読み戻して検証します
+     * <pre>FeliCaLiteSnapshotCacheに保持したスナップショットと内容が同じブロックは書き込みません
+     * (スナップショットがない場合は全て書き込みます)
+     * 読み戻しは書き込まなかったブロックも含めて行い、スナップショットが古く実際の内容と
+     * 異なっていたブロックはその場で書き込み直します</pre>
+     * @param mb メモリコンフィギュレーションブロックをセット (nullの場合、書き込み可否は検査しません)
+     * @param addrs 書き込むブロックのアドレス(ブロックナンバー)をセット
+     * @param blocks 書き込むブロックをセット (addrsと同じ順)
+     * @return Result 読み戻した結果が戻ります
+     * @throws FeliCaException 書き込みがエラーとなった場合、読み戻した内容が一致しない場合
+     */
+    public Result writeDelta(MemoryConfigurationBlock mb, int[] addrs, byte[][] blocks)
+            throws FeliCaException {
+        validate(mb, addrs, blocks);
+        FeliCaLiteSnapshot snapshot = FeliCaLiteSnapshotCache.getInstance().get(this.idm);
+        boolean[] written = new boolean[blocks.length];
+        int writtenCount = 0;
+        byte[][] readBack;
+        try {
+            this.transport.connect();
+            try {
+                for ( int i = 0; i < blocks.length; i++ ) {
+                    if ( snapshot != null && snapshot.matches(addrs[i], blocks[i]) ) continue;
+                    this.writeBlock(this.transport, addrs[i], blocks[i]);
+                    written[i] = true;
+                    writtenCount++;
+                }
+                readBack = this.readAll(this.transport, addrs);
+                //スナップショットと実際の内容が異なっていたブロックを書き込み直す
+                boolean stale = false;
+                for ( int i = 0; i < blocks.length; i++ ) {
+                    if ( written[i] || Arrays.equals(blocks[i], readBack[i]) ) continue;
+                    this.writeBlock(this.transport, addrs[i], blocks[i]);
+                    writtenCount++;
+                    stale = true;
+                }
+                if ( stale ) {
+                    readBack = this.readAll(this.transport, addrs);
+                }
+            } finally {
+                this.transport.close();
+            }
+        } catch (IOException e) {
+            throw new FeliCaException(e);
+        }
+        return this.verified(addrs, blocks, readBack, writtenCount);
+    }
+    /**
+     * 読み戻した内容を検証し、キャッシュしているスナップショットに反映します
+     * @return Result 結果が戻ります
+     * @throws FeliCaException 読み戻した内容が一致しない場合
+     */
+    private Result verified(int[] addrs, byte[][] blocks, byte[][] readBack, int writtenCount)
+            throws FeliCaException {
+        for ( int i = 0; i < blocks.length; i++ ) {
+            if ( !Arrays.equals(blocks[i], readBack[i]) ) {
+                throw new FeliCaException("verify failed at S_PAD" + addrs[i]);
+            }
+        }
+        FeliCaLiteSnapshotCache cache = FeliCaLiteSnapshotCache.getInstance();
+        FeliCaLiteSnapshot snapshot = cache.get(this.idm);
+        if ( snapshot != null ) {
+            cache.put(snapshot.with(addrs, readBack));
+        }
+        return new Result(addrs.clone(), readBack, writtenCount);
+    }
+    /**
+     * ブロックを最大4ブロックずつ読み込みます
+     * @param transport 接続済みの経路をセット
+     * @param addrs ブロックのアドレス(ブロックナンバー)をセット
+     * @return byte[][] ブロックのデータ(16バイト)がaddrsと同じ順に戻ります
+     * @throws IOException
+     * @throws FeliCaException 読み込みがエラーとなった場合
+     */
+    private byte[][] readAll(FeliCaTransport transport, int[] addrs) throws IOException, FeliCaException {
+        byte[][] result = new byte[addrs.length][];
+        for ( int i = 0; i < addrs.length; i += MAX_BLOCKS_PER_READ ) {
+            int count = Math.min(MAX_BLOCKS_PER_READ, addrs.length - i);
+            byte[] data = this.readBlocks(transport, addrs, i, count);
+            for ( int j = 0; j < count; j++ ) {
+                result[i + j] = Arrays.copyOfRange(data, j * BLOCK_SIZE, (j + 1) * BLOCK_SIZE);
+            }
+        }
+        return result;
+    }
+    private static int[] sequence(int addr, int count) {
+        int[] addrs = new int[count];
+        for ( int i = 0; i < count; i++ ) {
+            addrs[i] = addr + i;
+        }
+        return addrs;
+    }
+    /**
+     * 1ブロックを書き込みます
+     * @param transport 接続済みの経路をセット
+     * @param addr ブロックのアドレス(ブロックナンバー)をセット
+     * @param block ブロックのデータ(16バイト)をセット
+     * @throws IOException
+     * @throws FeliCaException 書き込みがエラーとなった場合
+     */
+    private void writeBlock(FeliCaTransport transport, int addr, byte[] block) throws IOException, FeliCaException {
+        byte[] data = new byte[6 + BLOCK_SIZE];
+        data[0] = (byte) 0x01;                  // サービス数
+        data[1] = SERVICE_READWRITE[0];
+        data[2] = SERVICE_READWRITE[1];
+        data[3] = (byte) 0x01;                  // ブロック数
+        data[4] = (byte) 0x80;                  // ブロックリスト (2バイトエレメント)
+        data[5] = (byte) addr;
+        System.arraycopy(block, 0, data, 6, BLOCK_SIZE);
+        byte[] r = transport.transceive(new CommandPacket(
+                FeliCaLib.COMMAND_WRITE_WO_ENCRYPTION, this.idm, data).getBytes());
+        WriteResponse wr = new WriteResponse(new CommandResponse(r));
+        if ( wr.getStatusFlag1() != 0 ) {
+            throw new FeliCaException("write failed at S_PAD" + addr
+                    + " status : " + wr.getStatusFlag1() + "/" + wr.getStatusFlag2());
+        }
+    }
+    /**
+     * 複数のブロックを一度のコマンドで読み込みます
+     * @param transport 接続済みの経路をセット
+     * @param addrs ブロックのアドレス(ブロックナンバー)をセット
+     * @param offset 読み込む先頭のaddrs上の位置をセット
+     * @param count ブロック数(1～4)をセット
+     * @return byte[] ブロックのデータ(16バイト×ブロック数)が戻ります
+     * @throws IOException
+     * @throws FeliCaException 読み込みがエラーとなった場合
+     */
+    private byte[] readBlocks(FeliCaTransport transport, int[] addrs, int offset, int count)
+            throws IOException, FeliCaException {
+        byte[] blockData = FeliCaLiteSnapshot.readBlocks(transport, this.idm, addrs, offset, count);
+        if ( blockData == null ) {
+            throw new FeliCaException("read failed at S_PAD" + addrs[offset]);
+        }
+        return blockData;
+    }
+}
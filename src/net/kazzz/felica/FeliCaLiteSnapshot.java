@@ -0,0 +1,211 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+import net.kazzz.felica.lib.FeliCaLib.IDm;
+import net.kazzz.felica.lib.FeliCaLib.MemoryConfigurationBlock;
+import net.kazzz.felica.lib.Util;
+import net.kazzz.felica.metrics.MeteredTransport;
+import android.nfc.Tag;
+
+/**
+ * FeliCa Liteのメモリを一括で読み込んだスナップショットを提供します
+ *
+ * <pre>readはカードに一度だけ接続し、指定したブロックを1コマンドあたり最大4ブロックずつ読み込みます
+ * (S_PAD0～13とMCの15ブロックなら4コマンド、FULLの21ブロックでも6コマンドです)
+ * 読み込めなかったコマンドは1ブロックずつ読み直し、それでも読めないブロックはスナップショットに含めません
+ * (読み込みはBlockReader#readGroupsで行います)</pre>
+ * <pre>インスタンスは不変です</pre>
+ *
+ * @author Kazzz
+ * @date 2011/03/30
+ * @since Android API Level 10
+ *
+ */
+
+public final class FeliCaLiteSnapshot {
+    /** スクラッチパッドの先頭ブロック (S_PAD0) */
+    public static final int S_PAD0 = 0x00;
+    /** レジスタ (REG) */
+    public static final int REG = 0x0e;
+    /** ID */
+    public static final int ID = 0x82;
+    /** デバイスID (D_ID) */
+    public static final int D_ID = 0x83;
+    /** サービスコード (SER_C) */
+    public static final int SER_C = 0x84;
+    /** システムコード (SYS_C) */
+    public static final int SYS_C = 0x85;
+    /** カード鍵バージョン (CKV) */
+    public static final int CKV = 0x86;
+    /** メモリコンフィギュレーション (MC) */
+    public static final int MC = 0x88;
+
+    /** スクラッチパッドとMC (書き込み画面の表示に必要なブロック) */
+    public static final int[] SCRATCH_PAD = blocks(S_PAD0, FeliCaLiteBlockWriter.S_PAD_BLOCKS, MC);
+    /** 平文で読み込める全てのブロック */
+    public static final int[] FULL = blocks(S_PAD0, FeliCaLiteBlockWriter.S_PAD_BLOCKS
+            , REG, ID, D_ID, SER_C, SYS_C, CKV, MC);
+
+    // 読み込み専用のサービスコード
+    private static final int SERVICE_READONLY = 0x000b;
+
+    private final byte[] idm;
+    private final Map<Integer, byte[]> blocks;
+
+    private FeliCaLiteSnapshot(byte[] idm, Map<Integer, byte[]> blocks) {
+        this.idm = idm;
+        this.blocks = Collections.unmodifiableMap(blocks);
+    }
+    /**
+     * スナップショットを読み込みます
+     * @param nfcTag NFCTagへの参照をセット
+     * @param idm ポーリングで取得したIDmをセット
+     * @param addrs 読み込むブロックのアドレス(ブロックナンバー)をセット (SCRATCH_PAD、FULL等)
+     * @return FeliCaLiteSnapshot 読み込んだスナップショットが戻ります
+     * @throws FeliCaException
+     */
+    public static FeliCaLiteSnapshot read(Tag nfcTag, IDm idm, int... addrs) throws FeliCaException {
+        return read(new MeteredTransport(new NfcFTransport(nfcTag)), idm, addrs);
+    }
+    /**
+     * スナップショットを読み込みます
+     * @param transport カードへの経路をセット
+     * @param idm ポーリングで取得したIDmをセット
+     * @param addrs 読み込むブロックのアドレス(ブロックナンバー)をセット (SCRATCH_PAD、FULL等)
+     * @return FeliCaLiteSnapshot 読み込んだスナップショットが戻ります
+     * @throws FeliCaException
+     */
+    public static FeliCaLiteSnapshot read(FeliCaTransport transport, IDm idm, int... addrs)
+            throws FeliCaException {
+        final Map<Integer, byte[]> result = new TreeMap<Integer, byte[]>();
+        try {
+            transport.connect();
+            try {
+                new BlockReader(transport, idm.getBytes()).readGroups(SERVICE_READONLY, addrs
+                        , FeliCaLiteBlockWriter.MAX_BLOCKS_PER_READ, new BlockReader.BlockListener() {
+                    @Override
+                    public boolean onBlock(int addr, byte[] data) {
+                        result.put(addr, data);
+                        return true;
+                    }
+                });
+            } finally {
+                transport.close();
+            }
+        } catch (IOException e) {
+            throw new FeliCaException(e);
+        }
+        return new FeliCaLiteSnapshot(idm.getBytes(), result);
+    }
+    /**
+     * 複数のブロックを一度のコマンドで読み込みます
+     * <pre>フレームの組み立て、解析はBlockReaderで行います</pre>
+     * @param transport 接続済みの経路をセット
+     * @param idm IDmをセット
+     * @param addrs ブロックのアドレス(ブロックナンバー)をセット
+     * @param offset 読み込む先頭のaddrs上の位置をセット
+     * @param count ブロック数(1～4)をセット
+     * @return byte[] ブロックのデータ(16バイト×ブロック数)が戻ります カードがエラーを返した場合はnullが戻ります
+     * @throws IOException
+     */
+    static byte[] readBlocks(FeliCaTransport transport, IDm idm, int[] addrs, int offset, int count)
+            throws IOException {
+        byte[] blockData = new BlockReader(transport, idm.getBytes())
+            .readWithoutEncryption(SERVICE_READONLY, addrs, offset, count);
+        if ( blockData == null || blockData.length < count * FeliCaLiteBlockWriter.BLOCK_SIZE ) {
+            return null;
+        }
+        return blockData;
+    }
+    private static int[] blocks(int first, int count, int... rest) {
+        int[] result = new int[count + rest.length];
+        for ( int i = 0; i < count; i++ ) {
+            result[i] = first + i;
+        }
+        System.arraycopy(rest, 0, result, count, rest.length);
+        return result;
+    }
+    /**
+     * IDmのバイト列を取得します
+     * @return byte[] IDmのバイト列が戻ります
+     */
+    public byte[] getIDm() {
+        return this.idm.clone();
+    }
+    /**
+     * ブロックを読み込めたか否かを検査します
+     * @param addr ブロックのアドレス(ブロックナンバー)をセット
+     * @return boolean 読み込めた場合trueが戻ります
+     */
+    public boolean contains(int addr) {
+        return this.blocks.containsKey(addr);
+    }
+    /**
+     * ブロックのデータを取得します
+     * @param addr ブロックのアドレス(ブロックナンバー)をセット
+     * @return byte[] ブロックのデータ(16バイト)が戻ります 読み込めなかった場合はnullが戻ります
+     */
+    public byte[] getBlock(int addr) {
+        byte[] data = this.blocks.get(addr);
+        return data != null ? data.clone() : null;
+    }
+    /**
+     * ブロックの内容が一致するか否かを検査します
+     * @param addr ブロックのアドレス(ブロックナンバー)をセット
+     * @param data 比較するデータ(16バイト)をセット
+     * @return boolean 読み込み済みで内容が一致する場合trueが戻ります
+     */
+    public boolean matches(int addr, byte[] data) {
+        return Arrays.equals(this.blocks.get(addr), data);
+    }
+    /**
+     * ブロックを置き換えたスナップショットを作成します
+     * @param addrs 置き換えるブロックのアドレス(ブロックナンバー)をセット
+     * @param data 置き換えるデータ(16バイト)をセット (addrsと同じ順)
+     * @return FeliCaLiteSnapshot 新しいスナップショットが戻ります
+     */
+    FeliCaLiteSnapshot with(int[] addrs, byte[][] data) {
+        Map<Integer, byte[]> merged = new TreeMap<Integer, byte[]>(this.blocks);
+        for ( int i = 0; i < addrs.length; i++ ) {
+            merged.put(addrs[i], data[i].clone());
+        }
+        return new FeliCaLiteSnapshot(this.idm, merged);
+    }
+    /**
+     * メモリコンフィギュレーションブロックを取得します
+     * @return MemoryConfigurationBlock MCを読み込めなかった場合はnullが戻ります
+     */
+    public MemoryConfigurationBlock getMemoryConfigBlock() {
+        byte[] data = this.getBlock(MC);
+        return data != null ? new MemoryConfigurationBlock(data) : null;
+    }
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("FeliCaLiteSnapshot IDm : ").append(Util.getHexString(this.idm)).append("\n");
+        for ( Map.Entry<Integer, byte[]> e : this.blocks.entrySet() ) {
+            sb.append(String.format("  %02X : ", e.getKey()))
+              .append(Util.getHexString(e.getValue())).append("\n");
+        }
+        return sb.toString();
+    }
+}
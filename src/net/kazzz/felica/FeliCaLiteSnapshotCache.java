@@ -0,0 +1,51 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica;
+
+/**
+ * FeliCa Liteのスナップショット(FeliCaLiteSnapshot)をIDm毎に保持するキャッシュを提供します
+ *
+ * <pre>FeliCaLiteBlockWriter#writeDeltaで、内容が変わらないブロックの書き込みを省略するために使用します</pre>
+ *
+ * @author Kazzz
+ * @date 2011/03/31
+ * @since Android API Level 10
+ *
+ */
+
+public class FeliCaLiteSnapshotCache extends IDmCache<FeliCaLiteSnapshot> {
+    private static final FeliCaLiteSnapshotCache instance =
+        new FeliCaLiteSnapshotCache(DEFAULT_CAPACITY, DEFAULT_TTL);
+
+    /**
+     * コンストラクタ
+     * @param capacity 保持する件数の上限をセット
+     * @param ttl 有効期間(ミリ秒)をセット
+     */
+    public FeliCaLiteSnapshotCache(int capacity, long ttl) {
+        super(capacity, ttl);
+    }
+    /**
+     * プロセスで共有されるキャッシュを取得します
+     * @return FeliCaLiteSnapshotCache キャッシュが戻ります
+     */
+    public static FeliCaLiteSnapshotCache getInstance() {
+        return instance;
+    }
+    /**
+     * スナップショットを保持します
+     * @param snapshot スナップショットをセット
+     */
+    public void put(FeliCaLiteSnapshot snapshot) {
+        this.put(snapshot.getIDm(), snapshot);
+    }
+}
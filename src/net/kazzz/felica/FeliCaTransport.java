@@ -0,0 +1,48 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica;
+
+import java.io.IOException;
+
+/**
+ * FeliCaのコマンドを送受信する経路を定義します
+ *
+ * <pre>端末ではNfcFTransport(android.nfc.tech.NfcF)を使用します
+ * net.kazzz.felica.simのエミュレータを使用すると、端末なしで読み書きの処理を実行できます</pre>
+ * <pre>コマンド、応答は先頭の長さのバイトを含むFeliCaのフレームです
+ * 一度connectした後は、closeするまで続けてtransceiveできます</pre>
+ *
+ * @author Kazzz
+ * @date 2011/04/01
+ * @since Android API Level 10
+ *
+ */
+
+public interface FeliCaTransport {
+    /**
+     * カードに接続します
+     * @throws IOException
+     */
+    void connect() throws IOException;
+    /**
+     * コマンドを送信し、応答を受信します
+     * @param command コマンドのフレームをセット
+     * @return byte[] 応答のフレームが戻ります
+     * @throws IOException カードが応答しない場合
+     */
+    byte[] transceive(byte[] command) throws IOException;
+    /**
+     * 接続を閉じます
+     * @throws IOException
+     */
+    void close() throws IOException;
+}
@@ -0,0 +1,123 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.kazzz.felica.lib.FeliCaLib.IDm;
+import net.kazzz.felica.lib.Util;
+import android.os.SystemClock;
+
+/**
+ * カードから読み込んだ値をIDm毎に保持するキャッシュを提供します
+ *
+ * <pre>同じカードが繰り返しタッチされる場合、読み込みを省略できます
+ * 保持する件数を超えた場合は最も長く参照されていないものから破棄し(LRU)、
+ * 有効期間を過ぎたものは参照時に破棄します。各メソッドはスレッドセーフです</pre>
+ *
+ * @param <V> 保持する値の型
+ *
+ * @author Kazzz
+ * @date 2011/03/26
+ * @since Android API Level 10
+ *
+ */
+
+public class IDmCache<V> {
+    /** 規定の保持件数 */
+    public static final int DEFAULT_CAPACITY = 32;
+    /** 規定の有効期間(ミリ秒) */
+    public static final long DEFAULT_TTL = 10 * 60 * 1000L;
+
+    /**
+     * キャッシュのエントリを提供します
+     */
+    private static class CachedEntry<V> {
+        final V value;
+        final long expires;
+        CachedEntry(V value, long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+
+    private final long ttl;
+    private final Map<String, CachedEntry<V>> entries;
+
+    /**
+     * コンストラクタ
+     * @param capacity 保持する件数の上限をセット
+     * @param ttl 有効期間(ミリ秒)をセット
+     */
+    public IDmCache(final int capacity, long ttl) {
+        if ( capacity < 1 || ttl < 0 ) {
+            throw new IllegalArgumentException("capacity : " + capacity + " ttl : " + ttl);
+        }
+        this.ttl = ttl;
+        //参照順に並べ、上限を超えたら最も古いものを破棄する
+        this.entries = new LinkedHashMap<String, CachedEntry<V>>(capacity * 4 / 3 + 1, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedEntry<V>> eldest) {
+                return this.size() > capacity;
+            }
+        };
+    }
+    /**
+     * IDmに対応する値を取得します
+     * @param idm IDmをセット
+     * @return V 保持していない場合、有効期間を過ぎている場合はnullが戻ります
+     */
+    public synchronized V get(IDm idm) {
+        String key = key(idm.getBytes());
+        CachedEntry<V> e = this.entries.get(key);
+        if ( e == null ) return null;
+        if ( SystemClock.elapsedRealtime() >= e.expires ) {
+            this.entries.remove(key);
+            return null;
+        }
+        return e.value;
+    }
+    /**
+     * 値を保持します
+     * @param idm IDmのバイト列をセット
+     * @param value 値をセット
+     */
+    public synchronized void put(byte[] idm, V value) {
+        this.entries.put(key(idm)
+                , new CachedEntry<V>(value, SystemClock.elapsedRealtime() + this.ttl));
+    }
+    /**
+     * IDmに対応する値を破棄します
+     * @param idm IDmをセット
+     */
+    public synchronized void remove(IDm idm) {
+        this.entries.remove(key(idm.getBytes()));
+    }
+    /**
+     * 保持している値を全て破棄します
+     */
+    public synchronized void clear() {
+        this.entries.clear();
+    }
+    /**
+     * 保持している件数を取得します (有効期間を過ぎたものを含みます)
+     * @return int 件数が戻ります
+     */
+    public synchronized int size() {
+        return this.entries.size();
+    }
+    private static String key(byte[] idm) {
+        return Util.getHexString(idm);
+    }
+}
@@ -0,0 +1,458 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import net.kazzz.felica.metrics.TapTrace;
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * NFCの入出力(コマンドの発行)を直列に実行するエグゼキュータを提供します
+ *
+ * <pre>コマンドは1本のワーカスレッドで登録順に実行されるので、同じタグへの送受信が重なることはありません
+ * (端末のRFコントローラは1つなので、タグによらず全てのコマンドを直列化します)
+ * 待ち行列の長さには上限があり、溢れたリクエストはエラーとしてコールバックされます</pre>
+ * <pre>同じキーのリクエストが待機中、又は実行中の場合は新たに登録せず、既存のリクエストに
+ * コールバックを追加します(ボタンの連打等、重複した読み込みを1回にまとめます)
+ * submitが戻すHandleは呼び出し側毎のもので、取り消しても外れるのは自身のコールバックだけです。
+ * コールバックが全て外れた場合にリクエストを取り消します</pre>
+ * <pre>リクエストには期限があり、期限を過ぎたリクエストは実行しません。実行中のコマンドは
+ * Request#isActive、Request#checkActiveで取り消し、期限切れを検査して中断します
+ * (API Level 10のNfcFには送受信のタイムアウトを設定できないため、送受信そのものは中断できません)</pre>
+ * <pre>コールバックは全てメインスレッドで呼び出されます</pre>
+ * <pre>待ち行列、実行、メインスレッドへの受け渡しに要した時間はTapTraceに記録します</pre>
+ *
+ * @author Kazzz
+ * @date 2011/03/27
+ * @since Android API Level 10
+ *
+ */
+
+public class NfcCommandExecutor {
+    /** 規定の待ち行列の長さ */
+    public static final int DEFAULT_QUEUE_CAPACITY = 8;
+    /** 規定の期限(ミリ秒) */
+    public static final long DEFAULT_DEADLINE = 10 * 1000L;
+
+    //アイドル状態が続いた場合にワーカスレッドを終了するまでの時間(秒)
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static final NfcCommandExecutor instance =
+        new NfcCommandExecutor(DEFAULT_QUEUE_CAPACITY);
+
+    /**
+     * ワーカスレッドで実行するコマンドを定義します
+     *
+     * @param <P> 途中経過の型
+     * @param <T> 結果の型
+     */
+    public interface Command<P, T> {
+        /**
+         * コマンドを実行します
+         * @param request 実行中のリクエストをセット (途中経過の通知、取り消しの検査に使用します)
+         * @return T 結果が戻ります
+         * @throws Exception
+         */
+        T execute(Request<P, T> request) throws Exception;
+    }
+
+    /**
+     * リクエストの途中経過、結果を受け取るコールバックを提供します
+     * <pre>各メソッドはメインスレッドで呼び出されます</pre>
+     *
+     * @param <P> 途中経過の型
+     * @param <T> 結果の型
+     */
+    public static abstract class Callback<P, T> {
+        /**
+         * 途中経過を受け取ります
+         * @param value 途中経過が渡されます
+         */
+        public void onProgress(P value) {
+        }
+        /**
+         * 結果を受け取ります
+         * @param result 結果が渡されます
+         */
+        public abstract void onResult(T result);
+        /**
+         * エラーを受け取ります
+         * <pre>待ち行列が溢れた場合はRejectedExecutionException、
+         * 期限を過ぎた場合はTimeoutExceptionが渡されます</pre>
+         * @param e 発生した例外が渡されます
+         */
+        public void onError(Exception e) {
+        }
+        /**
+         * リクエストが取り消された場合に呼び出されます
+         */
+        public void onCancelled() {
+        }
+    }
+
+    /**
+     * 登録されたリクエストを提供します
+     *
+     * @param <P> 途中経過の型
+     * @param <T> 結果の型
+     */
+    public final class Request<P, T> implements Runnable {
+        private final Object key;
+        private final Command<P, T> command;
+        private final long deadline;
+        private final long submitted = TapTrace.now();
+        private final List<Callback<P, T>> callbacks = new ArrayList<Callback<P, T>>(2);
+        private volatile boolean cancelled;
+        private boolean finished;
+
+        private Request(Object key, Command<P, T> command, long deadline, Callback<P, T> callback) {
+            this.key = key;
+            this.command = command;
+            this.deadline = deadline;
+            if ( callback != null ) this.callbacks.add(callback);
+        }
+        /**
+         * リクエストを取り消します
+         * <pre>待機中の場合は実行されません。実行中の場合は結果を破棄し、onCancelledを呼び出します
+         * 重複がまとめられた全てのコールバックが対象です。呼び出し側毎の取り消しはHandle#cancelで行います</pre>
+         */
+        public void cancel() {
+            this.cancelled = true;
+            detach(this);
+            if ( NfcCommandExecutor.this.executor.remove(this) ) {
+                this.deliverCancelled();
+            }
+        }
+        /**
+         * コールバックを外し、onCancelledを呼び出します
+         * <pre>外した後にコールバックが残っていない場合はリクエストを取り消します
+         * 結果の受け渡しを待っている場合も、外したコールバックには結果を渡しません</pre>
+         * @param callback 外すコールバックをセット (nullの場合はコールバックが無い場合にのみ取り消します)
+         */
+        private void cancel(final Callback<P, T> callback) {
+            boolean last;
+            synchronized (this) {
+                if ( callback != null && !this.callbacks.remove(callback) ) return;
+                last = this.callbacks.isEmpty();
+            }
+            if ( last ) this.cancel();
+            if ( callback == null ) return;
+            NfcCommandExecutor.this.handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onCancelled();
+                }
+            });
+        }
+        /**
+         * 取り消されたか否かを検査します
+         * @return boolean 取り消された場合trueが戻ります
+         */
+        public boolean isCancelled() {
+            return this.cancelled;
+        }
+        /**
+         * 期限を過ぎたか否かを検査します
+         * @return boolean 期限を過ぎた場合trueが戻ります
+         */
+        public boolean isExpired() {
+            return System.nanoTime() - this.deadline >= 0;
+        }
+        /**
+         * 実行を続けてよいか否かを検査します
+         * @return boolean 取り消されておらず、期限内の場合trueが戻ります
+         */
+        public boolean isActive() {
+            return !this.cancelled && !this.isExpired();
+        }
+        /**
+         * 実行を続けてよいか検査し、取り消し、期限切れの場合は例外をスローします
+         * <pre>コマンドの区切り毎に呼び出すことで、長いコマンドを中断できます</pre>
+         * @throws CancellationException 取り消された場合、期限を過ぎた場合
+         */
+        public void checkActive() {
+            if ( this.cancelled ) {
+                throw new CancellationException("request cancelled");
+            }
+            if ( this.isExpired() ) {
+                throw new CancellationException("deadline exceeded");
+            }
+        }
+        /**
+         * 途中経過を通知します
+         * @param value 途中経過をセット
+         */
+        public void publishProgress(final P value) {
+            if ( this.cancelled ) return;
+            final List<Callback<P, T>> targets = this.snapshot();
+            NfcCommandExecutor.this.handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if ( Request.this.cancelled ) return;
+                    for ( Callback<P, T> c : targets ) {
+                        if ( Request.this.isAttached(c) ) c.onProgress(value);
+                    }
+                }
+            });
+        }
+        /* (non-Javadoc)
+         * @see java.lang.Runnable#run()
+         */
+        @Override
+        public void run() {
+            TapTrace trace = TapTrace.getInstance();
+            trace.span(TapTrace.QUEUE, this.submitted);
+            long started = TapTrace.now();
+            T result;
+            try {
+                if ( this.cancelled ) {
+                    this.deliverCancelled();
+                    return;
+                }
+                if ( this.isExpired() ) {
+                    throw new TimeoutException("deadline exceeded before execution");
+                }
+                result = this.command.execute(this);
+            } catch (CancellationException e) {
+                if ( this.cancelled ) {
+                    this.deliverCancelled();
+                } else {
+                    this.deliverError(new TimeoutException(e.getMessage()));
+                }
+                return;
+            } catch (Exception e) {
+                this.deliverError(e);
+                return;
+            } finally {
+                detach(this);
+                trace.span(TapTrace.EXECUTE, started);
+            }
+            if ( this.cancelled ) {
+                this.deliverCancelled();
+            } else {
+                this.deliverResult(result);
+            }
+        }
+        /**
+         * コールバックを追加します
+         * @param callback コールバックをセット
+         * @return boolean 既に完了している場合falseが戻ります
+         */
+        private synchronized boolean addCallback(Callback<P, T> callback) {
+            if ( this.finished ) return false;
+            if ( callback != null ) this.callbacks.add(callback);
+            return true;
+        }
+        /**
+         * 完了としてコールバックの一覧を取り出します
+         * @return List<Callback<P, T>> 既に完了している場合は空のリストが戻ります
+         */
+        private synchronized List<Callback<P, T>> finish() {
+            if ( this.finished ) return new ArrayList<Callback<P, T>>(0);
+            this.finished = true;
+            return this.snapshot();
+        }
+        private synchronized List<Callback<P, T>> snapshot() {
+            return new ArrayList<Callback<P, T>>(this.callbacks);
+        }
+        /**
+         * コールバックに結果がまだ渡っていないか検査します
+         * @param callback コールバックをセット (nullの場合はリクエストだけを検査します)
+         * @return boolean 完了、取り消しのいずれでもなく、コールバックが外されていない場合trueが戻ります
+         */
+        private synchronized boolean isPending(Callback<P, T> callback) {
+            return !this.finished && !this.cancelled
+                && (callback == null || this.callbacks.contains(callback));
+        }
+        /**
+         * コールバックが外されていないか検査します
+         * <pre>受け渡しはメインスレッドで行うので、メインスレッドで外したコールバックには何も渡りません</pre>
+         * @param callback コールバックをセット
+         * @return boolean 外されていない場合trueが戻ります
+         */
+        private synchronized boolean isAttached(Callback<P, T> callback) {
+            return this.callbacks.contains(callback);
+        }
+        private void deliverResult(final T result) {
+            final List<Callback<P, T>> targets = this.finish();
+            final long posted = TapTrace.now();
+            NfcCommandExecutor.this.handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    TapTrace.getInstance().span(TapTrace.DELIVER, posted);
+                    for ( Callback<P, T> c : targets ) {
+                        if ( Request.this.isAttached(c) ) c.onResult(result);
+                    }
+                }
+            });
+        }
+        private void deliverError(final Exception e) {
+            final List<Callback<P, T>> targets = this.finish();
+            NfcCommandExecutor.this.handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    for ( Callback<P, T> c : targets ) {
+                        if ( Request.this.isAttached(c) ) c.onError(e);
+                    }
+                }
+            });
+        }
+        private void deliverCancelled() {
+            final List<Callback<P, T>> targets = this.finish();
+            NfcCommandExecutor.this.handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    for ( Callback<P, T> c : targets ) {
+                        if ( Request.this.isAttached(c) ) c.onCancelled();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * submitの呼び出し側毎のリクエストへの参照を提供します
+     * <pre>重複がまとめられた場合、リクエストは共有されますがHandleは呼び出し側毎に作成されます</pre>
+     *
+     * @param <P> 途中経過の型
+     * @param <T> 結果の型
+     */
+    public static final class Handle<P, T> {
+        private final Request<P, T> request;
+        private final Callback<P, T> callback;
+
+        private Handle(Request<P, T> request, Callback<P, T> callback) {
+            this.request = request;
+            this.callback = callback;
+        }
+        /**
+         * リクエストを取得します
+         * @return Request 共有されたリクエストが戻ります
+         */
+        public Request<P, T> getRequest() {
+            return this.request;
+        }
+        /**
+         * この呼び出し側のコールバックに結果がまだ渡っていないか検査します
+         * <pre>同じ画面から重複して登録しないよう、登録前の検査に使用します</pre>
+         * @return boolean 待機中、又は実行中の場合trueが戻ります
+         */
+        public boolean isPending() {
+            return this.request.isPending(this.callback);
+        }
+        /**
+         * この呼び出し側のコールバックを取り消します
+         * <pre>コールバックにはonCancelledが呼び出され、以後結果は渡りません
+         * 他の呼び出し側のコールバックが残っていない場合はリクエストも取り消します</pre>
+         */
+        public void cancel() {
+            this.request.cancel(this.callback);
+        }
+    }
+
+    private final ThreadPoolExecutor executor;
+    private final Handler handler;
+    private final Map<Object, Request<?, ?>> pending = new HashMap<Object, Request<?, ?>>();
+
+    /**
+     * コンストラクタ
+     * @param queueCapacity 待ち行列の長さの上限をセット
+     */
+    public NfcCommandExecutor(int queueCapacity) {
+        this.executor = new ThreadPoolExecutor(1, 1, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS
+                , new ArrayBlockingQueue<Runnable>(queueCapacity)
+                , new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "NfcCommandExecutor");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        this.executor.allowCoreThreadTimeOut(true);
+        this.handler = new Handler(Looper.getMainLooper());
+    }
+    /**
+     * プロセスで共有されるエグゼキュータを取得します
+     * @return NfcCommandExecutor エグゼキュータが戻ります
+     */
+    public static NfcCommandExecutor getInstance() {
+        return instance;
+    }
+    /**
+     * 規定の期限でコマンドを登録します
+     * @param key 重複をまとめるためのキーをセット (nullの場合はまとめません)
+     * @param command コマンドをセット
+     * @param callback コールバックをセット
+     * @return Handle 登録されたリクエストへの、この呼び出し側の参照が戻ります
+     */
+    public <P, T> Handle<P, T> submit(Object key, Command<P, T> command, Callback<P, T> callback) {
+        return this.submit(key, command, DEFAULT_DEADLINE, callback);
+    }
+    /**
+     * コマンドを登録します
+     * <pre>同じキーのリクエストが待機中、又は実行中の場合は、そのリクエストにコールバックを追加して戻します</pre>
+     * @param key 重複をまとめるためのキーをセット (nullの場合はまとめません)
+     * @param command コマンドをセット
+     * @param deadlineMillis 登録してからの期限(ミリ秒)をセット
+     * @param callback コールバックをセット
+     * @return Handle 登録された(又は既存の)リクエストへの、この呼び出し側の参照が戻ります
+     */
+    @SuppressWarnings("unchecked")
+    public <P, T> Handle<P, T> submit(Object key, Command<P, T> command
+            , long deadlineMillis, Callback<P, T> callback) {
+        Request<P, T> request;
+        synchronized (this.pending) {
+            if ( key != null ) {
+                //同じキーのリクエストは同じコマンドなので型も一致する
+                Request<P, T> existing = (Request<P, T>) this.pending.get(key);
+                if ( existing != null && existing.addCallback(callback) ) {
+                    return new Handle<P, T>(existing, callback);
+                }
+            }
+            request = new Request<P, T>(key, command
+                    , System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadlineMillis), callback);
+            if ( key != null ) this.pending.put(key, request);
+        }
+        try {
+            this.executor.execute(request);
+        } catch (RejectedExecutionException e) {
+            this.detach(request);
+            request.deliverError(e);
+        }
+        return new Handle<P, T>(request, callback);
+    }
+    /**
+     * 重複をまとめる対象からリクエストを外します
+     * @param request リクエストをセット
+     */
+    private void detach(Request<?, ?> request) {
+        if ( request.key == null ) return;
+        synchronized (this.pending) {
+            if ( this.pending.get(request.key) == request ) {
+                this.pending.remove(request.key);
+            }
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica;
+
+import java.io.IOException;
+
+import android.nfc.Tag;
+import android.nfc.tech.NfcF;
+
+/**
+ * android.nfc.tech.NfcFを経由してコマンドを送受信するFeliCaTransportを提供します
+ *
+ * @author Kazzz
+ * @date 2011/04/01
+ * @since Android API Level 10
+ *
+ */
+
+public class NfcFTransport implements FeliCaTransport {
+    private final NfcF nfcF;
+
+    /**
+     * コンストラクタ
+     * @param nfcTag NFCTagへの参照をセット
+     * @throws FeliCaException タグがNFC-Fでない場合
+     */
+    public NfcFTransport(Tag nfcTag) throws FeliCaException {
+        this.nfcF = NfcF.get(nfcTag);
+        if ( this.nfcF == null ) {
+            throw new FeliCaException("tag is not FeliCa(NFC-F)");
+        }
+    }
+    /* (non-Javadoc)
+     * @see net.kazzz.felica.FeliCaTransport#connect()
+     */
+    @Override
+    public void connect() throws IOException {
+        this.nfcF.connect();
+    }
+    /* (non-Javadoc)
+     * @see net.kazzz.felica.FeliCaTransport#transceive(byte[])
+     */
+    @Override
+    public byte[] transceive(byte[] command) throws IOException {
+        return this.nfcF.transceive(command);
+    }
+    /* (non-Javadoc)
+     * @see net.kazzz.felica.FeliCaTransport#close()
+     */
+    @Override
+    public void close() throws IOException {
+        this.nfcF.close();
+    }
+}
@@ -0,0 +1,366 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica.lite;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashSet;
+import java.util.Set;
+
+import net.kazzz.felica.CardSession;
+import net.kazzz.felica.FeliCaException;
+import net.kazzz.felica.FeliCaLiteBlockWriter;
+import net.kazzz.felica.FeliCaLiteTag;
+import net.kazzz.felica.lib.FeliCaLib;
+import net.kazzz.felica.lib.FeliCaLib.IDm;
+import net.kazzz.felica.lib.FeliCaLib.MemoryConfigurationBlock;
+import net.kazzz.felica.lib.Util;
+import android.nfc.Tag;
+import android.os.SystemClock;
+
+/**
+ * テンプレートに従ってFeliCa Liteを一括で書き込むジョブを提供します
+ *
+ * <pre>かざされたタグ毎にprovisionを呼び出します。書き込めないブロック
+ * (MemoryConfigurationBlock#isWritableがfalse)は飛ばし、残りのブロックを書き込んで検証します</pre>
+ * <pre>結果は1タグ1行でジョブログに追記します。同じジョブログで再開した場合、
+ * 書き込み済みのIDmは書き込まず、連番は書き込み済みの最大値の次から振ります</pre>
+ * <pre>ジョブログはタブ区切りで、状態、連番、IDm、時刻、所要時間(ミリ秒)、
+ * 書き込んだブロック、飛ばしたブロック、メッセージの順です</pre>
+ *
+ * @author Kazzz
+ * @date 2011/03/29
+ * @since Android API Level 10
+ *
+ */
+
+public class ProvisioningJob {
+    /**
+     * 1タグ分の結果の状態を定義します
+     */
+    public enum Status {
+        /** 書き込み、検証が完了した */
+        WRITTEN,
+        /** 書き込み済みのタグなので書き込まなかった */
+        DUPLICATE,
+        /** 書き込みに失敗した (同じタグで再試行できます) */
+        FAILED
+    }
+
+    /**
+     * 1タグ分の結果を提供します
+     */
+    public static class Outcome {
+        private final Status status;
+        private final String idm;
+        private final long serial;
+        private final long elapsed;
+        private final long finished = System.currentTimeMillis();
+        private final int[] written;
+        private final int[] skipped;
+        private final String message;
+
+        Outcome(Status status, String idm, long serial, long elapsed
+                , int[] written, int[] skipped, String message) {
+            this.status = status;
+            this.idm = idm;
+            this.serial = serial;
+            this.elapsed = elapsed;
+            this.written = written;
+            this.skipped = skipped;
+            this.message = message;
+        }
+        /**
+         * 状態を取得します
+         * @return Status 状態が戻ります
+         */
+        public Status getStatus() {
+            return this.status;
+        }
+        /**
+         * IDmを取得します
+         * @return String IDm(16進数)が戻ります 取得できなかった場合は空文字列が戻ります
+         */
+        public String getIDm() {
+            return this.idm;
+        }
+        /**
+         * 連番を取得します
+         * @return long 連番が戻ります 書き込まなかった場合は-1が戻ります
+         */
+        public long getSerial() {
+            return this.serial;
+        }
+        /**
+         * 所要時間を取得します
+         * @return long 所要時間(ミリ秒)が戻ります
+         */
+        public long getElapsedMillis() {
+            return this.elapsed;
+        }
+        /**
+         * タグの処理を終えた時刻を取得します
+         * @return long 時刻(エポックからのミリ秒)が戻ります
+         */
+        public long getFinishedTime() {
+            return this.finished;
+        }
+        /**
+         * 書き込んだブロックを取得します
+         * @return int[] ブロック番号が戻ります
+         */
+        public int[] getWrittenBlocks() {
+            return this.written.clone();
+        }
+        /**
+         * 書き込めないため飛ばしたブロックを取得します
+         * @return int[] ブロック番号が戻ります
+         */
+        public int[] getSkippedBlocks() {
+            return this.skipped.clone();
+        }
+        /**
+         * メッセージを取得します
+         * @return String 失敗した場合は理由が戻ります
+         */
+        public String getMessage() {
+            return this.message;
+        }
+        /* (non-Javadoc)
+         * @see java.lang.Object#toString()
+         */
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(this.status).append('\t').append(this.serial)
+              .append('\t').append(this.idm)
+              .append('\t').append(this.finished)
+              .append('\t').append(this.elapsed)
+              .append('\t');
+            appendBlocks(sb, this.written);
+            sb.append('\t');
+            appendBlocks(sb, this.skipped);
+            sb.append('\t').append(this.message.replace('\t', ' ').replace('\n', ' '));
+            return sb.toString();
+        }
+        private static void appendBlocks(StringBuilder sb, int[] blocks) {
+            for ( int i = 0; i < blocks.length; i++ ) {
+                if ( i > 0 ) sb.append(',');
+                sb.append(blocks[i]);
+            }
+        }
+    }
+
+    private static final int[] NO_BLOCKS = new int[0];
+
+    private final ProvisioningTemplate template;
+    private final File logFile;
+    private final Set<String> provisioned = new HashSet<String>();
+    private long nextSerial;
+    private int resumedCount;
+    private int writtenCount;
+    private int failedCount;
+    private long firstStarted = -1;
+    private long lastFinished;
+
+    /**
+     * コンストラクタ
+     * <pre>ファイルの入出力は行いません。ジョブログから再開する場合は、最初のタグを書き込む前に
+     * UIスレッド以外でresumeを呼び出します</pre>
+     * @param template テンプレートをセット
+     * @param logFile ジョブログのファイルをセット
+     * @param firstSerial 最初の連番をセット
+     */
+    public ProvisioningJob(ProvisioningTemplate template, File logFile, long firstSerial) {
+        this.template = template;
+        this.logFile = logFile;
+        this.nextSerial = firstSerial;
+    }
+    /**
+     * ジョブログを読み込み、書き込み済みのIDmと次の連番を復元します
+     * <pre>ジョブログが無い場合は何もしません</pre>
+     * @throws IOException ジョブログを読み込めない場合
+     */
+    public synchronized void resume() throws IOException {
+        if ( !this.logFile.exists() ) return;
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(this.logFile), "UTF-8"));
+        try {
+            String line;
+            while ( (line = reader.readLine()) != null ) {
+                String[] f = line.split("\t");
+                if ( f.length < 3 || !Status.WRITTEN.name().equals(f[0]) ) continue;
+                try {
+                    long serial = Long.parseLong(f[1]);
+                    if ( serial >= this.nextSerial ) this.nextSerial = serial + 1;
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                if ( this.provisioned.add(f[2]) ) this.resumedCount++;
+            }
+        } finally {
+            reader.close();
+        }
+    }
+    /**
+     * タグにテンプレートを書き込み、結果をジョブログに追記します
+     * @param session かざされたタグのセッションをセット
+     * @return Outcome 結果が戻ります
+     * @throws IOException ジョブログに書き込めない場合
+     */
+    public synchronized Outcome provision(CardSession session) throws IOException {
+        long started = SystemClock.elapsedRealtime();
+        if ( this.firstStarted < 0 ) this.firstStarted = started;
+        String hex = "";
+        Outcome outcome;
+        try {
+            IDm idm = session.getIDm(FeliCaLib.SYSTEMCODE_FELICA_LITE);
+            FeliCaLiteTag ft = session.getFeliCaLiteTag();
+            if ( idm == null || ft == null ) {
+                throw new FeliCaException("FeliCa Lite デバイスからIDmを取得できませんでした");
+            }
+            hex = Util.getHexString(idm.getBytes());
+            if ( this.provisioned.contains(hex) ) {
+                //ジョブログには残さない
+                this.lastFinished = SystemClock.elapsedRealtime();
+                return new Outcome(Status.DUPLICATE, hex, -1, this.lastFinished - started
+                        , NO_BLOCKS, NO_BLOCKS, "already provisioned");
+            }
+            MemoryConfigurationBlock mb = ft.getMemoryConfigBlock();
+            if ( mb == null ) {
+                throw new FeliCaException("メモリコンフィグレーションブロックを取得できませんでした");
+            }
+            outcome = this.write(session, mb, idm, hex, started);
+        } catch (FeliCaException e) {
+            //カードの状態が変わった可能性があるので次回はポーリングし直す
+            session.invalidate();
+            outcome = new Outcome(Status.FAILED, hex, -1, SystemClock.elapsedRealtime() - started
+                    , NO_BLOCKS, NO_BLOCKS, String.valueOf(e.getMessage()));
+        }
+        this.lastFinished = SystemClock.elapsedRealtime();
+        if ( outcome.getStatus() == Status.WRITTEN ) {
+            this.writtenCount++;
+            this.nextSerial++;
+            this.provisioned.add(hex);
+        } else {
+            this.failedCount++;
+        }
+        this.append(outcome);
+        return outcome;
+    }
+    /**
+     * 書き込めるブロックだけを書き込みます
+     * @return Outcome 結果が戻ります
+     * @throws FeliCaException
+     */
+    private Outcome write(CardSession session, MemoryConfigurationBlock mb
+            , IDm idm, String hex, long started) throws FeliCaException {
+        int[] blocks = this.template.getBlocks();
+        int[] addrs = new int[blocks.length];
+        byte[][] data = new byte[blocks.length][];
+        int[] skipped = new int[blocks.length];
+        int nWrite = 0, nSkip = 0;
+        for ( int block : blocks ) {
+            if ( !mb.isWritable(block) ) {
+                skipped[nSkip++] = block;
+                continue;
+            }
+            byte[] payload = this.template.render(block, idm.getBytes(), this.nextSerial);
+            if ( payload.length > FeliCaLiteBlockWriter.BLOCK_SIZE ) {
+                throw new FeliCaException("S_PAD" + block + " exceeds "
+                        + FeliCaLiteBlockWriter.BLOCK_SIZE + " bytes");
+            }
+            addrs[nWrite] = block;
+            data[nWrite++] = FeliCaLiteBlockWriter.encode(payload)[0];
+        }
+        if ( nWrite == 0 ) {
+            throw new FeliCaException("no writable block");
+        }
+        int[] written = new int[nWrite];
+        System.arraycopy(addrs, 0, written, 0, nWrite);
+        byte[][] writeData = new byte[nWrite][];
+        System.arraycopy(data, 0, writeData, 0, nWrite);
+        int[] skip = new int[nSkip];
+        System.arraycopy(skipped, 0, skip, 0, nSkip);
+
+        new FeliCaLiteBlockWriter((Tag) session.getNfcTag(), idm).write(mb, written, writeData);
+        return new Outcome(Status.WRITTEN, hex, this.nextSerial
+                , SystemClock.elapsedRealtime() - started, written, skip, "");
+    }
+    /**
+     * ジョブログに1行追記します
+     * <pre>中断しても書き込み済みのタグを失わないよう、1行毎にファイルを閉じます</pre>
+     * @param outcome 結果をセット
+     * @throws IOException
+     */
+    private void append(Outcome outcome) throws IOException {
+        Writer w = new OutputStreamWriter(new FileOutputStream(this.logFile, true), "UTF-8");
+        try {
+            w.write(outcome.toString());
+            w.write('\n');
+        } finally {
+            w.close();
+        }
+    }
+    /**
+     * 次に書き込むタグの連番を取得します
+     * @return long 連番が戻ります
+     */
+    public synchronized long getNextSerial() {
+        return this.nextSerial;
+    }
+    /**
+     * ジョブログから復元した書き込み済みのタグ数を取得します
+     * @return int タグ数が戻ります
+     */
+    public synchronized int getResumedCount() {
+        return this.resumedCount;
+    }
+    /**
+     * このジョブで書き込んだタグ数を取得します
+     * @return int タグ数が戻ります
+     */
+    public synchronized int getWrittenCount() {
+        return this.writtenCount;
+    }
+    /**
+     * このジョブで失敗したタグ数を取得します
+     * @return int タグ数が戻ります
+     */
+    public synchronized int getFailedCount() {
+        return this.failedCount;
+    }
+    /**
+     * スループットを取得します
+     * <pre>最初のタグをかざしてから最後のタグを書き終えるまでの、1分あたりの書き込み済みタグ数です
+     * (タグを持ち替える時間を含みます)</pre>
+     * @return double タグ数/分が戻ります
+     */
+    public synchronized double getTagsPerMinute() {
+        long span = this.lastFinished - this.firstStarted;
+        if ( this.firstStarted < 0 || span <= 0 ) return 0;
+        return this.writtenCount * 60000.0 / span;
+    }
+    /**
+     * テンプレートを取得します
+     * @return ProvisioningTemplate テンプレートが戻ります
+     */
+    public ProvisioningTemplate getTemplate() {
+        return this.template;
+    }
+}
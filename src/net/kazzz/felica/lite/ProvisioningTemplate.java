@@ -0,0 +1,218 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica.lite;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import net.kazzz.felica.FeliCaLiteBlockWriter;
+import net.kazzz.felica.lib.Util;
+
+/**
+ * FeliCa Liteに一括で書き込むブロックのテンプレートを提供します
+ *
+ * <pre>テンプレートは1行に1ブロックを「ブロック番号=内容」の形式で記述します
+ * ブロック番号は0～13、又はS_PAD0～S_PAD13です。空行と#で始まる行は無視します
+ * 内容は=の直後から行末までです(空白も内容に含みます)
+ * 内容には以下のプレースホルダを記述できます
+ *   {IDM}       IDm(16進数16桁)
+ *   {IDM:n}     IDmの下位n桁
+ *   {SERIAL}    連番
+ *   {SERIAL:n}  n桁に0埋めした連番
+ * 展開した内容はUTF-8で16バイト以内でなければなりません</pre>
+ * <pre>インスタンスは不変です</pre>
+ *
+ * @author Kazzz
+ * @date 2011/03/29
+ * @since Android API Level 10
+ *
+ */
+
+public final class ProvisioningTemplate {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    //プレースホルダの種類
+    private static final int LITERAL = 0;
+    private static final int IDM = 1;
+    private static final int SERIAL = 2;
+
+    /**
+     * 内容を構成する要素(リテラル、又はプレースホルダ)を保持します
+     */
+    private static class Segment {
+        final int kind;
+        final String text;
+        final int width;
+        Segment(int kind, String text, int width) {
+            this.kind = kind;
+            this.text = text;
+            this.width = width;
+        }
+    }
+
+    private final Map<Integer, Segment[]> blocks;
+    private final String source;
+
+    private ProvisioningTemplate(Map<Integer, Segment[]> blocks, String source) {
+        this.blocks = blocks;
+        this.source = source;
+    }
+    /**
+     * テンプレートを解析します
+     * @param text テンプレートの文字列をセット
+     * @return ProvisioningTemplate 解析したテンプレートが戻ります
+     * @throws IllegalArgumentException 書式が正しくない場合 (メッセージに行番号を含みます)
+     */
+    public static ProvisioningTemplate parse(String text) {
+        Map<Integer, Segment[]> blocks = new TreeMap<Integer, Segment[]>();
+        String[] lines = text.split("\r?\n");
+        for ( int i = 0; i < lines.length; i++ ) {
+            String line = lines[i];
+            String trimmed = line.trim();
+            if ( trimmed.length() == 0 || trimmed.startsWith("#") ) continue;
+            int eq = line.indexOf('=');
+            if ( eq < 0 ) {
+                throw new IllegalArgumentException("line " + (i + 1) + " : '=' not found");
+            }
+            int block = parseBlock(line.substring(0, eq).trim(), i + 1);
+            if ( blocks.containsKey(block) ) {
+                throw new IllegalArgumentException("line " + (i + 1) + " : duplicate block " + block);
+            }
+            blocks.put(block, parseSegments(line.substring(eq + 1), i + 1));
+        }
+        if ( blocks.isEmpty() ) {
+            throw new IllegalArgumentException("no block in template");
+        }
+        return new ProvisioningTemplate(blocks, text);
+    }
+    /**
+     * ブロック番号を解析します
+     * @param s ブロック番号の文字列をセット
+     * @param line 行番号をセット
+     * @return int ブロック番号が戻ります
+     */
+    private static int parseBlock(String s, int line) {
+        String n = s.toUpperCase().startsWith("S_PAD") ? s.substring(5) : s;
+        try {
+            int block = Integer.parseInt(n);
+            if ( block >= 0 && block < FeliCaLiteBlockWriter.S_PAD_BLOCKS ) return block;
+        } catch (NumberFormatException e) {
+            //下でエラーとする
+        }
+        throw new IllegalArgumentException("line " + line + " : invalid block " + s);
+    }
+    /**
+     * 内容をリテラルとプレースホルダに分解します
+     * @param s 内容の文字列をセット
+     * @param line 行番号をセット
+     * @return Segment[] 分解した要素が戻ります
+     */
+    private static Segment[] parseSegments(String s, int line) {
+        List<Segment> result = new ArrayList<Segment>();
+        int pos = 0;
+        while ( pos < s.length() ) {
+            int open = s.indexOf('{', pos);
+            if ( open < 0 ) {
+                result.add(new Segment(LITERAL, s.substring(pos), 0));
+                break;
+            }
+            if ( open > pos ) {
+                result.add(new Segment(LITERAL, s.substring(pos, open), 0));
+            }
+            int close = s.indexOf('}', open);
+            if ( close < 0 ) {
+                throw new IllegalArgumentException("line " + line + " : '}' not found");
+            }
+            String name = s.substring(open + 1, close);
+            int width = 0;
+            int colon = name.indexOf(':');
+            if ( colon >= 0 ) {
+                try {
+                    width = Integer.parseInt(name.substring(colon + 1));
+                } catch (NumberFormatException e) {
+                    width = -1;
+                }
+                if ( width < 1 || width > FeliCaLiteBlockWriter.BLOCK_SIZE ) {
+                    throw new IllegalArgumentException("line " + line + " : invalid width {" + name + "}");
+                }
+                name = name.substring(0, colon);
+            }
+            if ( "IDM".equals(name) ) {
+                result.add(new Segment(IDM, null, width));
+            } else if ( "SERIAL".equals(name) ) {
+                result.add(new Segment(SERIAL, null, width));
+            } else {
+                throw new IllegalArgumentException("line " + line + " : unknown placeholder {" + name + "}");
+            }
+            pos = close + 1;
+        }
+        return result.toArray(new Segment[result.size()]);
+    }
+    /**
+     * テンプレートに記述されたブロック番号を取得します
+     * @return int[] ブロック番号が昇順に戻ります
+     */
+    public int[] getBlocks() {
+        int[] result = new int[this.blocks.size()];
+        int i = 0;
+        for ( Integer block : this.blocks.keySet() ) {
+            result[i++] = block;
+        }
+        return result;
+    }
+    /**
+     * ブロックの内容を展開します
+     * @param block ブロック番号をセット
+     * @param idm IDmのバイト列をセット
+     * @param serial 連番をセット
+     * @return byte[] 展開した内容(UTF-8)が戻ります 16バイトを超える場合もあります
+     * @throws IllegalArgumentException テンプレートに記述されていないブロックの場合
+     */
+    public byte[] render(int block, byte[] idm, long serial) {
+        Segment[] segments = this.blocks.get(block);
+        if ( segments == null ) {
+            throw new IllegalArgumentException("block " + block + " is not in template");
+        }
+        StringBuilder sb = new StringBuilder(FeliCaLiteBlockWriter.BLOCK_SIZE);
+        String hex = null;
+        for ( Segment s : segments ) {
+            switch (s.kind) {
+            case IDM:
+                if ( hex == null ) hex = Util.getHexString(idm);
+                sb.append(s.width > 0 && s.width < hex.length()
+                        ? hex.substring(hex.length() - s.width) : hex);
+                break;
+            case SERIAL:
+                String n = Long.toString(serial);
+                for ( int i = n.length(); i < s.width; i++ ) {
+                    sb.append('0');
+                }
+                sb.append(n);
+                break;
+            default:
+                sb.append(s.text);
+                break;
+            }
+        }
+        return sb.toString().getBytes(UTF8);
+    }
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return this.source;
+    }
+}
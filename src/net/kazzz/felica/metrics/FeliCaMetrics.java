@@ -0,0 +1,250 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica.metrics;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * FeliCaのコマンド、及びタッチから表示までの各段階の所要時間を集計します
+ *
+ * <pre>コマンドはコマンド名(POLLING、READ_WO_ENCRYPTION等)毎に、所要時間の分布、送受信したバイト数、
+ * ステータスフラグのエラー、通信の失敗(応答なし)、再試行の回数を集計します
+ * コマンド以外(駅名の検索、デコード、描画等)は段階名毎に所要時間の分布だけを集計します
+ * RF、データベース、描画のどこに時間がかかっているかを機種毎に調べるために使用します</pre>
+ * <pre>FeliCaTransportを経由するコマンドはMeteredTransportが自動的に記録します
+ * felicalibを経由するコマンドは呼び出し側でrecordCommandを呼びます</pre>
+ * <pre>スレッドセーフです。snapshotで集計結果の複製を、dumpで表形式の文字列を取得できます</pre>
+ *
+ * @author Kazzz
+ * @date 2011/04/02
+ * @since Android API Level 10
+ *
+ */
+
+public final class FeliCaMetrics {
+    private static final FeliCaMetrics INSTANCE = new FeliCaMetrics();
+
+    /**
+     * 1つのコマンド、又は段階の集計結果を保持します
+     * <pre>snapshotで取得したものは以後変化しません</pre>
+     */
+    public static final class Metric {
+        private final String name;
+        private final LatencyHistogram latency;
+        private long bytesSent;
+        private long bytesReceived;
+        private long statusErrors;
+        private long failures;
+        private long retries;
+
+        private Metric(String name, LatencyHistogram latency) {
+            this.name = name;
+            this.latency = latency;
+        }
+        private Metric copy() {
+            Metric m = new Metric(this.name, this.latency.copy());
+            m.bytesSent = this.bytesSent;
+            m.bytesReceived = this.bytesReceived;
+            m.statusErrors = this.statusErrors;
+            m.failures = this.failures;
+            m.retries = this.retries;
+            return m;
+        }
+        /**
+         * コマンド名、又は段階名を取得します
+         * @return String 名前が戻ります
+         */
+        public String getName() {
+            return this.name;
+        }
+        /**
+         * 所要時間の分布を取得します
+         * @return LatencyHistogram 分布が戻ります (通信の失敗を含みます)
+         */
+        public LatencyHistogram getLatency() {
+            return this.latency.copy();
+        }
+        /**
+         * 送信したバイト数を取得します
+         * @return long バイト数が戻ります
+         */
+        public long getBytesSent() {
+            return this.bytesSent;
+        }
+        /**
+         * 受信したバイト数を取得します
+         * @return long バイト数が戻ります
+         */
+        public long getBytesReceived() {
+            return this.bytesReceived;
+        }
+        /**
+         * ステータスフラグがエラーだった応答の数を取得します
+         * @return long 応答の数が戻ります
+         */
+        public long getStatusErrors() {
+            return this.statusErrors;
+        }
+        /**
+         * 通信が失敗した(応答がなかった)数を取得します
+         * @return long 失敗の数が戻ります
+         */
+        public long getFailures() {
+            return this.failures;
+        }
+        /**
+         * 再試行の数を取得します
+         * @return long 再試行の数が戻ります
+         */
+        public long getRetries() {
+            return this.retries;
+        }
+        /* (non-Javadoc)
+         * @see java.lang.Object#toString()
+         */
+        @Override
+        public String toString() {
+            return String.format("%-20s %6d %8d %8d %8d %8d %8d %4d %4d %4d %8d %8d"
+                    , this.name, this.latency.getCount(), this.latency.getMeanMicros()
+                    , this.latency.getPercentileMicros(50), this.latency.getPercentileMicros(90)
+                    , this.latency.getPercentileMicros(99), this.latency.getMaxMicros()
+                    , this.statusErrors, this.failures, this.retries
+                    , this.bytesSent, this.bytesReceived);
+        }
+    }
+
+    private final Map<String, Metric> metrics = new LinkedHashMap<String, Metric>();
+
+    /**
+     * 共有のインスタンスを取得します
+     * @return FeliCaMetrics インスタンスが戻ります
+     */
+    public static FeliCaMetrics getInstance() {
+        return INSTANCE;
+    }
+    /**
+     * コマンドコードからコマンド名を取得します
+     * @param commandCode コマンドコードをセット
+     * @return String コマンド名が戻ります
+     */
+    public static String commandName(int commandCode) {
+        switch (commandCode) {
+        case 0x00: return "POLLING";
+        case 0x02: return "REQUEST_SERVICE";
+        case 0x04: return "REQUEST_RESPONSE";
+        case 0x06: return "READ_WO_ENCRYPTION";
+        case 0x08: return "WRITE_WO_ENCRYPTION";
+        case 0x0a: return "SEARCH_SERVICECODE";
+        case 0x0c: return "REQUEST_SYSTEMCODE";
+        default: return String.format("COMMAND_%02X", commandCode & 0xff);
+        }
+    }
+    private Metric metric(String name) {
+        Metric m = this.metrics.get(name);
+        if ( m == null ) {
+            m = new Metric(name, new LatencyHistogram());
+            this.metrics.put(name, m);
+        }
+        return m;
+    }
+    /**
+     * 応答を受信したコマンドを記録します
+     * @param name コマンド名をセット
+     * @param nanos 所要時間(ナノ秒)をセット
+     * @param sent 送信したバイト数をセット (分からない場合は0)
+     * @param received 受信したバイト数をセット (分からない場合は0)
+     * @param statusError ステータスフラグがエラーだった場合はtrueをセット
+     */
+    public synchronized void recordCommand(String name, long nanos, int sent, int received
+            , boolean statusError) {
+        Metric m = this.metric(name);
+        m.latency.record(nanos);
+        m.bytesSent += sent;
+        m.bytesReceived += received;
+        if ( statusError ) m.statusErrors++;
+    }
+    /**
+     * 応答がなかったコマンドを記録します
+     * @param name コマンド名をセット
+     * @param nanos 失敗するまでの所要時間(ナノ秒)をセット
+     */
+    public synchronized void recordFailure(String name, long nanos) {
+        Metric m = this.metric(name);
+        m.latency.record(nanos);
+        m.failures++;
+    }
+    /**
+     * 失敗したコマンドの再試行を記録します
+     * @param name コマンド名をセット
+     */
+    public synchronized void recordRetry(String name) {
+        this.metric(name).retries++;
+    }
+    /**
+     * コマンド以外の段階の所要時間を記録します
+     * @param name 段階名をセット (history.decode等)
+     * @param nanos 所要時間(ナノ秒)をセット
+     */
+    public synchronized void recordStage(String name, long nanos) {
+        this.metric(name).latency.record(nanos);
+    }
+    /**
+     * 集計結果の複製を取得します
+     * @return List&lt;Metric&gt; 最初に記録した順の集計結果が戻ります
+     */
+    public synchronized List<Metric> snapshot() {
+        List<Metric> result = new ArrayList<Metric>(this.metrics.size());
+        for ( Metric m : this.metrics.values() ) {
+            result.add(m.copy());
+        }
+        return Collections.unmodifiableList(result);
+    }
+    /**
+     * 集計結果を破棄します
+     */
+    public synchronized void reset() {
+        this.metrics.clear();
+    }
+    /**
+     * 集計結果を表形式で書き出します
+     * <pre>時間の単位はマイクロ秒です。p50、p90、p99はヒストグラムの区間の上限による近似です</pre>
+     * @param out 出力先をセット
+     * @throws IOException
+     */
+    public void dump(Appendable out) throws IOException {
+        out.append(String.format("%-20s %6s %8s %8s %8s %8s %8s %4s %4s %4s %8s %8s\n"
+                , "name", "count", "mean", "p50", "p90", "p99", "max"
+                , "err", "fail", "rtry", "sent", "recv"));
+        for ( Metric m : this.snapshot() ) {
+            out.append(m.toString()).append('\n');
+        }
+    }
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        try {
+            this.dump(sb);
+        } catch (IOException e) {
+            //StringBuilderへの書き出しでは発生しない
+            throw new IllegalStateException(e);
+        }
+        return sb.toString();
+    }
+}
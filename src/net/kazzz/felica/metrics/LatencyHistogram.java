@@ -0,0 +1,141 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica.metrics;
+
+/**
+ * 所要時間の分布を固定の区間で集計するヒストグラムを提供します
+ *
+ * <pre>区間の上限は100μs～1sの1-2-5系列で、1sを超えるものは最後の区間に数えます
+ * パーセンタイルは区間の上限で近似します(最後の区間は最大値)</pre>
+ * <pre>スレッドセーフではありません。FeliCaMetricsがロックした上で使用します</pre>
+ *
+ * @author Kazzz
+ * @date 2011/04/02
+ * @since Android API Level 10
+ *
+ */
+
+public final class LatencyHistogram {
+    // 区間の上限(マイクロ秒)
+    private static final long[] BOUNDS = {
+        100, 200, 500, 1000, 2000, 5000, 10000, 20000, 50000
+        , 100000, 200000, 500000, 1000000 };
+
+    private final long[] buckets = new long[BOUNDS.length + 1];
+    private long count;
+    private long sumNanos;
+    private long minNanos = Long.MAX_VALUE;
+    private long maxNanos;
+
+    /**
+     * 所要時間を記録します
+     * @param nanos 所要時間(ナノ秒)をセット
+     */
+    public void record(long nanos) {
+        long micros = nanos / 1000;
+        int i = 0;
+        while ( i < BOUNDS.length && micros > BOUNDS[i] ) i++;
+        this.buckets[i]++;
+        this.count++;
+        this.sumNanos += nanos;
+        if ( nanos < this.minNanos ) this.minNanos = nanos;
+        if ( nanos > this.maxNanos ) this.maxNanos = nanos;
+    }
+    /**
+     * 複製を作成します
+     * @return LatencyHistogram 複製が戻ります
+     */
+    public LatencyHistogram copy() {
+        LatencyHistogram h = new LatencyHistogram();
+        System.arraycopy(this.buckets, 0, h.buckets, 0, this.buckets.length);
+        h.count = this.count;
+        h.sumNanos = this.sumNanos;
+        h.minNanos = this.minNanos;
+        h.maxNanos = this.maxNanos;
+        return h;
+    }
+    /**
+     * 記録した件数を取得します
+     * @return long 件数が戻ります
+     */
+    public long getCount() {
+        return this.count;
+    }
+    /**
+     * 所要時間の合計を取得します
+     * @return long 合計(マイクロ秒)が戻ります
+     */
+    public long getTotalMicros() {
+        return this.sumNanos / 1000;
+    }
+    /**
+     * 所要時間の平均を取得します
+     * @return long 平均(マイクロ秒)が戻ります 記録がない場合は0が戻ります
+     */
+    public long getMeanMicros() {
+        return this.count > 0 ? this.sumNanos / this.count / 1000 : 0;
+    }
+    /**
+     * 所要時間の最小値を取得します
+     * @return long 最小値(マイクロ秒)が戻ります 記録がない場合は0が戻ります
+     */
+    public long getMinMicros() {
+        return this.count > 0 ? this.minNanos / 1000 : 0;
+    }
+    /**
+     * 所要時間の最大値を取得します
+     * @return long 最大値(マイクロ秒)が戻ります
+     */
+    public long getMaxMicros() {
+        return this.maxNanos / 1000;
+    }
+    /**
+     * パーセンタイルを区間の上限で近似して取得します
+     * @param percent 0～100の範囲でセット (50なら中央値)
+     * @return long 所要時間(マイクロ秒)が戻ります 記録がない場合は0が戻ります
+     */
+    public long getPercentileMicros(double percent) {
+        if ( this.count == 0 ) return 0;
+        long rank = (long) Math.ceil(this.count * percent / 100.0);
+        long seen = 0;
+        for ( int i = 0; i < BOUNDS.length; i++ ) {
+            seen += this.buckets[i];
+            if ( seen >= rank ) {
+                return Math.min(BOUNDS[i], this.getMaxMicros());
+            }
+        }
+        return this.getMaxMicros();
+    }
+    /**
+     * 区間の数を取得します
+     * @return int 区間の数が戻ります
+     */
+    public static int getBucketCount() {
+        return BOUNDS.length + 1;
+    }
+    /**
+     * 区間の上限を取得します
+     * @param index 区間の序数をセット
+     * @return long 上限(マイクロ秒)が戻ります 最後の区間はLong.MAX_VALUEが戻ります
+     */
+    public static long getBucketBound(int index) {
+        return index < BOUNDS.length ? BOUNDS[index] : Long.MAX_VALUE;
+    }
+    /**
+     * 区間の件数を取得します
+     * @param index 区間の序数をセット
+     * @return long 件数が戻ります
+     */
+    public long getBucket(int index) {
+        return this.buckets[index];
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica.metrics;
+
+import java.io.IOException;
+
+import net.kazzz.felica.suica.StationResolver;
+
+/**
+ * 駅名、停留所の検索時間をFeliCaMetricsに記録するStationResolverを提供します
+ *
+ * <pre>段階名station.lookup、busstop.lookupで記録します。TapTraceにはLOOKUPとして記録します</pre>
+ *
+ * @author Kazzz
+ * @date 2011/04/02
+ * @since Android API Level 10
+ *
+ */
+
+public class MeteredStationResolver implements StationResolver {
+    private final StationResolver resolver;
+    private final FeliCaMetrics metrics;
+
+    /**
+     * コンストラクタ
+     * <pre>共有のFeliCaMetricsに記録します</pre>
+     * @param resolver 包むStationResolverをセット
+     */
+    public MeteredStationResolver(StationResolver resolver) {
+        this.resolver = resolver;
+        this.metrics = FeliCaMetrics.getInstance();
+    }
+    /* (non-Javadoc)
+     * @see net.kazzz.felica.suica.StationResolver#getStation(int, int, int)
+     */
+    @Override
+    public String[] getStation(int areaCode, int lineCode, int stationCode) throws IOException {
+        long started = System.nanoTime();
+        try {
+            return this.resolver.getStation(areaCode, lineCode, stationCode);
+        } finally {
+            this.metrics.recordStage("station.lookup", System.nanoTime() - started);
+            TapTrace.getInstance().span(TapTrace.LOOKUP, started);
+        }
+    }
+    /* (non-Javadoc)
+     * @see net.kazzz.felica.suica.StationResolver#getBusStop(int, int)
+     */
+    @Override
+    public String[] getBusStop(int lineCode, int stationCode) throws IOException {
+        long started = System.nanoTime();
+        try {
+            return this.resolver.getBusStop(lineCode, stationCode);
+        } finally {
+            this.metrics.recordStage("busstop.lookup", System.nanoTime() - started);
+            TapTrace.getInstance().span(TapTrace.LOOKUP, started, 1);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica.metrics;
+
+import java.io.IOException;
+
+import net.kazzz.felica.FeliCaTransport;
+
+/**
+ * 送受信した全てのコマンドをFeliCaMetricsに記録するFeliCaTransportを提供します
+ *
+ * <pre>他のFeliCaTransportを包んで使用します
+ * 同じ接続の中で、直前にステータスエラー又は通信の失敗となったのと同じコマンドを発行した場合、
+ * 再試行として数えます(BlockReaderのバッチサイズの縮小、FeliCaLiteSnapshotの1ブロックずつの読み直し等)
+ * 接続に要した時間は段階名CONNECTで記録します</pre>
+ * <pre>接続、コマンドはTapTraceにもスパンとして記録します</pre>
+ *
+ * @author Kazzz
+ * @date 2011/04/02
+ * @since Android API Level 10
+ *
+ */
+
+public class MeteredTransport implements FeliCaTransport {
+    private final FeliCaTransport transport;
+    private final FeliCaMetrics metrics;
+    // 直前に失敗したコマンドコード (なければ-1)
+    private int lastFailed = -1;
+
+    /**
+     * コンストラクタ
+     * <pre>共有のFeliCaMetricsに記録します</pre>
+     * @param transport 包むFeliCaTransportをセット
+     */
+    public MeteredTransport(FeliCaTransport transport) {
+        this(transport, FeliCaMetrics.getInstance());
+    }
+    /**
+     * コンストラクタ
+     * @param transport 包むFeliCaTransportをセット
+     * @param metrics 記録先をセット
+     */
+    public MeteredTransport(FeliCaTransport transport, FeliCaMetrics metrics) {
+        this.transport = transport;
+        this.metrics = metrics;
+    }
+    /* (non-Javadoc)
+     * @see net.kazzz.felica.FeliCaTransport#connect()
+     */
+    @Override
+    public void connect() throws IOException {
+        this.lastFailed = -1;
+        long started = System.nanoTime();
+        this.transport.connect();
+        this.metrics.recordStage("CONNECT", System.nanoTime() - started);
+        TapTrace.getInstance().span(TapTrace.CONNECT, started);
+    }
+    /* (non-Javadoc)
+     * @see net.kazzz.felica.FeliCaTransport#transceive(byte[])
+     */
+    @Override
+    public byte[] transceive(byte[] command) throws IOException {
+        int code = command != null && command.length > 1 ? command[1] & 0xff : -1;
+        String name = FeliCaMetrics.commandName(code);
+        if ( code >= 0 && code == this.lastFailed ) {
+            this.metrics.recordRetry(name);
+        }
+        long started = System.nanoTime();
+        byte[] r;
+        try {
+            r = this.transport.transceive(command);
+        } catch (IOException e) {
+            this.metrics.recordFailure(name, System.nanoTime() - started);
+            TapTrace.getInstance().span(TapTrace.COMMAND, started, code);
+            this.lastFailed = code;
+            throw e;
+        }
+        TapTrace.getInstance().span(TapTrace.COMMAND, started, code);
+        boolean error = isStatusError(r);
+        this.metrics.recordCommand(name, System.nanoTime() - started
+                , command.length, r != null ? r.length : 0, error);
+        this.lastFailed = error ? code : -1;
+        return r;
+    }
+    /* (non-Javadoc)
+     * @see net.kazzz.felica.FeliCaTransport#close()
+     */
+    @Override
+    public void close() throws IOException {
+        this.transport.close();
+    }
+    /**
+     * Read/Write Without Encryptionの応答のステータスフラグ1がエラーか否かを検査します
+     * @param r 応答をセット
+     * @return boolean エラーの場合trueが戻ります
+     */
+    private static boolean isStatusError(byte[] r) {
+        if ( r == null || r.length < 12 ) return false;
+        return (r[1] == 0x07 || r[1] == 0x09) && r[10] != 0;
+    }
+}
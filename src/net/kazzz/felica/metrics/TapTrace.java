@@ -0,0 +1,276 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica.metrics;
+
+import java.io.IOException;
+
+/**
+ * タッチから表示までの各区間(スパン)を記録するトレースを提供します
+ *
+ * <pre>スパンは開始時刻を呼び出し側で保持しておき、終了時にspanで開始、終了時刻、スレッドを1件として記録します
+ * (開始と終了が別のスレッドでも記録できます)。時刻はSystem.nanoTimeです
+ * 記録先は固定長のリングバッファ(プリミティブの配列)で、記録時にオブジェクトを生成しません
+ * 古い記録から上書きされます</pre>
+ * <pre>beginTapで新しいタッチを開始し、以後のスパンはそのタッチの番号で記録されます
+ * (タッチは1枚ずつ処理されるため、現在のタッチは1つです)</pre>
+ * <pre>exportはChromeのトレースイベント形式(JSON)で書き出します。chrome://tracing、Perfetto等で表示できます</pre>
+ *
+ * @author Kazzz
+ * @date 2011/04/03
+ * @since Android API Level 10
+ *
+ */
+
+public final class TapTrace {
+    /** タッチの全体 (インテント受信から表示まで) */
+    public static final int TAP = 0;
+    /** onNewIntentの処理 */
+    public static final int INTENT = 1;
+    /** FeliCa Liteか否かの検査 */
+    public static final int PROBE = 2;
+    /** performClickからonClickの処理 */
+    public static final int CLICK = 3;
+    /** エグゼキュータの待ち行列 */
+    public static final int QUEUE = 4;
+    /** エグゼキュータでのコマンドの実行 */
+    public static final int EXECUTE = 5;
+    /** UIスレッドへの結果の受け渡し */
+    public static final int DELIVER = 6;
+    /** NFCの接続 */
+    public static final int CONNECT = 7;
+    /** FeliCaのコマンド (argはコマンドコード) */
+    public static final int COMMAND = 8;
+    /** 使用履歴のデコード (argはブロック番号) */
+    public static final int DECODE = 9;
+    /** 駅名、停留所の検索 */
+    public static final int LOOKUP = 10;
+    /** 使用履歴の描画 (argはブロック番号) */
+    public static final int RENDER = 11;
+    /** 画面(TextView)の更新 */
+    public static final int DISPLAY = 12;
+
+    private static final String[] NAMES = {
+        "tap", "intent", "probe", "click", "queue", "execute", "deliver"
+        , "connect", "command", "decode", "lookup", "render", "display" };
+
+    /** 規定の記録数 */
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    private static final TapTrace INSTANCE = new TapTrace(DEFAULT_CAPACITY);
+
+    private final int mask;
+    private final long[] starts;
+    private final long[] ends;
+    private final long[] threads;
+    private final int[] taps;
+    private final int[] spans;
+    private final int[] args;
+    private long next;
+
+    private volatile boolean enabled = true;
+    private volatile int currentTap;
+    private volatile long tapStarted;
+
+    /**
+     * コンストラクタ
+     * @param capacity 記録数をセット (2のべき乗に切り上げます)
+     */
+    public TapTrace(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        this.mask = size - 1;
+        this.starts = new long[size];
+        this.ends = new long[size];
+        this.threads = new long[size];
+        this.taps = new int[size];
+        this.spans = new int[size];
+        this.args = new int[size];
+    }
+    /**
+     * 共有のインスタンスを取得します
+     * @return TapTrace インスタンスが戻ります
+     */
+    public static TapTrace getInstance() {
+        return INSTANCE;
+    }
+    /**
+     * スパンの開始時刻として使用する現在時刻を取得します
+     * @return long 現在時刻(ナノ秒)が戻ります
+     */
+    public static long now() {
+        return System.nanoTime();
+    }
+    /**
+     * 記録するか否かをセットします
+     * @param enabled 記録する場合はtrueをセット
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+    /**
+     * 新しいタッチを開始します
+     * @return int タッチの番号が戻ります
+     */
+    public int beginTap() {
+        this.tapStarted = System.nanoTime();
+        return ++this.currentTap;
+    }
+    /**
+     * 現在のタッチを終了し、タッチ全体のスパンを記録します
+     */
+    public void endTap() {
+        this.span(TAP, this.tapStarted, 0);
+    }
+    /**
+     * 現在のタッチの番号を取得します
+     * @return int タッチの番号が戻ります
+     */
+    public int getCurrentTap() {
+        return this.currentTap;
+    }
+    /**
+     * 開始時刻から現在までのスパンを記録します
+     * @param span スパンの種類(TAP～DISPLAY)をセット
+     * @param started 開始時刻(nowで取得したもの)をセット
+     */
+    public void span(int span, long started) {
+        this.span(span, started, 0);
+    }
+    /**
+     * 開始時刻から現在までのスパンを記録します
+     * @param span スパンの種類(TAP～DISPLAY)をセット
+     * @param started 開始時刻(nowで取得したもの)をセット
+     * @param arg スパンの補足(コマンドコード、ブロック番号等)をセット
+     */
+    public void span(int span, long started, int arg) {
+        if ( !this.enabled ) return;
+        long ended = System.nanoTime();
+        long thread = Thread.currentThread().getId();
+        int tap = this.currentTap;
+        synchronized (this) {
+            int i = (int) (this.next++ & this.mask);
+            this.starts[i] = started;
+            this.ends[i] = ended;
+            this.threads[i] = thread;
+            this.taps[i] = tap;
+            this.spans[i] = span;
+            this.args[i] = arg;
+        }
+    }
+    /**
+     * 記録を破棄します
+     */
+    public synchronized void clear() {
+        this.next = 0;
+    }
+    /**
+     * 記録をChromeのトレースイベント形式(JSON)で書き出します
+     * <pre>tsは最も古い記録からの経過時間(マイクロ秒)です。argsにタッチの番号とスパンの補足を含めます</pre>
+     * @param out 出力先をセット
+     * @throws IOException
+     */
+    public void export(Appendable out) throws IOException {
+        Snapshot s = this.snapshot();
+        long origin = Long.MAX_VALUE;
+        for ( int i = 0; i < s.count; i++ ) {
+            origin = Math.min(origin, s.starts[i]);
+        }
+        out.append("{\"traceEvents\":[");
+        //記録数が多いので、String.formatを使わずに直接書き出す
+        for ( int i = 0; i < s.count; i++ ) {
+            if ( i > 0 ) out.append(',');
+            out.append("\n{\"name\":\"").append(name(s.spans[i], s.args[i]))
+               .append("\",\"cat\":\"felica\",\"ph\":\"X\",\"ts\":");
+            appendMicros(out, s.starts[i] - origin);
+            out.append(",\"dur\":");
+            appendMicros(out, s.ends[i] - s.starts[i]);
+            out.append(",\"pid\":1,\"tid\":").append(String.valueOf(s.threads[i]))
+               .append(",\"args\":{\"tap\":").append(String.valueOf(s.taps[i]))
+               .append(",\"arg\":").append(String.valueOf(s.args[i])).append("}}");
+        }
+        out.append("\n],\"displayTimeUnit\":\"ms\"}\n");
+    }
+    /**
+     * ナノ秒をマイクロ秒(小数点以下3桁)で書き出します
+     * @param out 出力先をセット
+     * @param nanos ナノ秒をセット
+     * @throws IOException
+     */
+    private static void appendMicros(Appendable out, long nanos) throws IOException {
+        if ( nanos < 0 ) {
+            out.append('-');
+            nanos = -nanos;
+        }
+        long fraction = nanos % 1000;
+        out.append(String.valueOf(nanos / 1000)).append('.');
+        if ( fraction < 100 ) out.append('0');
+        if ( fraction < 10 ) out.append('0');
+        out.append(String.valueOf(fraction));
+    }
+    /**
+     * 指定したタッチのスパンを記録した順(スパンの終了順)に、タッチの開始からの経過時間と共に書き出します (logcat向け)
+     * @param tap タッチの番号をセット
+     * @param out 出力先をセット
+     * @throws IOException
+     */
+    public void dumpTap(int tap, Appendable out) throws IOException {
+        Snapshot s = this.snapshot();
+        long origin = Long.MAX_VALUE;
+        for ( int i = 0; i < s.count; i++ ) {
+            if ( s.taps[i] == tap ) origin = Math.min(origin, s.starts[i]);
+        }
+        out.append(String.format("tap %d\n", tap));
+        for ( int i = 0; i < s.count; i++ ) {
+            if ( s.taps[i] != tap ) continue;
+            out.append(String.format("  +%9.3fms %9.3fms  %-20s tid=%d\n"
+                    , (s.starts[i] - origin) / 1000000.0, (s.ends[i] - s.starts[i]) / 1000000.0
+                    , name(s.spans[i], s.args[i]), s.threads[i]));
+        }
+    }
+    private static String name(int span, int arg) {
+        if ( span == COMMAND ) return FeliCaMetrics.commandName(arg);
+        return span >= 0 && span < NAMES.length ? NAMES[span] : "span" + span;
+    }
+
+    /**
+     * 書き出し用に記録を古い順に複製したものを保持します
+     */
+    private static class Snapshot {
+        int count;
+        long[] starts;
+        long[] ends;
+        long[] threads;
+        int[] taps;
+        int[] spans;
+        int[] args;
+    }
+    private synchronized Snapshot snapshot() {
+        Snapshot s = new Snapshot();
+        long first = Math.max(0, this.next - this.starts.length);
+        s.count = (int) (this.next - first);
+        s.starts = new long[s.count];
+        s.ends = new long[s.count];
+        s.threads = new long[s.count];
+        s.taps = new int[s.count];
+        s.spans = new int[s.count];
+        s.args = new int[s.count];
+        for ( int j = 0; j < s.count; j++ ) {
+            int i = (int) ((first + j) & this.mask);
+            s.starts[j] = this.starts[i];
+            s.ends[j] = this.ends[i];
+            s.threads[j] = this.threads[i];
+            s.taps[j] = this.taps[i];
+            s.spans[j] = this.spans[i];
+            s.args[j] = this.args[i];
+        }
+        return s;
+    }
+}
@@ -0,0 +1,497 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica.sim;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+import net.kazzz.felica.FeliCaTransport;
+
+/**
+ * FeliCaのカードをソフトウェアで模倣するFeliCaTransportの基底クラスを提供します
+ *
+ * <pre>Polling、Request System Code、Search Service Code、Read Without Encryption、
+ * Write Without Encryptionに応答します。ブロックの内容はサブクラスのreadBlock、writeBlockで提供します</pre>
+ * <pre>宛先のIDmが異なるコマンド、解釈できないコマンドには応答せず、IOExceptionとなります(実機のタイムアウトと同じ)
+ * 1コマンドで扱えるブロック数を超えた場合、存在しないブロックを指定した場合はステータスフラグでエラーを返します</pre>
+ * <pre>コマンド毎の遅延、通信の失敗(IOException)、ステータスエラーの発生率を設定できます
+ * 発生は乱数の種を固定したRandomで決めるため、同じ設定なら同じ順に発生します</pre>
+ * <pre>スレッドセーフではありません。実機と同様に1つの接続から順にコマンドを発行してください</pre>
+ *
+ * @author Kazzz
+ * @date 2011/04/01
+ * @since Android API Level 10
+ *
+ */
+
+public abstract class SimulatedCard implements FeliCaTransport {
+    /** ステータスフラグ2 : サービス数エラー */
+    public static final int STATUS_SERVICE_COUNT = 0xA1;
+    /** ステータスフラグ2 : ブロック数エラー */
+    public static final int STATUS_BLOCK_COUNT = 0xA2;
+    /** ステータスフラグ2 : サービスコードリストエラー (存在しない、又はアクセスできないサービス) */
+    public static final int STATUS_SERVICE_CODE = 0xA6;
+    /** ステータスフラグ2 : ブロックリストエラー (存在しない、又は書き込めないブロック) */
+    public static final int STATUS_BLOCK_NUMBER = 0xA8;
+    /** ステータスフラグ2 : メモリエラー (setErrorRateで発生させるエラー) */
+    public static final int STATUS_MEMORY = 0x70;
+
+    /** ブロックのサイズ(バイト) */
+    public static final int BLOCK_SIZE = 16;
+
+    // コマンドコード
+    private static final int COMMAND_POLLING = 0x00;
+    private static final int COMMAND_READ_WO_ENCRYPTION = 0x06;
+    private static final int COMMAND_WRITE_WO_ENCRYPTION = 0x08;
+    private static final int COMMAND_SEARCH_SERVICECODE = 0x0a;
+    private static final int COMMAND_REQUEST_SYSTEMCODE = 0x0c;
+    // 1コマンドで指定できるサービス数の上限
+    private static final int MAX_SERVICES = 16;
+
+    private final byte[] idm;
+    private final byte[] pmm;
+    private final int systemCode;
+    private final int[] serviceCodes;
+
+    private int maxReadBlocks = 15;
+    private int maxWriteBlocks = 1;
+    private long latencyNanos;
+    private double failureRate;
+    private double errorRate;
+    private Random random = new Random(0);
+
+    private boolean connected;
+    private int commandCount;
+    private int failureCount;
+    private int errorCount;
+
+    /**
+     * コンストラクタ
+     * @param idm IDm(8バイト)をセット
+     * @param pmm PMm(8バイト)をセット
+     * @param systemCode システムコードをセット
+     * @param serviceCodes サービスコードをSearch Service Codeで返す順にセット
+     */
+    protected SimulatedCard(byte[] idm, byte[] pmm, int systemCode, int... serviceCodes) {
+        if ( idm == null || idm.length != 8 || pmm == null || pmm.length != 8 ) {
+            throw new IllegalArgumentException("idm and pmm must be 8 bytes");
+        }
+        this.idm = idm.clone();
+        this.pmm = pmm.clone();
+        this.systemCode = systemCode;
+        this.serviceCodes = serviceCodes.clone();
+    }
+    /**
+     * ブロックを読み込みます
+     * @param serviceCode サービスコードが渡されます
+     * @param addr ブロックのアドレス(ブロックナンバー)が渡されます
+     * @return byte[] ブロックのデータ(16バイト)を戻します 存在しない場合はnullを戻します
+     */
+    protected abstract byte[] readBlock(int serviceCode, int addr);
+    /**
+     * ブロックを書き込みます
+     * @param serviceCode サービスコードが渡されます
+     * @param addr ブロックのアドレス(ブロックナンバー)が渡されます
+     * @param data ブロックのデータ(16バイト)が渡されます
+     * @return boolean 書き込めた場合はtrue、存在しない又は書き込めないブロックの場合はfalseを戻します
+     */
+    protected abstract boolean writeBlock(int serviceCode, int addr, byte[] data);
+
+    /**
+     * IDmを取得します
+     * @return byte[] IDm(8バイト)が戻ります
+     */
+    public byte[] getIDm() {
+        return this.idm.clone();
+    }
+    /**
+     * PMmを取得します
+     * @return byte[] PMm(8バイト)が戻ります
+     */
+    public byte[] getPMm() {
+        return this.pmm.clone();
+    }
+    /**
+     * システムコードを取得します
+     * @return int システムコードが戻ります
+     */
+    public int getSystemCode() {
+        return this.systemCode;
+    }
+    /**
+     * 1コマンドで読み込めるブロック数の上限をセットします
+     * @param maxReadBlocks 1以上の値をセット
+     */
+    public void setMaxReadBlocks(int maxReadBlocks) {
+        if ( maxReadBlocks < 1 ) {
+            throw new IllegalArgumentException("maxReadBlocks : " + maxReadBlocks);
+        }
+        this.maxReadBlocks = maxReadBlocks;
+    }
+    /**
+     * 1コマンドで書き込めるブロック数の上限をセットします
+     * @param maxWriteBlocks 1以上の値をセット
+     */
+    public void setMaxWriteBlocks(int maxWriteBlocks) {
+        if ( maxWriteBlocks < 1 ) {
+            throw new IllegalArgumentException("maxWriteBlocks : " + maxWriteBlocks);
+        }
+        this.maxWriteBlocks = maxWriteBlocks;
+    }
+    /**
+     * コマンド毎の応答の遅延をセットします
+     * @param micros 遅延(マイクロ秒)をセット 0の場合は遅延しません
+     */
+    public void setLatencyMicros(long micros) {
+        this.latencyNanos = micros * 1000L;
+    }
+    /**
+     * 通信の失敗(IOException)の発生率をセットします
+     * @param failureRate 0.0～1.0の範囲でセット
+     */
+    public void setFailureRate(double failureRate) {
+        this.failureRate = checkRate(failureRate);
+    }
+    /**
+     * 読み込み、書き込みのステータスエラー(STATUS_MEMORY)の発生率をセットします
+     * @param errorRate 0.0～1.0の範囲でセット
+     */
+    public void setErrorRate(double errorRate) {
+        this.errorRate = checkRate(errorRate);
+    }
+    /**
+     * 失敗、エラーの発生を決める乱数の種をセットします
+     * @param seed 乱数の種をセット
+     */
+    public void setSeed(long seed) {
+        this.random = new Random(seed);
+    }
+    private static double checkRate(double rate) {
+        if ( rate < 0.0 || rate > 1.0 ) {
+            throw new IllegalArgumentException("rate must be 0.0-1.0 : " + rate);
+        }
+        return rate;
+    }
+    /**
+     * 受信したコマンドの数を取得します
+     * @return int コマンド数が戻ります (応答しなかったコマンドを含みます)
+     */
+    public int getCommandCount() {
+        return this.commandCount;
+    }
+    /**
+     * 発生させた通信の失敗の数を取得します
+     * @return int 失敗の数が戻ります
+     */
+    public int getFailureCount() {
+        return this.failureCount;
+    }
+    /**
+     * 発生させたステータスエラーの数を取得します
+     * @return int エラーの数が戻ります
+     */
+    public int getErrorCount() {
+        return this.errorCount;
+    }
+    /**
+     * コマンド数、失敗、エラーの数を0に戻します
+     */
+    public void resetCounters() {
+        this.commandCount = 0;
+        this.failureCount = 0;
+        this.errorCount = 0;
+    }
+    /* (non-Javadoc)
+     * @see net.kazzz.felica.FeliCaTransport#connect()
+     */
+    @Override
+    public void connect() throws IOException {
+        this.connected = true;
+    }
+    /* (non-Javadoc)
+     * @see net.kazzz.felica.FeliCaTransport#close()
+     */
+    @Override
+    public void close() throws IOException {
+        this.connected = false;
+    }
+    /* (non-Javadoc)
+     * @see net.kazzz.felica.FeliCaTransport#transceive(byte[])
+     */
+    @Override
+    public byte[] transceive(byte[] command) throws IOException {
+        if ( !this.connected ) {
+            throw new IOException("not connected");
+        }
+        this.commandCount++;
+        this.delay();
+        if ( this.failureRate > 0 && this.random.nextDouble() < this.failureRate ) {
+            this.failureCount++;
+            throw new IOException("Transceive failed (injected)");
+        }
+        if ( command == null || command.length < 2 || (command[0] & 0xff) != command.length ) {
+            throw new IOException("Transceive failed (invalid frame)");
+        }
+        int code = command[1] & 0xff;
+        if ( code == COMMAND_POLLING ) {
+            return this.polling(command);
+        }
+        //宛先の異なるコマンドには応答しない
+        if ( command.length < 10 || !Arrays.equals(this.idm, Arrays.copyOfRange(command, 2, 10)) ) {
+            throw new IOException("Transceive failed (IDm mismatch)");
+        }
+        switch (code) {
+        case COMMAND_REQUEST_SYSTEMCODE:
+            return this.response(code + 1, 1
+                    , (byte) (this.systemCode >> 8), (byte) (this.systemCode & 0xff));
+        case COMMAND_SEARCH_SERVICECODE:
+            return this.searchServiceCode(command);
+        case COMMAND_READ_WO_ENCRYPTION:
+            return this.readWithoutEncryption(command);
+        case COMMAND_WRITE_WO_ENCRYPTION:
+            return this.writeWithoutEncryption(command);
+        default:
+            throw new IOException("Transceive failed (unsupported command "
+                    + Integer.toHexString(code) + ")");
+        }
+    }
+    /**
+     * 設定した遅延だけ待ちます
+     */
+    private void delay() {
+        if ( this.latencyNanos <= 0 ) return;
+        long deadline = System.nanoTime() + this.latencyNanos;
+        long remain;
+        while ( (remain = deadline - System.nanoTime()) > 0 ) {
+            LockSupport.parkNanos(remain);
+        }
+    }
+    /**
+     * Pollingに応答します
+     * <pre>システムコードの各バイトが0xffの場合はワイルドカードとして扱います</pre>
+     */
+    private byte[] polling(byte[] command) throws IOException {
+        if ( command.length < 6 ) {
+            throw new IOException("Transceive failed (invalid frame)");
+        }
+        int hi = command[2] & 0xff;
+        int lo = command[3] & 0xff;
+        if ( (hi != 0xff && hi != this.systemCode >> 8)
+                || (lo != 0xff && lo != (this.systemCode & 0xff)) ) {
+            throw new IOException("Transceive failed (no card for system code)");
+        }
+        boolean withSystemCode = command[4] == 0x01;
+        byte[] r = new byte[withSystemCode ? 20 : 18];
+        r[0] = (byte) r.length;
+        r[1] = (byte) (COMMAND_POLLING + 1);
+        System.arraycopy(this.idm, 0, r, 2, 8);
+        System.arraycopy(this.pmm, 0, r, 10, 8);
+        if ( withSystemCode ) {
+            r[18] = (byte) (this.systemCode >> 8);
+            r[19] = (byte) (this.systemCode & 0xff);
+        }
+        return r;
+    }
+    /**
+     * Search Service Codeに応答します
+     * <pre>インデックス0はルートのエリア(0x0000)、1からはサービスコードを順に返し、
+     * 最後のサービスコードの次は0xffffを返します</pre>
+     */
+    private byte[] searchServiceCode(byte[] command) throws IOException {
+        if ( command.length < 12 ) {
+            throw new IOException("Transceive failed (invalid frame)");
+        }
+        int index = (command[10] & 0xff) | (command[11] & 0xff) << 8;
+        if ( index == 0 ) {
+            return this.response(COMMAND_SEARCH_SERVICECODE + 1, 0x00, 0x00, 0xfe, 0xff);
+        }
+        int code = index <= this.serviceCodes.length ? this.serviceCodes[index - 1] : 0xffff;
+        return this.response(COMMAND_SEARCH_SERVICECODE + 1, code & 0xff, code >> 8);
+    }
+    /**
+     * Read Without Encryptionに応答します
+     */
+    private byte[] readWithoutEncryption(byte[] command) throws IOException {
+        Request req = this.parse(command, false);
+        int code = COMMAND_READ_WO_ENCRYPTION + 1;
+        if ( req.status != 0 ) {
+            return this.status(code, req.flag1, req.status);
+        }
+        for ( int sc : req.services ) {
+            if ( !isReadable(sc) ) {
+                return this.status(code, 0xff, STATUS_SERVICE_CODE);
+            }
+        }
+        if ( req.blocks.length > this.maxReadBlocks ) {
+            return this.status(code, 0xff, STATUS_BLOCK_COUNT);
+        }
+        if ( this.injectError() ) {
+            return this.status(code, 0xff, STATUS_MEMORY);
+        }
+        byte[] r = new byte[13 + req.blocks.length * BLOCK_SIZE];
+        for ( int i = 0; i < req.blocks.length; i++ ) {
+            byte[] data = this.readBlock(req.services[req.serviceIndex[i]], req.blocks[i]);
+            if ( data == null ) {
+                return this.status(code, i + 1, STATUS_BLOCK_NUMBER);
+            }
+            System.arraycopy(data, 0, r, 13 + i * BLOCK_SIZE, BLOCK_SIZE);
+        }
+        r[0] = (byte) r.length;
+        r[1] = (byte) code;
+        System.arraycopy(this.idm, 0, r, 2, 8);
+        r[12] = (byte) req.blocks.length;
+        return r;
+    }
+    /**
+     * Write Without Encryptionに応答します
+     */
+    private byte[] writeWithoutEncryption(byte[] command) throws IOException {
+        Request req = this.parse(command, true);
+        int code = COMMAND_WRITE_WO_ENCRYPTION + 1;
+        if ( req.status != 0 ) {
+            return this.status(code, req.flag1, req.status);
+        }
+        for ( int sc : req.services ) {
+            if ( !isWritable(sc) ) {
+                return this.status(code, 0xff, STATUS_SERVICE_CODE);
+            }
+        }
+        if ( req.blocks.length > this.maxWriteBlocks ) {
+            return this.status(code, 0xff, STATUS_BLOCK_COUNT);
+        }
+        if ( this.injectError() ) {
+            return this.status(code, 0xff, STATUS_MEMORY);
+        }
+        for ( int i = 0; i < req.blocks.length; i++ ) {
+            byte[] data = Arrays.copyOfRange(command
+                    , req.dataOffset + i * BLOCK_SIZE, req.dataOffset + (i + 1) * BLOCK_SIZE);
+            if ( !this.writeBlock(req.services[req.serviceIndex[i]], req.blocks[i], data) ) {
+                return this.status(code, i + 1, STATUS_BLOCK_NUMBER);
+            }
+        }
+        return this.status(code, 0, 0);
+    }
+    private boolean injectError() {
+        if ( this.errorRate > 0 && this.random.nextDouble() < this.errorRate ) {
+            this.errorCount++;
+            return true;
+        }
+        return false;
+    }
+    /**
+     * 暗号化なしで読み込めるサービスか否かを検査します (属性の最下位ビットが1)
+     */
+    private boolean isReadable(int serviceCode) {
+        return this.hasService(serviceCode) && (serviceCode & 0x01) == 0x01;
+    }
+    /**
+     * 暗号化なしで書き込めるサービスか否かを検査します (ランダム、サイクリックのリード/ライト)
+     */
+    private boolean isWritable(int serviceCode) {
+        int attr = serviceCode & 0x3f;
+        return this.hasService(serviceCode) && (attr == 0x09 || attr == 0x0d);
+    }
+    private boolean hasService(int serviceCode) {
+        for ( int sc : this.serviceCodes ) {
+            if ( sc == serviceCode ) return true;
+        }
+        return false;
+    }
+
+    /**
+     * 読み込み、書き込みコマンドを解析した結果を保持します
+     */
+    private static class Request {
+        int status;
+        int flag1 = 0xff;
+        int[] services;
+        int[] serviceIndex;
+        int[] blocks;
+        int dataOffset;
+    }
+    /**
+     * 読み込み、書き込みコマンドのサービスコードリスト、ブロックリストを解析します
+     * <pre>ブロックリストのエレメントは2バイト、3バイトの両方を解釈します</pre>
+     * @param command コマンドをセット
+     * @param withData ブロックリストの後にブロックデータが続く場合はtrueをセット
+     * @return Request 解析した結果が戻ります 書式のエラーはstatusにセットされます
+     * @throws IOException フレームが短い場合
+     */
+    private Request parse(byte[] command, boolean withData) throws IOException {
+        Request req = new Request();
+        int pos = 10;
+        int m = this.byteAt(command, pos++);
+        if ( m < 1 || m > MAX_SERVICES ) {
+            req.status = STATUS_SERVICE_COUNT;
+            return req;
+        }
+        req.services = new int[m];
+        for ( int i = 0; i < m; i++ ) {
+            req.services[i] = this.byteAt(command, pos) | this.byteAt(command, pos + 1) << 8;
+            pos += 2;
+        }
+        int n = this.byteAt(command, pos++);
+        if ( n < 1 ) {
+            req.status = STATUS_BLOCK_COUNT;
+            return req;
+        }
+        req.serviceIndex = new int[n];
+        req.blocks = new int[n];
+        for ( int i = 0; i < n; i++ ) {
+            int head = this.byteAt(command, pos++);
+            req.serviceIndex[i] = head & 0x0f;
+            if ( (head & 0x80) != 0 ) {
+                req.blocks[i] = this.byteAt(command, pos++);
+            } else {
+                req.blocks[i] = this.byteAt(command, pos) | this.byteAt(command, pos + 1) << 8;
+                pos += 2;
+            }
+            if ( req.serviceIndex[i] >= m ) {
+                req.status = STATUS_BLOCK_NUMBER;
+                req.flag1 = i + 1;
+                return req;
+            }
+        }
+        req.dataOffset = pos;
+        if ( withData ? command.length != pos + n * BLOCK_SIZE : command.length != pos ) {
+            throw new IOException("Transceive failed (invalid frame)");
+        }
+        return req;
+    }
+    private int byteAt(byte[] command, int pos) throws IOException {
+        if ( pos >= command.length ) {
+            throw new IOException("Transceive failed (invalid frame)");
+        }
+        return command[pos] & 0xff;
+    }
+    /**
+     * ステータスフラグのみの応答を作成します
+     */
+    private byte[] status(int code, int flag1, int flag2) {
+        return this.response(code, flag1, flag2);
+    }
+    /**
+     * 応答を作成します ([長さ][応答コード][IDm][内容])
+     */
+    private byte[] response(int code, int... payload) {
+        byte[] r = new byte[10 + payload.length];
+        r[0] = (byte) r.length;
+        r[1] = (byte) code;
+        System.arraycopy(this.idm, 0, r, 2, 8);
+        for ( int i = 0; i < payload.length; i++ ) {
+            r[10 + i] = (byte) payload[i];
+        }
+        return r;
+    }
+}
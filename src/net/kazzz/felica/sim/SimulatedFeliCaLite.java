@@ -0,0 +1,147 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica.sim;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * FeliCa Liteを模倣します
+ *
+ * <pre>システムコードは0x88b4、サービスは0x0009(リード/ライト)と0x000b(読み込みのみ)です
+ * ブロックはS_PAD0～13、REG、ID、D_ID、SER_C、SYS_C、CKV、MCを持ち、
+ * 1コマンドで読み込めるのは4ブロック、書き込めるのは1ブロックです</pre>
+ * <pre>MCのバイト0、1はS_PAD0～13、REGの書き込み可否(ビットが1なら書き込み可)、
+ * バイト2はMC自身の書き込み可否(0xffなら書き込み可)です
+ * 一度読み込みのみにしたブロックは書き込み可に戻せません(実機と同じ)</pre>
+ *
+ * @author Kazzz
+ * @date 2011/04/01
+ * @since Android API Level 10
+ *
+ */
+
+public class SimulatedFeliCaLite extends SimulatedCard {
+    /** システムコード (FeliCa Lite) */
+    public static final int SYSTEMCODE = 0x88b4;
+    /** リード/ライトのサービスコード */
+    public static final int SERVICE_READWRITE = 0x0009;
+    /** 読み込みのみのサービスコード */
+    public static final int SERVICE_READONLY = 0x000b;
+
+    /** スクラッチパッドのブロック数 (S_PAD0～13) */
+    public static final int S_PAD_BLOCKS = 14;
+    /** レジスタ (REG) */
+    public static final int REG = 0x0e;
+    /** ID */
+    public static final int ID = 0x82;
+    /** デバイスID (D_ID) */
+    public static final int D_ID = 0x83;
+    /** サービスコード (SER_C) */
+    public static final int SER_C = 0x84;
+    /** システムコード (SYS_C) */
+    public static final int SYS_C = 0x85;
+    /** カード鍵バージョン (CKV) */
+    public static final int CKV = 0x86;
+    /** メモリコンフィギュレーション (MC) */
+    public static final int MC = 0x88;
+
+    private static final byte[] PMM = {
+        (byte) 0x00, (byte) 0xf0, (byte) 0x00, (byte) 0x00
+        , (byte) 0x00, (byte) 0x01, (byte) 0x43, (byte) 0x00 };
+
+    private final Map<Integer, byte[]> memory = new TreeMap<Integer, byte[]>();
+
+    /**
+     * コンストラクタ
+     * <pre>出荷時の状態(スクラッチパッドは全て0、全てのブロックが書き込み可)で作成します</pre>
+     * @param idm IDm(8バイト)をセット
+     */
+    public SimulatedFeliCaLite(byte[] idm) {
+        super(idm, PMM, SYSTEMCODE, SERVICE_READWRITE, SERVICE_READONLY);
+        this.setMaxReadBlocks(4);
+        this.setMaxWriteBlocks(1);
+        for ( int i = 0; i <= REG; i++ ) {
+            this.memory.put(i, new byte[BLOCK_SIZE]);
+        }
+        byte[] id = new byte[BLOCK_SIZE];
+        System.arraycopy(idm, 0, id, 0, 8);
+        this.memory.put(ID, id);
+        byte[] dId = new byte[BLOCK_SIZE];
+        System.arraycopy(idm, 0, dId, 0, 8);
+        System.arraycopy(PMM, 0, dId, 8, 8);
+        this.memory.put(D_ID, dId);
+        byte[] serC = new byte[BLOCK_SIZE];
+        serC[0] = (byte) (SERVICE_READONLY & 0xff);
+        serC[1] = (byte) (SERVICE_READONLY >> 8);
+        this.memory.put(SER_C, serC);
+        byte[] sysC = new byte[BLOCK_SIZE];
+        sysC[0] = (byte) (SYSTEMCODE >> 8);
+        sysC[1] = (byte) (SYSTEMCODE & 0xff);
+        this.memory.put(SYS_C, sysC);
+        this.memory.put(CKV, new byte[BLOCK_SIZE]);
+        byte[] mc = new byte[BLOCK_SIZE];
+        mc[0] = (byte) 0xff;
+        mc[1] = (byte) 0xff;
+        mc[2] = (byte) 0xff;
+        this.memory.put(MC, mc);
+    }
+    /**
+     * ブロックの内容を取得します (コマンドを経由しません)
+     * @param addr ブロックのアドレス(ブロックナンバー)をセット
+     * @return byte[] ブロックのデータ(16バイト)が戻ります 存在しない場合はnullが戻ります
+     */
+    public byte[] getBlock(int addr) {
+        byte[] data = this.memory.get(addr);
+        return data != null ? data.clone() : null;
+    }
+    /**
+     * ブロックの内容をセットします (コマンドを経由せず、書き込み可否も検査しません)
+     * @param addr ブロックのアドレス(ブロックナンバー)をセット
+     * @param data ブロックのデータ(16バイト)をセット
+     */
+    public void setBlock(int addr, byte[] data) {
+        if ( !this.memory.containsKey(addr) || data == null || data.length != BLOCK_SIZE ) {
+            throw new IllegalArgumentException("invalid block " + addr);
+        }
+        this.memory.put(addr, data.clone());
+    }
+    /* (non-Javadoc)
+     * @see net.kazzz.felica.sim.SimulatedCard#readBlock(int, int)
+     */
+    @Override
+    protected byte[] readBlock(int serviceCode, int addr) {
+        return this.memory.get(addr);
+    }
+    /* (non-Javadoc)
+     * @see net.kazzz.felica.sim.SimulatedCard#writeBlock(int, int, byte[])
+     */
+    @Override
+    protected boolean writeBlock(int serviceCode, int addr, byte[] data) {
+        byte[] mc = this.memory.get(MC);
+        if ( addr <= REG ) {
+            if ( (mc[addr / 8] & (1 << (addr % 8))) == 0 ) return false;
+            this.memory.put(addr, data.clone());
+            return true;
+        }
+        if ( addr == MC ) {
+            if ( mc[2] != (byte) 0xff ) return false;
+            byte[] newMc = data.clone();
+            //読み込みのみにしたブロックは書き込み可に戻せない
+            newMc[0] &= mc[0];
+            newMc[1] &= mc[1];
+            this.memory.put(MC, newMc);
+            return true;
+        }
+        return false;
+    }
+}
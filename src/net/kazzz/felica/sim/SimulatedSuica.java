@@ -0,0 +1,93 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica.sim;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 使用履歴のサービスを持つFeliCa Standard(Suica等の交通系カード)を模倣します
+ *
+ * <pre>システムコードは0x0003、サービスは使用履歴(0x090f、サイクリック、読み込みのみ)です
+ * 使用履歴はブロック0が最新で、最大20件を保持します</pre>
+ *
+ * @author Kazzz
+ * @date 2011/04/01
+ * @since Android API Level 10
+ *
+ */
+
+public class SimulatedSuica extends SimulatedCard {
+    /** システムコード (交通系) */
+    public static final int SYSTEMCODE = 0x0003;
+    /** 使用履歴のサービスコード */
+    public static final int SERVICE_HISTORY = 0x090f;
+    /** 保持する使用履歴の件数の上限 */
+    public static final int MAX_HISTORY = 20;
+
+    private static final byte[] PMM = {
+        (byte) 0x01, (byte) 0x20, (byte) 0x22, (byte) 0x04
+        , (byte) 0x27, (byte) 0x67, (byte) 0x4e, (byte) 0xff };
+
+    private final List<byte[]> history = new ArrayList<byte[]>();
+
+    /**
+     * コンストラクタ
+     * @param idm IDm(8バイト)をセット
+     * @param history 使用履歴のブロック(16バイト)を新しい順にセット (MAX_HISTORYを超える分は捨てます)
+     */
+    public SimulatedSuica(byte[] idm, List<byte[]> history) {
+        super(idm, PMM, SYSTEMCODE, SERVICE_HISTORY);
+        for ( int i = history.size() - 1; i >= 0; i-- ) {
+            this.addHistory(history.get(i));
+        }
+    }
+    /**
+     * 使用履歴を追加します (改札、物販等での利用を模倣します)
+     * <pre>追加したブロックがブロック0になり、MAX_HISTORYを超えた最も古いブロックは捨てられます</pre>
+     * @param block 使用履歴のブロック(16バイト)をセット
+     */
+    public void addHistory(byte[] block) {
+        if ( block == null || block.length != BLOCK_SIZE ) {
+            throw new IllegalArgumentException("history block must be " + BLOCK_SIZE + " bytes");
+        }
+        this.history.add(0, block.clone());
+        if ( this.history.size() > MAX_HISTORY ) {
+            this.history.remove(MAX_HISTORY);
+        }
+    }
+    /**
+     * 使用履歴の件数を取得します
+     * @return int 件数が戻ります
+     */
+    public int getHistoryCount() {
+        return this.history.size();
+    }
+    /* (non-Javadoc)
+     * @see net.kazzz.felica.sim.SimulatedCard#readBlock(int, int)
+     */
+    @Override
+    protected byte[] readBlock(int serviceCode, int addr) {
+        if ( serviceCode != SERVICE_HISTORY || addr >= this.history.size() ) {
+            return null;
+        }
+        return this.history.get(addr);
+    }
+    /* (non-Javadoc)
+     * @see net.kazzz.felica.sim.SimulatedCard#writeBlock(int, int, byte[])
+     */
+    @Override
+    protected boolean writeBlock(int serviceCode, int addr, byte[] data) {
+        //使用履歴は読み込みのみ
+        return false;
+    }
+}
@@ -0,0 +1,332 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica.suica;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * 機器種別、処理種別のコード(0x00～0xff)毎の記述子を保持する表を提供します
+ *
+ * <pre>コード毎に記述子(名称、分類、言語毎の名称)を256要素の配列で保持するため、
+ * 名称の取得、分類の判定は配列の添字1回で済みます。未知のコードにも記述子(未知の名称)を割り当てます</pre>
+ * <pre>表はタブ区切りのテキストから作成します。1行が1コードで、種別(console又はprocess)、コード、
+ * 分類(カンマ区切り、無い場合は-)、名称、言語毎の名称(言語=名称、任意個)の順です。
+ * コードに*を指定した行は未知のコードの記述子になります。#で始まる行、空行は無視します</pre>
+ * <pre>インスタンスは不変でスレッドセーフです</pre>
+ *
+ * @author Kazzz
+ * @date 2011/04/07
+ * @since Android API Level 4
+ *
+ */
+
+public final class CodeTable {
+    /** 機器種別 */
+    public static final String CONSOLE = "console";
+    /** 処理種別 */
+    public static final String PROCESS = "process";
+
+    /**
+     * コードの分類を定義します
+     */
+    public enum Category {
+        /** バス */
+        BUS,
+        /** 物販 */
+        SALES,
+        /** チャージ */
+        CHARGE,
+        /** オートチャージ */
+        AUTO_CHARGE;
+
+        /**
+         * 分類のビットマスクを取得します
+         * @return int ビットマスクが戻ります
+         */
+        public int mask() {
+            return 1 << this.ordinal();
+        }
+    }
+
+    /**
+     * 1つのコードの記述子を提供します
+     *
+     * @date 2011/04/07
+     * @since Android API Level 4
+     *
+     */
+    public static final class Code {
+        private final int code;
+        private final int flags;
+        private final String label;
+        private final Map<String, String> names;
+        private final boolean known;
+
+        /**
+         * コンストラクタ
+         * @param code コードをセット
+         * @param flags 分類のビットマスクをセット
+         * @param label 名称をセット
+         * @param names 言語毎の名称をセット
+         * @param known 表に定義されたコードの場合trueをセット
+         */
+        Code(int code, int flags, String label, Map<String, String> names, boolean known) {
+            this.code = code;
+            this.flags = flags;
+            this.label = label;
+            this.names = names;
+            this.known = known;
+        }
+        /**
+         * コードを取得します
+         * @return int コード(0x00～0xff)が戻ります
+         */
+        public int getCode() {
+            return this.code;
+        }
+        /**
+         * 名称を取得します
+         * @return String 名称が戻ります (未知のコードの場合は未知の名称)
+         */
+        public String getLabel() {
+            return this.label;
+        }
+        /**
+         * 言語毎の名称を取得します
+         * @param locale ロケールをセット
+         * @return String その言語の名称が戻ります (定義されていない場合はgetLabelと同じ)
+         */
+        public String getLabel(Locale locale) {
+            String name = this.names.get(locale.getLanguage());
+            return name != null ? name : this.label;
+        }
+        /**
+         * 分類のビットマスクを取得します
+         * @return int ビットマスクが戻ります
+         */
+        public int getFlags() {
+            return this.flags;
+        }
+        /**
+         * 分類に属するか否かを検査します
+         * @param category 分類をセット
+         * @return boolean 属する場合trueが戻ります
+         */
+        public boolean is(Category category) {
+            return (this.flags & category.mask()) != 0;
+        }
+        /**
+         * 属する分類を取得します
+         * @return EnumSet&lt;Category&gt; 分類が戻ります
+         */
+        public EnumSet<Category> getCategories() {
+            EnumSet<Category> result = EnumSet.noneOf(Category.class);
+            for ( Category c : Category.values() ) {
+                if ( this.is(c) ) result.add(c);
+            }
+            return result;
+        }
+        /**
+         * 表に定義されたコードか否かを検査します
+         * @return boolean 定義されている場合trueが、未知のコードの場合falseが戻ります
+         */
+        public boolean isKnown() {
+            return this.known;
+        }
+        /* (non-Javadoc)
+         * @see java.lang.Object#toString()
+         */
+        @Override
+        public String toString() {
+            return this.label;
+        }
+    }
+
+    private final Code[] consoles;
+    private final Code[] processes;
+    // 分類のビットマスク (判定で記述子を辿らないよう別に持つ)
+    private final int[] consoleFlags = new int[256];
+    private final int[] processFlags = new int[256];
+
+    /**
+     * コンストラクタ
+     * @param consoles 機器種別の記述子(256要素)をセット
+     * @param processes 処理種別の記述子(256要素)をセット
+     */
+    private CodeTable(Code[] consoles, Code[] processes) {
+        this.consoles = consoles;
+        this.processes = processes;
+        for ( int i = 0; i < 256; i++ ) {
+            this.consoleFlags[i] = consoles[i].getFlags();
+            this.processFlags[i] = processes[i].getFlags();
+        }
+    }
+    /**
+     * テキストから表を作成します
+     * @param in テキストの入力元をセット
+     * @return CodeTable 作成した表が戻ります
+     * @throws IOException 読み込めない場合、書式が不正な場合
+     */
+    public static CodeTable parse(Reader in) throws IOException {
+        return parse(in, null);
+    }
+    /**
+     * 既存の表にテキストの定義を重ねた表を作成します
+     * <pre>テキストに含まれるコードは置き換え、含まれないコードは既存の表の記述子をそのまま使用します</pre>
+     * @param in テキストの入力元をセット
+     * @param base 既存の表をセット (nullの場合はテキストの定義だけで作成します)
+     * @return CodeTable 作成した表が戻ります
+     * @throws IOException 読み込めない場合、書式が不正な場合
+     */
+    public static CodeTable parse(Reader in, CodeTable base) throws IOException {
+        //添字256は未知のコードの記述子
+        Code[] consoles = new Code[257];
+        Code[] processes = new Code[257];
+        BufferedReader reader = new BufferedReader(in);
+        String line;
+        int lineNumber = 0;
+        while ( (line = reader.readLine()) != null ) {
+            lineNumber++;
+            if ( line.length() == 0 || line.charAt(0) == '#' ) continue;
+            String[] fields = line.split("\t");
+            if ( fields.length < 4 ) {
+                throw new IOException("line " + lineNumber + " : too few fields");
+            }
+            Code[] target;
+            if ( CONSOLE.equals(fields[0]) ) {
+                target = consoles;
+            } else if ( PROCESS.equals(fields[0]) ) {
+                target = processes;
+            } else {
+                throw new IOException("line " + lineNumber + " : unknown kind " + fields[0]);
+            }
+            try {
+                int code = 256;
+                if ( !"*".equals(fields[1]) ) {
+                    code = Integer.decode(fields[1]);
+                    if ( code < 0 || code > 0xff ) {
+                        throw new IOException("line " + lineNumber + " : code out of range " + fields[1]);
+                    }
+                }
+                target[code] = new Code(code & 0xff, parseFlags(fields[2])
+                        , fields[3], parseNames(fields), code != 256);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("line " + lineNumber + " : " + e.getMessage());
+            }
+        }
+        return new CodeTable(fill(consoles, base != null ? base.consoles : null)
+                , fill(processes, base != null ? base.processes : null));
+    }
+    /**
+     * 分類を解析します
+     * @param field 分類(カンマ区切り、無い場合は-)をセット
+     * @return int 分類のビットマスクが戻ります
+     */
+    private static int parseFlags(String field) {
+        if ( "-".equals(field) ) return 0;
+        int flags = 0;
+        for ( String name : field.split(",") ) {
+            flags |= Category.valueOf(name.trim()).mask();
+        }
+        return flags;
+    }
+    /**
+     * 言語毎の名称を解析します
+     * @param fields 1行分のフィールドをセット
+     * @return Map&lt;String, String&gt; 言語毎の名称が戻ります
+     */
+    private static Map<String, String> parseNames(String[] fields) {
+        if ( fields.length == 4 ) return Collections.emptyMap();
+        Map<String, String> names = new HashMap<String, String>();
+        for ( int i = 4; i < fields.length; i++ ) {
+            int eq = fields[i].indexOf('=');
+            if ( eq <= 0 ) {
+                throw new IllegalArgumentException("illegal name " + fields[i]);
+            }
+            names.put(fields[i].substring(0, eq), fields[i].substring(eq + 1));
+        }
+        return Collections.unmodifiableMap(names);
+    }
+    /**
+     * 定義されなかったコードを埋めた256要素の記述子の配列を作成します
+     * @param defined 定義された記述子(添字256は未知のコード)をセット
+     * @param base 既存の表の記述子をセット (nullの場合は未知のコードで埋めます)
+     * @return Code[] 記述子が戻ります
+     */
+    private static Code[] fill(Code[] defined, Code[] base) {
+        Code unknown = defined[256];
+        if ( unknown == null && base != null ) {
+            //未知のコードが定義されていない場合は既存の表の未知の記述子を引き継ぐ
+            for ( Code c : base ) {
+                if ( !c.isKnown() ) {
+                    unknown = c;
+                    break;
+                }
+            }
+        }
+        if ( unknown == null ) {
+            unknown = new Code(0, 0, "???", Collections.<String, String>emptyMap(), false);
+        }
+        Code[] result = new Code[256];
+        for ( int i = 0; i < 256; i++ ) {
+            if ( defined[i] != null ) {
+                result[i] = defined[i];
+            } else if ( base != null && base[i].isKnown() ) {
+                result[i] = base[i];
+            } else {
+                result[i] = new Code(i, unknown.flags, unknown.label, unknown.names, false);
+            }
+        }
+        return result;
+    }
+    /**
+     * 機器種別の記述子を取得します
+     * @param code 機器種別のコードをセット (下位8ビットを使用します)
+     * @return Code 記述子が戻ります (nullは戻りません)
+     */
+    public Code getConsole(int code) {
+        return this.consoles[code & 0xff];
+    }
+    /**
+     * 処理種別の記述子を取得します
+     * @param code 処理種別のコードをセット (下位8ビットを使用します)
+     * @return Code 記述子が戻ります (nullは戻りません)
+     */
+    public Code getProcess(int code) {
+        return this.processes[code & 0xff];
+    }
+    /**
+     * 機器種別が分類に属するか否かを検査します
+     * @param code 機器種別のコードをセット
+     * @param category 分類をセット
+     * @return boolean 属する場合trueが戻ります
+     */
+    public boolean isConsole(int code, Category category) {
+        return (this.consoleFlags[code & 0xff] & category.mask()) != 0;
+    }
+    /**
+     * 処理種別が分類に属するか否かを検査します
+     * @param code 処理種別のコードをセット
+     * @param category 分類をセット
+     * @return boolean 属する場合trueが戻ります
+     */
+    public boolean isProcess(int code, Category category) {
+        return (this.processFlags[code & 0xff] & category.mask()) != 0;
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica.suica;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Properties;
+
+/**
+ * 機器種別、処理種別の表と駅コード辞書をまとめた、版付きのコード表パッケージを提供します
+ *
+ * <pre>パッケージは1つのディレクトリで、以下のファイルを置きます
+ *   package.properties  version(整数)を記述します。このファイルが無いディレクトリはパッケージとみなしません
+ *   SuicaCodes.tsv      機器種別、処理種別の表 (任意。書式はCodeTableを参照。組み込みの表に重ねます)
+ *   StationCode.dic     駅コード辞書 (任意。書式はStationDictionaryを参照)</pre>
+ * <pre>配置する側は他のファイルを置いた後でpackage.propertiesを置くか、別の場所で作成したディレクトリを
+ * 名前の変更で移動します。こうすることで、書きかけのパッケージを読み込むことはありません</pre>
+ * <pre>openで全てのファイルを読み込み、検証してから戻るため、戻ったパッケージはそのまま差し替えに使用できます</pre>
+ *
+ * @author Kazzz
+ * @date 2011/04/08
+ * @since Android API Level 4
+ *
+ */
+
+public final class CodeTablePackage {
+    /** 版を記述するファイルの名前 */
+    public static final String MANIFEST = "package.properties";
+    /** 機器種別、処理種別の表のファイルの名前 */
+    public static final String CODES = SuicaCodes.RESOURCE;
+    /** 駅コード辞書のファイルの名前 */
+    public static final String DICTIONARY = "StationCode.dic";
+
+    private final File directory;
+    private final long version;
+    private final CodeTable codeTable;
+    private final StationDictionary dictionary;
+
+    /**
+     * コンストラクタ
+     * @param directory パッケージのディレクトリをセット
+     * @param version 版をセット
+     * @param codeTable 機器種別、処理種別の表をセット (無い場合はnull)
+     * @param dictionary 駅コード辞書をセット (無い場合はnull)
+     */
+    private CodeTablePackage(File directory, long version
+            , CodeTable codeTable, StationDictionary dictionary) {
+        this.directory = directory;
+        this.version = version;
+        this.codeTable = codeTable;
+        this.dictionary = dictionary;
+    }
+    /**
+     * パッケージを開きます
+     * @param directory パッケージのディレクトリをセット
+     * @return CodeTablePackage パッケージが戻ります
+     * @throws IOException パッケージでない場合、ファイルの形式が不正な場合
+     */
+    public static CodeTablePackage open(File directory) throws IOException {
+        long version = readVersion(directory);
+        if ( version < 0 ) {
+            throw new IOException("not a code table package : " + directory);
+        }
+        CodeTable table = null;
+        File codes = new File(directory, CODES);
+        if ( codes.isFile() ) {
+            InputStream in = new FileInputStream(codes);
+            try {
+                table = CodeTable.parse(new InputStreamReader(in, "UTF-8")
+                        , SuicaCodes.getDefaultTable());
+            } finally {
+                in.close();
+            }
+        }
+        File dic = new File(directory, DICTIONARY);
+        StationDictionary dictionary = dic.isFile() ? StationDictionary.open(dic) : null;
+        return new CodeTablePackage(directory, version, table, dictionary);
+    }
+    /**
+     * ディレクトリ直下のパッケージから、最も新しい版のものを探します
+     * @param root パッケージを置くディレクトリをセット
+     * @return File 最も新しい版のパッケージのディレクトリが戻ります (無い場合はnull)
+     */
+    public static File findLatest(File root) {
+        File[] dirs = root.listFiles();
+        if ( dirs == null ) return null;
+        File latest = null;
+        long latestVersion = -1;
+        for ( File dir : dirs ) {
+            if ( !dir.isDirectory() ) continue;
+            long v;
+            try {
+                v = readVersion(dir);
+            } catch (IOException e) {
+                //壊れたパッケージは候補にしない
+                continue;
+            }
+            if ( v > latestVersion ) {
+                latest = dir;
+                latestVersion = v;
+            }
+        }
+        return latest;
+    }
+    /**
+     * パッケージの版を読み込みます
+     * @param directory パッケージのディレクトリをセット
+     * @return long 版が戻ります (package.propertiesが無い場合は-1)
+     * @throws IOException 版を読み込めない場合
+     */
+    public static long readVersion(File directory) throws IOException {
+        File manifest = new File(directory, MANIFEST);
+        if ( !manifest.isFile() ) return -1;
+        Properties p = new Properties();
+        InputStream in = new FileInputStream(manifest);
+        try {
+            p.load(in);
+        } finally {
+            in.close();
+        }
+        String version = p.getProperty("version");
+        if ( version == null ) {
+            throw new IOException("version is not defined : " + manifest);
+        }
+        try {
+            long v = Long.parseLong(version.trim());
+            if ( v < 0 ) throw new NumberFormatException(version);
+            return v;
+        } catch (NumberFormatException e) {
+            throw new IOException("illegal version : " + version);
+        }
+    }
+    /**
+     * パッケージのディレクトリを取得します
+     * @return File ディレクトリが戻ります
+     */
+    public File getDirectory() {
+        return this.directory;
+    }
+    /**
+     * 版を取得します
+     * @return long 版が戻ります
+     */
+    public long getVersion() {
+        return this.version;
+    }
+    /**
+     * 機器種別、処理種別の表を取得します
+     * @return CodeTable 表が戻ります (パッケージに含まれない場合はnull)
+     */
+    public CodeTable getCodeTable() {
+        return this.codeTable;
+    }
+    /**
+     * 駅コード辞書を取得します
+     * @return StationDictionary 辞書が戻ります (パッケージに含まれない場合はnull)
+     */
+    public StationDictionary getStationDictionary() {
+        return this.dictionary;
+    }
+}
@@ -11,57 +11,129 @@
  */
 package net.kazzz.felica.suica;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
-import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
 
 /**
  * 駅名、停留所を取得するためのDBユーティリティクラスを提供します
  *
+ * <pre>インスタンスはプロセス内で一つだけ生成され(getInstance)、読み取り専用で開いたデータベースと
+ * 駅、停留所検索用にコンパイル済みのステートメントを保持し続けます。各メソッドはスレッドセーフです</pre>
+ * <pre>StationResolverとして、データベース(getInstance)の他、メモリ上のインデックス(getStationCodeIndex)、
+ * メモリマップした辞書(getStationDictionary)を取得できます</pre>
+ * <pre>機器種別、処理種別の組み込みの表(SuicaCodes.tsv)もデータベース、辞書と同じくAssetsから読み込みます
+ * (loadCodeTable)</pre>
+ * <pre>アプリケーションのファイル領域(codetables)にコード表パッケージ(CodeTablePackage)を置くと、
+ * reloadCodeTablesでバックグラウンドで読み込み、機器種別、処理種別の表と駅コード辞書を実行中に差し替えます。
+ * 差し替えはvolatileの書き込みで行うため、駅名を解決する側を待たせることはありません</pre>
+ *
  * @author Kazzz
  * @date 2011/01/28
  * @since Android API Level 4
  *
  */
 
-public class DBUtil extends SQLiteOpenHelper {
+public class DBUtil extends SQLiteOpenHelper implements StationResolver {
     public static final String COLUMN_ID = "_id";
     public static final String TABLE_STATIONCODE = "StationCode";
     public static final String[] COLUMNS_STATIONCODE =
         {"AreaCode", "LineCode", "StationCode", "CompanyName", "LineName", "StationName"};
 
-    public static final String TABLE_IRUCA_STATIONCODE = "StationCode.IruCaStationCode";
+    public static final String TABLE_IRUCA_STATIONCODE = "IruCaStationCode";
     public static final String[] COLUMNS_IRUCA_STATIONCODE =
         {"LineCode", "StationCode", "CompanyName", "LineName", "StationName"};
 
-    //The Android's default system path of your application database.
-    private static final String DB_PATH = "/data/data/net.kazzz/databases/";
-
     private static final String DB_NAME = "StationCode.db";
 
+    private static final String DICTIONARY_NAME = "StationCode.dic";
+
+    //コード表パッケージを置くディレクトリ名
+    private static final String CODE_TABLE_DIR = "codetables";
+
+    private static final String TAG = "DBUtil";
+
+    //名称は区切り文字(TAB)で連結して1カラムで取得する
+    private static final String SQL_STATION =
+        "select ifnull(CompanyName, '') || '\t' || ifnull(LineName, '') || '\t' || ifnull(StationName, '')"
+        + " from " + TABLE_STATIONCODE
+        + " where AreaCode = ? and LineCode = ? and StationCode = ? order by " + COLUMN_ID + " limit 1";
+
+    private static final String SQL_BUSSTOP =
+        "select ifnull(CompanyName, '') || '\t' || ifnull(StationName, '')"
+        + " from " + TABLE_IRUCA_STATIONCODE
+        + " where LineCode = ? and StationCode = ? order by " + COLUMN_ID + " limit 1";
+
+    private static volatile StationDictionary dictionary;
+    private static volatile StationCodeIndex index;
+    //差し替えたコード表パッケージ (差し替えていない場合はnull)
+    private static volatile CodeTablePackage installed;
+    //組み込みの機器種別、処理種別の表をAssetsから読み込み済みか否か
+    private static volatile boolean codeTableLoaded;
+
+    //コード表パッケージを読み込むスレッド (読み込みは一度に一つ)
+    private static final ExecutorService loader = createLoader();
+
+    private static DBUtil instance;
+
     private SQLiteDatabase dataBase;
+    private SQLiteStatement stationStatement;
+    private SQLiteStatement busStopStatement;
+
+    //コピー済みであることを一度確認したらファイルを再検査しない
+    private volatile boolean dataBaseExists;
 
     private final Context context;
+    private final File dataBaseFile;
     /**
      * コンストラクタ
      * @param context コンテキストをセット
      */
-    public DBUtil(Context context) {
+    private DBUtil(Context context) {
         super(context, DB_NAME, null, 1);
         this.context = context;
+        this.dataBaseFile = context.getDatabasePath(DB_NAME);
+    }
+    /**
+     * インスタンスを取得します
+     * @param context コンテキストをセット
+     * @return DBUtil プロセスで共有されるインスタンスが戻ります
+     */
+    public static synchronized DBUtil getInstance(Context context) {
+        if ( instance == null ) {
+            instance = new DBUtil(context.getApplicationContext());
+        }
+        return instance;
     }
     /**
      * データベースを生成します
      * @throws IOException
      */
-    public void createDataBase() throws IOException{
+    public synchronized void createDataBase() throws IOException{
 
         boolean dbExist = this.isExsistDataBase();
 
@@ -73,6 +145,7 @@ public class DBUtil extends SQLiteOpenHelper {
 
             try {
                 this.copyDataBase();
+                this.dataBaseExists = true;
             } catch (IOException e) {
                 throw new Error("Error copying database");
 
@@ -83,26 +156,14 @@ public class DBUtil extends SQLiteOpenHelper {
 
     /**
      * データベースの有無を検査します
-     * @return /data/data/パッケージ/に既にDBが存在している場合はtrueが戻ります
+     * @return アプリケーションのデータベースディレクトリに既にDBが存在している場合はtrueが戻ります
      */
     private boolean isExsistDataBase(){
-
-        SQLiteDatabase checkDB = null;
-
-        try{
-            String path = DB_PATH + DB_NAME;
-            checkDB = SQLiteDatabase.openDatabase(
-                    path, null, SQLiteDatabase.OPEN_READONLY);
-
-        } catch ( SQLiteException e ){
-            //database does't exist yet.
-        }
-
-        if(checkDB != null){
-            checkDB.close();
+        if ( !this.dataBaseExists ) {
+            File file = this.dataBaseFile;
+            this.dataBaseExists = file.isFile() && file.length() > 0;
         }
-
-        return checkDB != null ? true : false;
+        return this.dataBaseExists;
     }
 
     /**
@@ -115,10 +176,14 @@ public class DBUtil extends SQLiteOpenHelper {
         InputStream in = this.context.getAssets().open(DB_NAME);
 
         // Path to the just created empty db
-        String outFileName = DB_PATH + DB_NAME;
+        File parent = this.dataBaseFile.getParentFile();
+        if ( parent != null && !parent.isDirectory() && !parent.mkdirs() ) {
+            in.close();
+            throw new IOException("can't create directory : " + parent);
+        }
 
         //Open the empty db as the output stream
-        OutputStream out = new FileOutputStream(outFileName);
+        OutputStream out = new FileOutputStream(this.dataBaseFile);
 
         try {
             //transfer bytes from the inputfile to the outputfile
@@ -135,29 +200,329 @@ public class DBUtil extends SQLiteOpenHelper {
     }
     /**
      * データベースをオープンします
+     * <pre>既にオープン済みの場合は同じデータベースが戻ります</pre>
      * @return SQLiteDatabase データベースが戻ります
      * @throws SQLException
      * @throws IOException
      */
-    public SQLiteDatabase openDataBase() throws SQLException, IOException{
+    public synchronized SQLiteDatabase openDataBase() throws SQLException, IOException{
+        if ( this.dataBase != null && this.dataBase.isOpen() ) {
+            return this.dataBase;
+        }
         //必要ならAssetsからコピー
         this.createDataBase();
 
         //Open the database
-        String path = DB_PATH + DB_NAME;
+        String path = this.dataBaseFile.getPath();
         this.dataBase = SQLiteDatabase.openDatabase(
                 path, null, SQLiteDatabase.OPEN_READONLY);
+        this.stationStatement = this.dataBase.compileStatement(SQL_STATION);
+        this.busStopStatement = this.dataBase.compileStatement(SQL_BUSSTOP);
         return this.dataBase;
 
     }
+    /* (non-Javadoc)
+     * @see net.kazzz.felica.suica.StationResolver#getStation(int, int, int)
+     */
+    @Override
+    public synchronized String[] getStation(int areaCode, int lineCode, int stationCode)
+            throws SQLException, IOException {
+        this.openDataBase();
+        //駅コードは10進数の文字列で格納されている
+        this.stationStatement.bindString(1, Integer.toString(areaCode & 0xff));
+        this.stationStatement.bindString(2, Integer.toString(lineCode & 0xff));
+        this.stationStatement.bindString(3, Integer.toString(stationCode & 0xff));
+        return query(this.stationStatement);
+    }
+    /* (non-Javadoc)
+     * @see net.kazzz.felica.suica.StationResolver#getBusStop(int, int)
+     */
+    @Override
+    public synchronized String[] getBusStop(int lineCode, int stationCode)
+            throws SQLException, IOException {
+        this.openDataBase();
+        //停留所コードは16進数の文字列で格納されている
+        this.busStopStatement.bindString(1, Integer.toHexString(lineCode & 0xffff));
+        this.busStopStatement.bindString(2, Integer.toHexString(stationCode & 0xffff));
+        return query(this.busStopStatement);
+    }
+    /**
+     * コンパイル済みのステートメントを実行し、連結された名称を分割します
+     * @param statement パラメタをバインド済みのステートメントをセット
+     * @return String[] 名称が戻ります 見つからない場合はnullが戻ります
+     */
+    private static String[] query(SQLiteStatement statement) {
+        try {
+            return statement.simpleQueryForString().split("\t", -1);
+        } catch (SQLiteDoneException e) {
+            //該当なし
+            return null;
+        } finally {
+            statement.clearBindings();
+        }
+    }
+    /**
+     * 駅コード辞書を取得します
+     * <pre>辞書はAssetsから直接マップして開くため、データベースのようなコピーは発生しません
+     * 一度開いた辞書はプロセス内で共有されます</pre>
+     * @param context コンテキストをセット
+     * @return StationDictionary 駅コード辞書が戻ります
+     * @throws IOException
+     */
+    public static StationDictionary getStationDictionary(Context context) throws IOException {
+        StationDictionary result = dictionary;
+        if ( result == null ) {
+            synchronized (DBUtil.class) {
+                result = dictionary;
+                if ( result == null ) {
+                    result = new StationDictionary(mapAsset(context.getAssets(), DICTIONARY_NAME));
+                    dictionary = result;
+                }
+            }
+        }
+        return result;
+    }
+    /**
+     * 駅コードのインデックスを取得します
+     * <pre>初回呼び出し時にStationCode.dbの全件を読み込んでメモリ上に展開し、プロセス内で共有します</pre>
+     * @param context コンテキストをセット
+     * @return StationCodeIndex 駅コードのインデックスが戻ります
+     * @throws IOException データベースの準備に失敗した場合
+     */
+    public static StationCodeIndex getStationCodeIndex(Context context) throws IOException {
+        StationCodeIndex result = index;
+        if ( result == null ) {
+            synchronized (DBUtil.class) {
+                result = index;
+                if ( result == null ) {
+                    //駅コード辞書を差し替えた場合は、データベースではなく辞書から構築する
+                    CodeTablePackage p = installed;
+                    result = p != null && p.getStationDictionary() != null
+                        ? new StationCodeIndex(p.getStationDictionary())
+                        : loadIndex(getInstance(context).openDataBase());
+                    index = result;
+                }
+            }
+        }
+        return result;
+    }
+    /**
+     * 駅名、停留所の解決に使用する既定のStationResolverを取得します
+     * <pre>駅コード辞書を開ければ辞書を、開けない場合はデータベースを使用します</pre>
+     * @param context コンテキストをセット
+     * @return StationResolver 既定のStationResolverが戻ります
+     */
+    public static StationResolver getStationResolver(Context context) {
+        loadCodeTable(context);
+        try {
+            return getStationDictionary(context);
+        } catch (IOException e) {
+            //辞書が利用できない場合はデータベースを参照
+            return getInstance(context);
+        }
+    }
+    /**
+     * 組み込みの機器種別、処理種別の表をAssetsから読み込み、SuicaCodesにセットします
+     * <pre>読み込みはプロセス内で一度だけです。getStationResolver、reloadCodeTablesからも呼ばれます
+     * 読み込めない場合はログに出力し、SuicaCodesはクラスパスから読み込みます</pre>
+     * @param context コンテキストをセット
+     */
+    public static void loadCodeTable(Context context) {
+        if ( codeTableLoaded ) return;
+        synchronized (DBUtil.class) {
+            if ( codeTableLoaded ) return;
+            try {
+                InputStream in = context.getAssets().open(SuicaCodes.RESOURCE);
+                try {
+                    SuicaCodes.setDefaultTable(CodeTable.parse(new InputStreamReader(in, "UTF-8")));
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "can't load " + SuicaCodes.RESOURCE, e);
+            }
+            //失敗した場合も繰り返し試みない
+            codeTableLoaded = true;
+        }
+    }
+    /**
+     * コード表パッケージを読み込むスレッドを生成します
+     * @return ExecutorService 生成したエグゼキュータが戻ります
+     */
+    private static ExecutorService createLoader() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS
+                , new LinkedBlockingQueue<Runnable>()
+                , new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "CodeTableLoader");
+                        t.setDaemon(true);
+                        t.setPriority(Thread.MIN_PRIORITY);
+                        return t;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+    /**
+     * ファイル領域のコード表パッケージを確認し、差し替え済みのものより新しい版があれば差し替えます
+     * <pre>確認、読み込み、インデックスの再構築はバックグラウンドで行い、呼び出し元はすぐに戻ります
+     * パッケージを開けない場合は差し替えず、現在の表、辞書を使い続けます</pre>
+     * @param context コンテキストをセット
+     */
+    public static void reloadCodeTables(Context context) {
+        //パッケージの表は組み込みの表に重ねるため、先に読み込んでおく
+        loadCodeTable(context);
+        final File root = new File(context.getFilesDir(), CODE_TABLE_DIR);
+        loader.execute(new Runnable() {
+            @Override
+            public void run() {
+                File latest = CodeTablePackage.findLatest(root);
+                if ( latest == null ) return;
+                try {
+                    CodeTablePackage current = installed;
+                    if ( current != null
+                            && CodeTablePackage.readVersion(latest) <= current.getVersion() ) {
+                        return;
+                    }
+                    install(CodeTablePackage.open(latest));
+                } catch (IOException e) {
+                    Log.e(TAG, "can't load code table package : " + latest, e);
+                }
+            }
+        });
+    }
+    /**
+     * コード表パッケージに差し替えます
+     * <pre>駅コードのインデックスを構築済みの場合は、新しい辞書から構築し直してから差し替えます
+     * 差し替えた後に解決を始めたものから新しい表、辞書を使用します
+     * 台帳に記録済みの使用履歴のテキストは、表示する際に版(getCodeTableVersion)を比べて作り直します</pre>
+     * @param p パッケージをセット
+     */
+    public static void install(CodeTablePackage p) {
+        StationDictionary newDictionary = p.getStationDictionary();
+        //構築には時間がかかるため、ロックの外で行う
+        StationCodeIndex newIndex = newDictionary != null && index != null
+            ? new StationCodeIndex(newDictionary) : null;
+        synchronized (DBUtil.class) {
+            if ( newDictionary != null ) {
+                dictionary = newDictionary;
+                //未構築の場合はgetStationCodeIndexで新しい辞書から構築する
+                index = newIndex;
+            }
+            if ( p.getCodeTable() != null ) {
+                SuicaCodes.setTable(p.getCodeTable());
+            }
+            installed = p;
+        }
+        Log.i(TAG, "code table package installed : version " + p.getVersion()
+                + " (" + p.getDirectory() + ")");
+    }
+    /**
+     * 差し替えたコード表パッケージの版を取得します
+     * @return long 版が戻ります (差し替えていない場合は-1)
+     */
+    public static long getCodeTableVersion() {
+        CodeTablePackage p = installed;
+        return p != null ? p.getVersion() : -1;
+    }
+    /**
+     * データベースの全件を読み込んでインデックスを構築します
+     * @param db データベースをセット (DBUtilで共有されているためクローズしない)
+     * @return StationCodeIndex 構築したインデックスが戻ります
+     */
+    private static StationCodeIndex loadIndex(SQLiteDatabase db) {
+        TreeMap<Integer, String[]> stationMap = new TreeMap<Integer, String[]>();
+        TreeMap<Integer, String[]> busStopMap = new TreeMap<Integer, String[]>();
+
+        //駅コードは10進数の文字列で格納されている
+        Cursor c = db.query(TABLE_STATIONCODE, COLUMNS_STATIONCODE
+                , null, null, null, null, COLUMN_ID);
+        try {
+            while ( c.moveToNext() ) {
+                int key = StationDictionary.stationKey(Integer.parseInt(c.getString(0))
+                        , Integer.parseInt(c.getString(1))
+                        , Integer.parseInt(c.getString(2)));
+                //同一キーは先頭(_idの若い方)を優先
+                if ( !stationMap.containsKey(key) ) {
+                    stationMap.put(key
+                            , new String[]{c.getString(3), c.getString(4), c.getString(5)});
+                }
+            }
+        } finally {
+            c.close();
+        }
+
+        //停留所コードは16進数の文字列で格納されている
+        c = db.query(TABLE_IRUCA_STATIONCODE, COLUMNS_IRUCA_STATIONCODE
+                , null, null, null, null, COLUMN_ID);
+        try {
+            while ( c.moveToNext() ) {
+                int key = StationDictionary.busStopKey(Integer.parseInt(c.getString(0), 16)
+                        , Integer.parseInt(c.getString(1), 16));
+                if ( !busStopMap.containsKey(key) ) {
+                    busStopMap.put(key, new String[]{c.getString(2), c.getString(4)});
+                }
+            }
+        } finally {
+            c.close();
+        }
+        return new StationCodeIndex(stationMap, busStopMap);
+    }
+    /**
+     * Assetsのファイルをメモリにマップします
+     * @param assets アセットマネージャをセット
+     * @param name ファイル名をセット
+     * @return ByteBuffer ファイルの内容を保持するバッファが戻ります
+     * @throws IOException
+     */
+    private static ByteBuffer mapAsset(AssetManager assets, String name) throws IOException {
+        try {
+            AssetFileDescriptor fd = assets.openFd(name);
+            try {
+                FileChannel channel = fd.createInputStream().getChannel();
+                return channel.map(FileChannel.MapMode.READ_ONLY
+                        , fd.getStartOffset(), fd.getLength());
+            } finally {
+                fd.close();
+            }
+        } catch (FileNotFoundException e) {
+            //圧縮されて格納されている場合はマップできないので、ダイレクトバッファに読み込む
+            InputStream in = assets.open(name);
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream(in.available());
+                byte[] buffer = new byte[8192];
+                int length;
+                while ((length = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, length);
+                }
+                ByteBuffer result = ByteBuffer.allocateDirect(out.size());
+                result.put(out.toByteArray());
+                result.flip();
+                return result;
+            } finally {
+                in.close();
+            }
+        }
+    }
     /**
      * データベースをクローズします
      */
     @Override
     public synchronized void close() {
-        if( this.dataBase != null )
+        if ( this.stationStatement != null ) {
+            this.stationStatement.close();
+            this.stationStatement = null;
+        }
+        if ( this.busStopStatement != null ) {
+            this.busStopStatement.close();
+            this.busStopStatement = null;
+        }
+        if( this.dataBase != null ) {
             this.dataBase.close();
-         super.close();
+            this.dataBase = null;
+        }
+        super.close();
 
     }
     @Override
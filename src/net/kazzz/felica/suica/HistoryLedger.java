@@ -0,0 +1,395 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica.suica;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UTFDataFormatException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * カード(IDm)毎に使用履歴を蓄積する追記専用の台帳を提供します
+ *
+ * <pre>カードに残る使用履歴は新しいものから20件程度のため、読み込んだ使用履歴を台帳に追記しておき、
+ * 次回以降は台帳にない(より新しい)使用履歴だけをデコード、駅名解決します。
+ * 使用履歴は連番、日付、残高の組で同一か否かを判定します</pre>
+ * <pre>台帳はIDm毎に1ファイル(IDmの16進文字列.ledger)で、1件毎に使用履歴のブロック(16バイト)、
+ * テキストを作成した際のコード表の版(DBUtil#getCodeTableVersion)、表示用のテキストを古い順に書き込みます。
+ * ブロックも保存するため、後から別の形式で書き出すことも、新しいコード表で作り直すこともできます</pre>
+ * <pre>コード表、駅コード辞書を差し替えた後は、版の異なるエントリのテキストをブロックから作り直し、
+ * updateで置き換えます(NFCFeliCaReader#readHistoryDataを参照)</pre>
+ * <pre>追記の途中で中断された場合、開いた際に不完全な(又はテキストが不正な)末尾の1件を切り詰めます</pre>
+ *
+ * @author Kazzz
+ * @date 2011/04/04
+ * @since Android API Level 4
+ *
+ */
+
+public final class HistoryLedger {
+    /** 台帳ファイルの拡張子 */
+    public static final String EXTENSION = ".ledger";
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    /**
+     * 台帳に記録された使用履歴1件を提供します
+     *
+     * @date 2011/04/04
+     * @since Android API Level 4
+     *
+     */
+    public static final class Entry {
+        private final byte[] block;
+        private final String text;
+        private final long version;
+        private final long key;
+
+        /**
+         * コンストラクタ
+         * @param block 使用履歴のブロック(16バイト)をセット
+         * @param text 表示用のテキストをセット
+         * @param version テキストを作成した際のコード表の版をセット (組み込みの表の場合は-1)
+         */
+        public Entry(byte[] block, String text, long version) {
+            if ( block.length != HistoryView.BLOCK_SIZE ) {
+                throw new IllegalArgumentException("block must be "
+                        + HistoryView.BLOCK_SIZE + " bytes : " + block.length);
+            }
+            this.block = block.clone();
+            this.text = text;
+            this.version = version;
+            this.key = keyOf(this.block, 0);
+        }
+        /**
+         * 使用履歴のブロックを取得します
+         * @return byte[] ブロック(16バイト)のコピーが戻ります
+         */
+        public byte[] getBlock() {
+            return this.block.clone();
+        }
+        /**
+         * 使用履歴をプリミティブで参照するビューを取得します
+         * @return HistoryView ビューが戻ります
+         */
+        public HistoryView getView() {
+            return new HistoryView(this.block, 0);
+        }
+        /**
+         * 表示用のテキストを取得します
+         * @return String テキストが戻ります
+         */
+        public String getText() {
+            return this.text;
+        }
+        /**
+         * テキストを作成した際のコード表の版を取得します
+         * @return long 版が戻ります (組み込みの表の場合は-1)
+         */
+        public long getVersion() {
+            return this.version;
+        }
+        /**
+         * 同一性の判定に使用するキーを取得します
+         * @return long キーが戻ります
+         */
+        public long getKey() {
+            return this.key;
+        }
+    }
+
+    /**
+     * 台帳のエントリを受け取るリスナを提供します
+     *
+     * @date 2011/04/04
+     * @since Android API Level 4
+     *
+     */
+    public interface EntryListener {
+        /**
+         * エントリを受け取った際に呼ばれます
+         * @param index 使用履歴の序数(0～、新しいものから)が渡されます
+         * @param entry エントリが渡されます
+         */
+        void onEntry(int index, Entry entry);
+    }
+
+    private final File file;
+    private final byte[] idm;
+    //古い順
+    private final List<Entry> entries = new ArrayList<Entry>();
+    private final Set<Long> keys = new HashSet<Long>();
+
+    /**
+     * コンストラクタ
+     * @param file 台帳ファイルをセット
+     * @param idm IDmのバイト列をセット
+     */
+    private HistoryLedger(File file, byte[] idm) {
+        this.file = file;
+        this.idm = idm.clone();
+    }
+    /**
+     * IDmの台帳を開きます
+     * <pre>台帳ファイルが無い場合は空の台帳が戻ります(ファイルは最初の追記で作成します)</pre>
+     * @param dir 台帳を置くディレクトリをセット (無い場合は作成します)
+     * @param idm IDmのバイト列をセット
+     * @return HistoryLedger 台帳が戻ります
+     * @throws IOException
+     */
+    public static HistoryLedger open(File dir, byte[] idm) throws IOException {
+        if ( !dir.isDirectory() && !dir.mkdirs() ) {
+            throw new IOException("can not create directory : " + dir);
+        }
+        HistoryLedger ledger = new HistoryLedger(new File(dir, toHex(idm) + EXTENSION), idm);
+        ledger.load();
+        return ledger;
+    }
+    /**
+     * 使用履歴のブロックから同一性の判定に使用するキーを取得します
+     * <pre>連番(24ビット)、日付(16ビット)、残高(16ビット)を一つのlongにまとめたものです</pre>
+     * @param buffer ブロックを含むバイト列をセット
+     * @param offset ブロックの開始位置をセット
+     * @return long キーが戻ります
+     */
+    public static long keyOf(byte[] buffer, int offset) {
+        HistoryView view = new HistoryView(buffer, offset);
+        return ((long) view.getSequence() << 32)
+            | ((long) view.getRawDate() << 16)
+            | (view.getBalance() & 0xffff);
+    }
+    /**
+     * 台帳ファイルを読み込みます
+     * @throws IOException
+     */
+    private void load() throws IOException {
+        if ( !this.file.exists() ) return;
+        long valid = 0;
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(this.file)));
+        try {
+            byte[] block = new byte[HistoryView.BLOCK_SIZE];
+            while ( true ) {
+                try {
+                    in.readFully(block);
+                    long version = in.readLong();
+                    String text = in.readUTF();
+                    this.add(new Entry(block, text, version));
+                    valid += HistoryView.BLOCK_SIZE + 8 + 2 + utfLength(text);
+                } catch (EOFException e) {
+                    break;
+                } catch (UTFDataFormatException e) {
+                    //テキストの途中で中断され、長さと内容が食い違っている末尾は切り詰める
+                    break;
+                }
+            }
+        } finally {
+            in.close();
+        }
+        if ( valid < this.file.length() ) {
+            //追記の途中で中断された末尾を切り詰める
+            RandomAccessFile raf = new RandomAccessFile(this.file, "rw");
+            try {
+                raf.setLength(valid);
+            } finally {
+                raf.close();
+            }
+        }
+    }
+    /**
+     * エントリをメモリ上の台帳に追加します
+     * @param entry エントリをセット
+     * @return boolean 追加した場合trueが、既にあった場合falseが戻ります
+     */
+    private boolean add(Entry entry) {
+        if ( !this.keys.add(entry.getKey()) ) return false;
+        this.entries.add(entry);
+        return true;
+    }
+    /**
+     * IDmのバイト列を取得します
+     * @return byte[] IDmのバイト列が戻ります
+     */
+    public byte[] getIDm() {
+        return this.idm.clone();
+    }
+    /**
+     * 台帳ファイルを取得します
+     * @return File 台帳ファイルが戻ります
+     */
+    public File getFile() {
+        return this.file;
+    }
+    /**
+     * 台帳に記録された使用履歴の件数を取得します
+     * @return int 件数が戻ります
+     */
+    public synchronized int size() {
+        return this.entries.size();
+    }
+    /**
+     * 使用履歴が台帳に記録済みか否かを検査します
+     * <pre>ブロックのデコードや駅名解決は行いません</pre>
+     * @param buffer ブロックを含むバイト列をセット
+     * @param offset ブロックの開始位置をセット
+     * @return boolean 記録済みの場合trueが戻ります
+     */
+    public synchronized boolean contains(byte[] buffer, int offset) {
+        return this.keys.contains(keyOf(buffer, offset));
+    }
+    /**
+     * 台帳に記録された使用履歴を新しいものから順に取得します
+     * @return List&lt;Entry&gt; 使用履歴が戻ります (コピーのため、追記しても変わりません)
+     */
+    public synchronized List<Entry> getEntries() {
+        List<Entry> result = new ArrayList<Entry>(this.entries);
+        Collections.reverse(result);
+        return result;
+    }
+    /**
+     * 台帳に記録された使用履歴を新しいものから順に、指定した件数まで取得します
+     * <pre>台帳は増え続けるため、表示等で全件を必要としない場合はこちらを使用します</pre>
+     * @param limit 取得する件数の上限をセット
+     * @return List&lt;Entry&gt; 使用履歴が戻ります (コピーのため、追記しても変わりません)
+     */
+    public synchronized List<Entry> getEntries(int limit) {
+        int count = Math.min(Math.max(limit, 0), this.entries.size());
+        List<Entry> result = new ArrayList<Entry>(count);
+        for ( int i = this.entries.size() - 1; result.size() < count; i-- ) {
+            result.add(this.entries.get(i));
+        }
+        return result;
+    }
+    /**
+     * 使用履歴を台帳に追記します
+     * <pre>カードから読み込んだ順(新しいものから)に渡します。台帳には古いものから書き込み、
+     * 記録済みのものは書き込みません。全件を1度のファイル操作で書き込みます</pre>
+     * @param newer 追記する使用履歴を新しいものから順にセット
+     * @return int 追記した件数が戻ります
+     * @throws IOException
+     */
+    public synchronized int append(List<Entry> newer) throws IOException {
+        List<Entry> added = new ArrayList<Entry>(newer.size());
+        for ( int i = newer.size() - 1; i >= 0; i-- ) {
+            Entry e = newer.get(i);
+            if ( this.add(e) ) added.add(e);
+        }
+        if ( added.isEmpty() ) return 0;
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(this.file, true)));
+        try {
+            for ( Entry e : added ) {
+                write(out, e);
+            }
+        } finally {
+            out.close();
+        }
+        return added.size();
+    }
+    /**
+     * 記録済みの使用履歴のテキストを置き換えます
+     * <pre>コード表を差し替えた後に、ブロックから作り直したテキストで置き換えるために使用します。
+     * 台帳にないもの、テキストと版が変わらないものは無視します。置き換えた場合は台帳ファイル全体を
+     * 一時ファイルに書き込んでから名前の変更で置き換えるため、中断しても元の台帳は失われません</pre>
+     * @param rendered 作り直した使用履歴をセット
+     * @return int 置き換えた件数が戻ります
+     * @throws IOException
+     */
+    public synchronized int update(List<Entry> rendered) throws IOException {
+        Map<Long, Entry> byKey = new HashMap<Long, Entry>();
+        for ( Entry e : rendered ) {
+            byKey.put(e.getKey(), e);
+        }
+        int replaced = 0;
+        for ( int i = 0; i < this.entries.size(); i++ ) {
+            Entry current = this.entries.get(i);
+            Entry e = byKey.get(current.getKey());
+            if ( e == null || e == current ) continue;
+            if ( e.version == current.version && e.text.equals(current.text) ) continue;
+            this.entries.set(i, e);
+            replaced++;
+        }
+        if ( replaced == 0 ) return 0;
+        File temp = new File(this.file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            for ( Entry e : this.entries ) {
+                write(out, e);
+            }
+        } finally {
+            out.close();
+        }
+        if ( !temp.renameTo(this.file) ) {
+            temp.delete();
+            throw new IOException("can not replace " + this.file);
+        }
+        return replaced;
+    }
+    /**
+     * エントリ1件を書き出します
+     * @param out 出力先をセット
+     * @param e エントリをセット
+     * @throws IOException
+     */
+    private static void write(DataOutputStream out, Entry e) throws IOException {
+        out.write(e.block);
+        out.writeLong(e.version);
+        out.writeUTF(e.text);
+    }
+    /**
+     * 文字列をmodified UTF-8で書き出した際のバイト数を取得します
+     * @param s 文字列をセット
+     * @return int バイト数が戻ります
+     */
+    private static int utfLength(String s) {
+        int length = 0;
+        for ( int i = 0; i < s.length(); i++ ) {
+            char c = s.charAt(i);
+            if ( c >= 0x0001 && c <= 0x007f ) {
+                length += 1;
+            } else if ( c > 0x07ff ) {
+                length += 3;
+            } else {
+                length += 2;
+            }
+        }
+        return length;
+    }
+    /**
+     * バイト列を16進文字列にします
+     * @param bytes バイト列をセット
+     * @return String 16進文字列(大文字)が戻ります
+     */
+    private static String toHex(byte[] bytes) {
+        char[] c = new char[bytes.length * 2];
+        for ( int i = 0; i < bytes.length; i++ ) {
+            c[i * 2] = HEX[(bytes[i] >> 4) & 0x0f];
+            c[i * 2 + 1] = HEX[bytes[i] & 0x0f];
+        }
+        return new String(c);
+    }
+}
@@ -0,0 +1,368 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica.suica;
+
+import java.io.IOException;
+import java.text.NumberFormat;
+
+/**
+ * 使用履歴を文字列として書き出すレンダラを提供します
+ *
+ * <pre>出力先は呼び出し側が用意したAppendable(StringBuilder、Writer等)で、日付や数値は
+ * HistoryViewから直接書き出すため、使用履歴1件毎にDateやフォーマッタを生成しません
+ * 入場駅、出場駅は1件につき一度だけ解決します(バスの場合は1回の検索を入出場で共有します)</pre>
+ * <pre>インスタンスは不変でスレッドセーフです。通貨のフォーマッタはスレッド毎に一つだけ生成して使い回します</pre>
+ *
+ * @author Kazzz
+ * @date 2011/03/24
+ * @since Android API Level 4
+ *
+ */
+
+public final class HistoryRenderer {
+    /**
+     * 出力形式を提供します
+     */
+    public enum Template {
+        /** 画面表示用のテキスト (Suica.History#toStringと同じ形式) */
+        TEXT,
+        /** CSVの1行 (header()で見出し行を書き出します) */
+        CSV,
+        /** JSONのオブジェクト */
+        JSON
+    }
+
+    /** CSVの見出し行 */
+    public static final String CSV_HEADER =
+        "index,sequence,date,time,console,console_name,process,process_name,balance"
+        + ",region,entrance_key,exit_key,entrance_company,entrance_line,entrance_station"
+        + ",exit_company,exit_line,exit_station,raw\n";
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final String[] UNKNOWN = {"???", "???", "???"};
+    private static final String[] ERROR = {"error", "error", "error"};
+
+    //NumberFormatはスレッドセーフではないため、スレッド毎に保持する
+    private static final ThreadLocal<NumberFormat> CURRENCY = new ThreadLocal<NumberFormat>() {
+        @Override
+        protected NumberFormat initialValue() {
+            NumberFormat nf = NumberFormat.getCurrencyInstance();
+            nf.setMaximumFractionDigits(0);
+            return nf;
+        }
+    };
+
+    private final Template template;
+    private final StationResolver resolver;
+
+    /**
+     * コンストラクタ
+     * @param template 出力形式をセット
+     * @param resolver 駅名、停留所を解決するStationResolverをセット (nullの場合は名称を解決しない)
+     */
+    public HistoryRenderer(Template template, StationResolver resolver) {
+        this.template = template;
+        this.resolver = resolver;
+    }
+    /**
+     * 出力形式を取得します
+     * @return Template 出力形式が戻ります
+     */
+    public Template getTemplate() {
+        return this.template;
+    }
+    /**
+     * 出力の見出しを書き出します
+     * <pre>CSVの場合は見出し行を書き出します。それ以外の場合は何もしません</pre>
+     * @param out 出力先をセット
+     * @throws IOException
+     */
+    public void header(Appendable out) throws IOException {
+        if ( this.template == Template.CSV ) {
+            out.append(CSV_HEADER);
+        }
+    }
+    /**
+     * 使用履歴を書き出します
+     * @param index 使用履歴の通し番号をセット (TEXTの場合は使用しません)
+     * @param history 使用履歴をセット
+     * @param out 出力先をセット
+     * @throws IOException
+     */
+    public void render(long index, Suica.History history, Appendable out) throws IOException {
+        this.render(index, history.getView(), out);
+    }
+    /**
+     * 使用履歴を書き出します
+     * @param index 使用履歴の通し番号をセット (TEXTの場合は使用しません)
+     * @param view 使用履歴をセット
+     * @param out 出力先をセット
+     * @throws IOException
+     */
+    public void render(long index, HistoryView view, Appendable out) throws IOException {
+        //入場駅、出場駅は書き出す前に一度だけ解決する (物販の場合、解決できなかった場合はnull)
+        String[] entrance = null;
+        String[] exit = null;
+        if ( this.resolver != null && !view.isProductSales() ) {
+            if ( view.isByBus() ) {
+                //入場と出場は同じ停留所
+                entrance = resolveBusStop(this.resolver
+                        , view.getBusLineCode(), view.getBusStopCode());
+                exit = entrance;
+            } else {
+                entrance = resolveStation(this.resolver, view.getRegionCode()
+                        , view.getEntranceLineCode(), view.getEntranceStationCode());
+                //チャージの場合、テキストには出場駅を表示しない
+                if ( !view.isCharge() || this.template != Template.TEXT ) {
+                    exit = resolveStation(this.resolver, view.getRegionCode()
+                            , view.getExitLineCode(), view.getExitStationCode());
+                }
+            }
+        }
+        switch (this.template) {
+        case TEXT:
+            this.renderText(view, entrance, exit, out);
+            break;
+        case CSV:
+            this.renderCsv(index, view, entrance, exit, out);
+            break;
+        default:
+            this.renderJson(index, view, entrance, exit, out);
+            break;
+        }
+    }
+    /**
+     * 駅名を解決します
+     * @param resolver StationResolverをセット
+     * @param areaCode 地区コードをセット
+     * @param lineCode 線区コードをセット
+     * @param stationCode 駅順コードをセット
+     * @return String[] 会社名、路線名、駅名が戻ります 見つからない場合はnull、例外の場合は"error"が戻ります
+     */
+    static String[] resolveStation(StationResolver resolver
+            , int areaCode, int lineCode, int stationCode) {
+        try {
+            return resolver.getStation(areaCode, lineCode, stationCode);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return ERROR.clone();
+        }
+    }
+    /**
+     * 停留所を解決します
+     * @param resolver StationResolverをセット
+     * @param lineCode 線区コードをセット
+     * @param stationCode 停留所コードをセット
+     * @return String[] 会社名、停留所名が戻ります 見つからない場合はnull、例外の場合は"error"が戻ります
+     */
+    static String[] resolveBusStop(StationResolver resolver, int lineCode, int stationCode) {
+        try {
+            return resolver.getBusStop(lineCode, stationCode);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return ERROR.clone();
+        }
+    }
+    /**
+     * 画面表示用のテキストを書き出します
+     * @param view 使用履歴をセット
+     * @param entrance 入場駅をセット
+     * @param exit 出場駅をセット
+     * @param out 出力先をセット
+     * @throws IOException
+     */
+    private void renderText(HistoryView view, String[] entrance, String[] exit, Appendable out)
+            throws IOException {
+        out.append("機器種別: ").append(SuicaCodes.getConsoleType(view.getConsoleTypeCode())).append('\n');
+        out.append("処理種別: ").append(SuicaCodes.getProcessType(view.getProcessTypeCode())).append('\n');
+        out.append("処理日付: ");
+        appendDate(out, view, '/');
+        if ( !view.isProductSales() ) {
+            out.append('\n');
+            String[] e = entrance != null ? entrance : UNKNOWN;
+            if ( view.isByBus() ) {
+                out.append("利用会社: ").append(e[0]);
+                out.append("停留所: ").append(e[1]).append('\n');
+            } else {
+                out.append("入場: \n");
+                out.append("  利用会社: ").append(e[0]).append('\n');
+                out.append("  路線名: ").append(e[1]).append("線\n");
+                out.append("  駅名: ").append(e[2]).append('\n');
+                if ( !view.isCharge() ) {
+                    String[] x = exit != null ? exit : UNKNOWN;
+                    out.append("出場: \n");
+                    out.append("  利用会社: ").append(x[0]).append('\n');
+                    out.append("  路線名: ").append(x[1]).append("線\n");
+                    out.append("  駅名: ").append(x[2]).append('\n');
+                }
+            }
+        } else {
+            out.append(' ');
+            appendTime(out, view);
+            out.append(":00\n");
+        }
+        out.append("残高: ").append(CURRENCY.get().format(view.getBalance())).append('\n');
+    }
+    /**
+     * CSVの1行を書き出します
+     * @param index 通し番号をセット
+     * @param view 使用履歴をセット
+     * @param entrance 入場駅をセット
+     * @param exit 出場駅をセット
+     * @param out 出力先をセット
+     * @throws IOException
+     */
+    private void renderCsv(long index, HistoryView view, String[] entrance, String[] exit
+            , Appendable out) throws IOException {
+        appendNumber(out, index).append(',');
+        appendNumber(out, view.getSequence()).append(',');
+        appendDate(out, view, '-').append(',');
+        if ( view.isProductSales() ) appendTime(out, view);
+        out.append(',');
+        appendNumber(out, view.getConsoleTypeCode()).append(',');
+        csv(out, SuicaCodes.getConsoleType(view.getConsoleTypeCode())).append(',');
+        appendNumber(out, view.getProcessTypeCode()).append(',');
+        csv(out, SuicaCodes.getProcessType(view.getProcessTypeCode())).append(',');
+        appendNumber(out, view.getBalance()).append(',');
+        appendNumber(out, view.getRegionCode()).append(',');
+        appendNumber(out, view.getEntranceKey()).append(',');
+        appendNumber(out, view.getExitKey()).append(',');
+        this.csvStation(out, view, entrance);
+        this.csvStation(out, view, exit);
+        appendRaw(out, view).append('\n');
+    }
+    /**
+     * CSVの駅名の3カラムを書き出します
+     * <pre>バスの場合は路線名のカラムを空にします</pre>
+     */
+    private void csvStation(Appendable out, HistoryView view, String[] names) throws IOException {
+        if ( names == null ) {
+            out.append(",,,");
+        } else if ( view.isByBus() ) {
+            csv(out, names[0]).append(",,");
+            csv(out, names[1]).append(',');
+        } else {
+            csv(out, names[0]).append(',');
+            csv(out, names[1]).append(',');
+            csv(out, names[2]).append(',');
+        }
+    }
+    /**
+     * JSONのオブジェクトを書き出します
+     * <pre>StationResolverがない場合、entrance、exitは出力しません</pre>
+     * @param index 通し番号をセット
+     * @param view 使用履歴をセット
+     * @param entrance 入場駅をセット
+     * @param exit 出場駅をセット
+     * @param out 出力先をセット
+     * @throws IOException
+     */
+    private void renderJson(long index, HistoryView view, String[] entrance, String[] exit
+            , Appendable out) throws IOException {
+        appendNumber(out.append("{\"index\":"), index);
+        appendNumber(out.append(",\"sequence\":"), view.getSequence());
+        appendDate(out.append(",\"date\":\""), view, '-').append('"');
+        out.append(",\"time\":\"");
+        if ( view.isProductSales() ) appendTime(out, view);
+        out.append('"');
+        appendNumber(out.append(",\"console\":"), view.getConsoleTypeCode());
+        json(out.append(",\"consoleName\":"), SuicaCodes.getConsoleType(view.getConsoleTypeCode()));
+        appendNumber(out.append(",\"process\":"), view.getProcessTypeCode());
+        json(out.append(",\"processName\":"), SuicaCodes.getProcessType(view.getProcessTypeCode()));
+        appendNumber(out.append(",\"balance\":"), view.getBalance());
+        appendNumber(out.append(",\"region\":"), view.getRegionCode());
+        appendNumber(out.append(",\"entranceKey\":"), view.getEntranceKey());
+        appendNumber(out.append(",\"exitKey\":"), view.getExitKey());
+        if ( this.resolver != null ) {
+            this.jsonStation(out.append(",\"entrance\":"), view, entrance);
+            this.jsonStation(out.append(",\"exit\":"), view, exit);
+        }
+        appendRaw(out.append(",\"raw\":\""), view).append("\"}");
+    }
+    /**
+     * JSONの駅名の配列(会社名、路線名、駅名)を書き出します
+     * <pre>バスの場合は路線名を空にします</pre>
+     */
+    private void jsonStation(Appendable out, HistoryView view, String[] names) throws IOException {
+        if ( names == null ) {
+            out.append("[\"\",\"\",\"\"]");
+        } else if ( view.isByBus() ) {
+            json(out.append('['), names[0]).append(",\"\",");
+            json(out, names[1]).append(']');
+        } else {
+            json(out.append('['), names[0]).append(',');
+            json(out, names[1]).append(',');
+            json(out, names[2]).append(']');
+        }
+    }
+    private static Appendable appendDate(Appendable out, HistoryView view, char separator)
+            throws IOException {
+        appendNumber(out, view.getYear()).append(separator);
+        pad2(out, view.getMonth()).append(separator);
+        return pad2(out, view.getDay());
+    }
+    private static Appendable appendTime(Appendable out, HistoryView view) throws IOException {
+        int time = view.getTime();
+        pad2(out, time / 100).append(':');
+        return pad2(out, time % 100);
+    }
+    private static Appendable appendRaw(Appendable out, HistoryView view) throws IOException {
+        byte[] buffer = view.getBuffer();
+        for ( int i = 0; i < HistoryView.BLOCK_SIZE; i++ ) {
+            int b = buffer[view.getOffset() + i] & 0xff;
+            out.append(HEX[b >> 4]).append(HEX[b & 0xf]);
+        }
+        return out;
+    }
+    private static Appendable appendNumber(Appendable out, long v) throws IOException {
+        if ( out instanceof StringBuilder ) {
+            return ((StringBuilder) out).append(v);
+        }
+        return out.append(Long.toString(v));
+    }
+    private static Appendable pad2(Appendable out, int v) throws IOException {
+        return out.append((char) ('0' + v / 10 % 10)).append((char) ('0' + v % 10));
+    }
+    private static Appendable csv(Appendable out, String s) throws IOException {
+        if ( s == null ) return out;
+        if ( s.indexOf(',') < 0 && s.indexOf('"') < 0 && s.indexOf('\n') < 0 ) return out.append(s);
+        out.append('"');
+        for ( int i = 0; i < s.length(); i++ ) {
+            char c = s.charAt(i);
+            if ( c == '"' ) out.append('"');
+            out.append(c);
+        }
+        return out.append('"');
+    }
+    private static Appendable json(Appendable out, String s) throws IOException {
+        if ( s == null ) return out.append("null");
+        out.append('"');
+        for ( int i = 0; i < s.length(); i++ ) {
+            char c = s.charAt(i);
+            switch (c) {
+            case '"':  out.append("\\\""); break;
+            case '\\': out.append("\\\\"); break;
+            case '\n': out.append("\\n"); break;
+            case '\r': out.append("\\r"); break;
+            case '\t': out.append("\\t"); break;
+            default:
+                if ( c < 0x20 ) {
+                    out.append("\\u00").append(HEX[c >> 4]).append(HEX[c & 0xf]);
+                } else {
+                    out.append(c);
+                }
+            }
+        }
+        return out.append('"');
+    }
+}
@@ -0,0 +1,571 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica.suica;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * デコードした使用履歴を列指向で保持するストアを提供します
+ *
+ * <pre>使用履歴を一定件数毎のセグメントに分け、セグメント内では項目(日付、時刻、機器種別、処理種別、
+ * 入場駅、出場駅、残高、連番)毎に列として格納します。日付、残高、連番は前の値との差分を、
+ * 駅のキーは値そのものを、ZigZag符号化した可変長整数で書き込みます</pre>
+ * <pre>セグメント毎に日付の最小値、最大値を保持するため、範囲外のセグメントはデコードせずに飛ばします。
+ * scanはCursorを使い回して1件ずつ通知するため、使用履歴毎にオブジェクトを生成しません</pre>
+ * <pre>使用履歴は古いものから順に追加します(HistoryLedgerと同じ順序です)</pre>
+ *
+ * @author Kazzz
+ * @date 2011/04/05
+ * @since Android API Level 4
+ *
+ */
+
+public final class HistoryStore {
+    /** ストアファイルの拡張子 */
+    public static final String EXTENSION = ".store";
+    /** 1セグメントの規定の件数 */
+    public static final int DEFAULT_SEGMENT_SIZE = 256;
+
+    private static final int MAGIC = 0x48535452; // "HSTR"
+    private static final int VERSION = 1;
+
+    //列
+    private static final int DATE = 0;
+    private static final int TIME = 1;
+    private static final int CONSOLE = 2;
+    private static final int PROCESS = 3;
+    private static final int ENTRANCE = 4;
+    private static final int EXIT = 5;
+    private static final int BALANCE = 6;
+    private static final int SEQUENCE = 7;
+    private static final int COLUMNS = 8;
+
+    //差分で格納する列
+    private static final boolean[] DELTA = {true, false, false, false, false, false, true, true};
+
+    /**
+     * scanで使用履歴を1件ずつ受け取るビジタを提供します
+     *
+     * @date 2011/04/05
+     * @since Android API Level 4
+     *
+     */
+    public interface Visitor {
+        /**
+         * 使用履歴を1件読み込む毎に呼ばれます
+         * <pre>cursorは使い回されるため、呼び出しの後で参照してはいけません</pre>
+         * @param cursor 読み込んだ使用履歴を指すカーソルが渡されます
+         * @return boolean 続けて読み込む場合はtrueを、中断する場合はfalseを戻します
+         */
+        boolean onRecord(Cursor cursor);
+    }
+
+    /**
+     * scanで読み込んだ使用履歴1件を指すカーソルを提供します
+     *
+     * @date 2011/04/05
+     * @since Android API Level 4
+     *
+     */
+    public static final class Cursor {
+        private final int[] values = new int[COLUMNS];
+        private final int[] positions = new int[COLUMNS];
+        private int previousBalance;
+        private Segment segment;
+
+        Cursor() {
+        }
+        /**
+         * セグメントの先頭に位置づけます
+         * @param segment セグメントをセット
+         */
+        void reset(Segment segment) {
+            this.segment = segment;
+            for ( int i = 0; i < COLUMNS; i++ ) {
+                this.values[i] = 0;
+                this.positions[i] = 0;
+            }
+            this.previousBalance = segment.previousBalance;
+        }
+        /**
+         * 次の使用履歴を読み込みます
+         */
+        void next() {
+            if ( this.positions[BALANCE] > 0 ) {
+                this.previousBalance = this.values[BALANCE];
+            }
+            byte[][] columns = this.segment.columns;
+            for ( int i = 0; i < COLUMNS; i++ ) {
+                int v = this.readVarint(columns[i], i);
+                this.values[i] = DELTA[i] ? this.values[i] + v : v;
+            }
+        }
+        /**
+         * 列から可変長整数を1つ読み込みます
+         * @param column 列をセット
+         * @param index 列の序数をセット
+         * @return int ZigZag符号化を戻した値が戻ります
+         */
+        private int readVarint(byte[] column, int index) {
+            int pos = this.positions[index];
+            int result = 0;
+            int shift = 0;
+            int b;
+            do {
+                b = column[pos++];
+                result |= (b & 0x7f) << shift;
+                shift += 7;
+            } while ( (b & 0x80) != 0 );
+            this.positions[index] = pos;
+            return (result >>> 1) ^ -(result & 1);
+        }
+        /**
+         * 処理日付を取得します
+         * @return int 処理日付(yyyyMMdd)が戻ります
+         */
+        public int getDate() {
+            return this.values[DATE];
+        }
+        /**
+         * 処理時刻を取得します
+         * @return int 処理時刻(HHmm)が戻ります (物販以外は0)
+         */
+        public int getTime() {
+            return this.values[TIME];
+        }
+        /**
+         * 機器種別のコードを取得します
+         * @return int 機器種別(0x00～0xff)が戻ります
+         */
+        public int getConsoleTypeCode() {
+            return this.values[CONSOLE];
+        }
+        /**
+         * 処理種別のコードを取得します
+         * @return int 処理種別(0x00～0xff)が戻ります
+         */
+        public int getProcessTypeCode() {
+            return this.values[PROCESS];
+        }
+        /**
+         * 入場駅のキーを取得します
+         * @return int HistoryView#getEntranceKeyと同じ値が戻ります
+         */
+        public int getEntranceKey() {
+            return this.values[ENTRANCE];
+        }
+        /**
+         * 出場駅のキーを取得します
+         * @return int HistoryView#getExitKeyと同じ値が戻ります
+         */
+        public int getExitKey() {
+            return this.values[EXIT];
+        }
+        /**
+         * 残高を取得します
+         * @return int 残高が戻ります
+         */
+        public int getBalance() {
+            return this.values[BALANCE];
+        }
+        /**
+         * 一つ前の使用履歴の残高を取得します
+         * @return int 残高が戻ります (最初の使用履歴の場合は-1)
+         */
+        public int getPreviousBalance() {
+            return this.previousBalance;
+        }
+        /**
+         * 連番を取得します
+         * @return int 連番が戻ります
+         */
+        public int getSequence() {
+            return this.values[SEQUENCE];
+        }
+        /**
+         * 支払額を取得します
+         * <pre>一つ前の使用履歴から残高が減った額です。チャージ等で増えた場合、最初の使用履歴の場合は0です</pre>
+         * @return int 支払額が戻ります
+         */
+        public int getSpend() {
+            if ( this.previousBalance < 0 ) return 0;
+            return Math.max(0, this.previousBalance - this.values[BALANCE]);
+        }
+        /**
+         * 処理種別がバス利用か否かを検査します
+         * @return boolean バス利用の場合trueが戻ります
+         */
+        public boolean isByBus() {
+            return SuicaCodes.isByBus(this.values[CONSOLE]);
+        }
+        /**
+         * 端末種別が「物販」か否かを判定します
+         * @return boolean 物販だった場合はtrueが戻ります
+         */
+        public boolean isProductSales() {
+            return SuicaCodes.isProductSales(this.values[CONSOLE]);
+        }
+        /**
+         * 処理種別が「チャージ」か否かを判定します
+         * @return boolean チャージだった場合はtrueが戻ります
+         */
+        public boolean isCharge() {
+            return SuicaCodes.isCharge(this.values[PROCESS]);
+        }
+    }
+
+    /**
+     * 一定件数の使用履歴を列毎に格納するセグメントを提供します
+     */
+    static final class Segment {
+        final byte[][] columns = new byte[COLUMNS][];
+        final int[] lengths = new int[COLUMNS];
+        //差分の基準となる直前の値
+        final int[] last = new int[COLUMNS];
+        int count;
+        int minDate = Integer.MAX_VALUE;
+        int maxDate = Integer.MIN_VALUE;
+        int previousBalance;
+
+        /**
+         * コンストラクタ
+         * @param previousBalance 直前のセグメントの最後の残高をセット (最初のセグメントは-1)
+         */
+        Segment(int previousBalance) {
+            this.previousBalance = previousBalance;
+            for ( int i = 0; i < COLUMNS; i++ ) {
+                this.columns[i] = new byte[64];
+            }
+        }
+        /**
+         * 使用履歴を1件追加します
+         * @param values 列毎の値をセット
+         */
+        void append(int[] values) {
+            for ( int i = 0; i < COLUMNS; i++ ) {
+                int v = DELTA[i] ? values[i] - this.last[i] : values[i];
+                this.writeVarint(i, (v << 1) ^ (v >> 31));
+                this.last[i] = values[i];
+            }
+            this.minDate = Math.min(this.minDate, values[DATE]);
+            this.maxDate = Math.max(this.maxDate, values[DATE]);
+            this.count++;
+        }
+        /**
+         * 列に可変長整数を1つ書き込みます
+         * @param index 列の序数をセット
+         * @param value ZigZag符号化した値をセット
+         */
+        private void writeVarint(int index, int value) {
+            byte[] column = this.columns[index];
+            int pos = this.lengths[index];
+            if ( pos + 5 > column.length ) {
+                byte[] grown = new byte[column.length * 2];
+                System.arraycopy(column, 0, grown, 0, pos);
+                column = grown;
+                this.columns[index] = column;
+            }
+            while ( (value & ~0x7f) != 0 ) {
+                column[pos++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            column[pos++] = (byte) value;
+            this.lengths[index] = pos;
+        }
+        /**
+         * 日付の範囲と重なるか否かを検査します
+         * @param fromDate 開始日(yyyyMMdd、この日を含む)をセット
+         * @param toDate 終了日(yyyyMMdd、この日を含む)をセット
+         * @return boolean 重なる場合trueが戻ります
+         */
+        boolean overlaps(int fromDate, int toDate) {
+            return this.count > 0 && this.maxDate >= fromDate && this.minDate <= toDate;
+        }
+        /**
+         * 格納に使用しているバイト数を取得します
+         * @return int バイト数が戻ります
+         */
+        int getEncodedSize() {
+            int size = 0;
+            for ( int i = 0; i < COLUMNS; i++ ) {
+                size += this.lengths[i];
+            }
+            return size;
+        }
+        /**
+         * セグメントを書き出します
+         * @param out 出力先をセット
+         * @throws IOException
+         */
+        void writeTo(DataOutputStream out) throws IOException {
+            out.writeInt(this.count);
+            out.writeInt(this.minDate);
+            out.writeInt(this.maxDate);
+            out.writeInt(this.previousBalance);
+            for ( int i = 0; i < COLUMNS; i++ ) {
+                out.writeInt(this.lengths[i]);
+                out.write(this.columns[i], 0, this.lengths[i]);
+            }
+        }
+        /**
+         * セグメントを読み込みます
+         * <pre>続けて追加できるよう、差分の基準となる最後の値をデコードして復元します</pre>
+         * @param in 入力元をセット
+         * @return Segment セグメントが戻ります
+         * @throws IOException
+         */
+        static Segment readFrom(DataInputStream in) throws IOException {
+            Segment s = new Segment(0);
+            s.count = in.readInt();
+            s.minDate = in.readInt();
+            s.maxDate = in.readInt();
+            s.previousBalance = in.readInt();
+            for ( int i = 0; i < COLUMNS; i++ ) {
+                int length = in.readInt();
+                s.columns[i] = new byte[Math.max(length + 5, 64)];
+                in.readFully(s.columns[i], 0, length);
+                s.lengths[i] = length;
+            }
+            Cursor c = new Cursor();
+            c.reset(s);
+            for ( int n = 0; n < s.count; n++ ) {
+                c.next();
+            }
+            System.arraycopy(c.values, 0, s.last, 0, COLUMNS);
+            return s;
+        }
+    }
+
+    private final int segmentSize;
+    //テスト(HistoryStoreTest)から各セグメントの日付の範囲を参照するためパッケージプライベート
+    final List<Segment> segments = new ArrayList<Segment>();
+    private final int[] values = new int[COLUMNS];
+    private int size;
+
+    /**
+     * コンストラクタ
+     */
+    public HistoryStore() {
+        this(DEFAULT_SEGMENT_SIZE);
+    }
+    /**
+     * コンストラクタ
+     * @param segmentSize 1セグメントの件数をセット
+     */
+    public HistoryStore(int segmentSize) {
+        if ( segmentSize < 1 ) {
+            throw new IllegalArgumentException("segmentSize must be positive : " + segmentSize);
+        }
+        this.segmentSize = segmentSize;
+    }
+    /**
+     * 台帳に記録された全ての使用履歴からストアを作成します
+     * @param ledger 台帳をセット
+     * @return HistoryStore ストアが戻ります
+     */
+    public static HistoryStore of(HistoryLedger ledger) {
+        HistoryStore store = new HistoryStore();
+        List<HistoryLedger.Entry> entries = ledger.getEntries();
+        //台帳のエントリは新しいものから順に戻る
+        for ( int i = entries.size() - 1; i >= 0; i-- ) {
+            store.append(entries.get(i).getView());
+        }
+        return store;
+    }
+    /**
+     * 使用履歴を1件追加します
+     * @param view 使用履歴をセット (前回追加したものより新しいもの)
+     */
+    public synchronized void append(HistoryView view) {
+        Segment s = this.segments.isEmpty() ? null : this.segments.get(this.segments.size() - 1);
+        if ( s == null || s.count >= this.segmentSize ) {
+            s = new Segment(s == null ? -1 : s.last[BALANCE]);
+            this.segments.add(s);
+        }
+        int[] v = this.values;
+        v[DATE] = view.getDate();
+        v[TIME] = view.getTime();
+        v[CONSOLE] = view.getConsoleTypeCode();
+        v[PROCESS] = view.getProcessTypeCode();
+        v[ENTRANCE] = view.getEntranceKey();
+        v[EXIT] = view.getExitKey();
+        v[BALANCE] = view.getBalance();
+        v[SEQUENCE] = view.getSequence();
+        s.append(v);
+        this.size++;
+    }
+    /**
+     * 格納している使用履歴の件数を取得します
+     * @return int 件数が戻ります
+     */
+    public synchronized int size() {
+        return this.size;
+    }
+    /**
+     * セグメント数を取得します
+     * @return int セグメント数が戻ります
+     */
+    public synchronized int getSegmentCount() {
+        return this.segments.size();
+    }
+    /**
+     * 列の格納に使用しているバイト数を取得します
+     * @return int バイト数が戻ります
+     */
+    public synchronized int getEncodedSize() {
+        int size = 0;
+        for ( Segment s : this.segments ) {
+            size += s.getEncodedSize();
+        }
+        return size;
+    }
+    /**
+     * 日付の範囲に含まれる使用履歴を古いものから順に読み込みます
+     * <pre>日付の範囲と重ならないセグメントはデコードしません</pre>
+     * @param fromDate 開始日(yyyyMMdd、この日を含む)をセット
+     * @param toDate 終了日(yyyyMMdd、この日を含む)をセット
+     * @param visitor 使用履歴を受け取るビジタをセット
+     * @return int ビジタに通知した件数が戻ります
+     */
+    public synchronized int scan(int fromDate, int toDate, Visitor visitor) {
+        Cursor c = new Cursor();
+        int visited = 0;
+        for ( Segment s : this.segments ) {
+            if ( !s.overlaps(fromDate, toDate) ) continue;
+            c.reset(s);
+            for ( int n = 0; n < s.count; n++ ) {
+                c.next();
+                int date = c.getDate();
+                if ( date < fromDate || date > toDate ) continue;
+                visited++;
+                if ( !visitor.onRecord(c) ) return visited;
+            }
+        }
+        return visited;
+    }
+    /**
+     * 日付の範囲に含まれる使用履歴の支払額を日毎に集計します
+     * @param fromDate 開始日(yyyyMMdd、この日を含む)をセット
+     * @param toDate 終了日(yyyyMMdd、この日を含む)をセット
+     * @return SortedMap&lt;Integer, Integer&gt; 日付(yyyyMMdd)毎の支払額が戻ります (支払の無い日は含みません)
+     */
+    public SortedMap<Integer, Integer> spendByDay(int fromDate, int toDate) {
+        final SortedMap<Integer, Integer> result = new TreeMap<Integer, Integer>();
+        this.scan(fromDate, toDate, new Visitor() {
+            @Override
+            public boolean onRecord(Cursor cursor) {
+                int spend = cursor.getSpend();
+                if ( spend > 0 ) add(result, cursor.getDate(), spend);
+                return true;
+            }
+        });
+        return result;
+    }
+    /**
+     * 日付の範囲に含まれる使用履歴で、駅(停留所)毎の利用回数を集計します
+     * <pre>入場、出場をそれぞれ1回と数えます(バスの場合は1回です)。物販は含みません</pre>
+     * @param fromDate 開始日(yyyyMMdd、この日を含む)をセット
+     * @param toDate 終了日(yyyyMMdd、この日を含む)をセット
+     * @return Map&lt;Integer, Integer&gt; 駅のキー毎の利用回数が戻ります
+     */
+    public Map<Integer, Integer> stationFrequency(int fromDate, int toDate) {
+        final Map<Integer, Integer> result = new HashMap<Integer, Integer>();
+        this.scan(fromDate, toDate, new Visitor() {
+            @Override
+            public boolean onRecord(Cursor cursor) {
+                if ( cursor.isProductSales() ) return true;
+                add(result, cursor.getEntranceKey(), 1);
+                if ( !cursor.isByBus() && !cursor.isCharge() ) {
+                    add(result, cursor.getExitKey(), 1);
+                }
+                return true;
+            }
+        });
+        return result;
+    }
+    /**
+     * 集計結果のキーに値を加算します
+     * @param totals 集計結果をセット
+     * @param key キーをセット
+     * @param amount 加算する値をセット
+     */
+    private static void add(Map<Integer, Integer> totals, int key, int amount) {
+        Integer current = totals.get(key);
+        totals.put(key, current != null ? current + amount : amount);
+    }
+    /**
+     * ストアをファイルに書き出します
+     * <pre>一時ファイルに書き出してから置き換えるため、書き出しの途中で中断されても元のファイルは壊れません</pre>
+     * @param file 出力先のファイルをセット
+     * @throws IOException
+     */
+    public synchronized void save(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(this.segmentSize);
+            out.writeInt(this.segments.size());
+            for ( Segment s : this.segments ) {
+                s.writeTo(out);
+            }
+        } finally {
+            out.close();
+        }
+        if ( !temp.renameTo(file) ) {
+            //renameToで上書きできない環境では削除してから置き換える
+            if ( !file.delete() || !temp.renameTo(file) ) {
+                throw new IOException("can not replace " + file);
+            }
+        }
+    }
+    /**
+     * ファイルからストアを読み込みます
+     * @param file 入力元のファイルをセット
+     * @return HistoryStore ストアが戻ります
+     * @throws IOException ファイルの形式が不正な場合
+     */
+    public static HistoryStore load(File file) throws IOException {
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if ( in.readInt() != MAGIC || in.readInt() != VERSION ) {
+                throw new IOException("not a history store : " + file);
+            }
+            HistoryStore store = new HistoryStore(in.readInt());
+            int count = in.readInt();
+            for ( int i = 0; i < count; i++ ) {
+                Segment s = Segment.readFrom(in);
+                store.segments.add(s);
+                store.size += s.count;
+            }
+            return store;
+        } finally {
+            in.close();
+        }
+    }
+}
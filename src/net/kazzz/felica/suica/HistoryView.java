@@ -0,0 +1,279 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica.suica;
+
+/**
+ * 使用履歴ブロック(16バイト)をバッファ上で直接デコードするフライウェイトを提供します
+ *
+ * <pre>bindでバッファ内の位置を切り替えて使い回すため、多数のブロックを連続してデコードしても
+ * オブジェクトを生成しません。各値はプリミティブで戻ります</pre>
+ * <pre>ブロックの形式はFeliCa Library - http://sourceforge.jp/projects/felicalib/wiki/suica を参考にしています
+ *   0: 機器種別  1: 処理種別  2: 支払種別  3: 入出場種別  4-5: 日付
+ *   6-7: 入場線区/駅順 (物販の場合は時刻、バスの場合は線区)  8-9: 出場線区/駅順 (バスの場合は停留所)
+ *   10-11: 残高 (リトルエンディアン)  12-14: 連番  15: 地区コード</pre>
+ *
+ * @author Kazzz
+ * @date 2011/03/18
+ * @since Android API Level 4
+ *
+ */
+
+public final class HistoryView {
+    /** 使用履歴1件のバイト数 */
+    public static final int BLOCK_SIZE = 16;
+
+    private byte[] buffer;
+    private int offset;
+
+    /**
+     * コンストラクタ
+     * <pre>bindでバッファをセットしてから使用します</pre>
+     */
+    public HistoryView() {
+    }
+    /**
+     * コンストラクタ
+     * @param buffer 使用履歴ブロックを含むバッファをセット
+     * @param offset ブロックの先頭位置をセット
+     */
+    public HistoryView(byte[] buffer, int offset) {
+        this.bind(buffer, offset);
+    }
+    /**
+     * バッファ内のブロックを対象にします
+     * @param buffer 使用履歴ブロックを含むバッファをセット
+     * @param offset ブロックの先頭位置をセット
+     * @return HistoryView 自身が戻ります
+     */
+    public HistoryView bind(byte[] buffer, int offset) {
+        if ( offset < 0 || offset + BLOCK_SIZE > buffer.length ) {
+            throw new IndexOutOfBoundsException("offset : " + offset);
+        }
+        this.buffer = buffer;
+        this.offset = offset;
+        return this;
+    }
+    /**
+     * 対象のバッファを取得します
+     * @return byte[] バッファが戻ります
+     */
+    public byte[] getBuffer() {
+        return this.buffer;
+    }
+    /**
+     * 対象のブロックの先頭位置を取得します
+     * @return int 先頭位置が戻ります
+     */
+    public int getOffset() {
+        return this.offset;
+    }
+    /**
+     * 1バイトを符号なしで取得します
+     * @param index ブロック内の位置をセット
+     * @return int 値が戻ります
+     */
+    private int u8(int index) {
+        return this.buffer[this.offset + index] & 0xff;
+    }
+    /**
+     * 2バイトをビッグエンディアンの符号なし値として取得します
+     * @param index ブロック内の位置をセット
+     * @return int 値が戻ります
+     */
+    private int u16(int index) {
+        return this.u8(index) << 8 | this.u8(index + 1);
+    }
+    /**
+     * 機器種別のコードを取得します
+     * @return int 機器種別(0x00～0xff)が戻ります
+     */
+    public int getConsoleTypeCode() {
+        return this.u8(0);
+    }
+    /**
+     * 処理種別のコードを取得します
+     * @return int 処理種別(0x00～0xff)が戻ります
+     */
+    public int getProcessTypeCode() {
+        return this.u8(1);
+    }
+    /**
+     * 支払種別のコードを取得します
+     * @return int 支払種別(0x00～0xff)が戻ります
+     */
+    public int getPaymentTypeCode() {
+        return this.u8(2);
+    }
+    /**
+     * 入出場種別のコードを取得します
+     * @return int 入出場種別(0x00～0xff)が戻ります
+     */
+    public int getInOutTypeCode() {
+        return this.u8(3);
+    }
+    /**
+     * 残高を取得します
+     * @return int 残高が戻ります
+     */
+    public int getBalance() {
+        return this.u8(11) << 8 | this.u8(10);
+    }
+    /**
+     * 処理日付をカード上の形式(年7bit 月4bit 日5bit)のまま取得します
+     * @return int 処理日付が戻ります
+     */
+    public int getRawDate() {
+        return this.u16(4);
+    }
+    /**
+     * 処理日付の年を取得します
+     * @return int 西暦年が戻ります
+     */
+    public int getYear() {
+        return 2000 + (this.getRawDate() >> 9);
+    }
+    /**
+     * 処理日付の月を取得します
+     * @return int 月(1～12)が戻ります
+     */
+    public int getMonth() {
+        return (this.getRawDate() >> 5) & 0xf;
+    }
+    /**
+     * 処理日付の日を取得します
+     * @return int 日(1～31)が戻ります
+     */
+    public int getDay() {
+        return this.getRawDate() & 0x1f;
+    }
+    /**
+     * 処理日付をyyyyMMdd形式の整数で取得します
+     * @return int 処理日付(例: 20110124)が戻ります
+     */
+    public int getDate() {
+        int date = this.getRawDate();
+        return (2000 + (date >> 9)) * 10000 + ((date >> 5) & 0xf) * 100 + (date & 0x1f);
+    }
+    /**
+     * 処理時刻をHHmm形式の整数で取得します
+     * <pre>時刻が記録されるのは物販の場合のみです。それ以外の場合は0が戻ります</pre>
+     * @return int 処理時刻(例: 1830)が戻ります
+     */
+    public int getTime() {
+        if ( !this.isProductSales() ) return 0;
+        int time = this.u16(6);
+        return (time >> 11) * 100 + ((time >> 5) & 0x3f);
+    }
+    /**
+     * 地区コードを取得します
+     * @return int 地区コードが戻ります
+     */
+    public int getRegionCode() {
+        return this.u8(15);
+    }
+    /**
+     * 入場駅の線区コードを取得します
+     * @return int 線区コードが戻ります
+     */
+    public int getEntranceLineCode() {
+        return this.u8(6);
+    }
+    /**
+     * 入場駅の駅順コードを取得します
+     * @return int 駅順コードが戻ります
+     */
+    public int getEntranceStationCode() {
+        return this.u8(7);
+    }
+    /**
+     * 出場駅の線区コードを取得します
+     * @return int 線区コードが戻ります
+     */
+    public int getExitLineCode() {
+        return this.u8(8);
+    }
+    /**
+     * 出場駅の駅順コードを取得します
+     * @return int 駅順コードが戻ります
+     */
+    public int getExitStationCode() {
+        return this.u8(9);
+    }
+    /**
+     * バスの線区コードを取得します
+     * @return int 線区コード(16bit)が戻ります
+     */
+    public int getBusLineCode() {
+        return this.u16(6);
+    }
+    /**
+     * バスの停留所コードを取得します
+     * @return int 停留所コード(16bit)が戻ります
+     */
+    public int getBusStopCode() {
+        return this.u16(8);
+    }
+    /**
+     * 連番を取得します
+     * @return int 連番(24bit)が戻ります
+     */
+    public int getSequence() {
+        return this.u8(12) << 16 | this.u16(13);
+    }
+    /**
+     * 入場駅のキーを取得します
+     * @return int 鉄道の場合はStationDictionary.stationKey、バスの場合はbusStopKeyで詰めたキーが戻ります
+     *  物販の場合は-1が戻ります
+     */
+    public int getEntranceKey() {
+        if ( this.isProductSales() ) return -1;
+        return this.isByBus()
+            ? StationDictionary.busStopKey(this.getBusLineCode(), this.getBusStopCode())
+            : StationDictionary.stationKey(this.getRegionCode()
+                    , this.getEntranceLineCode(), this.getEntranceStationCode());
+    }
+    /**
+     * 出場駅のキーを取得します
+     * @return int 鉄道の場合はStationDictionary.stationKey、バスの場合はbusStopKeyで詰めたキーが戻ります
+     *  (バスの場合入場と同じ値となります) 物販の場合は-1が戻ります
+     */
+    public int getExitKey() {
+        if ( this.isProductSales() ) return -1;
+        return this.isByBus()
+            ? StationDictionary.busStopKey(this.getBusLineCode(), this.getBusStopCode())
+            : StationDictionary.stationKey(this.getRegionCode()
+                    , this.getExitLineCode(), this.getExitStationCode());
+    }
+    /**
+     * 処理種別がバス利用か否かを検査します
+     * @return boolean バス利用の場合trueが戻ります
+     */
+    public boolean isByBus() {
+        //端末種別が 車載の場合
+        return SuicaCodes.isByBus(this.u8(0));
+    }
+    /**
+     * 端末種別が「物販」か否かを判定します
+     * @return boolean 物販だった場合はtrueが戻ります
+     */
+    public boolean isProductSales() {
+        //端末種別が物販又は自販機
+        return SuicaCodes.isProductSales(this.u8(0));
+    }
+    /**
+     * 処理種別が「チャージ」か否かを判定します
+     * @return boolean チャージだった場合はtrueが戻ります
+     */
+    public boolean isCharge() {
+        return SuicaCodes.isCharge(this.u8(1));
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica.suica;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 駅コード、停留所コードをメモリ上に展開したインデックスを提供します
+ *
+ * <pre>構築後の検索ではデータベースや辞書にアクセスしません
+ * AndroidではDBUtil.getStationCodeIndexでStationCode.dbから構築したものをプロセス内で共有します</pre>
+ * <pre>キーは鉄道の場合 (地区コード &lt;&lt; 16 | 線区コード &lt;&lt; 8 | 駅順コード)、
+ * バスの場合 (線区コード &lt;&lt; 16 | 停留所コード) に詰めたintで、ソート済みの配列を二分探索します</pre>
+ *
+ * @author Kazzz
+ * @date 2011/03/10
+ * @since Android API Level 4
+ *
+ */
+
+public final class StationCodeIndex implements StationResolver {
+    private final int[] stationKeys;
+    private final String[][] stations;
+    private final int[] busStopKeys;
+    private final String[][] busStops;
+
+    /**
+     * コンストラクタ
+     * @param stationMap 駅のキーと名称(会社名、路線名、駅名)のマップをセット
+     * @param busStopMap 停留所のキーと名称(会社名、停留所名)のマップをセット
+     */
+    public StationCodeIndex(TreeMap<Integer, String[]> stationMap
+            , TreeMap<Integer, String[]> busStopMap) {
+        this.stationKeys = new int[stationMap.size()];
+        this.stations = new String[stationMap.size()][];
+        int i = 0;
+        for ( Map.Entry<Integer, String[]> e : stationMap.entrySet() ) {
+            this.stationKeys[i] = e.getKey();
+            this.stations[i] = e.getValue();
+            i++;
+        }
+        this.busStopKeys = new int[busStopMap.size()];
+        this.busStops = new String[busStopMap.size()][];
+        i = 0;
+        for ( Map.Entry<Integer, String[]> e : busStopMap.entrySet() ) {
+            this.busStopKeys[i] = e.getKey();
+            this.busStops[i] = e.getValue();
+            i++;
+        }
+    }
+    /**
+     * コンストラクタ
+     * <pre>辞書の全件をメモリ上に展開します</pre>
+     * @param dictionary 駅コード辞書をセット
+     */
+    public StationCodeIndex(StationDictionary dictionary) {
+        int n = dictionary.getStationCount();
+        this.stationKeys = new int[n];
+        this.stations = new String[n][];
+        for ( int i = 0; i < n; i++ ) {
+            this.stationKeys[i] = dictionary.getStationKey(i);
+            this.stations[i] = dictionary.getStationAt(i);
+        }
+        n = dictionary.getBusStopCount();
+        this.busStopKeys = new int[n];
+        this.busStops = new String[n][];
+        for ( int i = 0; i < n; i++ ) {
+            this.busStopKeys[i] = dictionary.getBusStopKey(i);
+            this.busStops[i] = dictionary.getBusStopAt(i);
+        }
+    }
+    /* (non-Javadoc)
+     * @see net.kazzz.felica.suica.StationResolver#getStation(int, int, int)
+     */
+    @Override
+    public String[] getStation(int areaCode, int lineCode, int stationCode) {
+        int i = Arrays.binarySearch(this.stationKeys
+                , StationDictionary.stationKey(areaCode, lineCode, stationCode));
+        return i >= 0 ? this.stations[i].clone() : null;
+    }
+    /* (non-Javadoc)
+     * @see net.kazzz.felica.suica.StationResolver#getBusStop(int, int)
+     */
+    @Override
+    public String[] getBusStop(int lineCode, int stationCode) {
+        int i = Arrays.binarySearch(this.busStopKeys
+                , StationDictionary.busStopKey(lineCode, stationCode));
+        return i >= 0 ? this.busStops[i].clone() : null;
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica.suica;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * StationCode.dbから生成したバイナリ形式の駅コード辞書を読み込むクラスを提供します
+ *
+ * <pre>辞書はtools/のStationDictionaryCompilerで生成します。形式は以下の通り(ビッグエンディアン)
+ *   ヘッダ     : MAGIC(4) VERSION(4) 駅数(4) 停留所数(4) 文字列プールオフセット(4)
+ *   駅表       : キー(4) 会社名(4) 路線名(4) 駅名(4) をキー昇順に駅数分
+ *   停留所表   : キー(4) 会社名(4) 停留所名(4) をキー昇順に停留所数分
+ *   文字列プール : 長さ(2) UTF-8バイト列 の繰り返し (名称は文字列プール内のオフセット、-1はnull)</pre>
+ * <pre>キーはstationKey、busStopKeyで詰めたintです。AndroidやSQLiteに依存しないため、通常のJVMでも利用できます</pre>
+ *
+ * @author Kazzz
+ * @date 2011/03/12
+ * @since Android API Level 4
+ *
+ */
+
+public final class StationDictionary implements StationResolver {
+    /** ファイル先頭のマジックナンバー ("SCD1") */
+    public static final int MAGIC = 0x53434431;
+    /** 辞書の形式バージョン */
+    public static final int VERSION = 1;
+
+    public static final int HEADER_SIZE = 20;
+    public static final int STATION_ENTRY_SIZE = 16;
+    public static final int BUSSTOP_ENTRY_SIZE = 12;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final ByteBuffer buffer;
+    private final int stationCount;
+    private final int busStopCount;
+    private final int stationTable;
+    private final int busStopTable;
+    private final int stringPool;
+
+    /**
+     * コンストラクタ
+     * @param buffer 辞書全体を保持するバッファをセット (マップしたファイル、ダイレクトバッファ等)
+     * @throws IOException 辞書の形式が不正な場合
+     */
+    public StationDictionary(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+        if ( this.buffer.capacity() < HEADER_SIZE || this.buffer.getInt(0) != MAGIC ) {
+            throw new IOException("invalid station dictionary");
+        }
+        if ( this.buffer.getInt(4) != VERSION ) {
+            throw new IOException("unsupported station dictionary version : "
+                    + this.buffer.getInt(4));
+        }
+        this.stationCount = this.buffer.getInt(8);
+        this.busStopCount = this.buffer.getInt(12);
+        this.stringPool = this.buffer.getInt(16);
+        this.stationTable = HEADER_SIZE;
+        this.busStopTable = this.stationTable + this.stationCount * STATION_ENTRY_SIZE;
+        if ( this.busStopTable + this.busStopCount * BUSSTOP_ENTRY_SIZE != this.stringPool
+                || this.stringPool > this.buffer.capacity() ) {
+            throw new IOException("corrupt station dictionary");
+        }
+    }
+    /**
+     * 辞書ファイルをメモリにマップして開きます
+     * @param file 辞書ファイルをセット
+     * @return StationDictionary 辞書が戻ります
+     * @throws IOException
+     */
+    public static StationDictionary open(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            return new StationDictionary(
+                    channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            //マップ済みのバッファはチャネルを閉じても有効
+            in.close();
+        }
+    }
+    /**
+     * 地区コード、線区コード、駅順コードからキーを生成します
+     * @param areaCode 地区コードをセット
+     * @param lineCode 線区コードをセット
+     * @param stationCode 駅順コードをセット
+     * @return int キーが戻ります
+     */
+    public static int stationKey(int areaCode, int lineCode, int stationCode) {
+        return (areaCode & 0xff) << 16 | (lineCode & 0xff) << 8 | (stationCode & 0xff);
+    }
+    /**
+     * 線区コード、停留所コードからキーを生成します
+     * @param lineCode 線区コードをセット
+     * @param stationCode 停留所コードをセット
+     * @return int キーが戻ります
+     */
+    public static int busStopKey(int lineCode, int stationCode) {
+        return (lineCode & 0xffff) << 16 | (stationCode & 0xffff);
+    }
+    /**
+     * 収録されている駅の数を取得します
+     * @return int 駅の数が戻ります
+     */
+    public int getStationCount() {
+        return this.stationCount;
+    }
+    /**
+     * 収録されている停留所の数を取得します
+     * @return int 停留所の数が戻ります
+     */
+    public int getBusStopCount() {
+        return this.busStopCount;
+    }
+    /**
+     * 序数で指定した駅のキーを取得します
+     * @param index 序数(0～駅数-1)をセット
+     * @return int キーが戻ります
+     */
+    public int getStationKey(int index) {
+        return this.buffer.getInt(this.stationTable + index * STATION_ENTRY_SIZE);
+    }
+    /**
+     * 序数で指定した駅の名称を取得します
+     * @param index 序数(0～駅数-1)をセット
+     * @return String[] 序数0に会社名、1に路線名、2に駅名が戻ります
+     */
+    public String[] getStationAt(int index) {
+        int pos = this.stationTable + index * STATION_ENTRY_SIZE;
+        return new String[] {
+                this.getString(this.buffer.getInt(pos + 4))
+              , this.getString(this.buffer.getInt(pos + 8))
+              , this.getString(this.buffer.getInt(pos + 12)) };
+    }
+    /**
+     * 序数で指定した停留所のキーを取得します
+     * @param index 序数(0～停留所数-1)をセット
+     * @return int キーが戻ります
+     */
+    public int getBusStopKey(int index) {
+        return this.buffer.getInt(this.busStopTable + index * BUSSTOP_ENTRY_SIZE);
+    }
+    /**
+     * 序数で指定した停留所の名称を取得します
+     * @param index 序数(0～停留所数-1)をセット
+     * @return String[] 序数0に会社名、1に停留所名が戻ります
+     */
+    public String[] getBusStopAt(int index) {
+        int pos = this.busStopTable + index * BUSSTOP_ENTRY_SIZE;
+        return new String[] {
+                this.getString(this.buffer.getInt(pos + 4))
+              , this.getString(this.buffer.getInt(pos + 8)) };
+    }
+    /* (non-Javadoc)
+     * @see net.kazzz.felica.suica.StationResolver#getStation(int, int, int)
+     */
+    @Override
+    public String[] getStation(int areaCode, int lineCode, int stationCode) {
+        int i = this.search(this.stationTable, STATION_ENTRY_SIZE, this.stationCount
+                , stationKey(areaCode, lineCode, stationCode));
+        return i >= 0 ? this.getStationAt(i) : null;
+    }
+    /* (non-Javadoc)
+     * @see net.kazzz.felica.suica.StationResolver#getBusStop(int, int)
+     */
+    @Override
+    public String[] getBusStop(int lineCode, int stationCode) {
+        int i = this.search(this.busStopTable, BUSSTOP_ENTRY_SIZE, this.busStopCount
+                , busStopKey(lineCode, stationCode));
+        return i >= 0 ? this.getBusStopAt(i) : null;
+    }
+    /**
+     * 固定長のキー表を二分探索します
+     * @param table 表の先頭位置をセット
+     * @param entrySize 1件のバイト数をセット
+     * @param count 件数をセット
+     * @param key 検索するキーをセット
+     * @return int 見つかった場合は序数、見つからない場合は負の値が戻ります
+     */
+    private int search(int table, int entrySize, int count, int key) {
+        int low = 0;
+        int high = count - 1;
+        while ( low <= high ) {
+            int mid = (low + high) >>> 1;
+            int midKey = this.buffer.getInt(table + mid * entrySize);
+            if ( midKey < key ) {
+                low = mid + 1;
+            } else if ( midKey > key ) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+    /**
+     * 文字列プールから文字列を取得します
+     * @param ref 文字列プール内のオフセットをセット
+     * @return String 文字列が戻ります (-1の場合はnull)
+     */
+    private String getString(int ref) {
+        if ( ref < 0 ) return null;
+        int pos = this.stringPool + ref;
+        int length = this.buffer.getShort(pos) & 0xffff;
+        byte[] bytes = new byte[length];
+        for ( int i = 0; i < length; i++ ) {
+            bytes[i] = this.buffer.get(pos + 2 + i);
+        }
+        return new String(bytes, UTF8);
+    }
+}
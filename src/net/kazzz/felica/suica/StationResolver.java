@@ -0,0 +1,46 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica.suica;
+
+import java.io.IOException;
+
+/**
+ * 駅コード、停留所コードから名称を解決するインタフェースを提供します
+ *
+ * <pre>実装として、SQLiteデータベース(DBUtil)、メモリ上のインデックス(StationCodeIndex)、
+ * メモリマップした辞書(StationDictionary)があります。実装はスレッドセーフでなければなりません</pre>
+ *
+ * @author Kazzz
+ * @date 2011/03/22
+ * @since Android API Level 4
+ *
+ */
+
+public interface StationResolver {
+    /**
+     * 地区コード、線区コード、駅順コードから駅名を取得します
+     * @param areaCode 地区コードをセット
+     * @param lineCode 線区コードをセット
+     * @param stationCode 駅順コードをセット
+     * @return String[] 序数0に会社名、1に路線名、2に駅名が戻ります 見つからない場合はnullが戻ります
+     * @throws IOException 駅コードの格納先にアクセスできない場合
+     */
+    String[] getStation(int areaCode, int lineCode, int stationCode) throws IOException;
+    /**
+     * 線区コード、停留所コードからバス停留所を取得します
+     * @param lineCode 線区コードをセット
+     * @param stationCode 停留所コードをセット
+     * @return String[] 序数0に会社名、1に停留所名が戻ります 見つからない場合はnullが戻ります
+     * @throws IOException 停留所コードの格納先にアクセスできない場合
+     */
+    String[] getBusStop(int lineCode, int stationCode) throws IOException;
+}
@@ -11,22 +11,10 @@
  */
 package net.kazzz.felica.suica;
 
-import static net.kazzz.felica.suica.DBUtil.COLUMNS_IRUCA_STATIONCODE;
-import static net.kazzz.felica.suica.DBUtil.COLUMNS_STATIONCODE;
-import static net.kazzz.felica.suica.DBUtil.COLUMN_ID;
-import static net.kazzz.felica.suica.DBUtil.TABLE_IRUCA_STATIONCODE;
-import static net.kazzz.felica.suica.DBUtil.TABLE_STATIONCODE;
-
-import java.text.NumberFormat;
-import java.text.SimpleDateFormat;
+import java.io.IOException;
 import java.util.Calendar;
 import java.util.Date;
 
-import net.kazzz.felica.lib.Util;
-import android.content.Context;
-import android.database.Cursor;
-import android.database.sqlite.SQLiteDatabase;
-
 /**
  * Suica(PASMO)データ抽象化したクラスを提供します
  *
@@ -41,6 +29,21 @@ import android.database.sqlite.SQLiteDatabase;
  */
 
 public class Suica {
+    /**
+     * 使用履歴を1件デコードする毎に通知を受けるリスナを提供します
+     *
+     * @date 2011/03/16
+     * @since Android API Level 9
+     *
+     */
+    public interface HistoryListener {
+        /**
+         * 使用履歴をデコードした際に呼ばれます
+         * @param index 使用履歴の序数(0～)が渡されます
+         * @param history デコードした使用履歴が渡されます
+         */
+        void onHistory(int index, History history);
+    }
     /**
      * 使用履歴を抽象化したクラスを提供します
      *
@@ -51,15 +54,28 @@ public class Suica {
      */
     public static class History {
         final byte[] data;
-        Context context;
+        final HistoryView view;
+        final StationResolver resolver;
+        //toStringで使用するTEXTのレンダラ (不変なので、この使用履歴のresolverで一つだけ生成する)
+        private final HistoryRenderer textRenderer;
         /**
          * コンストラクタ
+         * <pre>駅名、停留所はresolverで解決するため、Androidのコンテキストがなくてもデコードできます</pre>
          * @param data データのバイト列(16バイト)をセット
-         * @param context androidコンテキストをセット
+         * @param resolver 駅名、停留所を解決するStationResolverをセット (nullの場合は名称を解決しない)
          */
-        public History(byte[] data, Context context) {
+        public History(byte[] data, StationResolver resolver) {
             this.data = data;
-            this.context = context;
+            this.view = new HistoryView(data, 0);
+            this.resolver = resolver;
+            this.textRenderer = new HistoryRenderer(HistoryRenderer.Template.TEXT, resolver);
+        }
+        /**
+         * データをプリミティブで参照するためのビューを取得します
+         * @return HistoryView ビューが戻ります
+         */
+        public HistoryView getView() {
+            return this.view;
         }
         /**
          * 機器種別を取得します
@@ -80,29 +96,23 @@ public class Suica {
          * @return BigDecimal 残高が戻ります
          */
         public long getBalance() {
-            return new Long(Util.toInt(new byte[]{this.data[11], this.data[10]}));
+            return this.view.getBalance();
         }
         /**
          * 処理日付(出場日付)を取得します
          * @return byte[]
          */
         public Date getProccessDate() {
-            int date = Util.toInt(new byte[]{this.data[4], this.data[5]});
-            int yy = date >> 9;
-            int mm = (date >> 5) & 0xf;
-            int dd = date & 0x1f;
             Calendar c = Calendar.getInstance();
-            c.set(Calendar.YEAR, 2000 + yy);
-            c.set(Calendar.MONTH, mm-1);
-            c.set(Calendar.DAY_OF_MONTH, dd);
+            c.set(Calendar.YEAR, this.view.getYear());
+            c.set(Calendar.MONTH, this.view.getMonth() - 1);
+            c.set(Calendar.DAY_OF_MONTH, this.view.getDay());
 
             //物販だったら時間もセット
             if ( this.isProductSales() ) {
-                int time = Util.toInt(new byte[]{this.data[6], this.data[7]});
-                int hh = time >> 11;
-                int min = (time >> 5) & 0x3f;
-                c.set(Calendar.HOUR_OF_DAY, hh);
-                c.set(Calendar.MINUTE, min);
+                int time = this.view.getTime();
+                c.set(Calendar.HOUR_OF_DAY, time / 100);
+                c.set(Calendar.MINUTE, time % 100);
             } else {
                 c.set(Calendar.HOUR_OF_DAY, 0);
                 c.set(Calendar.MINUTE, 0);
@@ -118,11 +128,11 @@ public class Suica {
             if (!this.isProductSales()) {
                 if ( this.isByBus() ) {
                     //バス利用の場合
-                    return getBusStop(Util.toInt(new byte[]{this.data[6], this.data[7]})
-                            , Util.toInt(new byte[]{this.data[8], this.data[9]}));
+                    return getBusStop(this.view.getBusLineCode(), this.view.getBusStopCode());
                 } else {
                     //鉄道利用の場合
-                    return getStation(this.data[15], this.data[6], this.data[7]);
+                    return getStation(this.view.getRegionCode()
+                            , this.view.getEntranceLineCode(), this.view.getEntranceStationCode());
                 }
             } else {
                 return new String[]{"", "", ""};
@@ -137,11 +147,11 @@ public class Suica {
             if (!this.isProductSales()) {
                 if ( this.isByBus() ) {
                     //バス利用の場合
-                    return getBusStop(Util.toInt(new byte[]{this.data[6], this.data[7]})
-                            , Util.toInt(new byte[]{this.data[8], this.data[9]}));
+                    return getBusStop(this.view.getBusLineCode(), this.view.getBusStopCode());
                 } else {
                     //鉄道利用の場合
-                    return getStation(this.data[15], this.data[8], this.data[9]);
+                    return getStation(this.view.getRegionCode()
+                            , this.view.getExitLineCode(), this.view.getExitStationCode());
                 }
             } else {
                 return new String[]{"", "", ""};
@@ -156,27 +166,9 @@ public class Suica {
          * @return 取得できた場合、序数0に会社名、1に路線名、2に駅名が戻ります
          */
         private String[] getStation(int regionCode, int lineCode, int statioCode) {
-
-            int areaCode = regionCode & 0xff;
-            DBUtil util = new DBUtil(this.context);
-            try {
-                SQLiteDatabase db = util.openDataBase();
-                Cursor c = db.query(TABLE_STATIONCODE
-                        , COLUMNS_STATIONCODE
-                        ,   COLUMNS_STATIONCODE[0] + " = '" + areaCode + "' and "
-                          + COLUMNS_STATIONCODE[1] + " = '" + (lineCode & 0xff) + "' and "
-                          + COLUMNS_STATIONCODE[2] + " = '" + (statioCode & 0xff) + "'"
-                        , null, null, null, COLUMN_ID);
-
-                return ( c.moveToFirst() )
-                    ?  new String[]{ c.getString(3), c.getString(4), c.getString(5)}
-                    :  new String[]{"???", "???", "???"};
-            } catch (Exception e) {
-                e.printStackTrace();
-                return new String[]{"error", "error", "error"};
-            } finally {
-                util.close();
-            }
+            String[] result = this.resolver != null
+                ? HistoryRenderer.resolveStation(this.resolver, regionCode, lineCode, statioCode) : null;
+            return result != null ? result : new String[]{"???", "???", "???"};
         }
         /**
          * パス停留所を取得します
@@ -186,23 +178,9 @@ public class Suica {
          * @return 取得できた場合、序数0に会社名、1停留所名が戻ります
          */
         private String[] getBusStop(int lineCode, int statioCode) {
-            DBUtil util = new DBUtil(this.context);
-            try {
-                SQLiteDatabase db = util.openDataBase();
-                Cursor c = db.query(TABLE_IRUCA_STATIONCODE
-                        , COLUMNS_IRUCA_STATIONCODE
-                        ,   COLUMNS_IRUCA_STATIONCODE[0] + " = '" + lineCode + "' and "
-                          + COLUMNS_IRUCA_STATIONCODE[1] + " = '" + statioCode + "'"
-                        , null, null, null, COLUMN_ID);
-                return ( c.moveToFirst()  )
-                    ?  new String[]{c.getString(2), c.getString(4)}
-                    :  new String[]{"???", "???"};
-            } catch (Exception e) {
-                e.printStackTrace();
-                return new String[]{"error", "error"};
-            } finally {
-                util.close();
-            }
+            String[] result = this.resolver != null
+                ? HistoryRenderer.resolveBusStop(this.resolver, lineCode, statioCode) : null;
+            return result != null ? result : new String[]{"???", "???"};
         }
 
         /**
@@ -212,7 +190,7 @@ public class Suica {
          */
         public boolean isByBus() {
             //data[0]端末種別が 車載の場合
-            return (this.data[0] & 0xff) == 0x05;
+            return this.view.isByBus();
         }
         /**
          *　端末種別が「物販」か否かを判定します
@@ -221,8 +199,7 @@ public class Suica {
          */
         public boolean isProductSales() {
             //data[0]端末種別が物販又は自販機
-            return (this.data[0] & 0xff) == 0xc7
-                || (this.data[0] & 0xff) == 0xc8;
+            return this.view.isProductSales();
         }
         /**
          *　処理種別が「チャージ」か否かを判定します (店舗名を取得できるか否かを判定します)
@@ -230,7 +207,7 @@ public class Suica {
          * @return boolean チャージだった場合はtrueが戻ります
          */
         public boolean isCharge() {
-            return ( this.data[1] & 0xff) == 0x02;
+            return this.view.isCharge();
         }
 
         /* (non-Javadoc)
@@ -238,46 +215,15 @@ public class Suica {
          */
         @Override
         public String toString() {
-            NumberFormat nf = NumberFormat.getCurrencyInstance();
-            nf.setMaximumFractionDigits(0);
-            SimpleDateFormat dfl = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
-            SimpleDateFormat dfs = new SimpleDateFormat("yyyy/MM/dd");
-
-            StringBuilder sb = new StringBuilder();
-            sb.append("機器種別: " + this.getConsoleType() + "\n");
-            sb.append("処理種別: " + this.getProcessType() + "\n");
-            if ( !this.isProductSales() ) {
-                sb.append("処理日付: " + dfs.format(this.getProccessDate()) + "\n");
-                if ( this.isByBus() ) {
-                    String[] busStopInfo = this.getEntranceStation();
-                    sb.append("利用会社: " + busStopInfo[0]);
-                    sb.append("停留所: " + busStopInfo[1] + "\n");
-                } else {
-                    String[] entranceInfo = this.getEntranceStation();
-                    String[] exitInfo = this.getExitStation();
-
-                    sb.append("入場: " + "\n");
-                    sb.append("  利用会社: " + entranceInfo[0]+ "\n");
-                    sb.append("  路線名: " + entranceInfo[1]+ "線\n");
-                    sb.append("  駅名: " + entranceInfo[2] + "\n");
-
-                    if ( !this.isCharge()) {
-                        sb.append("出場: " + "\n");
-                        sb.append("  利用会社: " + exitInfo[0]+ "\n");
-                        sb.append("  路線名: " + exitInfo[1]+ "線\n");
-                        sb.append("  駅名: " + exitInfo[2] + "\n");
-                    }
-                }
-            } else {
-                sb.append("処理日付: " + dfl.format(this.getProccessDate()) + "\n");
+            StringBuilder sb = new StringBuilder(256);
+            try {
+                this.textRenderer.render(0, this.view, sb);
+            } catch (IOException e) {
+                //StringBuilderへの書き出しでは発生しない
+                throw new IllegalStateException(e);
             }
-            //sb.append("支払種別: " + this.getPaymentType() + "\n");
-            sb.append("残高: " + nf.format(this.getBalance()) + "\n");
             return sb.toString();
-       }
-
-
-
+        }
     }
     /**
      * 機器種別を取得します
@@ -286,33 +232,7 @@ public class Suica {
      * @return String 機器タイプが文字列で戻ります
      */
     public static final String getConsoleType(int cType) {
-        switch (cType & 0xff) {
-            case 0x03: return "精算機";
-            case 0x04: return "携帯型端末";
-            case 0x05: return "等車載端末"; //bus
-            case 0x07: return "券売機";
-            case 0x08: return "券売機";
-            case 0x09: return "入金機(クイックチャージ機)";
-            case 0x12: return "券売機(東京モノレール)";
-            case 0x13: return "券売機等";
-            case 0x14: return "券売機等";
-            case 0x15: return "券売機等";
-            case 0x16: return "改札機";
-            case 0x17: return "簡易改札機";
-            case 0x18: return "窓口端末";
-            case 0x19: return "窓口端末(みどりの窓口)";
-            case 0x1a: return "改札端末";
-            case 0x1b: return "携帯電話";
-            case 0x1c: return "乗継清算機";
-            case 0x1d: return "連絡改札機";
-            case 0x1f: return "簡易入金機";
-            case 0x46: return "VIEW ALTTE";
-            case 0x48: return "VIEW ALTTE";
-            case 0xc7: return "物販端末";  //sales
-            case 0xc8: return "自販機";   //sales
-            default:
-                return "???";
-        }
+        return SuicaCodes.getConsoleType(cType);
     }
     /**
      * 処理種別を取得します
@@ -321,35 +241,7 @@ public class Suica {
      * @return String 処理タイプが文字列で戻ります
      */
     public static final String getProcessType(int proc) {
-        switch (proc & 0xff) {
-            case 0x01: return "運賃支払(改札出場)";
-            case 0x02: return "チャージ";
-            case 0x03: return "券購(磁気券購入";
-            case 0x04: return "精算";
-            case 0x05: return "精算(入場精算)";
-            case 0x06: return "窓出(改札窓口処理)";
-            case 0x07: return "新規(新規発行)";
-            case 0x08: return "控除(窓口控除)";
-            case 0x0d: return "バス(PiTaPa系)";    //byBus
-            case 0x0f: return "バス(IruCa系)";     //byBus
-            case 0x11: return "再発(再発行処理)";
-            case 0x13: return "支払(新幹線利用)";
-            case 0x14: return "入A(入場時オートチャージ)";
-            case 0x15: return "出A(出場時オートチャージ)";
-            case 0x1f: return "入金(バスチャージ)";            //byBus
-            case 0x23: return "券購 (バス路面電車企画券購入)";  //byBus
-            case 0x46: return "物販";                 //sales
-            case 0x48: return "特典(特典チャージ)";
-            case 0x49: return "入金(レジ入金)";         //sales
-            case 0x4a: return "物販取消";              //sales
-            case 0x4b: return "入物 (入場物販)";        //sales
-            case 0xc6: return "物現 (現金併用物販)";     //sales
-            case 0xcb: return "入物 (入場現金併用物販)"; //sales
-            case 0x84: return "精算 (他社精算)";
-            case 0x85: return "精算 (他社入場精算)";
-            default:
-                return "???";
-        }
+        return SuicaCodes.getProcessType(proc);
     }
 
 }
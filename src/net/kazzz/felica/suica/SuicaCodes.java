@@ -0,0 +1,161 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica.suica;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+/**
+ * Suica(PASMO)使用履歴の機器種別、処理種別の名称、分類を提供します
+ *
+ * <pre>Androidに依存しないため、端末外でのデコードにも利用できます</pre>
+ * <pre>名称、分類はassetsの表(SuicaCodes.tsv)から一度だけCodeTableに読み込み、以降は配列の添字だけで
+ * 取得します。未知のコードの名称も表で定義します</pre>
+ * <pre>Androidでは駅コードのデータベースと同様にDBUtilがAssetManagerで読み込み、setDefaultTableでセットします
+ * セットする前に使用された場合(端末外のツール等)は、クラスパスの直下(assetsをクラスパスに加えます)から読み込みます</pre>
+ * <pre>setTableで実行中に表を差し替えられます(CodeTablePackageを参照)。表の参照はvolatileの読み込み1回で、
+ * 差し替え中も参照する側を待たせることはありません</pre>
+ *
+ * @author Kazzz
+ * @date 2011/03/20
+ * @since Android API Level 4
+ *
+ */
+
+public final class SuicaCodes {
+    /** 機器種別、処理種別を定義したファイルの名前 (assets、コード表パッケージで共通) */
+    public static final String RESOURCE = "SuicaCodes.tsv";
+
+    //組み込みの表 (nullの場合は最初の使用時にクラスパスから読み込む)
+    private static volatile CodeTable defaultTable;
+    //差し替えた表 (nullの場合は組み込みの表)
+    private static volatile CodeTable table;
+
+    private SuicaCodes() {}
+
+    /**
+     * クラスパスの直下から組み込みの表を読み込みます
+     * @return CodeTable 表が戻ります
+     */
+    private static CodeTable loadResource() {
+        InputStream in = SuicaCodes.class.getResourceAsStream("/" + RESOURCE);
+        if ( in == null ) {
+            throw new IllegalStateException(RESOURCE + " is not found");
+        }
+        try {
+            try {
+                return CodeTable.parse(new InputStreamReader(in, "UTF-8"));
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(RESOURCE + " can not be loaded", e);
+        }
+    }
+
+    /**
+     * 機器種別、処理種別の表を取得します
+     * @return CodeTable 差し替えた表、差し替えていない場合は組み込みの表が戻ります
+     */
+    public static CodeTable getTable() {
+        CodeTable result = table;
+        return result != null ? result : getDefaultTable();
+    }
+    /**
+     * 組み込みの表を取得します
+     * @return CodeTable 表が戻ります
+     */
+    public static CodeTable getDefaultTable() {
+        CodeTable result = defaultTable;
+        if ( result == null ) {
+            synchronized (SuicaCodes.class) {
+                result = defaultTable;
+                if ( result == null ) {
+                    result = loadResource();
+                    defaultTable = result;
+                }
+            }
+        }
+        return result;
+    }
+    /**
+     * 組み込みの表をセットします
+     * <pre>AndroidではDBUtilがassetsから読み込んだ表をセットします</pre>
+     * @param newTable 表をセット
+     */
+    public static void setDefaultTable(CodeTable newTable) {
+        if ( newTable == null ) {
+            throw new IllegalArgumentException("table is null");
+        }
+        synchronized (SuicaCodes.class) {
+            defaultTable = newTable;
+        }
+    }
+    /**
+     * 機器種別、処理種別の表を差し替えます
+     * @param newTable 表をセット (nullの場合は組み込みの表に戻します)
+     */
+    public static void setTable(CodeTable newTable) {
+        table = newTable;
+    }
+    /**
+     * 機器種別を取得します
+     * <pre>http://sourceforge.jp/projects/felicalib/wiki/suicaを参考にしています</pre>
+     * @param cType コンソールタイプをセット
+     * @return String 機器タイプが文字列で戻ります
+     */
+    public static final String getConsoleType(int cType) {
+        return getTable().getConsole(cType).getLabel();
+    }
+    /**
+     * 処理種別を取得します
+     * <pre>http://sourceforge.jp/projects/felicalib/wiki/suicaを参考にしています</pre>
+     * @param proc 処理タイプをセット
+     * @return String 処理タイプが文字列で戻ります
+     */
+    public static final String getProcessType(int proc) {
+        return getTable().getProcess(proc).getLabel();
+    }
+    /**
+     * 機器種別がバス(車載端末)か否かを検査します
+     * @param cType コンソールタイプをセット
+     * @return boolean バスの場合trueが戻ります
+     */
+    public static boolean isByBus(int cType) {
+        return getTable().isConsole(cType, CodeTable.Category.BUS);
+    }
+    /**
+     * 機器種別が物販(物販端末、自販機)か否かを検査します
+     * @param cType コンソールタイプをセット
+     * @return boolean 物販の場合trueが戻ります
+     */
+    public static boolean isProductSales(int cType) {
+        return getTable().isConsole(cType, CodeTable.Category.SALES);
+    }
+    /**
+     * 処理種別がチャージか否かを検査します
+     * @param proc 処理タイプをセット
+     * @return boolean チャージの場合trueが戻ります
+     */
+    public static boolean isCharge(int proc) {
+        return getTable().isProcess(proc, CodeTable.Category.CHARGE);
+    }
+    /**
+     * 処理種別がオートチャージか否かを検査します
+     * @param proc 処理タイプをセット
+     * @return boolean オートチャージの場合trueが戻ります
+     */
+    public static boolean isAutoCharge(int proc) {
+        return getTable().isProcess(proc, CodeTable.Category.AUTO_CHARGE);
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica.suica.analytics;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.kazzz.felica.suica.HistoryStore;
+import net.kazzz.felica.suica.HistoryView;
+
+/**
+ * 多数のカードの使用履歴を並列に集計するアナライザを提供します
+ *
+ * <pre>スレッド毎にTripAnalyzerを用意し、各スレッドは未処理のカードを1枚ずつ取って集計します。
+ * 1枚のカードの使用履歴は1つのスレッドが順に処理するため、残高の差による運賃の導出は逐次の場合と変わりません。
+ * 全てのカードを処理した後、スレッド毎の集計結果をmergeでまとめます</pre>
+ *
+ * @author Kazzz
+ * @date 2011/04/06
+ * @since Android API Level 4
+ *
+ */
+
+public final class FleetAnalyzer {
+    /**
+     * 集計するカードの使用履歴を供給するソースを提供します
+     *
+     * @date 2011/04/06
+     * @since Android API Level 4
+     *
+     */
+    public interface CardSource {
+        /**
+         * カードの数を取得します
+         * @return int カードの数が戻ります
+         */
+        int getCardCount();
+        /**
+         * カードの使用履歴を古いものから順にアナライザに渡します
+         * <pre>複数のスレッドから呼ばれます</pre>
+         * @param card カードの序数(0～)が渡されます
+         * @param analyzer 使用履歴を渡すアナライザが渡されます (beginCardは呼び出し済みです)
+         * @throws IOException
+         */
+        void feed(int card, TripAnalyzer analyzer) throws IOException;
+    }
+
+    private final int threads;
+
+    /**
+     * コンストラクタ
+     * @param threads 集計するスレッドの数をセット
+     */
+    public FleetAnalyzer(int threads) {
+        if ( threads < 1 ) {
+            throw new IllegalArgumentException("threads must be positive : " + threads);
+        }
+        this.threads = threads;
+    }
+    /**
+     * カード毎の使用履歴のブロックを集計します
+     * @param cards カード毎に、ブロック(16バイト)を古いものから順に並べたバイト列をセット
+     * @return TripAnalyzer 全てのカードの集計結果が戻ります
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public TripAnalyzer analyze(final List<byte[]> cards) throws IOException, InterruptedException {
+        return this.analyze(new CardSource() {
+            @Override
+            public int getCardCount() {
+                return cards.size();
+            }
+            @Override
+            public void feed(int card, TripAnalyzer analyzer) {
+                byte[] blocks = cards.get(card);
+                analyzer.accept(blocks, 0, blocks.length / HistoryView.BLOCK_SIZE);
+            }
+        });
+    }
+    /**
+     * カード毎のストアに格納された使用履歴を集計します
+     * @param stores カード毎のストアをセット
+     * @return TripAnalyzer 全てのカードの集計結果が戻ります
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public TripAnalyzer analyzeStores(final List<HistoryStore> stores)
+            throws IOException, InterruptedException {
+        return this.analyze(new CardSource() {
+            @Override
+            public int getCardCount() {
+                return stores.size();
+            }
+            @Override
+            public void feed(int card, TripAnalyzer analyzer) {
+                stores.get(card).scan(Integer.MIN_VALUE, Integer.MAX_VALUE, analyzer);
+            }
+        });
+    }
+    /**
+     * ソースが供給する全てのカードの使用履歴を集計します
+     * @param source ソースをセット
+     * @return TripAnalyzer 全てのカードの集計結果が戻ります
+     * @throws IOException ソースが例外を送出した場合
+     * @throws InterruptedException
+     */
+    public TripAnalyzer analyze(final CardSource source) throws IOException, InterruptedException {
+        final int cardCount = source.getCardCount();
+        int n = Math.max(1, Math.min(this.threads, cardCount));
+        if ( n == 1 ) {
+            //並列にする必要が無い場合は呼び出したスレッドで集計する
+            return run(source, cardCount, new AtomicInteger());
+        }
+        final AtomicInteger next = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(n);
+        try {
+            List<Future<TripAnalyzer>> futures = new ArrayList<Future<TripAnalyzer>>(n);
+            for ( int i = 0; i < n; i++ ) {
+                futures.add(executor.submit(new Callable<TripAnalyzer>() {
+                    @Override
+                    public TripAnalyzer call() throws Exception {
+                        return run(source, cardCount, next);
+                    }
+                }));
+            }
+            TripAnalyzer result = new TripAnalyzer();
+            for ( Future<TripAnalyzer> f : futures ) {
+                try {
+                    result.merge(f.get());
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if ( cause instanceof IOException ) throw (IOException) cause;
+                    if ( cause instanceof RuntimeException ) throw (RuntimeException) cause;
+                    if ( cause instanceof Error ) throw (Error) cause;
+                    throw new IOException(cause);
+                }
+            }
+            return result;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+    /**
+     * 未処理のカードが無くなるまで1枚ずつ集計します
+     * @param source ソースをセット
+     * @param cardCount カードの数をセット
+     * @param next 次に処理するカードの序数をセット
+     * @return TripAnalyzer このスレッドで集計した結果が戻ります
+     * @throws IOException
+     */
+    private static TripAnalyzer run(CardSource source, int cardCount, AtomicInteger next)
+            throws IOException {
+        TripAnalyzer analyzer = new TripAnalyzer();
+        int card;
+        while ( (card = next.getAndIncrement()) < cardCount ) {
+            analyzer.beginCard();
+            source.feed(card, analyzer);
+        }
+        return analyzer;
+    }
+}
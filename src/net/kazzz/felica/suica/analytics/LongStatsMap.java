@@ -0,0 +1,179 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica.suica.analytics;
+
+import java.util.Arrays;
+
+/**
+ * longのキー毎に件数と合計をプリミティブのまま集計するマップを提供します
+ *
+ * <pre>オープンアドレス法(線形探索)のハッシュ表で、キーや値をボクシングしません。
+ * 件数が0のスロットを空きとみなすため、削除はできません</pre>
+ * <pre>スレッドセーフではありません。スレッド毎に集計し、mergeでまとめます</pre>
+ *
+ * @author Kazzz
+ * @date 2011/04/06
+ * @since Android API Level 4
+ *
+ */
+
+final class LongStatsMap {
+    private long[] keys;
+    private long[] counts;
+    private long[] sums;
+    private int size;
+
+    /**
+     * コンストラクタ
+     * @param expected 想定するキーの数をセット
+     */
+    LongStatsMap(int expected) {
+        int capacity = 16;
+        while ( capacity < expected * 2 ) capacity <<= 1;
+        this.keys = new long[capacity];
+        this.counts = new long[capacity];
+        this.sums = new long[capacity];
+    }
+    /**
+     * キーのスロットを探します
+     * @param keys キーの配列をセット
+     * @param counts 件数の配列をセット
+     * @param key キーをセット
+     * @return int キーのスロット、又はキーを置く空きスロットが戻ります
+     */
+    private static int slot(long[] keys, long[] counts, long key) {
+        int mask = keys.length - 1;
+        //上位ビットも混ぜる (日付や駅のキーは下位ビットが偏る)
+        long h = key * 0x9e3779b97f4a7c15L;
+        int i = (int) (h ^ (h >>> 32)) & mask;
+        while ( counts[i] != 0 && keys[i] != key ) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+    /**
+     * キーに件数と合計を加算します
+     * @param key キーをセット
+     * @param count 件数をセット (1以上)
+     * @param amount 合計に加算する値をセット
+     */
+    void add(long key, long count, long amount) {
+        int i = slot(this.keys, this.counts, key);
+        if ( this.counts[i] == 0 ) {
+            this.keys[i] = key;
+            if ( ++this.size * 2 > this.keys.length ) {
+                this.counts[i] = count;
+                this.sums[i] = amount;
+                this.grow();
+                return;
+            }
+        }
+        this.counts[i] += count;
+        this.sums[i] += amount;
+    }
+    /**
+     * ハッシュ表を2倍に拡げます
+     */
+    private void grow() {
+        long[] oldKeys = this.keys;
+        long[] oldCounts = this.counts;
+        long[] oldSums = this.sums;
+        this.keys = new long[oldKeys.length * 2];
+        this.counts = new long[oldKeys.length * 2];
+        this.sums = new long[oldKeys.length * 2];
+        for ( int j = 0; j < oldKeys.length; j++ ) {
+            if ( oldCounts[j] == 0 ) continue;
+            int i = slot(this.keys, this.counts, oldKeys[j]);
+            this.keys[i] = oldKeys[j];
+            this.counts[i] = oldCounts[j];
+            this.sums[i] = oldSums[j];
+        }
+    }
+    /**
+     * 他のマップの集計結果を加算します
+     * @param other 加算するマップをセット
+     */
+    void merge(LongStatsMap other) {
+        for ( int j = 0; j < other.keys.length; j++ ) {
+            if ( other.counts[j] != 0 ) {
+                this.add(other.keys[j], other.counts[j], other.sums[j]);
+            }
+        }
+    }
+    /**
+     * キーの数を取得します
+     * @return int キーの数が戻ります
+     */
+    int size() {
+        return this.size;
+    }
+    /**
+     * キーの件数を取得します
+     * @param key キーをセット
+     * @return long 件数が戻ります (キーが無い場合は0)
+     */
+    long getCount(long key) {
+        return this.counts[slot(this.keys, this.counts, key)];
+    }
+    /**
+     * キーの合計を取得します
+     * @param key キーをセット
+     * @return long 合計が戻ります (キーが無い場合は0)
+     */
+    long getSum(long key) {
+        return this.sums[slot(this.keys, this.counts, key)];
+    }
+    /**
+     * 全てのキーを昇順で取得します
+     * @return long[] キーが戻ります
+     */
+    long[] keys() {
+        long[] result = new long[this.size];
+        int n = 0;
+        for ( int j = 0; j < this.keys.length; j++ ) {
+            if ( this.counts[j] != 0 ) result[n++] = this.keys[j];
+        }
+        Arrays.sort(result);
+        return result;
+    }
+    /**
+     * 件数の多いキーから順に取得します
+     * <pre>件数が同じ場合はキーの昇順です</pre>
+     * @param limit 取得するキーの上限をセット
+     * @return long[] キーが戻ります
+     */
+    long[] top(int limit) {
+        int n = Math.min(limit, this.size);
+        long[] topKeys = new long[n];
+        long[] topCounts = new long[n];
+        int filled = 0;
+        for ( int j = 0; j < this.keys.length; j++ ) {
+            long c = this.counts[j];
+            if ( c == 0 ) continue;
+            long k = this.keys[j];
+            //件数の降順に挿入する (limitは小さい想定)
+            int i = filled;
+            while ( i > 0 && (topCounts[i - 1] < c
+                    || (topCounts[i - 1] == c && topKeys[i - 1] > k)) ) {
+                i--;
+            }
+            if ( i >= n ) continue;
+            int last = Math.min(filled, n - 1);
+            System.arraycopy(topKeys, i, topKeys, i + 1, last - i);
+            System.arraycopy(topCounts, i, topCounts, i + 1, last - i);
+            topKeys[i] = k;
+            topCounts[i] = c;
+            if ( filled < n ) filled++;
+        }
+        return topKeys;
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica.suica.analytics;
+
+import net.kazzz.felica.suica.HistoryStore;
+import net.kazzz.felica.suica.HistoryView;
+import net.kazzz.felica.suica.SuicaCodes;
+
+/**
+ * 使用履歴から運賃、利用区間を導出し、日毎、月毎、区間毎に集計するアナライザを提供します
+ *
+ * <pre>使用履歴はカード毎に古いものから順に渡します。運賃(支払額)は直前の使用履歴との残高の差で、
+ * 残高が増えた場合はチャージとして別に集計します。カードの切り替わりはbeginCardで通知します</pre>
+ * <pre>利用区間は入場駅と出場駅のキー(HistoryView#getEntranceKey、getExitKey)の組で、
+ * 鉄道の運賃支払とバスを数えます(バスは乗車した停留所の組です)。物販、チャージは含みません</pre>
+ * <pre>1件毎の処理はプリミティブの加算だけで、オブジェクトを生成しません。
+ * スレッドセーフではないため、並列に集計する場合はスレッド毎にインスタンスを用意し、mergeでまとめます
+ * (FleetAnalyzerを参照)</pre>
+ *
+ * @author Kazzz
+ * @date 2011/04/06
+ * @since Android API Level 4
+ *
+ */
+
+public final class TripAnalyzer implements HistoryStore.Visitor {
+    private final LongStatsMap daily = new LongStatsMap(512);
+    private final LongStatsMap monthly = new LongStatsMap(32);
+    private final LongStatsMap routes = new LongStatsMap(1024);
+    private final HistoryView view = new HistoryView();
+    private int previousBalance = -1;
+    private long cardCount;
+    private long recordCount;
+    private long tripCount;
+    private long fareTotal;
+    private long chargeTotal;
+
+    /**
+     * 次のカードの使用履歴の集計を開始します
+     * <pre>直前の残高を破棄するため、前のカードとの残高の差を運賃とみなしません</pre>
+     */
+    public void beginCard() {
+        this.previousBalance = -1;
+        this.cardCount++;
+    }
+    /**
+     * 使用履歴を1件集計します
+     * @param date 処理日付(yyyyMMdd)をセット
+     * @param consoleType 機器種別のコードをセット
+     * @param processType 処理種別のコードをセット
+     * @param entranceKey 入場駅のキーをセット
+     * @param exitKey 出場駅のキーをセット
+     * @param balance 残高をセット
+     */
+    public void accept(int date, int consoleType, int processType
+            , int entranceKey, int exitKey, int balance) {
+        this.recordCount++;
+        int previous = this.previousBalance;
+        this.previousBalance = balance;
+        if ( previous < 0 ) return;
+        if ( balance > previous ) {
+            this.chargeTotal += balance - previous;
+            return;
+        }
+        int fare = previous - balance;
+        this.fareTotal += fare;
+        this.daily.add(date, 1, fare);
+        this.monthly.add(date / 100, 1, fare);
+        //鉄道の運賃支払、バスを利用区間として数える
+        if ( !SuicaCodes.isProductSales(consoleType) && !SuicaCodes.isCharge(processType) ) {
+            this.tripCount++;
+            this.routes.add(route(entranceKey, exitKey), 1, fare);
+        }
+    }
+    /**
+     * 使用履歴を1件集計します
+     * @param view 使用履歴をセット
+     */
+    public void accept(HistoryView view) {
+        this.accept(view.getDate(), view.getConsoleTypeCode(), view.getProcessTypeCode()
+                , view.getEntranceKey(), view.getExitKey(), view.getBalance());
+    }
+    /**
+     * 連続する使用履歴のブロックを集計します
+     * @param buffer ブロック(16バイト)を古いものから順に並べたバイト列をセット
+     * @param offset 最初のブロックの開始位置をセット
+     * @param count ブロック数をセット
+     */
+    public void accept(byte[] buffer, int offset, int count) {
+        HistoryView v = this.view;
+        for ( int i = 0; i < count; i++ ) {
+            this.accept(v.bind(buffer, offset + i * HistoryView.BLOCK_SIZE));
+        }
+    }
+    /* (non-Javadoc)
+     * @see net.kazzz.felica.suica.HistoryStore.Visitor#onRecord(net.kazzz.felica.suica.HistoryStore.Cursor)
+     */
+    @Override
+    public boolean onRecord(HistoryStore.Cursor cursor) {
+        this.accept(cursor.getDate(), cursor.getConsoleTypeCode(), cursor.getProcessTypeCode()
+                , cursor.getEntranceKey(), cursor.getExitKey(), cursor.getBalance());
+        return true;
+    }
+    /**
+     * 他のアナライザの集計結果を加算します
+     * @param other 加算するアナライザをセット
+     */
+    public void merge(TripAnalyzer other) {
+        this.daily.merge(other.daily);
+        this.monthly.merge(other.monthly);
+        this.routes.merge(other.routes);
+        this.cardCount += other.cardCount;
+        this.recordCount += other.recordCount;
+        this.tripCount += other.tripCount;
+        this.fareTotal += other.fareTotal;
+        this.chargeTotal += other.chargeTotal;
+    }
+    /**
+     * 入場駅と出場駅のキーから利用区間のキーを作成します
+     * @param entranceKey 入場駅のキーをセット
+     * @param exitKey 出場駅のキーをセット
+     * @return long 利用区間のキーが戻ります
+     */
+    public static long route(int entranceKey, int exitKey) {
+        return (long) entranceKey << 32 | (exitKey & 0xffffffffL);
+    }
+    /**
+     * 利用区間のキーから入場駅のキーを取得します
+     * @param route 利用区間のキーをセット
+     * @return int 入場駅のキーが戻ります
+     */
+    public static int entranceOf(long route) {
+        return (int) (route >> 32);
+    }
+    /**
+     * 利用区間のキーから出場駅のキーを取得します
+     * @param route 利用区間のキーをセット
+     * @return int 出場駅のキーが戻ります
+     */
+    public static int exitOf(long route) {
+        return (int) route;
+    }
+    /**
+     * 集計したカードの数を取得します
+     * @return long カードの数が戻ります
+     */
+    public long getCardCount() {
+        return this.cardCount;
+    }
+    /**
+     * 集計した使用履歴の件数を取得します
+     * @return long 件数が戻ります
+     */
+    public long getRecordCount() {
+        return this.recordCount;
+    }
+    /**
+     * 利用区間として数えた件数を取得します
+     * @return long 件数が戻ります
+     */
+    public long getTripCount() {
+        return this.tripCount;
+    }
+    /**
+     * 運賃(支払額)の合計を取得します
+     * @return long 合計が戻ります
+     */
+    public long getFareTotal() {
+        return this.fareTotal;
+    }
+    /**
+     * チャージ額の合計を取得します
+     * @return long 合計が戻ります
+     */
+    public long getChargeTotal() {
+        return this.chargeTotal;
+    }
+    /**
+     * 支払のあった日付を取得します
+     * @return int[] 日付(yyyyMMdd)が昇順で戻ります
+     */
+    public int[] getDays() {
+        return toInts(this.daily.keys());
+    }
+    /**
+     * 日付の支払額の合計を取得します
+     * @param date 日付(yyyyMMdd)をセット
+     * @return long 合計が戻ります
+     */
+    public long getDailyFare(int date) {
+        return this.daily.getSum(date);
+    }
+    /**
+     * 日付の支払の件数を取得します
+     * @param date 日付(yyyyMMdd)をセット
+     * @return long 件数が戻ります
+     */
+    public long getDailyCount(int date) {
+        return this.daily.getCount(date);
+    }
+    /**
+     * 支払のあった月を取得します
+     * @return int[] 月(yyyyMM)が昇順で戻ります
+     */
+    public int[] getMonths() {
+        return toInts(this.monthly.keys());
+    }
+    /**
+     * 月の支払額の合計を取得します
+     * @param month 月(yyyyMM)をセット
+     * @return long 合計が戻ります
+     */
+    public long getMonthlyFare(int month) {
+        return this.monthly.getSum(month);
+    }
+    /**
+     * 月の支払の件数を取得します
+     * @param month 月(yyyyMM)をセット
+     * @return long 件数が戻ります
+     */
+    public long getMonthlyCount(int month) {
+        return this.monthly.getCount(month);
+    }
+    /**
+     * 利用回数の多い利用区間を取得します
+     * @param limit 取得する利用区間の上限をセット
+     * @return long[] 利用区間のキーが利用回数の多い順に戻ります
+     */
+    public long[] getTopRoutes(int limit) {
+        return this.routes.top(limit);
+    }
+    /**
+     * 利用区間の利用回数を取得します
+     * @param route 利用区間のキーをセット
+     * @return long 利用回数が戻ります
+     */
+    public long getRouteCount(long route) {
+        return this.routes.getCount(route);
+    }
+    /**
+     * 利用区間の運賃の合計を取得します
+     * @param route 利用区間のキーをセット
+     * @return long 合計が戻ります
+     */
+    public long getRouteFare(long route) {
+        return this.routes.getSum(route);
+    }
+    /**
+     * longの配列をintの配列にします
+     * @param values 配列をセット
+     * @return int[] 配列が戻ります
+     */
+    private static int[] toInts(long[] values) {
+        int[] result = new int[values.length];
+        for ( int i = 0; i < values.length; i++ ) {
+            result[i] = (int) values[i];
+        }
+        return result;
+    }
+}
@@ -0,0 +1,304 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica.suica;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * 保存された使用履歴ブロック(16バイト)のダンプを一括でデコードするコマンドラインツールを提供します
+ *
+ * <pre>入力は16バイトのブロックを連結したバイナリ、又は1行に1ブロック(16進数32桁)を記述したテキストです
+ * 入力はチャンク単位で読み込み、チャンク内をFork/Joinで並列にデコードしてから順番通りに書き出すため、
+ * 入力の大きさに関わらずメモリ使用量はチャンクの大きさで抑えられます</pre>
+ * <pre>使い方
+ *   java -cp tools/bin:assets net.kazzz.felica.suica.HistoryDumpDecoder
+ *       [-f bin|hex] [-o csv|json] [-s StationCode.dic] [-t スレッド数] [-c チャンクのブロック数]
+ *       入力ファイル [出力ファイル]
+ * 機器種別、処理種別の表(SuicaCodes.tsv)はクラスパスに加えたassetsから読み込みます
+ * 出力ファイルを省略した場合は標準出力に書き出し、処理件数と毎秒の処理件数を標準エラーに出力します</pre>
+ *
+ * @author Kazzz
+ * @date 2011/03/20
+ * @since Java 1.7
+ *
+ */
+
+public class HistoryDumpDecoder {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    //1タスクでデコードするブロック数
+    private static final int LEAF_SIZE = 2048;
+
+    /**
+     * 出力形式を提供します
+     */
+    public enum Format { CSV, JSON }
+
+    private final Format format;
+    private final HistoryRenderer renderer;
+    private final ForkJoinPool pool;
+    private final int chunkRecords;
+
+    private long records;
+
+    /**
+     * コンストラクタ
+     * @param format 出力形式をセット
+     * @param stations 駅名を解決するStationResolverをセット (nullの場合、駅名は出力しません)
+     * @param threads デコードに使うスレッド数をセット
+     * @param chunkRecords 一度に読み込むブロック数をセット
+     */
+    public HistoryDumpDecoder(Format format, StationResolver stations, int threads, int chunkRecords) {
+        this.format = format;
+        this.renderer = new HistoryRenderer(format == Format.CSV
+                ? HistoryRenderer.Template.CSV : HistoryRenderer.Template.JSON, stations);
+        this.pool = new ForkJoinPool(threads);
+        this.chunkRecords = chunkRecords;
+    }
+    /**
+     * エントリポイント
+     * @param args コマンドライン引数をセット
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        boolean hex = false;
+        Format format = Format.CSV;
+        StationResolver stations = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int chunkRecords = 1 << 16;
+        String in = null;
+        String out = null;
+        for ( int i = 0; i < args.length; i++ ) {
+            String arg = args[i];
+            if ( "-f".equals(arg) ) {
+                hex = "hex".equalsIgnoreCase(args[++i]);
+            } else if ( "-o".equals(arg) ) {
+                format = Format.valueOf(args[++i].toUpperCase());
+            } else if ( "-s".equals(arg) ) {
+                stations = StationDictionary.open(new File(args[++i]));
+            } else if ( "-t".equals(arg) ) {
+                threads = Integer.parseInt(args[++i]);
+            } else if ( "-c".equals(arg) ) {
+                chunkRecords = Integer.parseInt(args[++i]);
+            } else if ( in == null ) {
+                in = arg;
+            } else {
+                out = arg;
+            }
+        }
+        if ( in == null ) {
+            System.err.println("usage: HistoryDumpDecoder [-f bin|hex] [-o csv|json]"
+                    + " [-s StationCode.dic] [-t threads] [-c chunkRecords] <input> [output]");
+            System.exit(1);
+        }
+
+        HistoryDumpDecoder decoder = new HistoryDumpDecoder(format, stations, threads, chunkRecords);
+        InputStream is = new BufferedInputStream(new FileInputStream(in), 1 << 16);
+        OutputStream os = out != null ? new FileOutputStream(out) : System.out;
+        Writer w = new BufferedWriter(new OutputStreamWriter(os, UTF8), 1 << 16);
+        long start = System.nanoTime();
+        try {
+            if ( hex ) {
+                decoder.decodeHex(new BufferedReader(new InputStreamReader(is, UTF8)), w);
+            } else {
+                decoder.decodeBinary(is, w);
+            }
+        } finally {
+            w.flush();
+            if ( out != null ) w.close();
+            is.close();
+        }
+        double sec = (System.nanoTime() - start) / 1e9;
+        System.err.printf("%d records in %.3f s (%.0f records/s)%n"
+                , decoder.records, sec, decoder.records / Math.max(sec, 1e-9));
+    }
+    /**
+     * バイナリ形式のダンプをデコードします
+     * @param in 入力をセット
+     * @param out 出力先をセット
+     * @throws IOException
+     */
+    public void decodeBinary(InputStream in, Writer out) throws IOException {
+        byte[] chunk = new byte[this.chunkRecords * HistoryView.BLOCK_SIZE];
+        this.begin(out);
+        while ( true ) {
+            int length = 0;
+            int n;
+            while ( length < chunk.length
+                    && (n = in.read(chunk, length, chunk.length - length)) > 0 ) {
+                length += n;
+            }
+            if ( length % HistoryView.BLOCK_SIZE != 0 ) {
+                System.err.println("ignored trailing " + (length % HistoryView.BLOCK_SIZE) + " bytes");
+            }
+            int count = length / HistoryView.BLOCK_SIZE;
+            if ( count == 0 ) break;
+            this.decodeChunk(chunk, count, out);
+            if ( length < chunk.length ) break;
+        }
+        this.end(out);
+    }
+    /**
+     * テキスト形式(1行1ブロック、16進数32桁)のダンプをデコードします
+     * <pre>空白、':'、'-'は区切りとして無視し、空行と'#'で始まる行は読み飛ばします</pre>
+     * @param in 入力をセット
+     * @param out 出力先をセット
+     * @throws IOException
+     */
+    public void decodeHex(BufferedReader in, Writer out) throws IOException {
+        byte[] chunk = new byte[this.chunkRecords * HistoryView.BLOCK_SIZE];
+        int count = 0;
+        long lineNo = 0;
+        String line;
+        this.begin(out);
+        while ( (line = in.readLine()) != null ) {
+            lineNo++;
+            if ( !parseHexLine(line, chunk, count * HistoryView.BLOCK_SIZE, lineNo) ) continue;
+            if ( ++count == this.chunkRecords ) {
+                this.decodeChunk(chunk, count, out);
+                count = 0;
+            }
+        }
+        if ( count > 0 ) this.decodeChunk(chunk, count, out);
+        this.end(out);
+    }
+    /**
+     * 16進数の1行をバッファに格納します
+     * @param line 行をセット
+     * @param dest 格納先をセット
+     * @param offset 格納先の位置をセット
+     * @param lineNo 行番号をセット (エラー報告用)
+     * @return boolean ブロックを格納した場合はtrue、読み飛ばした場合はfalseが戻ります
+     * @throws IOException 形式が不正な場合
+     */
+    private static boolean parseHexLine(String line, byte[] dest, int offset, long lineNo)
+            throws IOException {
+        int digits = 0;
+        for ( int i = 0; i < line.length(); i++ ) {
+            char c = line.charAt(i);
+            if ( c == '#' && digits == 0 ) return false;
+            if ( c == ' ' || c == '\t' || c == ':' || c == '-' ) continue;
+            int v = Character.digit(c, 16);
+            if ( v < 0 || digits == HistoryView.BLOCK_SIZE * 2 ) {
+                throw new IOException("line " + lineNo + ": invalid block : " + line);
+            }
+            int pos = offset + (digits >> 1);
+            dest[pos] = (byte) ((digits & 1) == 0 ? v << 4 : (dest[pos] & 0xf0) | v);
+            digits++;
+        }
+        if ( digits == 0 ) return false;
+        if ( digits != HistoryView.BLOCK_SIZE * 2 ) {
+            throw new IOException("line " + lineNo + ": block must be 16 bytes : " + line);
+        }
+        return true;
+    }
+    /**
+     * チャンク内のブロックを並列にデコードし、順番通りに書き出します
+     * @param chunk ブロックを連結したバッファをセット
+     * @param count ブロック数をセット
+     * @param out 出力先をセット
+     * @throws IOException
+     */
+    private void decodeChunk(byte[] chunk, int count, Writer out) throws IOException {
+        StringBuilder[] parts = new StringBuilder[(count + LEAF_SIZE - 1) / LEAF_SIZE];
+        this.pool.invoke(new DecodeTask(chunk, 0, parts.length, count, this.records, parts));
+        for ( StringBuilder part : parts ) {
+            out.append(part);
+        }
+        this.records += count;
+    }
+    /**
+     * 出力の先頭を書き出します
+     * @param out 出力先をセット
+     * @throws IOException
+     */
+    private void begin(Writer out) throws IOException {
+        if ( this.format == Format.CSV ) {
+            this.renderer.header(out);
+        } else {
+            out.write("[\n");
+        }
+    }
+    /**
+     * 出力の末尾を書き出します
+     * @param out 出力先をセット
+     * @throws IOException
+     */
+    private void end(Writer out) throws IOException {
+        if ( this.format == Format.JSON ) {
+            out.write(this.records > 0 ? "\n]\n" : "]\n");
+        }
+    }
+    /**
+     * チャンクの一部をデコードするタスクを提供します
+     * <pre>LEAF_SIZE単位の区間に分割し、区間毎に出力を組み立てます</pre>
+     */
+    private final class DecodeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final byte[] chunk;
+        private final int fromLeaf;
+        private final int toLeaf;
+        private final int count;
+        private final long baseIndex;
+        private final StringBuilder[] parts;
+
+        DecodeTask(byte[] chunk, int fromLeaf, int toLeaf, int count, long baseIndex
+                , StringBuilder[] parts) {
+            this.chunk = chunk;
+            this.fromLeaf = fromLeaf;
+            this.toLeaf = toLeaf;
+            this.count = count;
+            this.baseIndex = baseIndex;
+            this.parts = parts;
+        }
+        @Override
+        protected void compute() {
+            if ( this.toLeaf - this.fromLeaf > 1 ) {
+                int mid = (this.fromLeaf + this.toLeaf) >>> 1;
+                invokeAll(new DecodeTask(this.chunk, this.fromLeaf, mid, this.count, this.baseIndex, this.parts)
+                        , new DecodeTask(this.chunk, mid, this.toLeaf, this.count, this.baseIndex, this.parts));
+                return;
+            }
+            int from = this.fromLeaf * LEAF_SIZE;
+            int to = Math.min(from + LEAF_SIZE, this.count);
+            StringBuilder sb = new StringBuilder((to - from) * 160);
+            HistoryView view = new HistoryView();
+            try {
+                for ( int i = from; i < to; i++ ) {
+                    view.bind(this.chunk, i * HistoryView.BLOCK_SIZE);
+                    long index = this.baseIndex + i;
+                    if ( format == Format.JSON && index > 0 ) sb.append(",\n");
+                    renderer.render(index, view, sb);
+                }
+            } catch (IOException e) {
+                //StringBuilderへの書き出しでは発生しない
+                throw new IllegalStateException(e);
+            }
+            this.parts[this.fromLeaf] = sb;
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.kazzz.felica.suica;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * StationCode.dbからバイナリ形式の駅コード辞書(StationDictionary)を生成するビルド時ツールを提供します
+ *
+ * <pre>使い方 (SQLite JDBCドライバが必要です)
+ *   javac -cp sqlite-jdbc.jar -d tools/bin src/net/kazzz/felica/suica/StationDictionary.java \
+ *       tools/src/net/kazzz/felica/suica/StationDictionaryCompiler.java
+ *   java -cp sqlite-jdbc.jar:tools/bin net.kazzz.felica.suica.StationDictionaryCompiler \
+ *       assets/StationCode.db assets/StationCode.dic</pre>
+ * <pre>Androidのクラスに依存しないよう、テーブル定義はDBUtilと同じものをこのクラスで保持しています</pre>
+ *
+ * @author Kazzz
+ * @date 2011/03/12
+ * @since Java 1.6
+ *
+ */
+
+public class StationDictionaryCompiler {
+    //DBUtilと同じテーブル定義
+    static final String COLUMN_ID = "_id";
+    static final String TABLE_STATIONCODE = "StationCode";
+    static final String[] COLUMNS_STATIONCODE =
+        {"AreaCode", "LineCode", "StationCode", "CompanyName", "LineName", "StationName"};
+    static final String TABLE_IRUCA_STATIONCODE = "IruCaStationCode";
+    static final String[] COLUMNS_IRUCA_STATIONCODE =
+        {"LineCode", "StationCode", "CompanyName", "LineName", "StationName"};
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final TreeMap<Integer, String[]> stations = new TreeMap<Integer, String[]>();
+    private final TreeMap<Integer, String[]> busStops = new TreeMap<Integer, String[]>();
+
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private final Map<String, Integer> poolIndex = new HashMap<String, Integer>();
+
+    /**
+     * エントリポイント
+     * @param args 序数0に入力するStationCode.db、1に出力する辞書ファイルをセット
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        if ( args.length != 2 ) {
+            System.err.println("usage: StationDictionaryCompiler <StationCode.db> <StationCode.dic>");
+            System.exit(1);
+        }
+        Class.forName("org.sqlite.JDBC");
+        StationDictionaryCompiler compiler = new StationDictionaryCompiler();
+        Connection con = DriverManager.getConnection("jdbc:sqlite:" + args[0]);
+        try {
+            compiler.load(con);
+        } finally {
+            con.close();
+        }
+        File out = new File(args[1]);
+        compiler.write(out);
+        System.out.println(compiler.stations.size() + " stations, "
+                + compiler.busStops.size() + " bus stops -> " + out + " (" + out.length() + " bytes)");
+    }
+    /**
+     * 駅コード表、停留所コード表を読み込みます
+     * @param con StationCode.dbへの接続をセット
+     * @throws SQLException
+     */
+    void load(Connection con) throws SQLException {
+        Statement st = con.createStatement();
+        try {
+            //駅コードは10進数の文字列で格納されている
+            ResultSet rs = st.executeQuery(select(TABLE_STATIONCODE, COLUMNS_STATIONCODE));
+            while ( rs.next() ) {
+                int key = StationDictionary.stationKey(Integer.parseInt(rs.getString(1))
+                        , Integer.parseInt(rs.getString(2))
+                        , Integer.parseInt(rs.getString(3)));
+                //同一キーは先頭(_idの若い方)を優先
+                if ( !this.stations.containsKey(key) ) {
+                    this.stations.put(key
+                            , new String[]{rs.getString(4), rs.getString(5), rs.getString(6)});
+                }
+            }
+            rs.close();
+
+            //停留所コードは16進数の文字列で格納されている
+            rs = st.executeQuery(select(TABLE_IRUCA_STATIONCODE, COLUMNS_IRUCA_STATIONCODE));
+            while ( rs.next() ) {
+                int key = StationDictionary.busStopKey(Integer.parseInt(rs.getString(1), 16)
+                        , Integer.parseInt(rs.getString(2), 16));
+                if ( !this.busStops.containsKey(key) ) {
+                    this.busStops.put(key, new String[]{rs.getString(3), rs.getString(5)});
+                }
+            }
+            rs.close();
+        } finally {
+            st.close();
+        }
+    }
+    /**
+     * 辞書ファイルを書き出します
+     * @param file 出力先をセット
+     * @throws IOException
+     */
+    void write(File file) throws IOException {
+        ByteArrayOutputStream tables = new ByteArrayOutputStream();
+        DataOutputStream t = new DataOutputStream(tables);
+        for ( Map.Entry<Integer, String[]> e : this.stations.entrySet() ) {
+            t.writeInt(e.getKey());
+            for ( String s : e.getValue() ) t.writeInt(this.intern(s));
+        }
+        for ( Map.Entry<Integer, String[]> e : this.busStops.entrySet() ) {
+            t.writeInt(e.getKey());
+            for ( String s : e.getValue() ) t.writeInt(this.intern(s));
+        }
+        t.flush();
+
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        try {
+            out.writeInt(StationDictionary.MAGIC);
+            out.writeInt(StationDictionary.VERSION);
+            out.writeInt(this.stations.size());
+            out.writeInt(this.busStops.size());
+            out.writeInt(StationDictionary.HEADER_SIZE + tables.size());
+            tables.writeTo(out);
+            this.pool.writeTo(out);
+        } finally {
+            out.close();
+        }
+    }
+    /**
+     * 文字列を文字列プールに登録します (同じ文字列は共有されます)
+     * @param s 文字列をセット
+     * @return int 文字列プール内のオフセットが戻ります (nullの場合は-1)
+     */
+    private int intern(String s) {
+        if ( s == null ) return -1;
+        Integer ref = this.poolIndex.get(s);
+        if ( ref == null ) {
+            byte[] bytes = s.getBytes(UTF8);
+            ref = this.pool.size();
+            this.pool.write(bytes.length >> 8);
+            this.pool.write(bytes.length);
+            this.pool.write(bytes, 0, bytes.length);
+            this.poolIndex.put(s, ref);
+        }
+        return ref;
+    }
+    /**
+     * 全件を_id順に取得するSQLを生成します
+     * @param table テーブル名をセット
+     * @param columns カラム名をセット
+     * @return String SQLが戻ります
+     */
+    private static String select(String table, String[] columns) {
+        StringBuilder sb = new StringBuilder("select ");
+        for ( int i = 0; i < columns.length; i++ ) {
+            if ( i > 0 ) sb.append(", ");
+            sb.append(columns[i]);
+        }
+        return sb.append(" from ").append(table).append(" order by ").append(COLUMN_ID).toString();
+    }
+}